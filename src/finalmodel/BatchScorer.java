@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * Scores a PatientBatch with a set of model coefficients. The batch is swept
+ * one column at a time: categorical columns add a looked-up sum of their
+ * indicator coefficients, continuous columns add coefficient times value.
+ * Each sweep is a simple loop over primitive arrays that the JIT can unroll
+ * and vectorize.
+ *
+ * A scorer holds no per-batch state, so one scorer can be shared by any
+ * number of threads.
+ *
+ * @author okama
+ */
+public class BatchScorer {
+
+    // the coefficients used for scoring
+    private final ModelCoefficients coefficients;
+    // coefficient sum of each categorical option, [variable][option]
+    private final double[][] catOptionTable;
+    // coefficient of each continuous variable
+    private final double[] contCoefficients;
+
+    /**
+     * The constructor for the BatchScorer class
+     *
+     * @param coefficients the coefficients to score with
+     */
+    public BatchScorer (ModelCoefficients coefficients) {
+
+        this.coefficients = coefficients;
+        this.catOptionTable = coefficients.catOptionTable();
+        this.contCoefficients = new double[ModelCoefficients.NUM_CONT_TERMS];
+        for (int i = 0; i < contCoefficients.length; i++) {
+            contCoefficients[i] = coefficients.getCoefficient(i);
+        }
+    }
+
+    public ModelCoefficients getCoefficients () {
+        return (coefficients);
+    }
+
+    /**
+     * Computes the link value of a range of rows
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the link of row r at index r - from
+     */
+    public void link (PatientBatch batch, int from, int to, double[] links) {
+
+        int n = to - from;
+        double intercept = coefficients.getIntercept();
+
+        for (int i = 0; i < n; i++) {
+            links[i] = intercept;
+        }
+
+        for (int var = 0; var < catOptionTable.length; var++) {
+            byte[] column = batch.getCatColumn(var);
+            double[] table = catOptionTable[var];
+            for (int i = 0; i < n; i++) {
+                links[i] += table[column[from + i]];
+            }
+        }
+
+        for (int var = 0; var < contCoefficients.length; var++) {
+            double[] column = batch.getContColumn(var);
+            double coefficient = contCoefficients[var];
+            for (int i = 0; i < n; i++) {
+                links[i] += coefficient * column[from + i];
+            }
+        }
+    }
+
+    /**
+     * Computes the probability of mortality of a range of rows
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the link of row r at index r - from
+     * @param probabilities receives the probability of row r at index r - from;
+     * may be the same array as links
+     */
+    public void score (PatientBatch batch, int from, int to, double[] links,
+            double[] probabilities) {
+
+        link(batch, from, to, links);
+
+        for (int i = 0, n = to - from; i < n; i++) {
+            probabilities[i] = 1 / (1 + Math.exp(-links[i]));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Validates a batch of patients a column at a time, against the same ranges
+ * and options as the TBIModel set methods. Instead of stopping at the first
+ * bad field, the validator gives every row a bitmask of its invalid fields
+ * (bit c for column c of PatientRecordFormat, plus MALFORMED_BIT for a record
+ * with the wrong number of fields) and a compacted list of the valid rows,
+ * ready for PatientBatch.retain and BatchScorer.
+ *
+ * Records are loaded into a batch unchecked by load, which stores -1 for an
+ * unknown categorical option and NaN for a missing or unreadable number.
+ * Records bound for a FloatPatientBatch are instead checked field by field as
+ * they are loaded, each number in double precision before it is rounded to
+ * float, so the float path accepts exactly the records the double path does;
+ * only valid records are kept.
+ * The checks themselves are written without branches on the data, so a
+ * column is swept at the same speed however its valid and invalid rows are
+ * mixed. As with the set methods, NaN is never accepted.
+ *
+ * A validator holds no mutable state and may be shared between threads.
+ *
+ * @author okama
+ */
+public class BatchValidator {
+
+    // set for a record with too few or too many fields
+    public static final int MALFORMED_BIT = 1 << PatientRecordFormat.NUM_COLUMNS;
+
+    private final double[] minimums = new double[TBIModel.NUM_CONT_VARIABLES];
+    private final double[] maximums = new double[TBIModel.NUM_CONT_VARIABLES];
+    private final boolean[] integral = new boolean[TBIModel.NUM_CONT_VARIABLES];
+    private final int[] numOptions = new int[TBIModel.NUM_DIS_VARIABLES];
+    // option index of each categorical value
+    private final Map<String, Byte>[] optionIndexes;
+    private final String[] columnNames =
+            new String[PatientRecordFormat.NUM_COLUMNS];
+
+    /**
+     * The constructor for the BatchValidator class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BatchValidator () {
+
+        TBIModel model = new TBIModel();
+
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            minimums[v] = model.getIthContVarMinimum(v);
+            maximums[v] = model.getIthContVarMaximum(v);
+            integral[v] = model.isIthContVarIntegral(v);
+        }
+
+        optionIndexes = new Map[TBIModel.NUM_DIS_VARIABLES];
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            String[] options = model.getIthCatVarOptions(v);
+            numOptions[v] = options.length;
+            optionIndexes[v] = new HashMap<>();
+            for (int o = 0; o < options.length; o++) {
+                optionIndexes[v].put(options[o], (byte) o);
+            }
+        }
+
+        for (int c = 0; c < columnNames.length; c++) {
+            String name = model.getIthVariableName(c);
+            columnNames[c] = name.substring(0, name.length() - 1);
+        }
+    }
+
+    /**
+     * Stores a record in the next free row of a batch without checking it
+     *
+     * @param line a patient record
+     * @param batch the batch to add the record to
+     * @return MALFORMED_BIT if the record has the wrong number of fields,
+     * otherwise 0; to be passed to validate as the row's starting mask
+     * @throws IllegalStateException the batch is full
+     */
+    public int load (String line, PatientBatch batch)
+            throws IllegalStateException {
+
+        if (batch.isFull()) {
+            throw new IllegalStateException ("Patient batch is full");
+        }
+
+        int row = batch.size();
+        batch.setSize(row + 1);
+
+        String[] fields = new String[PatientRecordFormat.NUM_COLUMNS];
+        int flags = split(line, fields);
+        for (int c = 0; c < TBIModel.NUM_DIS_VARIABLES; c++) {
+            batch.getCatColumn(c)[row] = optionOf(c, fields[c]);
+        }
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            batch.getContColumn(v)[row] = valueOf(v,
+                    fields[TBIModel.NUM_DIS_VARIABLES + v]);
+        }
+
+        return (flags);
+    }
+
+    /**
+     * Checks a record and stores it in the next free row of a float batch if
+     * it is valid. Every number is checked in double precision, before it is
+     * rounded to float.
+     *
+     * @param line a patient record
+     * @param batch the batch to add the record to
+     * @return the mask of the record's invalid fields, as validate gives it;
+     * 0 for a valid record, which is the only kind stored
+     * @throws IllegalStateException the batch is full
+     */
+    public int load (String line, FloatPatientBatch batch)
+            throws IllegalStateException {
+
+        if (batch.isFull()) {
+            throw new IllegalStateException ("Patient batch is full");
+        }
+
+        int row = batch.size();
+        String[] fields = new String[PatientRecordFormat.NUM_COLUMNS];
+        int mask = split(line, fields);
+
+        for (int c = 0; c < TBIModel.NUM_DIS_VARIABLES; c++) {
+            byte option = optionOf(c, fields[c]);
+            mask |= option >= 0 ? 0 : 1 << c;
+            batch.getCatColumn(c)[row] = option;
+        }
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            double x = valueOf(v, fields[TBIModel.NUM_DIS_VARIABLES + v]);
+            boolean valid = x >= minimums[v] && x <= maximums[v] &&
+                    (!integral[v] || (double) (long) x == x);
+            mask |= valid ? 0 : 1 << (TBIModel.NUM_DIS_VARIABLES + v);
+            batch.getContColumn(v)[row] = (float) x;
+        }
+
+        if (mask == 0) {
+            batch.setSize(row + 1);
+        } else if (ScoringEvents.isRecordingValidation()) {
+            ScoringEvents.validationFailure("batch", describe(mask), null,
+                    null);
+        }
+
+        return (mask);
+    }
+
+    /**
+     * Splits a record into its fields, trimmed
+     *
+     * @param fields receives the fields; null for a missing one
+     * @return MALFORMED_BIT if the record has the wrong number of fields,
+     * otherwise 0
+     */
+    private static int split (String line, String[] fields) {
+
+        int flags = 0;
+        int start = 0;
+        for (int c = 0; c < fields.length; c++) {
+            String field = null;
+            if (start <= line.length()) {
+                int end = line.indexOf(PatientRecordFormat.SEPARATOR, start);
+                if (end < 0) {
+                    end = line.length();
+                }
+                field = line.substring(start, end).trim();
+                start = end + 1;
+            } else {
+                flags = MALFORMED_BIT;
+            }
+            fields[c] = field;
+        }
+        if (start <= line.length()) {
+            flags = MALFORMED_BIT;
+        }
+
+        return (flags);
+    }
+
+    /**
+     * @return the option index of a categorical field; -1 if it is missing
+     * or unknown
+     */
+    private byte optionOf (int variable, String field) {
+        Byte option = field == null ? null :
+                optionIndexes[variable].get(field);
+        return (option == null ? -1 : option);
+    }
+
+    /**
+     * @return the value of a continuous field; NaN if it is missing or
+     * unreadable
+     */
+    private double valueOf (int variable, String field) {
+        if (field == null) {
+            return (Double.NaN);
+        }
+        try {
+            // whole number variables are read as the set methods' callers
+            // read them
+            return (integral[variable] ? Integer.parseInt(field) :
+                    Double.parseDouble(field));
+        } catch (NumberFormatException notANumber) {
+            return (Double.NaN);
+        }
+    }
+
+    /**
+     * Checks a range of rows of a batch
+     *
+     * @param batch the patients
+     * @param from the first row to check
+     * @param to one past the last row to check
+     * @param masks on entry the starting mask of row r at index r - from (0,
+     * or the value returned by load); on return the mask of its invalid
+     * fields, 0 for a valid row
+     * @param validRows receives the valid rows, in increasing order; must
+     * have room for to - from rows
+     * @return the number of valid rows
+     */
+    public int validate (PatientBatch batch, int from, int to, int[] masks,
+            int[] validRows) {
+
+        int n = to - from;
+
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            double[] column = batch.getContColumn(v);
+            double min = minimums[v];
+            double max = maximums[v];
+            int bit = 1 << (TBIModel.NUM_DIS_VARIABLES + v);
+            if (integral[v]) {
+                for (int i = 0; i < n; i++) {
+                    double x = column[from + i];
+                    masks[i] |= (x >= min & x <= max &
+                            (double) (long) x == x) ? 0 : bit;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    double x = column[from + i];
+                    masks[i] |= (x >= min & x <= max) ? 0 : bit;
+                }
+            }
+        }
+
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            byte[] column = batch.getCatColumn(v);
+            int options = numOptions[v];
+            int bit = 1 << v;
+            for (int i = 0; i < n; i++) {
+                int option = column[from + i];
+                masks[i] |= (option >= 0 & option < options) ? 0 : bit;
+            }
+        }
+
+        // every row is written, but the count only moves past valid ones
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            validRows[count] = from + i;
+            count += masks[i] == 0 ? 1 : 0;
+        }
+
+        if (count < n && ScoringEvents.isRecordingValidation()) {
+            for (int i = 0; i < n; i++) {
+                if (masks[i] != 0) {
+                    ScoringEvents.validationFailure("batch",
+                            describe(masks[i]), null, null);
+                }
+            }
+        }
+
+        return (count);
+    }
+
+    /**
+     * Describes the invalid fields of a row
+     *
+     * @param mask the row's mask from validate
+     * @return the names of its invalid fields, comma separated; empty for a
+     * valid row
+     */
+    public String describe (int mask) {
+
+        StringBuilder out = new StringBuilder();
+        if ((mask & MALFORMED_BIT) != 0) {
+            out.append("Wrong Number of Fields");
+        }
+        for (int c = 0; c < columnNames.length; c++) {
+            if ((mask & (1 << c)) != 0) {
+                if (out.length() > 0) {
+                    out.append(", ");
+                }
+                out.append(columnNames[c]);
+            }
+        }
+
+        return (out.toString());
+    }
+}
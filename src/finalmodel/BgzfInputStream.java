@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF file (block gzip: a series of gzip members of at most
+ * 64 KiB, each giving its own compressed size in a "BC" extra field, as
+ * written by BgzfOutputStream, bgzip and samtools) with several threads.
+ * Since every member says where the next one starts, members are read off
+ * the underlying stream one after another without decompressing them, and
+ * handed to a pool that inflates them in parallel; their contents are
+ * returned in file order. A few members per thread are kept in flight, so
+ * memory use does not depend on the size of the file.
+ *
+ * Every member's CRC-32 and length are checked. A BGZF file ends with an
+ * empty member, which BgzfOutputStream and bgzip always write; a stream that
+ * ends without one was cut short at a member boundary, and reading it fails
+ * rather than returning the records before the cut as if they were the whole
+ * file. A BgzfInputStream is read by one thread; its pool is shut down on
+ * close.
+ *
+ * @author okama
+ */
+public class BgzfInputStream extends InputStream {
+
+    // fixed part of a BGZF member header, up to and including XLEN
+    static final int HEADER_SIZE = 12;
+
+    // size of the gzip trailer: CRC-32 and input size
+    static final int TRAILER_SIZE = 8;
+
+    // largest member
+    static final int MAX_BLOCK_SIZE = 1 << 16;
+
+    // members in flight per thread
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private final InputStream in;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    // members being inflated, in file order
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private boolean endOfInput = false;
+    // whether the last member read was empty, as the end-of-file member is
+    private boolean lastMemberEmpty = false;
+
+    // the member being returned, and the next byte of it
+    private byte[] current = new byte[0];
+    private int next = 0;
+
+    /**
+     * The constructor for the BgzfInputStream class
+     *
+     * @param in the compressed stream, positioned at a member header
+     * @param threads the number of inflating threads
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public BgzfInputStream (InputStream in, int threads)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        this.in = in;
+        this.maxInFlight = BLOCKS_PER_THREAD * threads;
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "BGZF inflater");
+            thread.setDaemon(true);
+            return (thread);
+        });
+    }
+
+    /**
+     * Tells whether the start of a file is a BGZF member header
+     *
+     * @param header the first bytes of the file
+     * @param length the number of bytes in header
+     * @return true if they start a gzip member with a BC extra field
+     */
+    static boolean isBgzf (byte[] header, int length) {
+        return (length >= HEADER_SIZE + 6 && (header[0] & 0xff) == 0x1f &&
+                (header[1] & 0xff) == 0x8b && header[2] == 8 &&
+                (header[3] & 4) != 0 && header[12] == 'B' &&
+                header[13] == 'C' && header[14] == 2 && header[15] == 0);
+    }
+
+    @Override
+    public int read () throws IOException {
+        if (!fill()) {
+            return (-1);
+        }
+        return (current[next++] & 0xff);
+    }
+
+    @Override
+    public int read (byte[] buffer, int offset, int length)
+            throws IOException {
+
+        if (length == 0) {
+            return (0);
+        }
+        if (!fill()) {
+            return (-1);
+        }
+
+        int count = Math.min(length, current.length - next);
+        System.arraycopy(current, next, buffer, offset, count);
+        next += count;
+
+        return (count);
+    }
+
+    @Override
+    public int available () {
+        return (current.length - next);
+    }
+
+    @Override
+    public void close () throws IOException {
+        pool.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Makes sure the current member has bytes left, moving to the next
+     * non-empty member as needed
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill () throws IOException {
+
+        while (next == current.length) {
+            while (!endOfInput && inFlight.size() < maxInFlight) {
+                byte[] member = readMember();
+                if (member == null) {
+                    endOfInput = true;
+                } else {
+                    inFlight.addLast(pool.submit(() -> inflate(member)));
+                }
+            }
+            if (inFlight.isEmpty()) {
+                return (false);
+            }
+            current = take(inFlight.removeFirst());
+            next = 0;
+        }
+
+        return (true);
+    }
+
+    /**
+     * Reads the next compressed member whole
+     *
+     * @return the member, or null at the end of the stream
+     * @throws EOFException the stream ends without the end-of-file member, or
+     * within a member
+     */
+    private byte[] readMember () throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        int got = readFully(header, 0, HEADER_SIZE);
+        if (got == 0) {
+            if (!lastMemberEmpty) {
+                throw new EOFException ("Truncated BGZF file (no end-of-file"
+                        + " member)");
+            }
+            return (null);
+        }
+        if (got < HEADER_SIZE || (header[0] & 0xff) != 0x1f ||
+                (header[1] & 0xff) != 0x8b || header[2] != 8 ||
+                (header[3] & 4) == 0) {
+            throw new IOException ("Not a BGZF member");
+        }
+
+        int extraLength = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] extra = new byte[extraLength];
+        if (readFully(extra, 0, extraLength) < extraLength) {
+            throw new EOFException ("Truncated BGZF member");
+        }
+
+        // find the BC subfield giving the member size less one
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; ) {
+            int fieldLength = (extra[i + 2] & 0xff) |
+                    (extra[i + 3] & 0xff) << 8;
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && fieldLength == 2 &&
+                    i + 6 <= extraLength) {
+                blockSize = ((extra[i + 4] & 0xff) |
+                        (extra[i + 5] & 0xff) << 8) + 1;
+            }
+            i += 4 + fieldLength;
+        }
+        if (blockSize < HEADER_SIZE + extraLength + TRAILER_SIZE) {
+            throw new IOException ("Not a BGZF member");
+        }
+
+        byte[] member = new byte[blockSize];
+        System.arraycopy(header, 0, member, 0, HEADER_SIZE);
+        System.arraycopy(extra, 0, member, HEADER_SIZE, extraLength);
+        int rest = blockSize - HEADER_SIZE - extraLength;
+        if (readFully(member, HEADER_SIZE + extraLength, rest) < rest) {
+            throw new EOFException ("Truncated BGZF member");
+        }
+        lastMemberEmpty = readInt(member, blockSize - 4) == 0;
+
+        return (member);
+    }
+
+    /**
+     * Inflates one member and checks it against its trailer
+     *
+     * @throws IOException the member is corrupt
+     */
+    private static byte[] inflate (byte[] member) throws IOException {
+
+        int extraLength = (member[10] & 0xff) | (member[11] & 0xff) << 8;
+        int dataStart = HEADER_SIZE + extraLength;
+        int trailer = member.length - TRAILER_SIZE;
+        long crc = readInt(member, trailer) & 0xffffffffL;
+        int size = readInt(member, trailer + 4);
+        if (size < 0 || size > MAX_BLOCK_SIZE) {
+            throw new IOException ("Invalid BGZF member size");
+        }
+
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, dataStart, trailer - dataStart);
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()) {
+                int count = inflater.inflate(data, inflated, size - inflated);
+                if (count == 0 && (inflater.needsInput() ||
+                        inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (!inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+                inflated++;
+            }
+            if (inflated != size || !inflater.finished()) {
+                throw new IOException ("Corrupt BGZF member (wrong size)");
+            }
+        } catch (DataFormatException corrupt) {
+            throw new IOException ("Corrupt BGZF member: " +
+                    corrupt.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 check = new CRC32();
+        check.update(data, 0, size);
+        if (check.getValue() != crc) {
+            throw new IOException ("Corrupt BGZF member (CRC mismatch)");
+        }
+
+        return (data);
+    }
+
+    private static int readInt (byte[] bytes, int at) {
+        return ((bytes[at] & 0xff) | (bytes[at + 1] & 0xff) << 8 |
+                (bytes[at + 2] & 0xff) << 16 | (bytes[at + 3] & 0xff) << 24);
+    }
+
+    /**
+     * Reads as many bytes as are asked for, or up to the end of the stream
+     *
+     * @return the number of bytes read
+     */
+    private int readFully (byte[] buffer, int offset, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return (total);
+    }
+
+    private static byte[] take (Future<byte[]> member) throws IOException {
+        try {
+            return (member.get());
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Interrupted while decompressing");
+        } catch (ExecutionException failure) {
+            if (failure.getCause() instanceof IOException) {
+                throw (IOException) failure.getCause();
+            }
+            throw new IOException ("Decompression failed",
+                    failure.getCause());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to BGZF with several threads. Written bytes are cut into blocks
+ * of a little under 64 KiB, each block is deflated by a pool into a gzip
+ * member of its own, and the members are written in order. The result is an
+ * ordinary multi-member gzip file that gzip and zcat read as usual, and that
+ * BgzfInputStream decompresses in parallel again.
+ *
+ * A BgzfOutputStream is written by one thread. Closing it writes the empty
+ * member that marks the end of a BGZF file, closes the underlying stream and
+ * shuts the pool down.
+ *
+ * @author okama
+ */
+public class BgzfOutputStream extends OutputStream {
+
+    // uncompressed bytes per member, leaving room for the deflate overhead
+    // of incompressible data within the 64 KiB limit
+    private static final int BLOCK_DATA_SIZE = 0xff00;
+
+    // members in flight per thread
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    // the empty member that ends a BGZF file
+    private static final byte[] EOF_MEMBER = {
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C',
+        2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    // members being deflated, in order
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+    // the block being filled
+    private byte[] block = new byte[BLOCK_DATA_SIZE];
+    private int size = 0;
+    private boolean closed = false;
+
+    /**
+     * The constructor for the BgzfOutputStream class
+     *
+     * @param out the stream to write the compressed members to
+     * @param threads the number of deflating threads
+     * @param level the deflate compression level, 1 to 9
+     * @throws IllegalArgumentException there must be at least one thread and
+     * the level must be from 1 to 9
+     */
+    public BgzfOutputStream (OutputStream out, int threads, int level)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException ("Invalid Compression Level"
+                    + " (Level should be from 1 to 9)");
+        }
+
+        this.out = out;
+        this.level = level;
+        this.maxInFlight = BLOCKS_PER_THREAD * threads;
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "BGZF deflater");
+            thread.setDaemon(true);
+            return (thread);
+        });
+    }
+
+    /**
+     * The constructor for the BgzfOutputStream class, at the default
+     * compression level
+     *
+     * @param out the stream to write the compressed members to
+     * @param threads the number of deflating threads
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public BgzfOutputStream (OutputStream out, int threads)
+            throws IllegalArgumentException {
+        this(out, threads, 6);
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+        block[size++] = (byte) b;
+        if (size == BLOCK_DATA_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write (byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, BLOCK_DATA_SIZE - size);
+            System.arraycopy(buffer, offset, block, size, count);
+            size += count;
+            offset += count;
+            length -= count;
+            if (size == BLOCK_DATA_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses and writes everything written so far. Each flush ends a
+     * member, so frequent flushes cost compression.
+     */
+    @Override
+    public void flush () throws IOException {
+        if (size > 0) {
+            submitBlock();
+        }
+        while (!inFlight.isEmpty()) {
+            out.write(take(inFlight.removeFirst()));
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(EOF_MEMBER);
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the current block to the pool, writing out finished members to
+     * keep the number in flight bounded
+     */
+    private void submitBlock () throws IOException {
+
+        final byte[] data = block;
+        final int length = size;
+        inFlight.addLast(pool.submit(() -> deflate(data, length, level)));
+        block = new byte[BLOCK_DATA_SIZE];
+        size = 0;
+
+        while (inFlight.size() >= maxInFlight ||
+                (!inFlight.isEmpty() && inFlight.peekFirst().isDone())) {
+            out.write(take(inFlight.removeFirst()));
+        }
+    }
+
+    /**
+     * Compresses one block into a BGZF member
+     */
+    private static byte[] deflate (byte[] data, int length, int level) {
+
+        byte[] member = new byte[BgzfInputStream.MAX_BLOCK_SIZE];
+        int dataStart = BgzfInputStream.HEADER_SIZE + 6;
+        int limit = member.length - BgzfInputStream.TRAILER_SIZE;
+
+        Deflater deflater = new Deflater(level, true);
+        int compressed;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            compressed = deflater.deflate(member, dataStart,
+                    limit - dataStart);
+            if (!deflater.finished()) {
+                // incompressible: store the block instead
+                deflater.reset();
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                compressed = deflater.deflate(member, dataStart,
+                        limit - dataStart);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        int memberSize = dataStart + compressed +
+                BgzfInputStream.TRAILER_SIZE;
+        byte[] header = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0,
+            'B', 'C', 2, 0, (byte) (memberSize - 1),
+            (byte) ((memberSize - 1) >>> 8)
+        };
+        System.arraycopy(header, 0, member, 0, header.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int trailer = dataStart + compressed;
+        writeInt(member, trailer, (int) crc.getValue());
+        writeInt(member, trailer + 4, length);
+
+        byte[] result = new byte[memberSize];
+        System.arraycopy(member, 0, result, 0, memberSize);
+
+        return (result);
+    }
+
+    private static void writeInt (byte[] bytes, int at, int value) {
+        bytes[at] = (byte) value;
+        bytes[at + 1] = (byte) (value >>> 8);
+        bytes[at + 2] = (byte) (value >>> 16);
+        bytes[at + 3] = (byte) (value >>> 24);
+    }
+
+    private static byte[] take (Future<byte[]> member) throws IOException {
+        try {
+            return (member.get());
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException ("Interrupted while compressing");
+        } catch (ExecutionException failure) {
+            throw new IOException ("Compression failed", failure.getCause());
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Scores a patient file into a file of probabilities, one per record as
+ * "score" prints them, in a way that survives a crash. Every so many rows the
+ * job makes its output durable and then records how far it got in a
+ * checkpoint file: the input offset of the next line, the length of the
+ * output, the rows scored so far, the model version and what identifies the
+ * input (its real path, file key, modification time and size). The
+ * checkpoint is written to a temporary file, forced to disk and renamed over
+ * the previous one, so a crash leaves either the old checkpoint or the new
+ * one, never a torn one.
+ *
+ * Started again after a crash, the job reads the checkpoint, cuts the output
+ * back to the recorded length (dropping whatever was written after the
+ * checkpoint), and carries on from the recorded input offset, so the
+ * finished output is byte for byte that of a run without the crash. A
+ * checkpoint made for another input, or for this input before it was
+ * replaced or modified, is refused rather than resumed from. The
+ * checkpoint is deleted once the job completes. Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.BulkScoringJob &lt;patients&gt; &lt;output&gt; [checkpoint interval rows]
+ * </pre>
+ * with the checkpoint kept next to the output as output.checkpoint.
+ *
+ * @author okama
+ */
+public class BulkScoringJob {
+
+    // default rows scored between checkpoints
+    public static final long DEFAULT_CHECKPOINT_ROWS = 1000000;
+
+    // suffix of the checkpoint file and of its temporary copy
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * How far a job has got
+     */
+    public static final class Checkpoint {
+
+        // first line of every checkpoint file
+        private static final String FILE_HEADER = "# TMP3 scoring checkpoint";
+
+        // written for a file system without file keys
+        private static final String NO_FILE_KEY = "-";
+
+        private final String modelVersion;
+        // the real path of the input
+        private final String inputPath;
+        // the input's file key, e.g. its device and inode; NO_FILE_KEY if
+        // the file system has none
+        private final String inputKey;
+        // the input's last modification time, in ms since the epoch
+        private final long inputModified;
+        private final long inputSize;
+        private final long inputOffset;
+        private final long outputOffset;
+        private final long rows;
+        private final long invalidRows;
+
+        private Checkpoint (String modelVersion, String inputPath,
+                String inputKey, long inputModified, long inputSize,
+                long inputOffset, long outputOffset, long rows,
+                long invalidRows) {
+            this.modelVersion = modelVersion;
+            this.inputPath = inputPath;
+            this.inputKey = inputKey;
+            this.inputModified = inputModified;
+            this.inputSize = inputSize;
+            this.inputOffset = inputOffset;
+            this.outputOffset = outputOffset;
+            this.rows = rows;
+            this.invalidRows = invalidRows;
+        }
+
+        public String getModelVersion () {
+            return (modelVersion);
+        }
+
+        /**
+         * @return the real path of the input the checkpoint was made for
+         */
+        public String getInputPath () {
+            return (inputPath);
+        }
+
+        /**
+         * @return the byte offset of the first input line not yet scored
+         */
+        public long getInputOffset () {
+            return (inputOffset);
+        }
+
+        /**
+         * @return the length of the durable output
+         */
+        public long getOutputOffset () {
+            return (outputOffset);
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        public long getInvalidRows () {
+            return (invalidRows);
+        }
+
+        /**
+         * Records the same input and model as this checkpoint with a new
+         * position
+         */
+        private Checkpoint advance (long inputOffset, long outputOffset,
+                long rows, long invalidRows) {
+            return (new Checkpoint(modelVersion, inputPath, inputKey,
+                    inputModified, inputSize, inputOffset, outputOffset, rows,
+                    invalidRows));
+        }
+
+        /**
+         * @return whether both checkpoints were made for the same unchanged
+         * input file
+         */
+        private boolean sameInput (Checkpoint other) {
+            return (inputKey.equals(other.inputKey) &&
+                    inputModified == other.inputModified &&
+                    inputSize == other.inputSize);
+        }
+
+        /**
+         * A checkpoint at the start of a file
+         *
+         * @param modelVersion the version of the scoring model
+         * @param input the patient file
+         * @return the checkpoint
+         * @throws IOException the file's attributes cannot be read
+         */
+        private static Checkpoint start (String modelVersion, Path input)
+                throws IOException {
+
+            BasicFileAttributes attributes = Files.readAttributes(input,
+                    BasicFileAttributes.class);
+            Object key = attributes.fileKey();
+
+            return (new Checkpoint(modelVersion,
+                    input.toRealPath().toString(),
+                    key == null ? NO_FILE_KEY : key.toString(),
+                    attributes.lastModifiedTime().toMillis(),
+                    attributes.size(), 0, 0, 0, 0));
+        }
+
+        /**
+         * Writes the checkpoint durably and atomically
+         *
+         * @param file the checkpoint file
+         * @throws IOException the checkpoint cannot be written
+         */
+        private void save (Path file) throws IOException {
+
+            Path temporary = file.resolveSibling(file.getFileName() +
+                    TEMPORARY_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                    BufferedWriter out = new BufferedWriter(
+                            Channels.newWriter(channel,
+                                    StandardCharsets.UTF_8.newEncoder(),
+                                    -1))) {
+                out.write(FILE_HEADER + "\nModel version\t" + modelVersion
+                        + "\nInput path\t" + inputPath
+                        + "\nInput file key\t" + inputKey
+                        + "\nInput modified\t" + inputModified
+                        + "\nInput size\t" + inputSize
+                        + "\nInput offset\t" + inputOffset
+                        + "\nOutput offset\t" + outputOffset
+                        + "\nRows\t" + rows
+                        + "\nInvalid rows\t" + invalidRows + "\n");
+                out.flush();
+                channel.force(true);
+            }
+
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Reads a checkpoint written by save
+         *
+         * @param file the checkpoint file
+         * @return the checkpoint
+         * @throws IOException the file cannot be read or is not a checkpoint
+         */
+        private static Checkpoint load (Path file) throws IOException {
+
+            try (BufferedReader in = Files.newBufferedReader(file,
+                    StandardCharsets.UTF_8)) {
+
+                if (!FILE_HEADER.equals(in.readLine())) {
+                    throw new IOException ("Not a scoring checkpoint: " +
+                            file);
+                }
+
+                return (new Checkpoint(readField(in, "Model version", file),
+                        readField(in, "Input path", file),
+                        readField(in, "Input file key", file),
+                        parseCount(readField(in, "Input modified", file),
+                                file),
+                        parseCount(readField(in, "Input size", file), file),
+                        parseCount(readField(in, "Input offset", file), file),
+                        parseCount(readField(in, "Output offset", file), file),
+                        parseCount(readField(in, "Rows", file), file),
+                        parseCount(readField(in, "Invalid rows", file),
+                                file)));
+            }
+        }
+
+        private static String readField (BufferedReader in, String name,
+                Path file) throws IOException {
+
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException ("Truncated checkpoint: " + file);
+            }
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !line.substring(0, tab).equals(name)) {
+                throw new IOException ("Expected " + name + " in " + file +
+                        " but found: " + line);
+            }
+
+            return (line.substring(tab + 1));
+        }
+
+        private static long parseCount (String value, Path file)
+                throws IOException {
+            try {
+                long count = Long.parseLong(value);
+                if (count < 0) {
+                    throw new NumberFormatException ();
+                }
+                return (count);
+            } catch (NumberFormatException notACount) {
+                throw new IOException ("Invalid value " + value + " in " +
+                        file);
+            }
+        }
+    }
+
+    private final Path input;
+    private final Path output;
+    private final Path checkpointFile;
+    private final long checkpointRows;
+    private final TBIModel model = new TBIModel();
+
+    /**
+     * The constructor for the BulkScoringJob class
+     *
+     * @param input the patient file
+     * @param output the file to write one probability per record to
+     * @param checkpointRows the rows scored between checkpoints
+     * @throws IllegalArgumentException the interval must be positive
+     */
+    public BulkScoringJob (Path input, Path output, long checkpointRows)
+            throws IllegalArgumentException {
+
+        if (checkpointRows < 1) {
+            throw new IllegalArgumentException ("Invalid Checkpoint Interval"
+                    + " (Interval should be at least one row)");
+        }
+
+        this.input = input;
+        this.output = output;
+        this.checkpointFile = output.resolveSibling(output.getFileName() +
+                CHECKPOINT_SUFFIX);
+        this.checkpointRows = checkpointRows;
+    }
+
+    /**
+     * Accessor method for the checkpoint file
+     *
+     * @return where the job keeps its checkpoint while running
+     */
+    public Path getCheckpointFile () {
+        return (checkpointFile);
+    }
+
+    /**
+     * Runs the job, resuming from its checkpoint if there is one
+     *
+     * @return the final checkpoint, with the totals of the whole job
+     * @throws IOException a file cannot be read or written, the input is
+     * compressed, or the checkpoint does not belong to this input, output and
+     * model
+     */
+    public Checkpoint run () throws IOException {
+
+        // resuming seeks to an offset in the input
+        if (CompressedFiles.isCompressed(input)) {
+            throw new IOException ("Cannot resume within compressed input "
+                    + input + " (decompress it first)");
+        }
+
+        Checkpoint last = Checkpoint.start(model.getModelVersion(), input);
+
+        if (Files.exists(checkpointFile)) {
+            Checkpoint current = last;
+            last = Checkpoint.load(checkpointFile);
+            if (!last.modelVersion.equals(current.modelVersion)) {
+                throw new IOException ("Checkpoint was made with model "
+                        + last.modelVersion + ", not " +
+                        current.modelVersion);
+            }
+            if (!last.inputPath.equals(current.inputPath)) {
+                throw new IOException ("Checkpoint was made for input "
+                        + last.inputPath + ", not " + current.inputPath);
+            }
+            if (!last.sameInput(current) ||
+                    last.inputOffset > last.inputSize) {
+                throw new IOException ("Input has changed since the"
+                        + " checkpoint was made");
+            }
+            if (!Files.exists(output) ||
+                    Files.size(output) < last.outputOffset) {
+                throw new IOException ("Output is shorter than the"
+                        + " checkpoint records");
+            }
+        }
+
+        try (FileChannel in = FileChannel.open(input,
+                StandardOpenOption.READ);
+                FileChannel outChannel = FileChannel.open(output,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+
+            // drop whatever was written after the checkpoint
+            outChannel.truncate(last.outputOffset);
+            outChannel.position(last.outputOffset);
+            in.position(last.inputOffset);
+
+            PatientFileReader reader = new PatientFileReader(
+                    Channels.newInputStream(in), last.inputOffset);
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    Channels.newOutputStream(outChannel), 1 << 16), false,
+                    StandardCharsets.UTF_8.name());
+
+            long rows = last.rows;
+            long invalidRows = last.invalidRows;
+            long sinceCheckpoint = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (!PatientRecordFormat.isRecord(line)) {
+                    continue;
+                }
+                rows++;
+                try {
+                    PatientRecordFormat.parse(line, model);
+                    out.println(model.getProbabilityOfMortality());
+                } catch (IllegalArgumentException notValid) {
+                    invalidRows++;
+                    out.println(Double.NaN);
+                }
+                if (++sinceCheckpoint == checkpointRows) {
+                    last = checkpoint(out, outChannel, last,
+                            reader.getPosition(), rows, invalidRows);
+                    sinceCheckpoint = 0;
+                }
+            }
+
+            last = checkpoint(out, outChannel, last,
+                    reader.getPosition(), rows, invalidRows);
+        }
+
+        Files.delete(checkpointFile);
+
+        return (last);
+    }
+
+    /**
+     * Makes the output durable, then records it in the checkpoint
+     */
+    private Checkpoint checkpoint (PrintStream out, FileChannel outChannel,
+            Checkpoint last, long inputOffset, long rows, long invalidRows)
+            throws IOException {
+
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException ("Cannot write " + output);
+        }
+        outChannel.force(false);
+
+        Checkpoint checkpoint = last.advance(inputOffset,
+                outChannel.position(), rows, invalidRows);
+        checkpoint.save(checkpointFile);
+
+        return (checkpoint);
+    }
+
+    /**
+     * @param args the patient file, the output file and optionally the rows
+     * between checkpoints
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: BulkScoringJob <patients> <output>"
+                    + " [checkpoint interval rows]");
+            System.exit(2);
+        }
+
+        try {
+            BulkScoringJob job = new BulkScoringJob(Paths.get(args[0]),
+                    Paths.get(args[1]), args.length > 2 ?
+                            Long.parseLong(args[2]) : DEFAULT_CHECKPOINT_ROWS);
+            if (Files.exists(job.getCheckpointFile())) {
+                System.err.println("Resuming from " +
+                        job.getCheckpointFile());
+            }
+
+            long start = System.nanoTime();
+            Checkpoint done = job.run();
+            System.err.println(String.format("Scored %d records (%d invalid)"
+                    + " in %.2f s", done.getRows(), done.getInvalidRows(),
+                    (System.nanoTime() - start) / 1e9));
+            System.exit(done.getInvalidRows() == 0 ? 0 : 1);
+        } catch (IOException | IllegalArgumentException failure) {
+            System.err.println("Scoring failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
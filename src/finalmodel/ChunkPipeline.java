@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the records of a file, or of any other source, to worker threads in
+ * chunks. The calling thread reads records and queues them in chunks; every
+ * worker takes chunks until the input is exhausted and returns its own
+ * result, which the caller merges.
+ *
+ * Chunks are numbered in input order, so a worker whose result depends on
+ * the order of the records can put its chunks back in order (see
+ * takeNumbered).
+ *
+ * The queue is bounded, so the reader never runs far ahead of the workers.
+ * Neither side waits on the queue without a timeout: the reader stops as soon
+ * as a worker has finished early, which only happens when it failed, so a
+ * failing worker cannot leave the reader blocked on a full queue. A pipeline
+ * runs once.
+ *
+ * @author okama
+ */
+final class ChunkPipeline {
+
+    // longest wait on the queue before checking the other side again
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * Supplies the records to split into chunks
+     */
+    interface RecordSource {
+
+        /**
+         * @return the next record; null at the end
+         * @throws IOException the records cannot be read
+         */
+        String next () throws IOException;
+    }
+
+    /**
+     * A chunk together with its place in the input
+     */
+    static final class Chunk {
+
+        private final int index;
+        private final List<String> records;
+
+        private Chunk (int index, List<String> records) {
+            this.index = index;
+            this.records = records;
+        }
+
+        /**
+         * @return the number of chunks queued before this one
+         */
+        int getIndex () {
+            return (index);
+        }
+
+        List<String> getRecords () {
+            return (records);
+        }
+    }
+
+    private final int threads;
+    private final int chunkSize;
+    private final BlockingQueue<Chunk> chunks;
+    // set once the reader will queue no more chunks
+    private volatile boolean finished = false;
+
+    /**
+     * The constructor for the ChunkPipeline class
+     *
+     * @param threads the number of workers
+     * @param chunkSize the number of records in a chunk
+     * @throws IllegalArgumentException the thread count and chunk size must
+     * be positive
+     */
+    ChunkPipeline (int threads, int chunkSize) throws IllegalArgumentException {
+
+        if (threads <= 0) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (Threads should be positive)");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException ("Invalid Chunk Size"
+                    + " (Chunk size should be positive)");
+        }
+
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.chunks = new ArrayBlockingQueue<>(2 * threads);
+    }
+
+    /**
+     * Runs the workers over the records of a patient file; header and blank
+     * lines are skipped
+     *
+     * @param file the patient file, plain or gzip compressed
+     * @param worker run once by every worker thread; takes chunks with take
+     * @param failure the message of the exception thrown if a worker fails
+     * @return the result of every worker
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException a worker failed
+     */
+    <R> List<R> run (Path file, Callable<R> worker, String failure)
+            throws IOException, InterruptedException {
+
+        try (PatientFileReader reader = new PatientFileReader(
+                CompressedFiles.newInputStream(file, threads), 0)) {
+            return (run(() -> nextRecord(reader), worker, failure));
+        }
+    }
+
+    /**
+     * Runs the workers over the records of a source
+     *
+     * @param source the records
+     * @param worker run once by every worker thread; takes chunks with take
+     * @param failure the message of the exception thrown if a worker fails
+     * @return the result of every worker
+     * @throws IOException the source cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException a worker failed
+     */
+    <R> List<R> run (RecordSource source, Callable<R> worker, String failure)
+            throws IOException, InterruptedException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try {
+
+            List<Future<R>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(worker));
+            }
+
+            try {
+                feed(source, workers);
+            } finally {
+                finished = true;
+            }
+
+            List<R> results = new ArrayList<>();
+            for (Future<R> task : workers) {
+                results.add(getResult(task, failure));
+            }
+            return (results);
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Takes the next chunk; called by the workers
+     *
+     * @return the next chunk of records; null once the input is exhausted
+     * @throws InterruptedException the worker was interrupted
+     */
+    List<String> take () throws InterruptedException {
+        Chunk chunk = takeNumbered();
+        return (chunk == null ? null : chunk.records);
+    }
+
+    /**
+     * Takes the next chunk with its place in the input; called by the
+     * workers
+     *
+     * @return the next chunk; null once the input is exhausted
+     * @throws InterruptedException the worker was interrupted
+     */
+    Chunk takeNumbered () throws InterruptedException {
+
+        while (true) {
+            Chunk chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                return (chunk);
+            }
+            // nothing is queued after finished is set, so one more look
+            // settles whether anything is left
+            if (finished) {
+                return (chunks.poll());
+            }
+        }
+    }
+
+    /**
+     * Queues the records in chunks until the source is exhausted or a worker
+     * has stopped
+     */
+    private <R> void feed (RecordSource source, List<Future<R>> workers)
+            throws IOException, InterruptedException {
+
+        List<String> chunk = new ArrayList<>(chunkSize);
+        int index = 0;
+        String record;
+        while ((record = source.next()) != null) {
+            chunk.add(record);
+            if (chunk.size() == chunkSize) {
+                if (!put(new Chunk(index++, chunk), workers)) {
+                    return;
+                }
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            put(new Chunk(index, chunk), workers);
+        }
+    }
+
+    /**
+     * Queues a chunk, waiting for room only while every worker is running
+     *
+     * @return false if a worker has stopped and the chunk was dropped
+     */
+    private <R> boolean put (Chunk chunk, List<Future<R>> workers)
+            throws InterruptedException {
+
+        do {
+            for (Future<R> task : workers) {
+                if (task.isDone()) {
+                    return (false);
+                }
+            }
+        } while (!chunks.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS));
+
+        return (true);
+    }
+
+    private static String nextRecord (PatientFileReader reader)
+            throws IOException {
+
+        String line;
+        while ((line = reader.readLine()) != null &&
+                !PatientRecordFormat.isRecord(line)) {
+            // skip headers and blank lines
+        }
+        return (line);
+    }
+
+    private static <R> R getResult (Future<R> task, String failure)
+            throws InterruptedException {
+        try {
+            return (task.get());
+        } catch (ExecutionException failed) {
+            throw new IllegalStateException (failure, failed.getCause());
+        }
+    }
+}
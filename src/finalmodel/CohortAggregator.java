@@ -0,0 +1,558 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes expected mortality summaries of a cohort, grouped by any
+ * combination of gender, race, injury type and age band: the number of
+ * patients, the mean predicted probability of mortality and risk percentiles
+ * of each group.
+ *
+ * The cohort is split between worker threads. Each worker scores its share
+ * with a BatchScorer and adds it into its own accumulator (counts, sums of
+ * probabilities and a RiskSketch per group); the accumulators are merged once
+ * all workers are done, so workers never share mutable state. Run from the
+ * command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.CohortAggregator &lt;patients&gt; [gender] [race] [injury] [age]
+ * </pre>
+ *
+ * @author okama
+ */
+public class CohortAggregator {
+
+    /**
+     * The variables patients can be grouped by
+     */
+    public enum Dimension {
+        GENDER, RACE, INJURY_TYPE, AGE_BAND
+    }
+
+    // default upper bounds (exclusive) of the age bands; the last band runs
+    // to the maximum pediatric age
+    public static final double[] DEFAULT_AGE_BANDS = {1, 5, 10};
+
+    // rows scored at a time by a worker
+    private static final int CHUNK_SIZE = 4096;
+
+    private final BatchScorer scorer;
+    // version tag of the coefficients, for the chunk events
+    private final String modelVersion;
+    private final BatchValidator validator = new BatchValidator();
+    // the grouping dimensions, outermost first
+    private final Dimension[] dimensions;
+    // number of values of each grouping dimension
+    private final int[] radix;
+    // product of the radices
+    private final int numGroups;
+    private final double[] ageBands;
+    private final int threads;
+    // receives every scored chunk when set
+    private volatile DriftMonitor driftMonitor;
+
+    /**
+     * Summaries of every group of a cohort
+     */
+    public static final class Result {
+
+        private final String[] labels;
+        private final long[] counts;
+        private final double[] probabilitySums;
+        private final RiskSketch[] sketches;
+        private final long rejected;
+
+        private Result (String[] labels, Accumulator merged) {
+            this.labels = labels;
+            this.counts = merged.counts;
+            this.probabilitySums = merged.probabilitySums;
+            this.sketches = merged.sketches;
+            this.rejected = merged.rejected;
+        }
+
+        public int getNumGroups () {
+            return (labels.length);
+        }
+
+        public String getGroupLabel (int group) {
+            return (labels[group]);
+        }
+
+        public long getCount (int group) {
+            return (counts[group]);
+        }
+
+        /**
+         * @param group the index of the group
+         * @return the sum of the predicted probabilities of the group, i.e.
+         * its expected number of deaths
+         */
+        public double getExpectedDeaths (int group) {
+            return (probabilitySums[group]);
+        }
+
+        /**
+         * @param group the index of the group
+         * @return the mean predicted probability of the group; NaN if empty
+         */
+        public double getMeanProbability (int group) {
+            return (probabilitySums[group] / counts[group]);
+        }
+
+        /**
+         * @param group the index of the group
+         * @param q the quantile wanted, between 0 and 1
+         * @return the estimated probability at the quantile; NaN if empty
+         */
+        public double getProbabilityQuantile (int group, double q) {
+            return (sketches[group] == null ? Double.NaN :
+                    sketches[group].getProbabilityQuantile(q));
+        }
+
+        /**
+         * @return the number of records that failed validation and were not
+         * counted in any group
+         */
+        public long getRejected () {
+            return (rejected);
+        }
+
+        /**
+         * Converts the summaries into a table, leaving out empty groups
+         *
+         * @return one tab separated line per group
+         */
+        @Override
+        public String toString () {
+
+            StringBuilder out = new StringBuilder(
+                    "Group\tCount\tMean\tP50\tP90\tP99\n");
+
+            for (int g = 0; g < labels.length; g++) {
+                if (counts[g] == 0) {
+                    continue;
+                }
+                out.append(String.format(Locale.ROOT,
+                        "%s\t%d\t%.6f\t%.6f\t%.6f\t%.6f%n", labels[g],
+                        counts[g], getMeanProbability(g),
+                        getProbabilityQuantile(g, 0.5),
+                        getProbabilityQuantile(g, 0.9),
+                        getProbabilityQuantile(g, 0.99)));
+            }
+            out.append("Rejected records: ").append(rejected);
+
+            return (out.toString());
+        }
+    }
+
+    /**
+     * The constructor for the CohortAggregator class
+     *
+     * @param coefficients the coefficients to score with
+     * @param groupBy the dimensions to group by; empty for a single group
+     * @param ageBands the upper bounds (exclusive) of the age bands, in
+     * increasing order
+     * @param threads the number of worker threads
+     * @throws IllegalArgumentException there must be at least one thread and
+     * the age bands must increase
+     */
+    public CohortAggregator (ModelCoefficients coefficients,
+            Set<Dimension> groupBy, double[] ageBands, int threads)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+        for (int i = 1; i < ageBands.length; i++) {
+            if (!(ageBands[i] > ageBands[i - 1])) {
+                throw new IllegalArgumentException ("Invalid Age Bands (Bands"
+                        + " should be in increasing order)");
+            }
+        }
+
+        this.scorer = new BatchScorer(coefficients);
+        this.modelVersion = coefficients.getVersion();
+        this.dimensions = groupBy.toArray(new Dimension[0]);
+        this.ageBands = ageBands.clone();
+        this.threads = threads;
+
+        TBIModel options = new TBIModel();
+        radix = new int[dimensions.length];
+        int groups = 1;
+        for (int d = 0; d < dimensions.length; d++) {
+            switch (dimensions[d]) {
+                case GENDER:
+                    radix[d] = options.getIthCatVarOptions(
+                            PatientBatch.GENDER_INDEX).length;
+                    break;
+                case RACE:
+                    radix[d] = options.getIthCatVarOptions(
+                            PatientBatch.RACE_INDEX).length;
+                    break;
+                case INJURY_TYPE:
+                    radix[d] = options.getIthCatVarOptions(
+                            PatientBatch.INJ_TYPE_INDEX).length;
+                    break;
+                default:
+                    radix[d] = ageBands.length + 1;
+                    break;
+            }
+            groups *= radix[d];
+        }
+        numGroups = groups;
+    }
+
+    /**
+     * Mutator method for the drift monitor fed by the workers
+     *
+     * @param driftMonitor the monitor to record every scored patient in;
+     * null for none
+     */
+    public void setDriftMonitor (DriftMonitor driftMonitor) {
+        this.driftMonitor = driftMonitor;
+    }
+
+    /**
+     * Summarizes the patients held in a batch
+     *
+     * @param batch the cohort
+     * @return the summaries of every group
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public Result aggregate (final PatientBatch batch)
+            throws InterruptedException {
+
+        List<Callable<Accumulator>> slices = new ArrayList<>();
+        int sliceSize = (batch.size() + threads - 1) / threads;
+
+        for (int start = 0; start < batch.size(); start += sliceSize) {
+            final int from = start;
+            final int to = Math.min(start + sliceSize, batch.size());
+            slices.add(() -> {
+                Accumulator accumulator = new Accumulator();
+                for (int chunk = from; chunk < to; chunk += CHUNK_SIZE) {
+                    int end = Math.min(chunk + CHUNK_SIZE, to);
+                    ScoringEvents.BatchChunk event = beginChunk();
+                    accumulator.add(batch, chunk, end);
+                    commitChunk(event, end - chunk, end - chunk);
+                }
+                return (accumulator);
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Accumulator merged = new Accumulator();
+            for (Future<Accumulator> slice : pool.invokeAll(slices)) {
+                merged.merge(getResult(slice));
+            }
+            return (new Result(groupLabels(), merged));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Summarizes the patients of a patient file (see PatientRecordFormat).
+     * The calling thread reads lines; the workers parse, validate, score and
+     * accumulate them.
+     *
+     * @param file the patient file, plain or gzip compressed
+     * @return the summaries of every group
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException a worker failed
+     */
+    public Result aggregate (Path file) throws IOException,
+            InterruptedException {
+
+        final ChunkPipeline chunks = new ChunkPipeline(threads, CHUNK_SIZE);
+
+        List<Accumulator> accumulators = chunks.run(file, () -> {
+            Accumulator accumulator = new Accumulator();
+            PatientBatch batch = new PatientBatch(CHUNK_SIZE);
+            int[] masks = new int[CHUNK_SIZE];
+            int[] validRows = new int[CHUNK_SIZE];
+            List<String> chunk;
+            while ((chunk = chunks.take()) != null) {
+                ScoringEvents.BatchChunk event = beginChunk();
+                batch.clear();
+                for (String line : chunk) {
+                    masks[batch.size()] = validator.load(line, batch);
+                }
+                int valid = validator.validate(batch, 0, batch.size(), masks,
+                        validRows);
+                accumulator.rejected += batch.size() - valid;
+                batch.retain(validRows, valid);
+                accumulator.add(batch, 0, valid);
+                commitChunk(event, chunk.size(), valid);
+            }
+            return (accumulator);
+        }, "Aggregation worker failed");
+
+        Accumulator merged = new Accumulator();
+        for (Accumulator accumulator : accumulators) {
+            merged.merge(accumulator);
+        }
+        return (new Result(groupLabels(), merged));
+    }
+
+    /**
+     * @return a begun chunk event, or null if it is not recorded
+     */
+    private static ScoringEvents.BatchChunk beginChunk () {
+        return (ScoringEvents.ENABLED ? ScoringEvents.BatchChunk.start() :
+                null);
+    }
+
+    private void commitChunk (ScoringEvents.BatchChunk event, int rows,
+            int validRows) {
+        if (event != null) {
+            event.modelVersion = modelVersion;
+            event.rows = rows;
+            event.validRows = validRows;
+            event.commit();
+        }
+    }
+
+    private static Accumulator getResult (Future<Accumulator> task)
+            throws InterruptedException {
+        try {
+            return (task.get());
+        } catch (ExecutionException failure) {
+            throw new IllegalStateException ("Aggregation worker failed",
+                    failure.getCause());
+        }
+    }
+
+    /**
+     * Builds the label of every group, e.g. "Male / White / Age 5 to <10"
+     */
+    private String[] groupLabels () {
+
+        TBIModel options = new TBIModel();
+        String[] labels = new String[numGroups];
+
+        for (int g = 0; g < numGroups; g++) {
+            StringBuilder label = new StringBuilder();
+            int rest = g;
+            int stride = numGroups;
+            for (int d = 0; d < dimensions.length; d++) {
+                stride /= radix[d];
+                int value = rest / stride;
+                rest %= stride;
+                if (label.length() > 0) {
+                    label.append(" / ");
+                }
+                switch (dimensions[d]) {
+                    case GENDER:
+                        label.append(options.getIthCatVarOptions(
+                                PatientBatch.GENDER_INDEX)[value]);
+                        break;
+                    case RACE:
+                        label.append(options.getIthCatVarOptions(
+                                PatientBatch.RACE_INDEX)[value]);
+                        break;
+                    case INJURY_TYPE:
+                        label.append(options.getIthCatVarOptions(
+                                PatientBatch.INJ_TYPE_INDEX)[value]);
+                        break;
+                    default:
+                        label.append(ageBandLabel(value));
+                        break;
+                }
+            }
+            labels[g] = label.length() == 0 ? "All" : label.toString();
+        }
+
+        return (labels);
+    }
+
+    private String ageBandLabel (int band) {
+        if (ageBands.length == 0) {
+            return ("All Ages");
+        } else if (band == 0) {
+            return ("Age <" + formatAge(ageBands[0]));
+        } else if (band == ageBands.length) {
+            return ("Age " + formatAge(ageBands[band - 1]) + "+");
+        } else {
+            return ("Age " + formatAge(ageBands[band - 1]) + " to <"
+                    + formatAge(ageBands[band]));
+        }
+    }
+
+    private static String formatAge (double age) {
+        return (age == Math.rint(age) ? Long.toString((long) age) :
+                Double.toString(age));
+    }
+
+    /**
+     * The running totals of one worker
+     */
+    private final class Accumulator {
+
+        private final long[] counts = new long[numGroups];
+        private final double[] probabilitySums = new double[numGroups];
+        // created when a group first receives a patient
+        private final RiskSketch[] sketches = new RiskSketch[numGroups];
+        private long rejected = 0;
+
+        // scratch space reused for every chunk
+        private final double[] links = new double[CHUNK_SIZE];
+        private final double[] probabilities = new double[CHUNK_SIZE];
+        private final int[] groups = new int[CHUNK_SIZE];
+
+        private void add (PatientBatch batch, int from, int to) {
+
+            int n = to - from;
+            scorer.link(batch, from, to, links);
+            for (int i = 0; i < n; i++) {
+                probabilities[i] = 1 / (1 + Math.exp(-links[i]));
+            }
+            DriftMonitor monitor = driftMonitor;
+            if (monitor != null) {
+                monitor.observe(batch, from, to, links);
+            }
+
+            // group index of each row, one dimension at a time
+            Arrays.fill(groups, 0, n, 0);
+            for (int d = 0; d < dimensions.length; d++) {
+                int base = radix[d];
+                if (dimensions[d] == Dimension.AGE_BAND) {
+                    double[] ages = batch.getContColumn(PatientBatch.AGE_INDEX);
+                    for (int i = 0; i < n; i++) {
+                        double age = ages[from + i];
+                        int band = 0;
+                        for (double bound : ageBands) {
+                            band += age >= bound ? 1 : 0;
+                        }
+                        groups[i] = groups[i] * base + band;
+                    }
+                } else {
+                    byte[] column = batch.getCatColumn(catColumnOf(dimensions[d]));
+                    for (int i = 0; i < n; i++) {
+                        groups[i] = groups[i] * base + column[from + i];
+                    }
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                int g = groups[i];
+                counts[g]++;
+                probabilitySums[g] += probabilities[i];
+                if (sketches[g] == null) {
+                    sketches[g] = new RiskSketch();
+                }
+                sketches[g].add(links[i]);
+            }
+        }
+
+        private void merge (Accumulator other) {
+            for (int g = 0; g < numGroups; g++) {
+                counts[g] += other.counts[g];
+                probabilitySums[g] += other.probabilitySums[g];
+                if (other.sketches[g] != null) {
+                    if (sketches[g] == null) {
+                        sketches[g] = new RiskSketch();
+                    }
+                    sketches[g].merge(other.sketches[g]);
+                }
+            }
+            rejected += other.rejected;
+        }
+    }
+
+    private static int catColumnOf (Dimension dimension) {
+        switch (dimension) {
+            case GENDER:
+                return (PatientBatch.GENDER_INDEX);
+            case RACE:
+                return (PatientBatch.RACE_INDEX);
+            default:
+                return (PatientBatch.INJ_TYPE_INDEX);
+        }
+    }
+
+    /**
+     * @param args the patient file followed by the dimensions to group by
+     * (gender, race, injury, age)
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 1) {
+            System.err.println("Usage: CohortAggregator <patients> [gender]"
+                    + " [race] [injury] [age]");
+            System.exit(2);
+        }
+
+        Set<Dimension> groupBy = EnumSet.noneOf(Dimension.class);
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i].toLowerCase(Locale.ROOT)) {
+                case "gender":
+                    groupBy.add(Dimension.GENDER);
+                    break;
+                case "race":
+                    groupBy.add(Dimension.RACE);
+                    break;
+                case "injury":
+                    groupBy.add(Dimension.INJURY_TYPE);
+                    break;
+                case "age":
+                    groupBy.add(Dimension.AGE_BAND);
+                    break;
+                default:
+                    System.err.println("Unknown dimension: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        try {
+            CohortAggregator aggregator = new CohortAggregator(
+                    new TBIModel().getCoefficients(), groupBy,
+                    DEFAULT_AGE_BANDS,
+                    Runtime.getRuntime().availableProcessors());
+            System.out.println(aggregator.aggregate(Paths.get(args[0])));
+        } catch (IOException | InterruptedException |
+                IllegalStateException failure) {
+            System.err.println("Aggregation failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how well the model discriminates and how well it is calibrated
+ * on a labeled cohort (see PatientRecordFormat): the area under the ROC
+ * curve, the Brier score, calibration-in-the-large, the calibration slope
+ * and a reliability table of predicted against observed mortality.
+ *
+ * Everything comes from one streaming pass in constant memory. Each worker
+ * scores its share with a BatchScorer and adds every patient to its own
+ * Evaluation: a fine histogram of the linear predictor with the deaths and
+ * survivors of every bin, the reliability bins and a few sums. Evaluations
+ * merge by adding them up, so workers never share mutable state. The AUC is
+ * read off the histogram, counting half of the pairs that share a bin, and
+ * the calibration intercept and slope are fit by Newton's method to the
+ * binned deaths rather than to every patient.
+ *
+ * Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.CohortEvaluator &lt;cohort&gt; [coefficients] [threads]
+ * </pre>
+ * where the coefficients default to those of TBIModel.
+ *
+ * @author okama
+ */
+public class CohortEvaluator {
+
+    // default number of bins of the reliability table
+    public static final int DEFAULT_RELIABILITY_BINS = 10;
+
+    // the histogram of the linear predictor covers -LINK_RANGE to LINK_RANGE
+    // (probabilities of about 1e-7 to 1 - 1e-7); links outside fall in the
+    // first or last bin
+    private static final double LINK_RANGE = 16;
+    private static final int LINK_BINS = 4096;
+    private static final double BINS_PER_UNIT = LINK_BINS / (2 * LINK_RANGE);
+
+    // Newton iterations of the calibration fits
+    private static final int MAX_ITERATIONS = 50;
+
+    // rows scored at a time by a worker
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * The running evaluation of part or all of a cohort
+     */
+    public static final class Evaluation {
+
+        // per bin of the linear predictor
+        private final long[] binDeaths = new long[LINK_BINS];
+        private final long[] binSurvivors = new long[LINK_BINS];
+        private final double[] binLinkSums = new double[LINK_BINS];
+
+        // per bin of the reliability table
+        private final long[] reliabilityCounts;
+        private final long[] reliabilityDeaths;
+        private final double[] reliabilitySums;
+
+        private long rows = 0;
+        private long deaths = 0;
+        private double probabilitySum = 0;
+        private double squaredErrorSum = 0;
+        private long rejected = 0;
+
+        /**
+         * The constructor for the Evaluation class
+         *
+         * @param reliabilityBins the number of equal width bins of predicted
+         * probability in the reliability table
+         * @throws IllegalArgumentException there must be at least one bin
+         */
+        public Evaluation (int reliabilityBins)
+                throws IllegalArgumentException {
+
+            if (reliabilityBins < 1) {
+                throw new IllegalArgumentException ("Invalid Bin Count"
+                        + " (There should be at least one bin)");
+            }
+
+            reliabilityCounts = new long[reliabilityBins];
+            reliabilityDeaths = new long[reliabilityBins];
+            reliabilitySums = new double[reliabilityBins];
+        }
+
+        /**
+         * Adds one patient
+         *
+         * @param link the patient's linear predictor
+         * @param outcome 1 if the patient died, otherwise 0
+         */
+        public void add (double link, int outcome) {
+
+            double p = 1 / (1 + Math.exp(-link));
+
+            int bin = (int) ((link + LINK_RANGE) * BINS_PER_UNIT);
+            bin = Math.max(0, Math.min(bin, LINK_BINS - 1));
+            binLinkSums[bin] += link;
+
+            int reliabilityBin = Math.min((int) (p * reliabilityCounts.length),
+                    reliabilityCounts.length - 1);
+            reliabilityCounts[reliabilityBin]++;
+            reliabilitySums[reliabilityBin] += p;
+
+            if (outcome != 0) {
+                binDeaths[bin]++;
+                reliabilityDeaths[reliabilityBin]++;
+                deaths++;
+                squaredErrorSum += (1 - p) * (1 - p);
+            } else {
+                binSurvivors[bin]++;
+                squaredErrorSum += p * p;
+            }
+            probabilitySum += p;
+            rows++;
+        }
+
+        /**
+         * Adds another evaluation into this one
+         *
+         * @param other an evaluation with as many reliability bins
+         * @throws IllegalArgumentException the reliability bins differ
+         */
+        public void merge (Evaluation other) throws IllegalArgumentException {
+
+            if (other.reliabilityCounts.length != reliabilityCounts.length) {
+                throw new IllegalArgumentException ("Evaluations should have"
+                        + " the same reliability bins");
+            }
+
+            for (int b = 0; b < LINK_BINS; b++) {
+                binDeaths[b] += other.binDeaths[b];
+                binSurvivors[b] += other.binSurvivors[b];
+                binLinkSums[b] += other.binLinkSums[b];
+            }
+            for (int b = 0; b < reliabilityCounts.length; b++) {
+                reliabilityCounts[b] += other.reliabilityCounts[b];
+                reliabilityDeaths[b] += other.reliabilityDeaths[b];
+                reliabilitySums[b] += other.reliabilitySums[b];
+            }
+            rows += other.rows;
+            deaths += other.deaths;
+            probabilitySum += other.probabilitySum;
+            squaredErrorSum += other.squaredErrorSum;
+            rejected += other.rejected;
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        public long getDeaths () {
+            return (deaths);
+        }
+
+        /**
+         * @return the number of records left out as invalid
+         */
+        public long getRejected () {
+            return (rejected);
+        }
+
+        /**
+         * @return the fraction of patients who died; NaN if empty
+         */
+        public double getObservedMortality () {
+            return ((double) deaths / rows);
+        }
+
+        /**
+         * @return the mean predicted probability of mortality; NaN if empty
+         */
+        public double getMeanProbability () {
+            return (probabilitySum / rows);
+        }
+
+        /**
+         * @return the mean squared difference of prediction and outcome
+         */
+        public double getBrierScore () {
+            return (squaredErrorSum / rows);
+        }
+
+        /**
+         * Computes the area under the ROC curve, the chance that a patient
+         * who died was given a higher risk than one who survived
+         *
+         * @return the AUC; NaN unless there are deaths and survivors
+         */
+        public double getAuc () {
+
+            long survivors = rows - deaths;
+            if (deaths == 0 || survivors == 0) {
+                return (Double.NaN);
+            }
+
+            // pairs of a death over a survivor in a lower bin, and half of
+            // the pairs within a bin
+            double pairs = 0;
+            long survivorsBelow = 0;
+            for (int b = 0; b < LINK_BINS; b++) {
+                pairs += binDeaths[b] * (survivorsBelow +
+                        binSurvivors[b] / 2.0);
+                survivorsBelow += binSurvivors[b];
+            }
+
+            return (pairs / ((double) deaths * survivors));
+        }
+
+        /**
+         * Computes calibration-in-the-large: the intercept a of the
+         * recalibration model logit(mortality) = a + link. It is 0 for a
+         * model whose mean prediction is right, and positive if the model
+         * underpredicts.
+         *
+         * @return the intercept; NaN unless there are deaths and survivors
+         */
+        public double getCalibrationInTheLarge () {
+            return (fitCalibration(false)[0]);
+        }
+
+        /**
+         * Computes the calibration slope: the slope b of the recalibration
+         * model logit(mortality) = a + b * link. It is 1 for a well
+         * calibrated model, and below 1 if predictions are too extreme.
+         *
+         * @return the slope; NaN unless there are deaths and survivors
+         */
+        public double getCalibrationSlope () {
+            return (fitCalibration(true)[1]);
+        }
+
+        /**
+         * Fits a recalibration model to the binned links by Newton's method
+         *
+         * @param withSlope fit a slope, rather than fixing it at 1
+         * @return the intercept and the slope
+         */
+        private double[] fitCalibration (boolean withSlope) {
+
+            double[] fit = {0, 1};
+            if (deaths == 0 || deaths == rows) {
+                return (new double[] {Double.NaN, Double.NaN});
+            }
+
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+
+                double g0 = 0, g1 = 0, h00 = 0, h01 = 0, h11 = 0;
+                for (int b = 0; b < LINK_BINS; b++) {
+                    long n = binDeaths[b] + binSurvivors[b];
+                    if (n == 0) {
+                        continue;
+                    }
+                    double x = binLinkSums[b] / n;
+                    double p = 1 / (1 + Math.exp(-(fit[0] + fit[1] * x)));
+                    double w = n * p * (1 - p);
+                    double r = binDeaths[b] - n * p;
+                    g0 += r;
+                    g1 += r * x;
+                    h00 += w;
+                    h01 += w * x;
+                    h11 += w * x * x;
+                }
+
+                double step0, step1;
+                if (withSlope) {
+                    double determinant = h00 * h11 - h01 * h01;
+                    step0 = (h11 * g0 - h01 * g1) / determinant;
+                    step1 = (h00 * g1 - h01 * g0) / determinant;
+                } else {
+                    step0 = g0 / h00;
+                    step1 = 0;
+                }
+                fit[0] += step0;
+                fit[1] += step1;
+
+                if (!(Math.abs(step0) + Math.abs(step1) > 1e-12)) {
+                    break;
+                }
+            }
+
+            return (fit);
+        }
+
+        public int getNumReliabilityBins () {
+            return (reliabilityCounts.length);
+        }
+
+        public long getReliabilityCount (int bin) {
+            return (reliabilityCounts[bin]);
+        }
+
+        /**
+         * @param bin the index of the reliability bin
+         * @return the mean predicted probability of its patients; NaN if
+         * empty
+         */
+        public double getReliabilityPredicted (int bin) {
+            return (reliabilitySums[bin] / reliabilityCounts[bin]);
+        }
+
+        /**
+         * @param bin the index of the reliability bin
+         * @return the observed mortality of its patients; NaN if empty
+         */
+        public double getReliabilityObserved (int bin) {
+            return ((double) reliabilityDeaths[bin] / reliabilityCounts[bin]);
+        }
+
+        /**
+         * Converts the evaluation into a report
+         *
+         * @return the summary measures, then the reliability table, one tab
+         * separated line each
+         */
+        @Override
+        public String toString () {
+
+            StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                    "Rows\t%d%nDeaths\t%d%nRejected\t%d%n"
+                    + "Observed mortality\t%.6f%nMean prediction\t%.6f%n"
+                    + "AUC\t%.6f%nBrier score\t%.6f%n"
+                    + "Calibration-in-the-large\t%.6f%n"
+                    + "Calibration slope\t%.6f%n%n"
+                    + "Predicted\tCount\tMean predicted\tObserved%n", rows,
+                    deaths, rejected, getObservedMortality(),
+                    getMeanProbability(), getAuc(), getBrierScore(),
+                    getCalibrationInTheLarge(), getCalibrationSlope()));
+
+            int bins = reliabilityCounts.length;
+            for (int b = 0; b < bins; b++) {
+                if (reliabilityCounts[b] == 0) {
+                    continue;
+                }
+                out.append(String.format(Locale.ROOT,
+                        "%.2f-%.2f\t%d\t%.6f\t%.6f%n", (double) b / bins,
+                        (double) (b + 1) / bins, reliabilityCounts[b],
+                        getReliabilityPredicted(b),
+                        getReliabilityObserved(b)));
+            }
+
+            return (out.toString());
+        }
+    }
+
+    private final BatchScorer scorer;
+    // version tag of the coefficients, for the chunk events
+    private final String modelVersion;
+    private final BatchValidator validator = new BatchValidator();
+    private final int reliabilityBins;
+    private final int threads;
+
+    /**
+     * The constructor for the CohortEvaluator class
+     *
+     * @param coefficients the coefficients to evaluate
+     * @param reliabilityBins the number of bins of the reliability table
+     * @param threads the number of worker threads
+     * @throws IllegalArgumentException there must be at least one bin and
+     * one thread
+     */
+    public CohortEvaluator (ModelCoefficients coefficients,
+            int reliabilityBins, int threads) throws IllegalArgumentException {
+
+        if (reliabilityBins < 1) {
+            throw new IllegalArgumentException ("Invalid Bin Count"
+                    + " (There should be at least one bin)");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        this.scorer = new BatchScorer(coefficients);
+        this.modelVersion = coefficients.getVersion();
+        this.reliabilityBins = reliabilityBins;
+        this.threads = threads;
+    }
+
+    /**
+     * Evaluates the model on a labeled cohort file. The calling thread reads
+     * lines; the workers parse, validate, score and add them up. Records that
+     * are invalid, or have no valid outcome, are counted as rejected.
+     *
+     * @param file the labeled cohort, plain or gzip compressed
+     * @return the evaluation
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException a worker failed
+     */
+    public Evaluation evaluate (Path file) throws IOException,
+            InterruptedException {
+
+        final ChunkPipeline chunks = new ChunkPipeline(threads, CHUNK_SIZE);
+
+        Evaluation merged = new Evaluation(reliabilityBins);
+        for (Evaluation evaluation : chunks.run(file,
+                () -> evaluateChunks(chunks), "Evaluation worker failed")) {
+            merged.merge(evaluation);
+        }
+        return (merged);
+    }
+
+    /**
+     * Evaluates chunks of lines until the end of the input
+     *
+     * @return the evaluation of every chunk taken
+     */
+    private Evaluation evaluateChunks (ChunkPipeline chunks)
+            throws InterruptedException {
+
+        Evaluation evaluation = new Evaluation(reliabilityBins);
+        PatientBatch batch = new PatientBatch(CHUNK_SIZE);
+        int[] masks = new int[CHUNK_SIZE];
+        int[] validRows = new int[CHUNK_SIZE];
+        byte[] outcomes = new byte[CHUNK_SIZE];
+        double[] links = new double[CHUNK_SIZE];
+
+        List<String> chunk;
+        while ((chunk = chunks.take()) != null) {
+
+            ScoringEvents.BatchChunk event = ScoringEvents.ENABLED ?
+                    ScoringEvents.BatchChunk.start() : null;
+
+            batch.clear();
+            for (String line : chunk) {
+                int row = batch.size();
+                int outcome;
+                try {
+                    outcome = PatientRecordFormat.getOutcome(line);
+                } catch (IllegalArgumentException noOutcome) {
+                    // counted as a malformed record
+                    outcome = -1;
+                }
+                masks[row] = validator.load(
+                        PatientRecordFormat.withoutOutcome(line), batch);
+                if (outcome < 0) {
+                    masks[row] |= BatchValidator.MALFORMED_BIT;
+                }
+                outcomes[row] = (byte) outcome;
+            }
+
+            int valid = validator.validate(batch, 0, batch.size(), masks,
+                    validRows);
+            evaluation.rejected += batch.size() - valid;
+            batch.retain(validRows, valid);
+            scorer.link(batch, 0, valid, links);
+            for (int i = 0; i < valid; i++) {
+                evaluation.add(links[i], outcomes[validRows[i]]);
+            }
+
+            if (event != null) {
+                event.modelVersion = modelVersion;
+                event.rows = chunk.size();
+                event.validRows = valid;
+                event.commit();
+            }
+        }
+
+        return (evaluation);
+    }
+
+
+    /**
+     * @param args the labeled cohort, optionally a coefficient file written
+     * by LogisticTrainer and the number of threads
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: CohortEvaluator <cohort>"
+                    + " [coefficients] [threads]");
+            System.exit(2);
+        }
+
+        try {
+            ModelCoefficients coefficients = args.length > 1 &&
+                    !args[1].equals("-") ?
+                    ModelCoefficients.load(Paths.get(args[1])) :
+                    new TBIModel().getCoefficients();
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) :
+                    Runtime.getRuntime().availableProcessors();
+
+            CohortEvaluator evaluator = new CohortEvaluator(coefficients,
+                    DEFAULT_RELIABILITY_BINS, threads);
+            System.out.println("Model version\t" + coefficients.getVersion());
+            System.out.print(evaluator.evaluate(Paths.get(args[0])));
+        } catch (IOException | InterruptedException |
+                IllegalArgumentException | IllegalStateException failure) {
+            System.err.println("Evaluation failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens patient and result files that may be gzip compressed. Input is
+ * recognised by its first bytes: BGZF files (as written by BgzfOutputStream
+ * or bgzip) are decompressed in parallel by a BgzfInputStream, any other gzip
+ * file by a GZIPInputStream, and anything else is read as it is. Output is
+ * compressed to BGZF when the file name ends in ".gz".
+ *
+ * An ordinary gzip file, whether one member or many, gives no way of finding
+ * where its deflate blocks start without inflating everything before them,
+ * so it is decompressed by a single thread. Such exports can be converted
+ * once to BGZF with
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.CompressedFiles compress &lt;in&gt; &lt;out.gz&gt; [threads]
+ * </pre>
+ * after which every later read is parallel.
+ *
+ * @author okama
+ */
+public final class CompressedFiles {
+
+    // the file name suffix of compressed output
+    public static final String SUFFIX = ".gz";
+
+    // the bytes looked at to recognise a compressed file
+    private static final int HEADER_SIZE = 18;
+
+    // buffer size for the single threaded gzip path
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompressedFiles () {
+
+    }
+
+    /**
+     * Tells whether a file is gzip compressed
+     *
+     * @param file the file
+     * @return true if it starts with the gzip magic number
+     * @throws IOException the file cannot be read
+     */
+    public static boolean isCompressed (Path file) throws IOException {
+        return (isGzip(readHeader(file)));
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it is gzip compressed
+     *
+     * @param file the file
+     * @param threads the number of threads for decompressing BGZF
+     * @return the uncompressed contents of the file
+     * @throws IOException the file cannot be read
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public static InputStream newInputStream (Path file, int threads)
+            throws IOException, IllegalArgumentException {
+
+        byte[] header = readHeader(file);
+        if (BgzfInputStream.isBgzf(header, header.length)) {
+            return (new BgzfInputStream(Files.newInputStream(file), threads));
+        }
+        if (isGzip(header)) {
+            return (new GZIPInputStream(Files.newInputStream(file),
+                    BUFFER_SIZE));
+        }
+
+        return (Files.newInputStream(file));
+    }
+
+    /**
+     * Opens a file for writing, compressing to BGZF if its name ends in
+     * ".gz"
+     *
+     * @param file the file
+     * @param threads the number of threads for compressing
+     * @return the stream to write the uncompressed contents to
+     * @throws IOException the file cannot be written
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public static OutputStream newOutputStream (Path file, int threads)
+            throws IOException, IllegalArgumentException {
+
+        OutputStream out = Files.newOutputStream(file);
+        if (file.getFileName().toString().endsWith(SUFFIX)) {
+            return (new BgzfOutputStream(out, threads));
+        }
+
+        return (out);
+    }
+
+    private static boolean isGzip (byte[] header) {
+        return (header.length >= 2 && (header[0] & 0xff) == 0x1f &&
+                (header[1] & 0xff) == 0x8b);
+    }
+
+    private static byte[] readHeader (Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] header = new byte[HEADER_SIZE];
+            int length = 0;
+            int count;
+            while (length < HEADER_SIZE &&
+                    (count = in.read(header, length, HEADER_SIZE - length))
+                            > 0) {
+                length += count;
+            }
+            byte[] read = new byte[length];
+            System.arraycopy(header, 0, read, 0, length);
+            return (read);
+        }
+    }
+
+    /**
+     * Copies a file, decompressing it if it is compressed and compressing
+     * the copy to BGZF if its name ends in ".gz"
+     *
+     * @param input the file to copy
+     * @param output the copy
+     * @param threads the number of threads
+     * @throws IOException a file cannot be read or written
+     */
+    public static void copy (Path input, Path output, int threads)
+            throws IOException {
+        try (InputStream in = newInputStream(input, threads);
+                OutputStream out = newOutputStream(output, threads)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * @param args "compress" or "decompress", the input file, the output
+     * file and optionally the number of threads
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 3 || args.length > 4 ||
+                !(args[0].equals("compress") ||
+                        args[0].equals("decompress"))) {
+            System.err.println("Usage: CompressedFiles compress|decompress"
+                    + " <input> <output> [threads]");
+            System.exit(2);
+        }
+
+        try {
+            Path output = Paths.get(args[2]);
+            boolean named = output.getFileName().toString().endsWith(SUFFIX);
+            if (args[0].equals("compress") != named) {
+                throw new IllegalArgumentException ("Invalid Output Name"
+                        + " (Compressed output should end in " + SUFFIX
+                        + ", decompressed output should not)");
+            }
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) :
+                    Runtime.getRuntime().availableProcessors();
+            copy(Paths.get(args[1]), output, threads);
+        } catch (IOException | IllegalArgumentException failure) {
+            System.err.println(failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * Explains a prediction as the sum of what each term adds to the link
+ * compared with a reference patient:
+ * <pre>
+ *   contribution of term j = coefficient j * (value j - reference value j)
+ *   link = reference link + sum of contributions
+ * </pre>
+ * Contributions are written into arrays supplied by the caller, so explaining
+ * a whole cohort allocates nothing per patient or per term. Batches are
+ * explained one term at a time over all rows, the same way BatchScorer sweeps
+ * its columns.
+ *
+ * @author okama
+ */
+public class ContributionExplainer {
+
+    // the coefficients whose terms are explained
+    private final ModelCoefficients coefficients;
+    // term values of the reference patient
+    private final double[] referenceTerms;
+    // link of the reference patient
+    private final double referenceLink;
+    // contribution of each indicator term for each option of its categorical
+    // variable, [term][option]; null for continuous terms
+    private final double[][] optionContributions;
+
+    /**
+     * The constructor for the ContributionExplainer class
+     *
+     * @param coefficients the coefficients whose terms are explained
+     * @param reference the model holding the reference patient's inputs
+     */
+    public ContributionExplainer (ModelCoefficients coefficients,
+            TBIModel reference) {
+
+        this.coefficients = coefficients;
+        this.referenceTerms = new double[ModelCoefficients.NUM_TERMS];
+        reference.getTermValues(referenceTerms);
+        this.referenceLink = coefficients.link(referenceTerms);
+
+        TBIModel options = new TBIModel();
+        optionContributions = new double[ModelCoefficients.NUM_TERMS][];
+        for (int term = ModelCoefficients.NUM_CONT_TERMS;
+                term < ModelCoefficients.NUM_TERMS; term++) {
+            int var = ModelCoefficients.TERM_CAT_VARIABLE[term];
+            int on = ModelCoefficients.TERM_CAT_OPTION[term];
+            double[] byOption =
+                    new double[options.getIthCatVarOptions(var).length];
+            for (int option = 0; option < byOption.length; option++) {
+                byOption[option] = coefficients.getCoefficient(term) *
+                        ((option == on ? 1 : 0) - referenceTerms[term]);
+            }
+            optionContributions[term] = byOption;
+        }
+    }
+
+    /**
+     * Accessor method for the link of the reference patient
+     *
+     * @return the link every explanation is relative to
+     */
+    public double getReferenceLink () {
+        return (referenceLink);
+    }
+
+    /**
+     * Explains the prediction for one patient
+     *
+     * @param patient the model holding the patient's inputs
+     * @param contributions receives the contribution of each term, in term
+     * index order; must have room for ModelCoefficients.NUM_TERMS values
+     * @return the patient's link, i.e. the reference link plus the sum of the
+     * contributions
+     */
+    public double explain (TBIModel patient, double[] contributions) {
+
+        patient.getTermValues(contributions);
+
+        double link = referenceLink;
+        for (int term = 0; term < ModelCoefficients.NUM_TERMS; term++) {
+            contributions[term] = coefficients.getCoefficient(term) *
+                    (contributions[term] - referenceTerms[term]);
+            link += contributions[term];
+        }
+
+        return (link);
+    }
+
+    /**
+     * Explains the predictions for a range of rows of a batch
+     *
+     * @param batch the patients to explain
+     * @param from the first row to explain
+     * @param to one past the last row to explain
+     * @param contributions receives the contribution of term j for row r at
+     * [j][r - from]; must have ModelCoefficients.NUM_TERMS rows of at least
+     * to - from entries
+     */
+    public void explain (PatientBatch batch, int from, int to,
+            double[][] contributions) {
+
+        int n = to - from;
+
+        for (int term = 0; term < ModelCoefficients.NUM_CONT_TERMS; term++) {
+            double[] column = batch.getContColumn(term);
+            double[] out = contributions[term];
+            double coefficient = coefficients.getCoefficient(term);
+            double reference = referenceTerms[term];
+            for (int i = 0; i < n; i++) {
+                out[i] = coefficient * (column[from + i] - reference);
+            }
+        }
+
+        for (int term = ModelCoefficients.NUM_CONT_TERMS;
+                term < ModelCoefficients.NUM_TERMS; term++) {
+            byte[] column = batch.getCatColumn(
+                    ModelCoefficients.TERM_CAT_VARIABLE[term]);
+            double[] out = contributions[term];
+            double[] byOption = optionContributions[term];
+            for (int i = 0; i < n; i++) {
+                out[i] = byOption[column[from + i]];
+            }
+        }
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the cheapest change to a patient's modifiable inputs (systolic blood
+ * pressure, oxygen saturation, body temperature and supplemental oxygen)
+ * that brings the predicted probability of mortality under a target.
+ *
+ * Each continuous input moves in steps (1 mmHg, 1 %, 0.1 degrees) within a
+ * clinically achievable range, and only in the direction that lowers the
+ * risk. A change costs the sum over inputs of the distance moved times a cost
+ * per unit, by default 1 for 10 mmHg, for 3 % of saturation and for half a
+ * degree.
+ *
+ * Supplemental oxygen is not switched unless a finite cost is set with
+ * setSuppOxyCost. Its coefficient is positive because the sickest patients
+ * are the ones given oxygen, not because oxygen harms them, so the model
+ * would otherwise advise withdrawing oxygen to lower the risk.
+ *
+ * As the link is linear in the inputs, lowering it by a given amount at the
+ * least cost is a fractional knapsack with a closed form solution: move the
+ * inputs in order of link reduction per unit cost, each as far as its range
+ * allows, until the target is met. That solution is a lower bound on the cost
+ * and, rounded up to whole steps, a first answer. The exact answer on the
+ * step grid is then found by enumerating the steps of two inputs, in parallel
+ * for large grids, and solving for the third in closed form; a branch is
+ * dropped as soon as its cost reaches the best answer so far.
+ *
+ * @author okama
+ */
+public class CounterfactualSolver {
+
+    // the modifiable inputs
+    public static final int SBP_INPUT = 0;
+    public static final int OXY_SAT_INPUT = 1;
+    public static final int BODY_TEMP_INPUT = 2;
+    public static final int SUPP_OXY_INPUT = 3;
+    public static final int NUM_INPUTS = 4;
+
+    // the continuous inputs come first
+    private static final int NUM_CONT_INPUTS = 3;
+
+    // the model term of each input
+    private static final int[] INPUT_TERMS = {
+        ModelCoefficients.SBP_TERM, ModelCoefficients.OXY_SAT_TERM,
+        ModelCoefficients.BODY_TEMP_TERM, ModelCoefficients.SUPP_OXY_TERM
+    };
+
+    // default step, achievable range and cost per unit of each continuous
+    // input
+    private static final double[] DEFAULT_STEPS = {1, 1, 0.1};
+    private static final double[] DEFAULT_LOWS = {50, 85, 35.5};
+    private static final double[] DEFAULT_HIGHS = {140, 100, 38};
+    private static final double[] DEFAULT_COSTS = {0.1, 1 / 3.0, 2};
+    // default cost of switching supplemental oxygen: never, see above
+    private static final double DEFAULT_SUPP_OXY_COST =
+            Double.POSITIVE_INFINITY;
+
+    // grid cells above which the search is split between threads
+    private static final long PARALLEL_CELLS = 1 << 16;
+
+    // slack in comparisons of links, for values built up from steps
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * The cheapest change found for a patient
+     */
+    public static final class Counterfactual {
+
+        private final boolean reachable;
+        private final double[] original;
+        private final double[] changed;
+        private final double cost;
+        private final double originalProbability;
+        private final double probability;
+
+        private Counterfactual (boolean reachable, double[] original,
+                double[] changed, double cost, double originalProbability,
+                double probability) {
+            this.reachable = reachable;
+            this.original = original;
+            this.changed = changed;
+            this.cost = cost;
+            this.originalProbability = originalProbability;
+            this.probability = probability;
+        }
+
+        /**
+         * @return true if the change brings the risk under the target; false
+         * if no change within the ranges does, in which case this is the
+         * change that lowers the risk most
+         */
+        public boolean isReachable () {
+            return (reachable);
+        }
+
+        /**
+         * Accessor method for an input after the change
+         *
+         * @param input the index of the input
+         * @return its value; for supplemental oxygen 1 for yes and 0 for no
+         */
+        public double getValue (int input) {
+            return (changed[input]);
+        }
+
+        /**
+         * @param input the index of the input
+         * @return true if the change moves the input
+         */
+        public boolean isChanged (int input) {
+            return (changed[input] != original[input]);
+        }
+
+        public double getCost () {
+            return (cost);
+        }
+
+        public double getOriginalProbability () {
+            return (originalProbability);
+        }
+
+        /**
+         * @return the probability of mortality after the change
+         */
+        public double getProbability () {
+            return (probability);
+        }
+
+        /**
+         * Converts the change into a description
+         *
+         * @return one line per changed input, then the cost and the risk
+         * before and after
+         */
+        @Override
+        public String toString () {
+
+            StringBuilder out = new StringBuilder();
+            if (!reachable) {
+                out.append("Target not reachable; largest reduction:\n");
+            }
+            for (int input = 0; input < NUM_INPUTS; input++) {
+                if (!isChanged(input)) {
+                    continue;
+                }
+                out.append(ModelCoefficients.getTermName(INPUT_TERMS[input]))
+                        .append(": ");
+                if (input == SUPP_OXY_INPUT) {
+                    out.append(original[input] != 0 ? "Yes -> No" :
+                            "No -> Yes");
+                } else {
+                    out.append(String.format(Locale.ROOT, "%.1f -> %.1f",
+                            original[input], changed[input]));
+                }
+                out.append('\n');
+            }
+            out.append(String.format(Locale.ROOT, "Cost: %.3f%n"
+                    + "Probability of mortality: %.4f -> %.4f%n", cost,
+                    originalProbability, probability));
+
+            return (out.toString());
+        }
+    }
+
+    /**
+     * The best point of the step grid found by one share of the search
+     */
+    private static final class Best {
+
+        private final long[] steps = new long[NUM_CONT_INPUTS];
+        private double cost;
+        private double reduction;
+
+        private Best (double cost) {
+            this.cost = cost;
+        }
+
+        private void offer (long first, long second, long third,
+                double offerCost, double offerReduction, int[] order) {
+            if (offerCost < cost - EPSILON || (offerCost < cost + EPSILON &&
+                    offerReduction > reduction)) {
+                steps[order[0]] = first;
+                steps[order[1]] = second;
+                steps[order[2]] = third;
+                cost = offerCost;
+                reduction = offerReduction;
+            }
+        }
+
+        private void merge (Best other) {
+            if (other.cost < cost - EPSILON || (other.cost < cost + EPSILON &&
+                    other.reduction > reduction)) {
+                System.arraycopy(other.steps, 0, steps, 0, NUM_CONT_INPUTS);
+                cost = other.cost;
+                reduction = other.reduction;
+            }
+        }
+    }
+
+    private final ModelCoefficients coefficients;
+    private final int threads;
+    private final double[] steps = DEFAULT_STEPS.clone();
+    private final double[] lows = DEFAULT_LOWS.clone();
+    private final double[] highs = DEFAULT_HIGHS.clone();
+    private final double[] costs = DEFAULT_COSTS.clone();
+    private double suppOxyCost = DEFAULT_SUPP_OXY_COST;
+
+    /**
+     * The constructor for the CounterfactualSolver class
+     *
+     * @param coefficients the coefficients of the model to lower the risk of
+     * @param threads the number of threads searching large grids
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public CounterfactualSolver (ModelCoefficients coefficients, int threads)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        this.coefficients = coefficients;
+        this.threads = threads;
+    }
+
+    /**
+     * Mutator method for the achievable range of a continuous input. A
+     * patient whose value lies outside the range can still keep it.
+     *
+     * @param input the index of the input
+     * @param low the lowest achievable value
+     * @param high the highest achievable value
+     * @param step the smallest change
+     * @param costPerUnit the cost of moving the input by one unit
+     * @throws IllegalArgumentException the input must be continuous, the
+     * range must not be empty and the step and cost must be positive
+     */
+    public void setRange (int input, double low, double high, double step,
+            double costPerUnit) throws IllegalArgumentException {
+
+        if (input < 0 || input >= NUM_CONT_INPUTS) {
+            throw new IllegalArgumentException ("Invalid Input"
+                    + " (Input should be a continuous modifiable input)");
+        }
+        if (!(low <= high) || !(step > 0) || !(costPerUnit > 0)) {
+            throw new IllegalArgumentException ("Invalid Range (Range should"
+                    + " not be empty and step and cost should be positive)");
+        }
+
+        lows[input] = low;
+        highs[input] = high;
+        steps[input] = step;
+        costs[input] = costPerUnit;
+    }
+
+    /**
+     * Mutator method for the cost of switching supplemental oxygen. Switching
+     * is off by default, as lowering the risk by switching means withdrawing
+     * oxygen from a patient who has it.
+     *
+     * @param cost the cost; infinite, the default, to never switch it
+     * @throws IllegalArgumentException the cost must be positive
+     */
+    public void setSuppOxyCost (double cost) throws IllegalArgumentException {
+        if (!(cost > 0)) {
+            throw new IllegalArgumentException ("Invalid Cost"
+                    + " (Cost should be positive)");
+        }
+        suppOxyCost = cost;
+    }
+
+    /**
+     * Finds the cheapest change that brings a patient's risk under a target
+     *
+     * @param patient the model holding the patient's inputs
+     * @param targetProbability the probability of mortality to get under
+     * @return the cheapest change; no change if the risk is already under
+     * the target
+     * @throws IllegalArgumentException the target must be between 0 and 1
+     * @throws InterruptedException interrupted while searching in parallel
+     */
+    public Counterfactual solve (TBIModel patient, double targetProbability)
+            throws IllegalArgumentException, InterruptedException {
+
+        if (!(targetProbability > 0 && targetProbability < 1)) {
+            throw new IllegalArgumentException ("Invalid Target"
+                    + " (Target should be between 0 and 1)");
+        }
+
+        double[] terms = new double[ModelCoefficients.NUM_TERMS];
+        patient.getTermValues(terms);
+        double link = coefficients.link(terms);
+        // the link reduction needed to get under the target
+        double needed = link - TBIModel.getLinkForProbability(
+                targetProbability);
+
+        double[] original = new double[NUM_INPUTS];
+        for (int input = 0; input < NUM_INPUTS; input++) {
+            original[input] = terms[INPUT_TERMS[input]];
+        }
+
+        // the step count each continuous input can move, the link reduction
+        // and cost of one step, and its direction
+        long[] maxSteps = new long[NUM_CONT_INPUTS];
+        double[] stepReductions = new double[NUM_CONT_INPUTS];
+        double[] stepCosts = new double[NUM_CONT_INPUTS];
+        double[] directions = new double[NUM_CONT_INPUTS];
+        for (int input = 0; input < NUM_CONT_INPUTS; input++) {
+            double coefficient = coefficients.getCoefficient(
+                    INPUT_TERMS[input]);
+            directions[input] = coefficient < 0 ? 1 : -1;
+            double room = coefficient < 0 ? highs[input] - original[input] :
+                    original[input] - lows[input];
+            maxSteps[input] = coefficient == 0 || !(room > 0) ? 0 :
+                    (long) Math.floor(room / steps[input] + EPSILON);
+            stepReductions[input] = Math.abs(coefficient) * steps[input];
+            stepCosts[input] = costs[input] * steps[input];
+        }
+
+        // switching supplemental oxygen, if it lowers the link
+        double suppOxyCoefficient = coefficients.getCoefficient(
+                ModelCoefficients.SUPP_OXY_TERM);
+        double switchReduction = suppOxyCoefficient *
+                (original[SUPP_OXY_INPUT] != 0 ? 1 : -1);
+        boolean canSwitch = switchReduction > 0 &&
+                !Double.isInfinite(suppOxyCost);
+
+        Best best = null;
+        boolean switched = false;
+        if (needed <= 0) {
+            best = new Best(0);
+        } else {
+            for (int s = 0; s < (canSwitch ? 2 : 1); s++) {
+                double rest = needed - (s == 1 ? switchReduction : 0);
+                double fixedCost = s == 1 ? suppOxyCost : 0;
+                Best found = rest <= 0 ? new Best(0) : search(rest, maxSteps,
+                        stepReductions, stepCosts,
+                        best == null ? Double.POSITIVE_INFINITY :
+                                best.cost - fixedCost);
+                if (found != null) {
+                    found.cost += fixedCost;
+                    if (best == null || found.cost < best.cost - EPSILON) {
+                        best = found;
+                        switched = s == 1;
+                    }
+                }
+            }
+        }
+
+        boolean reachable = best != null;
+        if (!reachable) {
+            // every input as far as it goes
+            best = new Best(canSwitch ? suppOxyCost : 0);
+            for (int input = 0; input < NUM_CONT_INPUTS; input++) {
+                if (stepReductions[input] > 0) {
+                    best.steps[input] = maxSteps[input];
+                    best.cost += maxSteps[input] * stepCosts[input];
+                }
+            }
+            switched = canSwitch;
+        }
+
+        double[] changed = original.clone();
+        for (int input = 0; input < NUM_CONT_INPUTS; input++) {
+            if (best.steps[input] > 0) {
+                changed[input] = roundValue(original[input] +
+                        directions[input] * best.steps[input] * steps[input]);
+                terms[INPUT_TERMS[input]] = changed[input];
+            }
+        }
+        if (switched) {
+            changed[SUPP_OXY_INPUT] = 1 - original[SUPP_OXY_INPUT];
+            terms[ModelCoefficients.SUPP_OXY_TERM] = changed[SUPP_OXY_INPUT];
+        }
+
+        return (new Counterfactual(reachable, original, changed, best.cost,
+                1 / (1 + Math.exp(-link)),
+                1 / (1 + Math.exp(-coefficients.link(terms)))));
+    }
+
+    /**
+     * Finds the cheapest step counts of the continuous inputs that lower the
+     * link by a given amount
+     *
+     * @param needed the link reduction needed; positive
+     * @param bound only answers cheaper than this are of interest
+     * @return the cheapest answer, or null if there is none under the bound
+     */
+    private Best search (double needed, long[] maxSteps,
+            double[] stepReductions, double[] stepCosts, double bound)
+            throws InterruptedException {
+
+        // the closed form answer of the continuous problem: inputs in order
+        // of reduction per unit cost, each as far as it goes
+        Integer[] byValue = {0, 1, 2};
+        Arrays.sort(byValue, (a, b) -> Double.compare(
+                stepReductions[b] / stepCosts[b],
+                stepReductions[a] / stepCosts[a]));
+        double rest = needed;
+        double lowerBound = 0;
+        long[] rounded = new long[NUM_CONT_INPUTS];
+        for (int input : byValue) {
+            if (rest <= 0 || stepReductions[input] == 0) {
+                continue;
+            }
+            double fraction = Math.min(rest / stepReductions[input],
+                    maxSteps[input]);
+            lowerBound += fraction * stepCosts[input];
+            rounded[input] = Math.min((long) Math.ceil(fraction - EPSILON),
+                    maxSteps[input]);
+            rest -= rounded[input] * stepReductions[input];
+        }
+        if (rest > EPSILON || lowerBound >= bound) {
+            // out of range, or no cheaper than the bound
+            return (null);
+        }
+
+        double roundedCost = 0;
+        double roundedReduction = 0;
+        for (int input = 0; input < NUM_CONT_INPUTS; input++) {
+            roundedCost += rounded[input] * stepCosts[input];
+            roundedReduction += rounded[input] * stepReductions[input];
+        }
+
+        // enumerate the two inputs with the fewest steps and solve for the
+        // third
+        final int[] order = {0, 1, 2};
+        for (int i = 0; i < NUM_CONT_INPUTS; i++) {
+            for (int j = i + 1; j < NUM_CONT_INPUTS; j++) {
+                if (maxSteps[order[j]] < maxSteps[order[i]]) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+            }
+        }
+
+        Best initial = new Best(Math.min(roundedCost, bound));
+        if (roundedCost < bound) {
+            initial.offer(rounded[order[0]], rounded[order[1]],
+                    rounded[order[2]], roundedCost, roundedReduction, order);
+        }
+
+        long cells = (maxSteps[order[0]] + 1) * (maxSteps[order[1]] + 1);
+        int shares = cells < PARALLEL_CELLS ? 1 :
+                (int) Math.min(threads, maxSteps[order[0]] + 1);
+
+        Best result;
+        if (shares == 1) {
+            result = searchShare(0, 1, needed, maxSteps, stepReductions,
+                    stepCosts, order, initial);
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(shares);
+            try {
+                List<Callable<Best>> tasks = new ArrayList<>();
+                for (int share = 0; share < shares; share++) {
+                    final int first = share;
+                    final int stride = shares;
+                    final double startCost = initial.cost;
+                    tasks.add(() -> searchShare(first, stride, needed,
+                            maxSteps, stepReductions, stepCosts, order,
+                            new Best(startCost)));
+                }
+                result = initial;
+                for (Future<Best> task : pool.invokeAll(tasks)) {
+                    result.merge(getResult(task));
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        return (result.cost < bound ? result : null);
+    }
+
+    /**
+     * Searches every step count of the outer input congruent to first
+     * modulo stride
+     *
+     * @param best the best answer so far; improved in place
+     * @return best
+     */
+    private static Best searchShare (int first, int stride, double needed,
+            long[] maxSteps, double[] stepReductions, double[] stepCosts,
+            int[] order, Best best) {
+
+        int a = order[0];
+        int b = order[1];
+        int c = order[2];
+
+        for (long i = first; i <= maxSteps[a]; i += stride) {
+            double costA = i * stepCosts[a];
+            if (costA >= best.cost + EPSILON) {
+                // the outer cost only grows from here
+                break;
+            }
+            double restA = needed - i * stepReductions[a];
+            for (long j = 0; j <= maxSteps[b]; j++) {
+                double costB = costA + j * stepCosts[b];
+                if (costB >= best.cost + EPSILON) {
+                    break;
+                }
+                double restB = restA - j * stepReductions[b];
+                long k;
+                if (restB <= EPSILON) {
+                    k = 0;
+                } else if (stepReductions[c] == 0) {
+                    continue;
+                } else {
+                    k = (long) Math.ceil(restB / stepReductions[c] - EPSILON);
+                    if (k > maxSteps[c]) {
+                        continue;
+                    }
+                }
+                best.offer(i, j, k, costB + k * stepCosts[c],
+                        i * stepReductions[a] + j * stepReductions[b] +
+                        k * stepReductions[c], order);
+                if (restB <= EPSILON) {
+                    // more of the middle input only adds cost
+                    break;
+                }
+            }
+        }
+
+        return (best);
+    }
+
+    /**
+     * Removes the rounding error of adding up steps
+     */
+    private static double roundValue (double value) {
+        return (Math.round(value * 1e6) / 1e6);
+    }
+
+    private static Best getResult (Future<Best> task)
+            throws InterruptedException {
+        try {
+            return (task.get());
+        } catch (ExecutionException failure) {
+            throw new IllegalStateException ("Counterfactual search failed",
+                    failure.getCause());
+        }
+    }
+
+    /**
+     * @param args the target probability of mortality, a patient record and
+     * optionally the cost of switching supplemental oxygen
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: CounterfactualSolver <target"
+                    + " probability> <record> [supplemental oxygen cost]");
+            System.exit(2);
+        }
+
+        try {
+            TBIModel patient = new TBIModel();
+            PatientRecordFormat.parse(args[1], patient);
+            CounterfactualSolver solver = new CounterfactualSolver(
+                    patient.getCoefficients(),
+                    Runtime.getRuntime().availableProcessors());
+            if (args.length == 3) {
+                solver.setSuppOxyCost(Double.parseDouble(args[2]));
+            }
+
+            long start = System.nanoTime();
+            Counterfactual answer = solver.solve(patient,
+                    Double.parseDouble(args[0]));
+            long elapsed = System.nanoTime() - start;
+
+            System.out.print(answer);
+            System.out.println(String.format(Locale.ROOT,
+                    "Solved in %.2f ms", elapsed / 1e6));
+        } catch (IllegalArgumentException | InterruptedException failure) {
+            System.err.println("Search failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks the accelerated scoring paths against the exact one. Every record
+ * is scored by TBIModel, parsing it and computing the probability in double
+ * precision one patient at a time, which is the reference. The same record
+ * is then loaded and validated into a PatientBatch and scored by each double
+ * batch path, and loaded straight into a FloatPatientBatch for the float
+ * path:
+ * <ul>
+ * <li>batch: BatchScorer, in double precision</li>
+ * <li>shadow: ShadowScorer with the production model alone</li>
+ * <li>float: FloatBatchScorer, in single precision</li>
+ * </ul>
+ * For each path the harness reports the mean and largest absolute difference
+ * in probability from the reference, the number of patients put in another
+ * risk band, with the worst cases, and the time the path's column sweep took
+ * per patient. It also counts records that the batch validator, the float
+ * loader and the scalar parser disagree about. Before the first check, every
+ * path runs on synthetic patients whose results are discarded, so that the
+ * sweeps are timed once the JIT compiler has compiled them.
+ *
+ * Records come from a WorkloadGenerator, from patient files, or both. Run
+ * from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.DifferentialHarness &lt;synthetic rows&gt; [patient file ...]
+ * </pre>
+ * The exit status is 0 if no path moved any patient to another band and the
+ * validator agreed with the parser on every record, and 1 otherwise.
+ *
+ * @author okama
+ */
+public class DifferentialHarness {
+
+    // rows scored at a time by a worker
+    private static final int CHUNK_SIZE = 4096;
+
+    // band flips kept as examples, per path
+    private static final int MAX_EXAMPLES = 5;
+
+    // fraction of synthetic records that are invalid
+    private static final double SYNTHETIC_INVALID_RATE = 0.01;
+
+    // synthetic rows run through every path before the first check
+    private static final long WARMUP_ROWS = 1000000;
+
+    // the message of the exception thrown when a worker fails
+    private static final String FAILURE = "Differential worker failed";
+
+    // the paths compared with the reference
+    public static final String[] PATHS = {"batch", "shadow", "float"};
+    private static final int BATCH_PATH = 0;
+    private static final int SHADOW_PATH = 1;
+    private static final int FLOAT_PATH = 2;
+
+    /**
+     * A record on which a path and the reference disagree
+     */
+    public static final class Disagreement {
+
+        private final String record;
+        private final double reference;
+        private final double value;
+
+        private Disagreement (String record, double reference, double value) {
+            this.record = record;
+            this.reference = reference;
+            this.value = value;
+        }
+
+        public String getRecord () {
+            return (record);
+        }
+
+        /**
+         * @return the probability given by TBIModel
+         */
+        public double getReference () {
+            return (reference);
+        }
+
+        /**
+         * @return the probability given by the path
+         */
+        public double getValue () {
+            return (value);
+        }
+    }
+
+    /**
+     * The differences of one path from the reference. Differences merge by
+     * adding them up, so each worker keeps its own.
+     */
+    public static final class Difference {
+
+        private final String path;
+        private final RiskBands bands;
+        private long rows = 0;
+        private double absoluteErrorSum = 0;
+        private double maxAbsoluteError = 0;
+        private Disagreement worst = null;
+        private long bandFlips = 0;
+        private final List<Disagreement> flips = new ArrayList<>();
+        private long sweepNanos = 0;
+
+        private Difference (String path, RiskBands bands) {
+            this.path = path;
+            this.bands = bands;
+        }
+
+        private void add (String record, double reference, double value) {
+            double error = Math.abs(value - reference);
+            absoluteErrorSum += error;
+            if (!(error <= maxAbsoluteError)) {
+                maxAbsoluteError = error;
+                worst = new Disagreement(record, reference, value);
+            }
+            if (bands.bandOf(value) != bands.bandOf(reference)) {
+                bandFlips++;
+                if (flips.size() < MAX_EXAMPLES) {
+                    flips.add(new Disagreement(record, reference, value));
+                }
+            }
+            rows++;
+        }
+
+        /**
+         * Adds another difference of the same path into this one
+         *
+         * @param other the difference to add
+         */
+        private void merge (Difference other) {
+            rows += other.rows;
+            absoluteErrorSum += other.absoluteErrorSum;
+            if (other.maxAbsoluteError > maxAbsoluteError ||
+                    (worst == null && other.worst != null)) {
+                maxAbsoluteError = other.maxAbsoluteError;
+                worst = other.worst;
+            }
+            bandFlips += other.bandFlips;
+            for (Disagreement flip : other.flips) {
+                if (flips.size() < MAX_EXAMPLES) {
+                    flips.add(flip);
+                }
+            }
+            sweepNanos += other.sweepNanos;
+        }
+
+        public String getPath () {
+            return (path);
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        /**
+         * @return the mean absolute difference in probability
+         */
+        public double getMeanAbsoluteError () {
+            return (rows == 0 ? 0 : absoluteErrorSum / rows);
+        }
+
+        /**
+         * @return the largest absolute difference in probability
+         */
+        public double getMaxAbsoluteError () {
+            return (maxAbsoluteError);
+        }
+
+        /**
+         * @return the record with the largest difference; null if there were
+         * no rows
+         */
+        public Disagreement getWorst () {
+            return (worst);
+        }
+
+        /**
+         * @return the number of patients put in another risk band
+         */
+        public long getBandFlips () {
+            return (bandFlips);
+        }
+
+        /**
+         * @return the first few patients put in another risk band
+         */
+        public List<Disagreement> getFlips () {
+            return (Collections.unmodifiableList(flips));
+        }
+
+        /**
+         * @return the time of the path's column sweep per patient
+         */
+        public double getSweepNanosPerRow () {
+            return (rows == 0 ? Double.NaN : (double) sweepNanos / rows);
+        }
+    }
+
+    /**
+     * The outcome of running one source of records through every path
+     */
+    public static final class Report {
+
+        private final String source;
+        private long rows = 0;
+        private long rejected = 0;
+        private long validityMismatches = 0;
+        private final List<String> mismatchExamples = new ArrayList<>();
+        private final Difference[] differences;
+
+        private Report (String source, RiskBands bands) {
+            this.source = source;
+            differences = new Difference[PATHS.length];
+            for (int p = 0; p < PATHS.length; p++) {
+                differences[p] = new Difference(PATHS[p], bands);
+            }
+        }
+
+        private void merge (Report other) {
+            rows += other.rows;
+            rejected += other.rejected;
+            validityMismatches += other.validityMismatches;
+            for (String example : other.mismatchExamples) {
+                if (mismatchExamples.size() < MAX_EXAMPLES) {
+                    mismatchExamples.add(example);
+                }
+            }
+            for (int p = 0; p < PATHS.length; p++) {
+                differences[p].merge(other.differences[p]);
+            }
+        }
+
+        public String getSource () {
+            return (source);
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        /**
+         * @return the number of records the parser rejected
+         */
+        public long getRejected () {
+            return (rejected);
+        }
+
+        /**
+         * @return the number of records accepted by some but not all of the
+         * parser, the validator and the float loader
+         */
+        public long getValidityMismatches () {
+            return (validityMismatches);
+        }
+
+        /**
+         * @param path the index of a path in PATHS
+         * @return its differences from the reference
+         */
+        public Difference getDifference (int path) {
+            return (differences[path]);
+        }
+
+        /**
+         * @return true if no record was banded differently or validated
+         * differently by any path
+         */
+        public boolean isClean () {
+            boolean clean = validityMismatches == 0;
+            for (Difference difference : differences) {
+                clean &= difference.bandFlips == 0;
+            }
+            return (clean);
+        }
+
+        /**
+         * Converts the report into a table
+         *
+         * @return a tab separated line per path, then the worst record of
+         * each path and any band flips and validity mismatches
+         */
+        @Override
+        public String toString () {
+
+            StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                    "Source\t%s%nRows\t%d%nRejected\t%d%n"
+                    + "Validity mismatches\t%d%n%n"
+                    + "Path\tMean abs error\tMax abs error\tBand flips"
+                    + "\tSweep ns/row%n", source, rows, rejected,
+                    validityMismatches));
+            for (Difference difference : differences) {
+                out.append(String.format(Locale.ROOT, "%s\t%.3e\t%.3e\t%d"
+                        + "\t%.2f%n", difference.path,
+                        difference.getMeanAbsoluteError(),
+                        difference.maxAbsoluteError, difference.bandFlips,
+                        difference.getSweepNanosPerRow()));
+            }
+
+            out.append('\n');
+            for (Difference difference : differences) {
+                if (difference.worst != null &&
+                        difference.maxAbsoluteError > 0) {
+                    out.append(String.format(Locale.ROOT, "Worst %s\t%s"
+                            + "\t%.17g\t%.17g%n", difference.path,
+                            difference.worst.record,
+                            difference.worst.reference,
+                            difference.worst.value));
+                }
+                for (Disagreement flip : difference.flips) {
+                    out.append(String.format(Locale.ROOT, "Flip %s\t%s"
+                            + "\t%.17g\t%.17g%n", difference.path,
+                            flip.record, flip.reference, flip.value));
+                }
+            }
+            for (String example : mismatchExamples) {
+                out.append("Validity mismatch\t").append(example)
+                        .append('\n');
+            }
+
+            return (out.toString());
+        }
+    }
+
+    private final RiskBands bands;
+    private final int threads;
+    private final BatchValidator validator = new BatchValidator();
+    private final BatchScorer batchScorer;
+    private final ShadowScorer shadowScorer;
+    private final FloatBatchScorer floatScorer;
+    // whether the paths have been warmed up
+    private boolean warm = false;
+
+    /**
+     * The constructor for the DifferentialHarness class, checking the paths
+     * with the built-in coefficients
+     *
+     * @param bands the risk bands to check for flips
+     * @param threads the number of worker threads
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public DifferentialHarness (RiskBands bands, int threads)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        ModelCoefficients coefficients = new TBIModel().getCoefficients();
+        this.bands = bands;
+        this.threads = threads;
+        this.batchScorer = new BatchScorer(coefficients);
+        this.shadowScorer = new ShadowScorer(
+                Collections.singletonList(coefficients), bands, 1);
+        this.floatScorer = new FloatBatchScorer(coefficients);
+    }
+
+    /**
+     * Runs synthetic patients through every path
+     *
+     * @param rows the number of patients
+     * @param seed the seed of the generator
+     * @return the report
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public Report checkSynthetic (final long rows, long seed)
+            throws InterruptedException {
+
+        warmUp();
+        return (generate(rows, seed));
+    }
+
+    /**
+     * Runs the records of a patient file through every path
+     *
+     * @param file the patient file, plain or gzip compressed
+     * @return the report
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public Report checkFile (Path file) throws IOException,
+            InterruptedException {
+
+        warmUp();
+        String name = file.toString();
+        ChunkPipeline chunks = new ChunkPipeline(threads, CHUNK_SIZE);
+        return (merge(name, chunks.run(file, () -> checkChunks(name, chunks),
+                FAILURE)));
+    }
+
+    /**
+     * Runs synthetic patients through every path, once, and discards the
+     * report, so that the sweeps timed afterwards run compiled code
+     */
+    private void warmUp () throws InterruptedException {
+        if (!warm) {
+            generate(WARMUP_ROWS, 0);
+            warm = true;
+        }
+    }
+
+    /**
+     * Runs synthetic patients through every path, with no warm-up
+     */
+    private Report generate (final long rows, long seed)
+            throws InterruptedException {
+
+        final WorkloadGenerator generator = new WorkloadGenerator(seed);
+        generator.setInvalidRate(SYNTHETIC_INVALID_RATE);
+        try {
+            return (check("synthetic, seed " + seed,
+                    new ChunkPipeline.RecordSource() {
+                        private long made = 0;
+
+                        @Override
+                        public String next () {
+                            return (made++ < rows ?
+                                    generator.nextRecord() : null);
+                        }
+                    }));
+        } catch (IOException cannotHappen) {
+            throw new IllegalStateException (cannotHappen);
+        }
+    }
+
+    /**
+     * Hands chunks of records to the workers and merges their reports
+     */
+    private Report check (String name, ChunkPipeline.RecordSource source)
+            throws IOException, InterruptedException {
+
+        ChunkPipeline chunks = new ChunkPipeline(threads, CHUNK_SIZE);
+        return (merge(name, chunks.run(source, () -> checkChunks(name, chunks),
+                FAILURE)));
+    }
+
+    private Report merge (String name, List<Report> reports) {
+        Report merged = new Report(name, bands);
+        for (Report report : reports) {
+            merged.merge(report);
+        }
+        return (merged);
+    }
+
+    /**
+     * Checks chunks of records until the end of the input
+     *
+     * @return the report of every chunk taken
+     */
+    private Report checkChunks (String name, ChunkPipeline chunks)
+            throws InterruptedException {
+
+        Report report = new Report(name, bands);
+        TBIModel model = new TBIModel();
+        PatientBatch batch = new PatientBatch(CHUNK_SIZE);
+        FloatPatientBatch floatBatch = new FloatPatientBatch(CHUNK_SIZE);
+        int[] masks = new int[CHUNK_SIZE];
+        int[] validRows = new int[CHUNK_SIZE];
+        int[] floatRows = new int[CHUNK_SIZE];
+        double[] reference = new double[CHUNK_SIZE];
+        double[] links = new double[CHUNK_SIZE];
+        double[] probabilities = new double[CHUNK_SIZE];
+        double[][] shadowLinks = new double[1][CHUNK_SIZE];
+        float[] floatLinks = new float[CHUNK_SIZE];
+        float[] floatProbabilities = new float[CHUNK_SIZE];
+        Difference[] differences = report.differences;
+
+        List<String> chunk;
+        while ((chunk = chunks.take()) != null) {
+
+            // the reference, one patient at a time
+            batch.clear();
+            for (int i = 0; i < chunk.size(); i++) {
+                String record = chunk.get(i);
+                try {
+                    PatientRecordFormat.parse(record, model);
+                    reference[i] = model.getProbabilityOfMortality();
+                } catch (IllegalArgumentException notValid) {
+                    reference[i] = Double.NaN;
+                }
+                masks[i] = validator.load(record, batch);
+            }
+            int valid = validator.validate(batch, 0, batch.size(), masks,
+                    validRows);
+            batch.retain(validRows, valid);
+
+            // the float path loads and checks the records itself
+            floatBatch.clear();
+            int floatValid = 0;
+            for (int i = 0; i < chunk.size(); i++) {
+                if (validator.load(chunk.get(i), floatBatch) == 0) {
+                    floatRows[floatValid++] = i;
+                }
+            }
+
+            // the parser, the validator and the float loader should reject
+            // the same records
+            int accepted = 0;
+            for (int i = 0, k = 0, f = 0; i < chunk.size(); i++) {
+                boolean validated = k < valid && validRows[k] == i;
+                if (validated) {
+                    k++;
+                }
+                boolean loaded = f < floatValid && floatRows[f] == i;
+                if (loaded) {
+                    f++;
+                }
+                if (!Double.isNaN(reference[i])) {
+                    accepted++;
+                }
+                if (validated == Double.isNaN(reference[i]) ||
+                        loaded != validated) {
+                    report.validityMismatches++;
+                    if (report.mismatchExamples.size() < MAX_EXAMPLES) {
+                        report.mismatchExamples.add(chunk.get(i));
+                    }
+                }
+            }
+            report.rows += chunk.size();
+            report.rejected += chunk.size() - accepted;
+
+            long start = System.nanoTime();
+            batchScorer.score(batch, 0, valid, links, probabilities);
+            differences[BATCH_PATH].sweepNanos += System.nanoTime() - start;
+            for (int k = 0; k < valid; k++) {
+                int i = validRows[k];
+                if (!Double.isNaN(reference[i])) {
+                    differences[BATCH_PATH].add(chunk.get(i), reference[i],
+                            probabilities[k]);
+                }
+            }
+
+            start = System.nanoTime();
+            shadowScorer.link(batch, 0, valid, shadowLinks);
+            for (int k = 0; k < valid; k++) {
+                probabilities[k] = 1 / (1 + Math.exp(-shadowLinks[0][k]));
+            }
+            differences[SHADOW_PATH].sweepNanos += System.nanoTime() - start;
+            for (int k = 0; k < valid; k++) {
+                int i = validRows[k];
+                if (!Double.isNaN(reference[i])) {
+                    differences[SHADOW_PATH].add(chunk.get(i), reference[i],
+                            probabilities[k]);
+                }
+            }
+
+            start = System.nanoTime();
+            floatScorer.score(floatBatch, 0, floatValid, floatLinks,
+                    floatProbabilities);
+            differences[FLOAT_PATH].sweepNanos += System.nanoTime() - start;
+            for (int k = 0; k < floatValid; k++) {
+                int i = floatRows[k];
+                if (!Double.isNaN(reference[i])) {
+                    differences[FLOAT_PATH].add(chunk.get(i), reference[i],
+                            floatProbabilities[k]);
+                }
+            }
+        }
+
+        return (report);
+    }
+
+
+    /**
+     * @param args the number of synthetic patients, then any patient files
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 1) {
+            System.err.println("Usage: DifferentialHarness <synthetic rows>"
+                    + " [patient file ...]");
+            System.exit(2);
+        }
+
+        boolean clean = true;
+        try {
+            long rows = Long.parseLong(args[0]);
+            if (rows < 0) {
+                throw new IllegalArgumentException ("Invalid Row Count (Rows"
+                        + " should not be negative)");
+            }
+            DifferentialHarness harness = new DifferentialHarness(
+                    RiskBands.DEFAULT,
+                    Runtime.getRuntime().availableProcessors());
+
+            List<Report> reports = new ArrayList<>();
+            if (rows > 0) {
+                reports.add(harness.checkSynthetic(rows, 1));
+            }
+            for (int i = 1; i < args.length; i++) {
+                reports.add(harness.checkFile(Paths.get(args[i])));
+            }
+
+            for (int r = 0; r < reports.size(); r++) {
+                System.out.print((r > 0 ? "\n" : "") + reports.get(r));
+                clean &= reports.get(r).isClean();
+            }
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException |
+                IllegalStateException failure) {
+            System.err.println("Differential check failed: "
+                    + failure.getMessage());
+            System.exit(1);
+        }
+
+        System.exit(clean ? 0 : 1);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Fixed-bin histograms of every model input and of the predicted risk of a
+ * population. Profiles of the same layout can be added, subtracted and
+ * compared, and can be saved to and loaded from a text file so that the
+ * profile of a reference population can be kept alongside the model.
+ *
+ * Features 0 to 7 are the continuous variables (PatientBatch continuous
+ * column order), 8 to 12 the categorical variables (one bin per option),
+ * then the link of the prediction and the risk band.
+ *
+ * @author okama
+ */
+public final class DistributionProfile {
+
+    // index of the first categorical feature, the link and the risk band
+    public static final int FIRST_CAT_FEATURE = TBIModel.NUM_CONT_VARIABLES;
+    public static final int LINK_FEATURE = FIRST_CAT_FEATURE +
+            TBIModel.NUM_DIS_VARIABLES;
+    public static final int RISK_BAND_FEATURE = LINK_FEATURE + 1;
+    public static final int NUM_FEATURES = RISK_BAND_FEATURE + 1;
+
+    private static final String[] FEATURE_NAMES = {
+        "Age", "AIS Severity", "Glasgow Coma Score", "Injury Severity Score",
+        "Systolic Blood Pressure", "Pulse Rate", "Body Temperature",
+        "Blood Oxygen Saturation", "Gender", "Supplemental Oxygen",
+        "Drug Use", "Race", "Type of Injury", "Link", "Risk Band"
+    };
+
+    // lowest value, bin width and number of bins of each continuous feature
+    // and of the link; values outside are counted in the end bins
+    static final double[] BIN_MIN = {
+        0, 1, 3, 3, 0, 0, 30, 50, 0, 0, 0, 0, 0, -10, 0
+    };
+    static final double[] BIN_WIDTH = {
+        1, 1, 1, 3, 10, 10, 0.5, 2, 1, 1, 1, 1, 1, 0.5, 1
+    };
+    private static final int[] CONT_BINS = {
+        15, 6, 13, 25, 25, 25, 24, 26
+    };
+    private static final int LINK_BINS = 40;
+
+    // file header of saved profiles
+    private static final String FILE_HEADER = "# TMP3 distribution profile";
+
+    // counts indexed [feature][bin]
+    private final long[][] counts;
+
+    /**
+     * The constructor for an empty DistributionProfile with the risk bands of
+     * RiskBands.DEFAULT
+     */
+    public DistributionProfile () {
+        this(RiskBands.DEFAULT.getNumBands());
+    }
+
+    /**
+     * The constructor for an empty DistributionProfile
+     *
+     * @param numRiskBands the number of risk bands counted
+     */
+    public DistributionProfile (int numRiskBands) {
+
+        TBIModel options = new TBIModel();
+        counts = new long[NUM_FEATURES][];
+
+        for (int f = 0; f < FIRST_CAT_FEATURE; f++) {
+            counts[f] = new long[CONT_BINS[f]];
+        }
+        for (int f = FIRST_CAT_FEATURE; f < LINK_FEATURE; f++) {
+            counts[f] = new long[options.getIthCatVarOptions(
+                    f - FIRST_CAT_FEATURE).length];
+        }
+        counts[LINK_FEATURE] = new long[LINK_BINS];
+        counts[RISK_BAND_FEATURE] = new long[numRiskBands];
+    }
+
+    /**
+     * Accessor method for the names of each feature
+     *
+     * @param feature the index of the feature
+     * @return the name of the feature
+     */
+    public static String getFeatureName (int feature) {
+        return (FEATURE_NAMES[feature]);
+    }
+
+    public int getNumBins (int feature) {
+        return (counts[feature].length);
+    }
+
+    public long getCount (int feature, int bin) {
+        return (counts[feature][bin]);
+    }
+
+    /**
+     * @param feature the index of the feature
+     * @return the number of observations of the feature
+     */
+    public long getTotal (int feature) {
+        long total = 0;
+        for (long count : counts[feature]) {
+            total += count;
+        }
+        return (total);
+    }
+
+    /**
+     * Finds the bin of a value of a continuous feature or of the link
+     *
+     * @param feature the index of the feature
+     * @param value the observed value
+     * @param numBins the number of bins of the feature
+     * @return the bin, clamped to the first and last bins
+     */
+    static int binOf (int feature, double value, int numBins) {
+        int bin = (int) ((value - BIN_MIN[feature]) / BIN_WIDTH[feature]);
+        return (bin < 0 ? 0 : (bin >= numBins ? numBins - 1 : bin));
+    }
+
+    /**
+     * Gives direct access to the counts, for recorders
+     */
+    long[][] counts () {
+        return (counts);
+    }
+
+    /**
+     * Adds the counts of another profile with the same layout
+     *
+     * @param other the profile to add
+     */
+    public void add (DistributionProfile other) {
+        checkLayout(other);
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            for (int b = 0; b < counts[f].length; b++) {
+                counts[f][b] += other.counts[f][b];
+            }
+        }
+    }
+
+    /**
+     * Subtracts the counts of an earlier snapshot of the same population,
+     * leaving the observations made since
+     *
+     * @param earlier the earlier snapshot
+     */
+    public void subtract (DistributionProfile earlier) {
+        checkLayout(earlier);
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            for (int b = 0; b < counts[f].length; b++) {
+                counts[f][b] -= earlier.counts[f][b];
+            }
+        }
+    }
+
+    /**
+     * Computes the population stability index of a feature against a
+     * reference. Empty bins are given a small floor so the index stays
+     * finite.
+     *
+     * @param feature the index of the feature
+     * @param reference the reference profile
+     * @return the PSI; 0 when either side has no observations
+     */
+    public double populationStabilityIndex (int feature,
+            DistributionProfile reference) {
+
+        checkLayout(reference);
+        long total = getTotal(feature);
+        long referenceTotal = reference.getTotal(feature);
+        if (total == 0 || referenceTotal == 0) {
+            return (0);
+        }
+
+        double psi = 0;
+        for (int b = 0; b < counts[feature].length; b++) {
+            double actual = Math.max(1e-4,
+                    (double) counts[feature][b] / total);
+            double expected = Math.max(1e-4,
+                    (double) reference.counts[feature][b] / referenceTotal);
+            psi += (actual - expected) * Math.log(actual / expected);
+        }
+
+        return (psi);
+    }
+
+    /**
+     * Computes the Kolmogorov-Smirnov statistic of a feature against a
+     * reference, i.e. the largest gap between the two cumulative
+     * distributions at the bin edges. For categorical features the options
+     * are taken in their usual order.
+     *
+     * @param feature the index of the feature
+     * @param reference the reference profile
+     * @return the KS statistic; 0 when either side has no observations
+     */
+    public double kolmogorovSmirnov (int feature,
+            DistributionProfile reference) {
+
+        checkLayout(reference);
+        long total = getTotal(feature);
+        long referenceTotal = reference.getTotal(feature);
+        if (total == 0 || referenceTotal == 0) {
+            return (0);
+        }
+
+        double ks = 0;
+        long cumulative = 0;
+        long referenceCumulative = 0;
+        for (int b = 0; b < counts[feature].length; b++) {
+            cumulative += counts[feature][b];
+            referenceCumulative += reference.counts[feature][b];
+            ks = Math.max(ks, Math.abs((double) cumulative / total -
+                    (double) referenceCumulative / referenceTotal));
+        }
+
+        return (ks);
+    }
+
+    /**
+     * Writes the profile to a text file, one feature per line
+     *
+     * @param file the file to write
+     * @throws IOException the file cannot be written
+     */
+    public void save (Path file) throws IOException {
+
+        try (BufferedWriter out = Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8)) {
+            out.write(FILE_HEADER);
+            out.newLine();
+            for (int f = 0; f < NUM_FEATURES; f++) {
+                out.write(FEATURE_NAMES[f]);
+                for (long count : counts[f]) {
+                    out.write('\t');
+                    out.write(Long.toString(count));
+                }
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads a profile written by save
+     *
+     * @param file the file to read
+     * @return the profile
+     * @throws IOException the file cannot be read or is not a profile of the
+     * current layout
+     */
+    public static DistributionProfile load (Path file) throws IOException {
+
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+
+            if (!FILE_HEADER.equals(in.readLine())) {
+                throw new IOException ("Not a distribution profile: " + file);
+            }
+
+            String[][] lines = new String[NUM_FEATURES][];
+            for (int f = 0; f < NUM_FEATURES; f++) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IOException ("Truncated distribution profile: "
+                            + file);
+                }
+                lines[f] = line.split("\t");
+                if (!lines[f][0].equals(FEATURE_NAMES[f])) {
+                    throw new IOException ("Unexpected feature "
+                            + lines[f][0] + " in " + file);
+                }
+            }
+
+            DistributionProfile profile = new DistributionProfile(
+                    lines[RISK_BAND_FEATURE].length - 1);
+            for (int f = 0; f < NUM_FEATURES; f++) {
+                if (lines[f].length - 1 != profile.counts[f].length) {
+                    throw new IOException ("Wrong number of bins for "
+                            + FEATURE_NAMES[f] + " in " + file);
+                }
+                for (int b = 0; b < profile.counts[f].length; b++) {
+                    try {
+                        profile.counts[f][b] = Long.parseLong(lines[f][b + 1]);
+                    } catch (NumberFormatException badCount) {
+                        throw new IOException ("Invalid count for "
+                                + FEATURE_NAMES[f] + " in " + file);
+                    }
+                }
+            }
+
+            return (profile);
+        }
+    }
+
+    private void checkLayout (DistributionProfile other) {
+        if (other.counts[RISK_BAND_FEATURE].length !=
+                counts[RISK_BAND_FEATURE].length) {
+            throw new IllegalArgumentException ("Profiles have different"
+                    + " risk bands");
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the inputs and predictions passing through the scoring paths for
+ * drift away from a reference population, such as the one the model was fit
+ * on. Every scoring thread records into its own DistributionProfile, so an
+ * observation costs a handful of uncontended array increments. Reports merge
+ * the per-thread profiles and compare them with the reference using the
+ * population stability index and the Kolmogorov-Smirnov statistic.
+ *
+ * Reports can be requested at any time or produced periodically; periodic
+ * reports cover only the observations made since the previous one. The
+ * profile of a thread that has finished is folded into a retired total, so
+ * monitors fed by short-lived pools keep one profile per live thread.
+ *
+ * ScoreCommand and ModelUI feed a monitor when the tmp3.drift system property
+ * names a reference profile written by "DriftMonitor reference".
+ *
+ * @author okama
+ */
+public class DriftMonitor implements Closeable {
+
+    // PSI above which a feature is reported as drifted
+    public static final double DEFAULT_PSI_ALERT = 0.25;
+
+    // system property naming the reference profile of the interactive tools
+    public static final String PROFILE_PROPERTY = "tmp3.drift";
+
+    private final DistributionProfile reference;
+    private final RiskBands bands;
+
+    // the profile of every live thread that has recorded an observation
+    private final List<Recorder> recorders = new ArrayList<>();
+    // the observations of threads that have since finished
+    private final DistributionProfile retired;
+    private final ThreadLocal<DistributionProfile> recorder;
+
+    private ScheduledExecutorService scheduler;
+    // merged counts at the time of the previous periodic report
+    private DistributionProfile lastSnapshot;
+
+    /**
+     * The profile of one recording thread
+     */
+    private static final class Recorder {
+
+        private final Thread owner;
+        private final DistributionProfile profile;
+
+        private Recorder (Thread owner, DistributionProfile profile) {
+            this.owner = owner;
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Drift of every feature at one point in time
+     */
+    public static final class Report {
+
+        private final DistributionProfile observed;
+        private final double[] psi = new double[DistributionProfile.NUM_FEATURES];
+        private final double[] ks = new double[DistributionProfile.NUM_FEATURES];
+
+        private Report (DistributionProfile observed,
+                DistributionProfile reference) {
+            this.observed = observed;
+            for (int f = 0; f < psi.length; f++) {
+                psi[f] = observed.populationStabilityIndex(f, reference);
+                ks[f] = observed.kolmogorovSmirnov(f, reference);
+            }
+        }
+
+        /**
+         * @return the observations the report is based on
+         */
+        public DistributionProfile getObserved () {
+            return (observed);
+        }
+
+        public double getPSI (int feature) {
+            return (psi[feature]);
+        }
+
+        public double getKS (int feature) {
+            return (ks[feature]);
+        }
+
+        /**
+         * @param psiAlert the PSI above which a feature counts as drifted
+         * @return true if any feature has drifted
+         */
+        public boolean hasDrift (double psiAlert) {
+            for (double value : psi) {
+                if (value > psiAlert) {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+
+        /**
+         * Converts the report into a table
+         *
+         * @return one tab separated line per feature
+         */
+        @Override
+        public String toString () {
+            StringBuilder out = new StringBuilder("Feature\tN\tPSI\tKS\n");
+            for (int f = 0; f < psi.length; f++) {
+                out.append(String.format(Locale.ROOT, "%s\t%d\t%.4f\t%.4f%s%n",
+                        DistributionProfile.getFeatureName(f),
+                        observed.getTotal(f), psi[f], ks[f],
+                        psi[f] > DEFAULT_PSI_ALERT ? "\tDRIFT" : ""));
+            }
+            return (out.toString());
+        }
+    }
+
+    /**
+     * The constructor for the DriftMonitor class
+     *
+     * @param reference the profile of the reference population
+     * @param bands the risk bands predictions are counted in; must match the
+     * number of bands of the reference
+     * @throws IllegalArgumentException the bands do not match the reference
+     */
+    public DriftMonitor (DistributionProfile reference, RiskBands bands)
+            throws IllegalArgumentException {
+
+        if (reference.getNumBins(DistributionProfile.RISK_BAND_FEATURE) !=
+                bands.getNumBands()) {
+            throw new IllegalArgumentException ("Reference profile has"
+                    + " different risk bands");
+        }
+
+        this.reference = reference;
+        this.bands = bands;
+        this.retired = new DistributionProfile(bands.getNumBands());
+        this.recorder = ThreadLocal.withInitial(this::register);
+        this.lastSnapshot = new DistributionProfile(bands.getNumBands());
+    }
+
+    /**
+     * Opens a monitor comparing with the reference profile named by the
+     * tmp3.drift system property
+     *
+     * @return the monitor; null if the property is not set
+     * @throws IOException the profile cannot be read
+     * @throws IllegalArgumentException the profile does not use the default
+     * risk bands
+     */
+    public static DriftMonitor fromSystemProperty () throws IOException,
+            IllegalArgumentException {
+
+        String profile = System.getProperty(PROFILE_PROPERTY);
+        if (profile == null) {
+            return (null);
+        }
+        return (new DriftMonitor(DistributionProfile.load(Paths.get(profile)),
+                RiskBands.DEFAULT));
+    }
+
+    /**
+     * Records one scored patient
+     *
+     * @param model the model holding the patient's inputs, after a call to
+     * getProbabilityOfMortality
+     */
+    public void observe (TBIModel model) {
+
+        long[][] counts = recorder.get().counts();
+
+        count(counts, PatientBatch.AGE_INDEX, model.getAge());
+        count(counts, PatientBatch.AIS_SEV_INDEX, model.getAISSev());
+        count(counts, PatientBatch.GCS_INDEX, model.getGCS());
+        count(counts, PatientBatch.ISS_INDEX, model.getISS());
+        count(counts, PatientBatch.SBP_INDEX, model.getSBP());
+        count(counts, PatientBatch.PULSE_INDEX, model.getPulseRate());
+        count(counts, PatientBatch.BODY_TEMP_INDEX, model.getBodyTemp());
+        count(counts, PatientBatch.OXY_SAT_INDEX, model.getOxySat());
+        for (int i = 0; i < TBIModel.NUM_DIS_VARIABLES; i++) {
+            counts[DistributionProfile.FIRST_CAT_FEATURE + i]
+                    [model.getIthCatVarSelection(i)]++;
+        }
+        count(counts, DistributionProfile.LINK_FEATURE, model.getLink());
+        counts[DistributionProfile.RISK_BAND_FEATURE]
+                [bands.bandOfLink(model.getLink())]++;
+    }
+
+    /**
+     * Records a range of scored rows of a batch
+     *
+     * @param batch the patients
+     * @param from the first row to record
+     * @param to one past the last row to record
+     * @param links the link of row r at index r - from, as computed by
+     * BatchScorer
+     */
+    public void observe (PatientBatch batch, int from, int to,
+            double[] links) {
+
+        long[][] counts = recorder.get().counts();
+        int n = to - from;
+
+        for (int f = 0; f < TBIModel.NUM_CONT_VARIABLES; f++) {
+            double[] column = batch.getContColumn(f);
+            long[] bins = counts[f];
+            for (int i = 0; i < n; i++) {
+                bins[DistributionProfile.binOf(f, column[from + i],
+                        bins.length)]++;
+            }
+        }
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            byte[] column = batch.getCatColumn(v);
+            long[] bins = counts[DistributionProfile.FIRST_CAT_FEATURE + v];
+            for (int i = 0; i < n; i++) {
+                bins[column[from + i]]++;
+            }
+        }
+        long[] linkBins = counts[DistributionProfile.LINK_FEATURE];
+        long[] bandBins = counts[DistributionProfile.RISK_BAND_FEATURE];
+        for (int i = 0; i < n; i++) {
+            linkBins[DistributionProfile.binOf(DistributionProfile.LINK_FEATURE,
+                    links[i], linkBins.length)]++;
+            bandBins[bands.bandOfLink(links[i])]++;
+        }
+    }
+
+    /**
+     * Creates the profile of the calling thread
+     */
+    private synchronized DistributionProfile register () {
+        retireFinished();
+        DistributionProfile profile = new DistributionProfile(
+                bands.getNumBands());
+        recorders.add(new Recorder(Thread.currentThread(), profile));
+        return (profile);
+    }
+
+    /**
+     * Folds the profiles of finished threads into the retired total. Called
+     * with the lock held; a finished thread's counts are final and visible
+     * once isAlive has returned false.
+     */
+    private void retireFinished () {
+        Iterator<Recorder> live = recorders.iterator();
+        while (live.hasNext()) {
+            Recorder next = live.next();
+            if (!next.owner.isAlive()) {
+                retired.add(next.profile);
+                live.remove();
+            }
+        }
+    }
+
+    private static void count (long[][] counts, int feature, double value) {
+        long[] bins = counts[feature];
+        bins[DistributionProfile.binOf(feature, value, bins.length)]++;
+    }
+
+    /**
+     * Merges the observations of every thread. Counts still being written by
+     * a scoring thread may be missed by a few observations.
+     *
+     * @return the observations made since the monitor was created
+     */
+    public synchronized DistributionProfile snapshot () {
+        retireFinished();
+        DistributionProfile merged = new DistributionProfile(bands.getNumBands());
+        merged.add(retired);
+        for (Recorder next : recorders) {
+            merged.add(next.profile);
+        }
+        return (merged);
+    }
+
+    /**
+     * Compares everything observed so far with the reference
+     *
+     * @return the drift report
+     */
+    public Report report () {
+        return (new Report(snapshot(), reference));
+    }
+
+    /**
+     * Starts producing a report every period, covering the observations made
+     * since the previous periodic report
+     *
+     * @param periodMillis the time between reports
+     * @param listener receives each report on the monitor's own thread
+     */
+    public synchronized void startPeriodicReports (long periodMillis,
+            final Consumer<Report> listener) {
+
+        if (scheduler != null) {
+            throw new IllegalStateException ("Periodic reports already"
+                    + " started");
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "drift-monitor");
+            thread.setDaemon(true);
+            return (thread);
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            DistributionProfile current = snapshot();
+            DistributionProfile window =
+                    new DistributionProfile(bands.getNumBands());
+            window.add(current);
+            window.subtract(lastSnapshot);
+            lastSnapshot = current;
+            listener.accept(new Report(window, reference));
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic reports
+     */
+    @Override
+    public synchronized void close () {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Builds a reference profile from a patient file, or checks a patient
+     * file against a reference profile
+     *
+     * @param args "reference" followed by the patient file and the profile to
+     * write, or "check" followed by the profile and the patient file
+     */
+    public static void main (String[] args) {
+
+        if (args.length != 3 || !(args[0].equals("reference") ||
+                args[0].equals("check"))) {
+            System.err.println("Usage: DriftMonitor reference <patients>"
+                    + " <profile>\n       DriftMonitor check <profile>"
+                    + " <patients>");
+            System.exit(2);
+        }
+
+        boolean building = args[0].equals("reference");
+
+        try {
+            DistributionProfile reference = building ?
+                    new DistributionProfile() :
+                    DistributionProfile.load(Paths.get(args[1]));
+            DriftMonitor monitor = new DriftMonitor(reference,
+                    RiskBands.DEFAULT);
+            CohortAggregator aggregator = new CohortAggregator(
+                    new TBIModel().getCoefficients(),
+                    EnumSet.noneOf(CohortAggregator.Dimension.class),
+                    CohortAggregator.DEFAULT_AGE_BANDS,
+                    Runtime.getRuntime().availableProcessors());
+            aggregator.setDriftMonitor(monitor);
+            aggregator.aggregate(Paths.get(building ? args[1] : args[2]));
+
+            if (building) {
+                monitor.snapshot().save(Paths.get(args[2]));
+            } else {
+                Report report = monitor.report();
+                System.out.print(report);
+                System.exit(report.hasDrift(DEFAULT_PSI_ALERT) ? 3 : 0);
+            }
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException |
+                IllegalStateException failure) {
+            System.err.println("Drift check failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Scores a patient file of any size and writes it out sorted by probability
+ * of mortality, highest first. Only (record offset, probability) pairs are
+ * sorted: they are collected into runs that fit the memory budget, each run
+ * is sorted and spilled to a temporary file, and the runs are merged k ways
+ * with buffered sequential reads. The final merge gathers the records from
+ * the input a batch of merged entries at a time: the batch is read in
+ * offset order, in blocks that each cover as many of its records as fit,
+ * and then written out in merged order. The input is thus read forwards in
+ * large reads rather than with one random read per record.
+ *
+ * Memory use follows the configured budget, not the size of the input. The
+ * final merge gives half the budget to its run buffers and half to the
+ * batch. Runs are merged in several passes if the budget cannot buffer all
+ * of them at once. Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.ExternalRiskSorter &lt;input&gt; &lt;output&gt; [budget MiB]
+ * </pre>
+ *
+ * @author okama
+ */
+public class ExternalRiskSorter {
+
+    // default memory budget (64 MiB)
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    // bytes per sorted entry: a long offset and a double probability
+    private static final int ENTRY_SIZE = 16;
+
+    // smallest read buffer given to a run during a merge
+    private static final int MIN_MERGE_BUFFER = 64 * 1024;
+
+    // largest single read of the input when gathering records
+    private static final int GATHER_BLOCK_SIZE = 256 * 1024;
+
+    // how far a gathering read reaches past the start of the last record it
+    // is for; longer records take more reads
+    private static final int RECORD_READ_AHEAD = 512;
+
+    // bytes per batch entry besides the record: offset, probability, sorted
+    // offset, and start and length of the gathered record
+    private static final int GATHER_ENTRY_SIZE = 8 + 8 + 8 + 4 + 4;
+
+    // runs sort below this size with insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // the memory budget for sorting and merging, in bytes
+    private final long memoryBudget;
+    // the directory for the temporary run files
+    private final Path tempDirectory;
+
+    /**
+     * Results of a sort
+     */
+    public static final class Summary {
+
+        private final long recordsSorted;
+        private final long recordsRejected;
+        private final int runs;
+        private final int mergePasses;
+
+        private Summary (long recordsSorted, long recordsRejected, int runs,
+                int mergePasses) {
+            this.recordsSorted = recordsSorted;
+            this.recordsRejected = recordsRejected;
+            this.runs = runs;
+            this.mergePasses = mergePasses;
+        }
+
+        public long getRecordsSorted () {
+            return (recordsSorted);
+        }
+
+        /**
+         * @return the number of records that failed validation and were left
+         * out of the output
+         */
+        public long getRecordsRejected () {
+            return (recordsRejected);
+        }
+
+        public int getRuns () {
+            return (runs);
+        }
+
+        public int getMergePasses () {
+            return (mergePasses);
+        }
+
+        @Override
+        public String toString () {
+            return (recordsSorted + " records sorted, " + recordsRejected
+                    + " rejected, " + runs + " runs, " + mergePasses
+                    + " merge passes");
+        }
+    }
+
+    /**
+     * The constructor for the ExternalRiskSorter class
+     *
+     * @param memoryBudget the number of bytes that may be used for sorting
+     * and merging
+     * @param tempDirectory the directory for temporary run files
+     * @throws IllegalArgumentException the budget must allow at least a two
+     * way merge
+     */
+    public ExternalRiskSorter (long memoryBudget, Path tempDirectory)
+            throws IllegalArgumentException {
+
+        if (memoryBudget < 3L * MIN_MERGE_BUFFER) {
+            throw new IllegalArgumentException ("Invalid Memory Budget"
+                    + " (Budget should be at least " + 3L * MIN_MERGE_BUFFER
+                    + " bytes)");
+        }
+
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Scores every record of the input and writes the valid ones to the
+     * output, highest probability of mortality first. Each output line is the
+     * probability followed by the original record. Records with equal
+     * probability keep their input order. The input must be uncompressed,
+     * since records are fetched from it by offset; an output named ".gz" is
+     * written as BGZF.
+     *
+     * @param input the patient file to sort
+     * @param output the file to write
+     * @return counts describing the sort
+     * @throws IOException the input cannot be read or is compressed, or the
+     * output or temporary files cannot be written
+     */
+    public Summary sort (Path input, Path output) throws IOException {
+
+        // the output is gathered by seeking to records in the input
+        if (CompressedFiles.isCompressed(input)) {
+            throw new IOException ("Cannot sort compressed input " + input
+                    + " (decompress it first)");
+        }
+
+        // every temporary file, registered as soon as it exists so that a
+        // failure in any pass still removes it
+        List<Path> created = new ArrayList<>();
+
+        try {
+
+            List<Path> runs = new ArrayList<>();
+            long[] counts = writeRuns(input, runs, created);
+            int initialRuns = runs.size();
+            int passes = 0;
+
+            // a merge also needs a buffer for its output, and the final
+            // merge has only half the budget for its buffers
+            int fanIn = (int) Math.max(2,
+                    memoryBudget / MIN_MERGE_BUFFER - 1);
+            int finalFanIn = (int) Math.max(2,
+                    memoryBudget / 2 / MIN_MERGE_BUFFER - 1);
+
+            while (runs.size() > finalFanIn) {
+                List<Path> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += fanIn) {
+                    List<Path> group = runs.subList(i,
+                            Math.min(i + fanIn, runs.size()));
+                    Path run = createRun(created);
+                    merged.add(run);
+                    try (DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(run),
+                                    mergeBufferSize(memoryBudget,
+                                            group.size())))) {
+                        merge(group, memoryBudget, (offset, probability) -> {
+                            out.writeLong(offset);
+                            out.writeDouble(probability);
+                        });
+                    }
+                    for (Path done : group) {
+                        Files.deleteIfExists(done);
+                    }
+                }
+                runs = merged;
+                passes++;
+            }
+
+            writeOutput(input, output, runs, counts[0] + counts[1]);
+            passes++;
+
+            return (new Summary(counts[0], counts[1], initialRuns, passes));
+
+        } finally {
+            for (Path run : created) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Scores the input and spills sorted runs of (offset, probability)
+     *
+     * @return the number of records sorted and rejected
+     */
+    private long[] writeRuns (Path input, List<Path> runs, List<Path> created)
+            throws IOException {
+
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(1024, memoryBudget / ENTRY_SIZE));
+        long[] offsets = new long[capacity];
+        double[] probabilities = new double[capacity];
+        int size = 0;
+        long sorted = 0;
+        long rejected = 0;
+
+        TBIModel model = new TBIModel();
+
+        try (PatientFileReader reader = new PatientFileReader(
+                Files.newInputStream(input), 0)) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                if (!PatientRecordFormat.isRecord(line)) {
+                    continue;
+                }
+
+                try {
+                    PatientRecordFormat.parse(line, model);
+                } catch (IllegalArgumentException invalidInput) {
+                    rejected++;
+                    continue;
+                }
+
+                offsets[size] = reader.getLineOffset();
+                probabilities[size] = model.getProbabilityOfMortality();
+                size++;
+                sorted++;
+
+                if (size == capacity) {
+                    runs.add(spill(offsets, probabilities, size, created));
+                    size = 0;
+                }
+            }
+        }
+
+        if (size > 0 || runs.isEmpty()) {
+            runs.add(spill(offsets, probabilities, size, created));
+        }
+
+        return (new long[] {sorted, rejected});
+    }
+
+    private Path spill (long[] offsets, double[] probabilities, int size,
+            List<Path> created) throws IOException {
+
+        sortRun(offsets, probabilities, 0, size - 1);
+
+        Path run = createRun(created);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run),
+                        MIN_MERGE_BUFFER))) {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(offsets[i]);
+                out.writeDouble(probabilities[i]);
+            }
+        }
+
+        return (run);
+    }
+
+    /**
+     * Creates an empty run file and registers it for removal
+     */
+    private Path createRun (List<Path> created) throws IOException {
+        Path run = Files.createTempFile(tempDirectory, "tmp3-run", ".bin");
+        created.add(run);
+        return (run);
+    }
+
+    /**
+     * Merges runs and writes each record of the input in merged order,
+     * gathering the records a batch at a time
+     *
+     * @param records the number of records in the input, valid or not
+     */
+    private void writeOutput (Path input, Path output, List<Path> runs,
+            long records) throws IOException {
+
+        long budget = memoryBudget / 2;
+
+        // size the batch for records of the input's average length
+        long averageLength = Files.size(input) / Math.max(1, records) + 1;
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024,
+                budget / (GATHER_ENTRY_SIZE + averageLength)));
+
+        try (FileChannel channel = FileChannel.open(input,
+                StandardOpenOption.READ);
+                OutputStream out = new BufferedOutputStream(
+                        CompressedFiles.newOutputStream(output,
+                                Runtime.getRuntime().availableProcessors()),
+                        mergeBufferSize(budget, runs.size()))) {
+
+            out.write(("# Probability of Mortality,"
+                    + PatientRecordFormat.HEADER.substring(2) + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+
+            Gatherer batch = new Gatherer(channel, capacity,
+                    (int) Math.min(Integer.MAX_VALUE - 8,
+                            capacity * averageLength));
+
+            merge(runs, budget, (offset, probability) -> {
+                if (batch.isFull()) {
+                    batch.writeTo(out);
+                }
+                batch.add(offset, probability);
+            });
+            batch.writeTo(out);
+        }
+    }
+
+    /**
+     * A batch of merged entries whose records are read from the input in
+     * offset order and written out in merged order
+     */
+    private static final class Gatherer {
+
+        private final FileChannel input;
+        // the entries, in merged order
+        private final long[] offsets;
+        private final double[] probabilities;
+        // the offsets in ascending order, and where each record was put
+        private final long[] sorted;
+        private final int[] starts;
+        private final int[] lengths;
+        private int size = 0;
+
+        // the gathered records
+        private byte[] records;
+        private int used = 0;
+
+        // the last block read from the input
+        private final ByteBuffer block = ByteBuffer.allocate(GATHER_BLOCK_SIZE);
+        private long blockStart = -1;
+        // whether the last block read stopped at the end of the input
+        private boolean atEnd = false;
+
+        private Gatherer (FileChannel input, int capacity, int recordBytes) {
+            this.input = input;
+            offsets = new long[capacity];
+            probabilities = new double[capacity];
+            sorted = new long[capacity];
+            starts = new int[capacity];
+            lengths = new int[capacity];
+            records = new byte[Math.max(GATHER_BLOCK_SIZE, recordBytes)];
+        }
+
+        private boolean isFull () {
+            return (size == offsets.length);
+        }
+
+        private void add (long offset, double probability) {
+            offsets[size] = offset;
+            probabilities[size] = probability;
+            size++;
+        }
+
+        /**
+         * Gathers the records of the batch, writes them with their
+         * probabilities in merged order and empties the batch
+         */
+        private void writeTo (OutputStream out) throws IOException {
+
+            System.arraycopy(offsets, 0, sorted, 0, size);
+            Arrays.sort(sorted, 0, size);
+            used = 0;
+            for (int i = 0; i < size; i++) {
+                gather(i);
+            }
+
+            for (int i = 0; i < size; i++) {
+                // offsets are unique, so the search finds the entry's record
+                int at = Arrays.binarySearch(sorted, 0, size, offsets[i]);
+                out.write(Double.toString(probabilities[i])
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write(PatientRecordFormat.SEPARATOR);
+                out.write(records, starts[at], lengths[at]);
+                out.write('\n');
+            }
+
+            size = 0;
+        }
+
+        /**
+         * Copies the record at the i-th smallest offset of the batch, reading
+         * a new block if the last one does not hold all of it
+         */
+        private void gather (int i) throws IOException {
+
+            long offset = sorted[i];
+            starts[i] = used;
+
+            int from = blockStart < 0 || offset < blockStart ||
+                    offset >= blockStart + block.limit() ? -1 :
+                    (int) (offset - blockStart);
+            int end = from < 0 ? -1 : lineEnd(from);
+
+            if (end < 0) {
+                // read from this record to just past the last of the
+                // following records that fit in one block
+                int last = i;
+                while (last + 1 < size && sorted[last + 1] - offset +
+                        RECORD_READ_AHEAD <= GATHER_BLOCK_SIZE) {
+                    last++;
+                }
+                readBlock(offset, (int) Math.min(GATHER_BLOCK_SIZE,
+                        sorted[last] - offset + RECORD_READ_AHEAD));
+                from = 0;
+                end = lineEnd(0);
+            }
+
+            if (end >= 0) {
+                append(block.array(), from, end);
+            } else {
+                // longer than the read: copy it a block at a time
+                long position = offset;
+                while (true) {
+                    int limit = block.limit();
+                    end = lineEnd(0);
+                    append(block.array(), 0, end < 0 ? limit : end);
+                    if (end >= 0 || atEnd) {
+                        break;
+                    }
+                    position += limit;
+                    readBlock(position, GATHER_BLOCK_SIZE);
+                }
+            }
+
+            lengths[i] = used - starts[i];
+        }
+
+        /**
+         * @return the end of the line starting at from in the block, without
+         * its line terminator; -1 if the block ends first, unless the input
+         * ends there too
+         */
+        private int lineEnd (int from) {
+            byte[] bytes = block.array();
+            int limit = block.limit();
+            for (int i = from; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    return ((i > from && bytes[i - 1] == '\r') ? i - 1 : i);
+                }
+            }
+            return (atEnd ? limit : -1);
+        }
+
+        private void readBlock (long position, int length)
+                throws IOException {
+            block.clear();
+            block.limit(length);
+            while (block.hasRemaining() &&
+                    input.read(block, position + block.position()) > 0) {
+                // keep reading until the block is full or the input ends
+            }
+            atEnd = block.hasRemaining();
+            block.flip();
+            blockStart = position;
+        }
+
+        private void append (byte[] bytes, int from, int to) {
+            int length = to - from;
+            if (used + length > records.length) {
+                records = Arrays.copyOf(records, Math.max(used + length,
+                        2 * records.length));
+            }
+            System.arraycopy(bytes, from, records, used, length);
+            used += length;
+        }
+    }
+
+    /**
+     * @return the buffer size for each run, and the output, of a merge with
+     * the given budget
+     */
+    private static int mergeBufferSize (long budget, int runCount) {
+        return ((int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(MIN_MERGE_BUFFER, budget / (runCount + 1))));
+    }
+
+    /**
+     * Receives merged entries in order
+     */
+    private interface EntrySink {
+        void accept (long offset, double probability) throws IOException;
+    }
+
+    /**
+     * K-way merges sorted runs, highest probability first
+     *
+     * @param budget the memory the merge's buffers may take
+     */
+    private static void merge (List<Path> runs, long budget, EntrySink sink)
+            throws IOException {
+
+        int bufferSize = mergeBufferSize(budget, runs.size());
+        PriorityQueue<RunCursor> heads = new PriorityQueue<>(runs.size());
+        List<RunCursor> cursors = new ArrayList<>();
+
+        try {
+            for (Path run : runs) {
+                RunCursor cursor = new RunCursor(run, bufferSize);
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                }
+            }
+
+            while (!heads.isEmpty()) {
+                RunCursor head = heads.poll();
+                sink.accept(head.offset, head.probability);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.in.close();
+            }
+        }
+    }
+
+    /**
+     * The current entry of a run being merged
+     */
+    private static final class RunCursor implements Comparable<RunCursor> {
+
+        private final DataInputStream in;
+        private long offset;
+        private double probability;
+
+        private RunCursor (Path run, int bufferSize) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(run), bufferSize));
+        }
+
+        private boolean advance () throws IOException {
+            try {
+                offset = in.readLong();
+                probability = in.readDouble();
+                return (true);
+            } catch (EOFException endOfRun) {
+                return (false);
+            }
+        }
+
+        @Override
+        public int compareTo (RunCursor other) {
+            return (compare(probability, offset, other.probability,
+                    other.offset));
+        }
+    }
+
+    /**
+     * Orders entries by descending probability, then ascending offset
+     */
+    private static int compare (double probabilityA, long offsetA,
+            double probabilityB, long offsetB) {
+        int byProbability = Double.compare(probabilityB, probabilityA);
+        return (byProbability != 0 ? byProbability :
+                Long.compare(offsetA, offsetB));
+    }
+
+    /**
+     * Sorts a run held in two parallel arrays in place (quicksort with
+     * insertion sort for short ranges), so no entry objects are created
+     */
+    private static void sortRun (long[] offsets, double[] probabilities,
+            int low, int high) {
+
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+
+            int middle = (low + high) >>> 1;
+            // median of three as pivot
+            if (compare(probabilities[middle], offsets[middle],
+                    probabilities[low], offsets[low]) < 0) {
+                swap(offsets, probabilities, middle, low);
+            }
+            if (compare(probabilities[high], offsets[high],
+                    probabilities[low], offsets[low]) < 0) {
+                swap(offsets, probabilities, high, low);
+            }
+            if (compare(probabilities[high], offsets[high],
+                    probabilities[middle], offsets[middle]) < 0) {
+                swap(offsets, probabilities, high, middle);
+            }
+            double pivotProbability = probabilities[middle];
+            long pivotOffset = offsets[middle];
+
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(probabilities[i], offsets[i],
+                        pivotProbability, pivotOffset) < 0) {
+                    i++;
+                }
+                while (compare(probabilities[j], offsets[j],
+                        pivotProbability, pivotOffset) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(offsets, probabilities, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // recurse into the smaller side to bound the stack depth
+            if (j - low < high - i) {
+                sortRun(offsets, probabilities, low, j);
+                low = i;
+            } else {
+                sortRun(offsets, probabilities, i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; i++) {
+            double probability = probabilities[i];
+            long offset = offsets[i];
+            int j = i - 1;
+            while (j >= low && compare(probabilities[j], offsets[j],
+                    probability, offset) > 0) {
+                probabilities[j + 1] = probabilities[j];
+                offsets[j + 1] = offsets[j];
+                j--;
+            }
+            probabilities[j + 1] = probability;
+            offsets[j + 1] = offset;
+        }
+    }
+
+    private static void swap (long[] offsets, double[] probabilities, int i,
+            int j) {
+        long offset = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = offset;
+        double probability = probabilities[i];
+        probabilities[i] = probabilities[j];
+        probabilities[j] = probability;
+    }
+
+    /**
+     * @param args the input file, the output file and optionally the memory
+     * budget in MiB
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: ExternalRiskSorter <input> <output>"
+                    + " [budget MiB]");
+            System.exit(2);
+        }
+
+        try {
+            long budget = args.length == 3 ?
+                    Long.parseLong(args[2]) * 1024 * 1024 :
+                    DEFAULT_MEMORY_BUDGET;
+            Path output = Paths.get(args[1]).toAbsolutePath();
+            ExternalRiskSorter sorter = new ExternalRiskSorter(budget,
+                    output.getParent());
+            System.out.println(sorter.sort(Paths.get(args[0]), output));
+        } catch (IOException | IllegalArgumentException failure) {
+            System.err.println("Sort failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
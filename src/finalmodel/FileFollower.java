@@ -0,0 +1,581 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Follows patient files that another system appends records to, scoring
+ * each complete record as it arrives. Only the bytes after the last complete
+ * line read are ever read, at their position in a FileChannel; the files are
+ * never scanned again. A WatchService on the files' directories says when to
+ * look, and every file is also looked at a few times a second in case a
+ * notification is late or lost, as with the polling WatchService of some
+ * platforms.
+ *
+ * A line is scored once its newline has been written, so a record the writer
+ * is halfway through is left for the next look. When a file is rotated
+ * (renamed away, and usually replaced by a new file of the same name) the
+ * complete lines added to the old file are still read from its open channel.
+ * The old file is given up once it has not grown for ROTATION_GRACE_MILLIS;
+ * only then is a last line without a newline scored, and the new file read
+ * from its start. A file that has been truncated in place is read again from
+ * its start.
+ *
+ * After every look that read anything, the offset of each file is saved
+ * with the file's identity, atomically as BulkScoringJob saves checkpoints.
+ * A follower started again carries on from the saved offsets, unless a file
+ * has been replaced meanwhile. Records are handed on before their offsets are
+ * saved, so after a crash the records of the last look may be handed on
+ * again, but none are missed. Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.FileFollower &lt;offsets file&gt; &lt;patient file&gt; ...
+ * </pre>
+ * printing the file name, line offset and probability of mortality of each
+ * record (NaN for an invalid one) until it is killed.
+ *
+ * @author okama
+ */
+public class FileFollower implements Closeable {
+
+    /**
+     * One record read from a followed file
+     */
+    public static final class Scored {
+
+        private final Path file;
+        private final long offset;
+        private final String record;
+        private final double probability;
+        private final String error;
+
+        private Scored (Path file, long offset, String record,
+                double probability, String error) {
+            this.file = file;
+            this.offset = offset;
+            this.record = record;
+            this.probability = probability;
+            this.error = error;
+        }
+
+        public Path getFile () {
+            return (file);
+        }
+
+        /**
+         * @return the byte offset of the record's line in its file
+         */
+        public long getOffset () {
+            return (offset);
+        }
+
+        public String getRecord () {
+            return (record);
+        }
+
+        /**
+         * @return the probability of mortality; NaN if the record is invalid
+         */
+        public double getProbability () {
+            return (probability);
+        }
+
+        /**
+         * @return why the record is invalid; null if it is valid
+         */
+        public String getError () {
+            return (error);
+        }
+
+        public boolean isValid () {
+            return (error == null);
+        }
+    }
+
+    /**
+     * The reading state of one followed file
+     */
+    private static final class Followed {
+
+        private final Path path;
+        private FileChannel channel = null;
+        // the identity of the file the channel is open on
+        private String identity = null;
+        // the offset of the first byte not yet part of a complete line
+        private long position = 0;
+        // when the path was first seen gone or replaced while the channel
+        // was still open, or when the old file last grew since; 0 if not
+        private long abandonedAt = 0;
+        // the size of the old file at abandonedAt
+        private long abandonedSize = 0;
+
+        private Followed (Path path) {
+            this.path = path;
+        }
+    }
+
+    // first line of every offsets file
+    private static final String FILE_HEADER = "# TMP3 follow offsets";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    // the longest time between looks at a file
+    public static final long POLL_MILLIS = 200;
+
+    // how long a rotated file must go without growing before it is given up
+    public static final long ROTATION_GRACE_MILLIS = 2000;
+
+    // initial read buffer size; grows for longer lines
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path offsetsFile;
+    private final List<Followed> followed = new ArrayList<>();
+    private final Consumer<Scored> listener;
+    private final TBIModel model = new TBIModel();
+    private final WatchService watcher;
+    // saved offsets by file, as identity and offset, until the file is opened
+    private final Map<Path, String[]> savedOffsets;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private volatile boolean closed = false;
+
+    /**
+     * The constructor for the FileFollower class. Files that do not exist
+     * yet are followed from when they appear.
+     *
+     * @param offsetsFile the file the offsets are saved to and, if it exists,
+     * loaded from
+     * @param files the files to follow
+     * @param listener receives every record read, on the following thread
+     * @throws IOException the offsets cannot be read or the directories
+     * cannot be watched
+     * @throws IllegalArgumentException there must be at least one file, and
+     * the directory of every file must exist
+     */
+    public FileFollower (Path offsetsFile, List<Path> files,
+            Consumer<Scored> listener) throws IOException,
+            IllegalArgumentException {
+
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException ("Invalid File List (There"
+                    + " should be at least one file to follow)");
+        }
+
+        this.offsetsFile = offsetsFile;
+        this.listener = listener;
+        this.savedOffsets = Files.exists(offsetsFile) ?
+                loadOffsets(offsetsFile) : new HashMap<>();
+
+        Set<Path> directories = new HashSet<>();
+        for (Path file : files) {
+            Path path = file.toAbsolutePath().normalize();
+            followed.add(new Followed(path));
+            directories.add(path.getParent());
+        }
+
+        watcher = offsetsFile.getFileSystem().newWatchService();
+        for (Path directory : directories) {
+            if (!Files.isDirectory(directory)) {
+                watcher.close();
+                throw new IllegalArgumentException ("Invalid File (The"
+                        + " directory " + directory + " should exist)");
+            }
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    /**
+     * Follows the files until the follower is closed, then closes them
+     *
+     * @throws IOException a file cannot be read or the offsets cannot be
+     * saved
+     * @throws InterruptedException the following thread was interrupted
+     */
+    public void run () throws IOException, InterruptedException {
+
+        try {
+            watch();
+        } finally {
+            for (Followed file : followed) {
+                if (file.channel != null) {
+                    file.channel.close();
+                    file.channel = null;
+                }
+            }
+        }
+    }
+
+    private void watch () throws IOException, InterruptedException {
+
+        poll(null);
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException stopped) {
+                break;
+            }
+
+            // look only at the files named by the events, or at all of them
+            // when the wait timed out or events were lost
+            Set<Path> changed = null;
+            if (key != null) {
+                changed = new HashSet<>();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        changed = null;
+                        break;
+                    }
+                    changed.add(directory.resolve((Path) event.context()));
+                }
+                key.reset();
+            }
+            if (!closed) {
+                poll(changed);
+            }
+        }
+    }
+
+    /**
+     * Reads and scores whatever has been appended to the files since the
+     * last look, and saves the offsets if anything was read
+     *
+     * @param changed the files to look at; null for all of them
+     * @return the number of records read
+     * @throws IOException a file cannot be read or the offsets cannot be
+     * saved
+     */
+    public long poll (Set<Path> changed) throws IOException {
+
+        long records = 0;
+        boolean moved = false;
+        for (Followed file : followed) {
+            // a rotated file is looked at until it is given up, since it no
+            // longer has a name to be notified about
+            if (changed == null || changed.contains(file.path) ||
+                    file.abandonedAt != 0) {
+                long before = file.position;
+                String identity = file.identity;
+                records += follow(file);
+                moved |= file.position != before ||
+                        !String.valueOf(identity).equals(
+                                String.valueOf(file.identity));
+            }
+        }
+        if (moved) {
+            saveOffsets();
+        }
+
+        return (records);
+    }
+
+    /**
+     * Catches up with one file, opening it or following its rotation as
+     * needed
+     */
+    private long follow (Followed file) throws IOException {
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.path,
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException gone) {
+            // rotated away and not replaced yet: finish the old file
+            attributes = null;
+        }
+        String identity = attributes == null ? null :
+                identityOf(attributes);
+
+        long records = 0;
+        if (file.channel != null && !file.identity.equals(identity)) {
+            // rotated: keep reading complete lines from the old file until
+            // it has stopped growing, in case its writer still has it open
+            records += readLines(file, false);
+            long size = file.channel.size();
+            long now = System.currentTimeMillis();
+            if (file.abandonedAt == 0 || size != file.abandonedSize) {
+                file.abandonedAt = now;
+                file.abandonedSize = size;
+                return (records);
+            }
+            if (now - file.abandonedAt < ROTATION_GRACE_MILLIS) {
+                return (records);
+            }
+            records += readLines(file, true);
+            file.channel.close();
+            file.channel = null;
+            file.abandonedAt = 0;
+        }
+        if (attributes == null) {
+            return (records);
+        }
+
+        if (file.channel == null) {
+            file.channel = FileChannel.open(file.path,
+                    StandardOpenOption.READ);
+            file.identity = identity;
+            String[] saved = savedOffsets.remove(file.path);
+            file.position = saved != null && saved[0].equals(identity) ?
+                    Long.parseLong(saved[1]) : 0;
+        }
+        if (file.channel.size() < file.position) {
+            // truncated in place
+            file.position = 0;
+        }
+
+        return (records + readLines(file, false));
+    }
+
+    /**
+     * Reads and scores the complete lines after a file's position
+     *
+     * @param finished the file will not grow any more, so a last line without
+     * a newline is complete
+     */
+    private long readLines (Followed file, boolean finished)
+            throws IOException {
+
+        long records = 0;
+        while (true) {
+            buffer.clear();
+            int count = file.channel.read(buffer, file.position);
+            if (count <= 0) {
+                break;
+            }
+
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                if (bytes[i] == '\n') {
+                    records += score(file, start, i);
+                    start = i + 1;
+                }
+            }
+            if (finished && start < count && count < buffer.capacity()) {
+                records += score(file, start, count);
+                start = count;
+            }
+            file.position += start;
+
+            if (start == 0) {
+                if (count < buffer.capacity()) {
+                    // an unfinished line; wait for the rest
+                    break;
+                }
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+
+        return (records);
+    }
+
+    /**
+     * Scores the line held in the buffer from start up to end
+     */
+    private int score (Followed file, int start, int end) {
+
+        if (end > start && buffer.array()[end - 1] == '\r') {
+            end--;
+        }
+        String line = new String(buffer.array(), start, end - start,
+                StandardCharsets.UTF_8);
+        if (!PatientRecordFormat.isRecord(line)) {
+            return (0);
+        }
+
+        long offset = file.position + start;
+        Scored scored;
+        try {
+            PatientRecordFormat.parse(line, model);
+            scored = new Scored(file.path, offset, line,
+                    model.getProbabilityOfMortality(), null);
+        } catch (IllegalArgumentException notValid) {
+            scored = new Scored(file.path, offset, line, Double.NaN,
+                    notValid.getMessage());
+        }
+        listener.accept(scored);
+
+        return (1);
+    }
+
+    /**
+     * Tells files apart across renames, by inode where there is one
+     */
+    private static String identityOf (BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return (key != null ? key.toString() :
+                "created " + attributes.creationTime().toMillis());
+    }
+
+    /**
+     * Writes the offsets durably and atomically
+     */
+    private void saveOffsets () throws IOException {
+
+        Path temporary = offsetsFile.resolveSibling(offsetsFile.getFileName()
+                + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                BufferedWriter out = new BufferedWriter(
+                        Channels.newWriter(channel,
+                                StandardCharsets.UTF_8.newEncoder(), -1))) {
+            out.write(FILE_HEADER + "\n");
+            for (Followed file : followed) {
+                if (file.channel != null) {
+                    out.write(file.position + "\t" + file.identity + "\t" +
+                            file.path + "\n");
+                }
+            }
+            // keep offsets of files not seen yet in this run
+            for (Map.Entry<Path, String[]> saved : savedOffsets.entrySet()) {
+                out.write(saved.getValue()[1] + "\t" + saved.getValue()[0] +
+                        "\t" + saved.getKey() + "\n");
+            }
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(temporary, offsetsFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads offsets written by saveOffsets
+     *
+     * @return identity and offset by file
+     */
+    private static Map<Path, String[]> loadOffsets (Path file)
+            throws IOException {
+
+        Map<Path, String[]> offsets = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+
+            if (!FILE_HEADER.equals(in.readLine())) {
+                throw new IOException ("Not a follow offsets file: " + file);
+            }
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                try {
+                    if (fields.length != 3 ||
+                            Long.parseLong(fields[0]) < 0) {
+                        throw new NumberFormatException ();
+                    }
+                } catch (NumberFormatException notAnOffset) {
+                    throw new IOException ("Invalid offset line in " + file
+                            + ": " + line);
+                }
+                offsets.put(Paths.get(fields[2]),
+                        new String[] {fields[1], fields[0]});
+            }
+        }
+
+        return (offsets);
+    }
+
+    /**
+     * Stops following; run returns after its current look. May be called
+     * from any thread.
+     */
+    @Override
+    public void close () throws IOException {
+        closed = true;
+        watcher.close();
+    }
+
+    /**
+     * @param args the offsets file and the patient files to follow
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2) {
+            System.err.println("Usage: FileFollower <offsets file>"
+                    + " <patient file> ...");
+            System.exit(2);
+        }
+
+        PrintStream out = System.out;
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            files.add(Paths.get(args[i]));
+        }
+
+        try {
+            FileFollower follower = new FileFollower(Paths.get(args[0]),
+                    files, scored -> {
+                        out.println(scored.getFile().getFileName() + "\t" +
+                                scored.getOffset() + "\t" +
+                                scored.getProbability());
+                        if (!scored.isValid()) {
+                            System.err.println(scored.getFile().getFileName()
+                                    + " at " + scored.getOffset() + ": " +
+                                    scored.getError());
+                        }
+                    });
+            follower.run();
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException failure) {
+            System.err.println("Follow failed: " + failure.getMessage());
+            System.exit(1);
+        } catch (InterruptedException interrupted) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * Scores a FloatPatientBatch in single precision, for screening-scale runs:
+ * the same column sweeps as BatchScorer, with float coefficients, columns and
+ * links, so a vector register holds twice as many patients. Only the final
+ * exponential is taken in double, as Math has no float version, and rounded
+ * back.
+ *
+ * A float holds about seven significant digits, so links and probabilities
+ * differ from the double path in roughly the seventh digit. A patient whose
+ * probability lies that close to a risk band threshold may land in the other
+ * band; DifferentialHarness measures both.
+ *
+ * A scorer holds no per-batch state, so one scorer can be shared by any
+ * number of threads.
+ *
+ * @author okama
+ */
+public class FloatBatchScorer {
+
+    // the coefficients used for scoring
+    private final ModelCoefficients coefficients;
+    // the intercept, rounded to float
+    private final float intercept;
+    // coefficient sum of each categorical option, [variable][option]
+    private final float[][] catOptionTable;
+    // coefficient of each continuous variable
+    private final float[] contCoefficients;
+
+    /**
+     * The constructor for the FloatBatchScorer class
+     *
+     * @param coefficients the coefficients to score with, rounded to float
+     */
+    public FloatBatchScorer (ModelCoefficients coefficients) {
+
+        this.coefficients = coefficients;
+        this.intercept = (float) coefficients.getIntercept();
+
+        double[][] table = coefficients.catOptionTable();
+        this.catOptionTable = new float[table.length][];
+        for (int var = 0; var < table.length; var++) {
+            catOptionTable[var] = new float[table[var].length];
+            for (int option = 0; option < table[var].length; option++) {
+                catOptionTable[var][option] = (float) table[var][option];
+            }
+        }
+
+        this.contCoefficients = new float[ModelCoefficients.NUM_CONT_TERMS];
+        for (int i = 0; i < contCoefficients.length; i++) {
+            contCoefficients[i] = (float) coefficients.getCoefficient(i);
+        }
+    }
+
+    public ModelCoefficients getCoefficients () {
+        return (coefficients);
+    }
+
+    /**
+     * Computes the link value of a range of rows
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the link of row r at index r - from
+     */
+    public void link (FloatPatientBatch batch, int from, int to,
+            float[] links) {
+
+        int n = to - from;
+
+        for (int i = 0; i < n; i++) {
+            links[i] = intercept;
+        }
+
+        for (int var = 0; var < catOptionTable.length; var++) {
+            byte[] column = batch.getCatColumn(var);
+            float[] table = catOptionTable[var];
+            for (int i = 0; i < n; i++) {
+                links[i] += table[column[from + i]];
+            }
+        }
+
+        for (int var = 0; var < contCoefficients.length; var++) {
+            float[] column = batch.getContColumn(var);
+            float coefficient = contCoefficients[var];
+            for (int i = 0; i < n; i++) {
+                links[i] += coefficient * column[from + i];
+            }
+        }
+    }
+
+    /**
+     * Computes the probability of mortality of a range of rows
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the link of row r at index r - from
+     * @param probabilities receives the probability of row r at index r - from;
+     * may be the same array as links
+     */
+    public void score (FloatPatientBatch batch, int from, int to,
+            float[] links, float[] probabilities) {
+
+        link(batch, from, to, links);
+
+        for (int i = 0, n = to - from; i < n; i++) {
+            probabilities[i] = 1f / (1f + (float) Math.exp(-links[i]));
+        }
+    }
+}
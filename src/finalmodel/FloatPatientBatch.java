@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * A batch of patients stored column by column in single precision, for the
+ * screening path of FloatBatchScorer. The columns use the indices of
+ * PatientBatch. A float column takes half the memory of a double column, so
+ * twice as many patients fit in cache and a sweep reads half the bytes.
+ *
+ * Patients are loaded straight from their records by BatchValidator, which
+ * checks every value in double precision before rounding it and keeps only
+ * valid patients, or narrowed from a PatientBatch that has already been
+ * validated. The column accessors hand out the arrays themselves; only the
+ * first size() entries are meaningful.
+ *
+ * @author okama
+ */
+public class FloatPatientBatch {
+
+    // the continuous columns, indexed [variable][row]
+    private final float[][] contColumns;
+    // the categorical columns, indexed [variable][row]
+    private final byte[][] catColumns;
+    // number of rows in use
+    private int size = 0;
+
+    /**
+     * The constructor for the FloatPatientBatch class
+     *
+     * @param capacity the largest number of patients the batch can hold
+     * @throws IllegalArgumentException the capacity must be positive
+     */
+    public FloatPatientBatch (int capacity) throws IllegalArgumentException {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException ("Invalid Batch Capacity"
+                    + " (Capacity should be positive)");
+        }
+
+        contColumns = new float[TBIModel.NUM_CONT_VARIABLES][capacity];
+        catColumns = new byte[TBIModel.NUM_DIS_VARIABLES][capacity];
+    }
+
+    public int size () {
+        return (size);
+    }
+
+    public int capacity () {
+        return (contColumns[0].length);
+    }
+
+    public boolean isFull () {
+        return (size == capacity());
+    }
+
+    /**
+     * Sets the number of rows in use, for code that fills the columns
+     * directly
+     *
+     * @param newSize the number of rows in use
+     * @throws IllegalArgumentException the size must be between 0 and the
+     * capacity
+     */
+    public void setSize (int newSize) throws IllegalArgumentException {
+        if (newSize < 0 || newSize > capacity()) {
+            throw new IllegalArgumentException ("Invalid Batch Size");
+        }
+        size = newSize;
+    }
+
+    /**
+     * Empties the batch; the column arrays are kept for reuse
+     */
+    public void clear () {
+        size = 0;
+    }
+
+    /**
+     * Replaces the contents of this batch with the rows of a double batch,
+     * rounding every continuous value to the nearest float
+     *
+     * @param batch the patients to copy
+     * @throws IllegalArgumentException the patients do not fit in this batch
+     */
+    public void narrow (PatientBatch batch) throws IllegalArgumentException {
+
+        int n = batch.size();
+        if (n > capacity()) {
+            throw new IllegalArgumentException ("Invalid Batch Size (Batch"
+                    + " should hold at most " + capacity() + " patients)");
+        }
+
+        for (int var = 0; var < contColumns.length; var++) {
+            double[] from = batch.getContColumn(var);
+            float[] to = contColumns[var];
+            for (int i = 0; i < n; i++) {
+                to[i] = (float) from[i];
+            }
+        }
+        for (int var = 0; var < catColumns.length; var++) {
+            System.arraycopy(batch.getCatColumn(var), 0, catColumns[var], 0,
+                    n);
+        }
+
+        size = n;
+    }
+
+    /**
+     * Accessor method for a continuous column
+     *
+     * @param i the index of the continuous variable e.g.
+     * PatientBatch.GCS_INDEX
+     * @return the column array itself, indexed by row
+     */
+    public float[] getContColumn (int i) {
+        return (contColumns[i]);
+    }
+
+    /**
+     * Accessor method for a categorical column
+     *
+     * @param i the index of the categorical variable e.g.
+     * PatientBatch.RACE_INDEX
+     * @return the column array itself, indexed by row; each entry is the index
+     * of the selected option
+     */
+    public byte[] getCatColumn (int i) {
+        return (catColumns[i]);
+    }
+}
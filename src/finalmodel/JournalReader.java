@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads back the segments written by PredictionJournal, in sequence order.
+ * Can be run on its own to dump or verify a journal:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.JournalReader &lt;journal dir&gt; [--verify]
+ * </pre>
+ * With --verify every record is re-scored with the current model and any
+ * record whose stored probability differs is reported.
+ *
+ * @author okama
+ */
+public class JournalReader {
+
+    // the directory holding the segment files
+    private final Path directory;
+
+    /**
+     * The constructor for the JournalReader class
+     *
+     * @param directory the directory holding the segment files
+     */
+    public JournalReader (Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Passes every intact record of the journal to the handler, oldest first.
+     * Reading a segment stops at its end marker or at the first torn record.
+     *
+     * @param handler receives each record
+     * @return the number of records read
+     * @throws IOException a segment cannot be read or is not a journal segment
+     */
+    public long replay (Consumer<JournalRecord> handler) throws IOException {
+
+        long count = 0;
+
+        for (Path file : listSegments(directory)) {
+
+            MappedByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            }
+
+            readSegmentHeader(segment, file);
+
+            JournalRecord record;
+            while ((record = JournalRecord.readFrom(segment)) != null) {
+                handler.accept(record);
+                count++;
+            }
+        }
+
+        return (count);
+    }
+
+    /**
+     * Lists the segment files of a journal in sequence order
+     *
+     * @param directory the directory holding the segment files
+     * @return the segment files, oldest first; empty if there are none
+     * @throws IOException the directory cannot be listed
+     */
+    static List<Path> listSegments (Path directory) throws IOException {
+
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return (segments);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                "*" + PredictionJournal.SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+
+        // names are zero padded base sequence numbers, so they sort in order
+        Collections.sort(segments);
+
+        return (segments);
+    }
+
+    /**
+     * Checks the header of a segment and positions the buffer after it
+     *
+     * @param segment the mapped segment
+     * @param file the segment file, for error messages
+     * @return the sequence number of the first record in the segment
+     * @throws IOException the file is not a journal segment
+     */
+    static long readSegmentHeader (ByteBuffer segment, Path file)
+            throws IOException {
+
+        if (segment.remaining() < PredictionJournal.SEGMENT_HEADER_SIZE ||
+                segment.getInt() != PredictionJournal.SEGMENT_MAGIC) {
+            throw new IOException ("Not a prediction journal segment: " + file);
+        }
+
+        int version = segment.getInt();
+        if (version != PredictionJournal.SEGMENT_FORMAT_VERSION) {
+            throw new IOException ("Unsupported journal format version "
+                    + version + ": " + file);
+        }
+
+        return (segment.getLong());
+    }
+
+    /**
+     * @param args the journal directory, optionally followed by --verify
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 1 || args.length > 2 ||
+                (args.length == 2 && !args[1].equals("--verify"))) {
+            System.err.println("Usage: JournalReader <journal dir> [--verify]");
+            System.exit(2);
+        }
+
+        final boolean verify = args.length == 2;
+        final long[] mismatches = {0};
+        final String currentVersion = new TBIModel().getModelVersion();
+
+        try {
+
+            long count = new JournalReader(Paths.get(args[0])).replay(record -> {
+
+                if (!verify) {
+                    System.out.println(record.toString());
+                    return;
+                }
+
+                try {
+                    double rescored = record.toModel().getProbabilityOfMortality();
+                    if (rescored != record.getProbabilityOfMortality()) {
+                        mismatches[0]++;
+                        System.out.println("MISMATCH " + record.getSequence()
+                                + " (model " + record.getModelVersion()
+                                + "): recorded "
+                                + record.getProbabilityOfMortality()
+                                + ", current model " + currentVersion + " gives "
+                                + rescored);
+                    }
+                } catch (IllegalArgumentException invalidInput) {
+                    mismatches[0]++;
+                    System.out.println("INVALID " + record.getSequence() + ": "
+                            + invalidInput.getMessage());
+                }
+            });
+
+            if (verify) {
+                System.out.println(count + " records, " + mismatches[0]
+                        + " mismatches");
+            }
+
+        } catch (IOException unreadable) {
+            System.err.println("Cannot read journal: " + unreadable.getMessage());
+            System.exit(1);
+        }
+    }
+}
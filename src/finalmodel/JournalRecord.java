@@ -0,0 +1,299 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A single prediction as stored in the prediction journal. Records are
+ * immutable and know how to encode and decode themselves so that the binary
+ * layout lives in one place.
+ *
+ * Layout of an encoded record (big endian):
+ * <pre>
+ *   int     body length
+ *   int     crc32 of body
+ *   body:
+ *   long    sequence number
+ *   long    timestamp (milliseconds since epoch)
+ *   byte    length of model version, followed by its UTF-8 bytes
+ *   byte[5] selected option of each categorical variable
+ *   double[8] continuous variable values
+ *   double  link
+ *   double  probability of mortality
+ * </pre>
+ * A body length of 0 marks the end of the written part of a segment.
+ *
+ * @author okama
+ */
+public final class JournalRecord {
+
+    // bytes taken by the length and crc fields in front of each body
+    static final int FRAME_HEADER_SIZE = 8;
+
+    // size of the body without the model version bytes
+    private static final int FIXED_BODY_SIZE = 8 + 8 + 1 +
+            TBIModel.NUM_DIS_VARIABLES + 8 * TBIModel.NUM_CONT_VARIABLES + 8 + 8;
+
+    // used only to look up the option names of categorical variables
+    private static final TBIModel OPTIONS = new TBIModel();
+
+    private final long sequence;
+    private final long timestamp;
+    private final String modelVersion;
+    // categorical selections in TBIModel.getIthCatVarOptions order
+    private final byte[] catSelections;
+    // continuous values in the same order as the ModelUI text fields:
+    // age, ais severity, gcs, iss, sbp, pulse, body temp, oxygen saturation
+    private final double[] contValues;
+    private final double link;
+    private final double probability;
+
+    private JournalRecord (long sequence, long timestamp, String modelVersion,
+            byte[] catSelections, double[] contValues, double link,
+            double probability) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.modelVersion = modelVersion;
+        this.catSelections = catSelections;
+        this.contValues = contValues;
+        this.link = link;
+        this.probability = probability;
+    }
+
+    /**
+     * Captures the inputs of a model and the prediction made from them. The
+     * prediction is passed in rather than recomputed, so the record holds
+     * exactly what the caller reported.
+     *
+     * @param sequence the journal sequence number of the record
+     * @param timestamp the time of the prediction in milliseconds since epoch
+     * @param model the model holding the inputs
+     * @param link the link value of the prediction
+     * @param probability the predicted probability of mortality
+     * @return the new record
+     */
+    static JournalRecord of (long sequence, long timestamp, TBIModel model,
+            double link, double probability) {
+
+        byte[] cat = new byte[TBIModel.NUM_DIS_VARIABLES];
+        for (int i = 0; i < cat.length; i++) {
+            cat[i] = (byte) model.getIthCatVarSelection(i);
+        }
+
+        double[] cont = {
+            model.getAge(),
+            model.getAISSev(),
+            model.getGCS(),
+            model.getISS(),
+            model.getSBP(),
+            model.getPulseRate(),
+            model.getBodyTemp(),
+            model.getOxySat()
+        };
+
+        return (new JournalRecord(sequence, timestamp, model.getModelVersion(),
+                cat, cont, link, probability));
+    }
+
+    /**
+     * @param newSequence the sequence number of the copy
+     * @return a copy of this record carrying another sequence number
+     */
+    JournalRecord withSequence (long newSequence) {
+        return (new JournalRecord(newSequence, timestamp, modelVersion,
+                catSelections, contValues, link, probability));
+    }
+
+    public long getSequence () {
+        return (sequence);
+    }
+
+    public long getTimestamp () {
+        return (timestamp);
+    }
+
+    public String getModelVersion () {
+        return (modelVersion);
+    }
+
+    public double getLink () {
+        return (link);
+    }
+
+    public double getProbabilityOfMortality () {
+        return (probability);
+    }
+
+    /**
+     * Rebuilds a model from the inputs stored in this record. The model is
+     * filled through its set methods, so the usual validation applies.
+     *
+     * @return a new model holding the recorded inputs
+     * @throws IllegalArgumentException a stored input is no longer valid
+     */
+    public TBIModel toModel () throws IllegalArgumentException {
+
+        TBIModel model = new TBIModel();
+
+        model.setGender(model.getIthCatVarOptions(0)[catSelections[0]]);
+        model.setSupplementalOxy(model.getIthCatVarOptions(1)[catSelections[1]]);
+        model.setDrugUse(model.getIthCatVarOptions(2)[catSelections[2]]);
+        model.setRace(model.getIthCatVarOptions(3)[catSelections[3]]);
+        model.setInjuryType(model.getIthCatVarOptions(4)[catSelections[4]]);
+        model.setAge(contValues[0]);
+        model.setAISSev((int) contValues[1]);
+        model.setGCS((int) contValues[2]);
+        model.setISS((int) contValues[3]);
+        model.setSBP(contValues[4]);
+        model.setPulseRate(contValues[5]);
+        model.setBodyTemp(contValues[6]);
+        model.setOxySat(contValues[7]);
+
+        return (model);
+    }
+
+    /**
+     * @return the number of bytes this record takes in a segment, including
+     * the length and crc fields
+     */
+    int encodedLength () {
+        return (FRAME_HEADER_SIZE + FIXED_BODY_SIZE +
+                modelVersion.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Writes the record at the current position of the buffer and advances
+     * the position past it. The body is written before its length so that a
+     * record torn by a crash reads back as the end of the segment.
+     *
+     * @param buffer the buffer to write into; must have encodedLength() bytes
+     * remaining
+     */
+    void writeTo (ByteBuffer buffer) {
+
+        byte[] version = modelVersion.getBytes(StandardCharsets.UTF_8);
+        int start = buffer.position();
+
+        buffer.position(start + FRAME_HEADER_SIZE);
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        buffer.put((byte) version.length);
+        buffer.put(version);
+        buffer.put(catSelections);
+        for (double value : contValues) {
+            buffer.putDouble(value);
+        }
+        buffer.putDouble(link);
+        buffer.putDouble(probability);
+        int end = buffer.position();
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + FRAME_HEADER_SIZE);
+        body.limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, end - start - FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * Reads the record at the current position of the buffer and advances the
+     * position past it
+     *
+     * @param buffer the buffer to read from
+     * @return the record, or null if the end of the written data was reached
+     * or the record at the position is incomplete or corrupt (in which case
+     * the position is left unchanged)
+     */
+    static JournalRecord readFrom (ByteBuffer buffer) {
+
+        int start = buffer.position();
+        if (buffer.remaining() < FRAME_HEADER_SIZE) {
+            return (null);
+        }
+
+        int length = buffer.getInt(start);
+        int storedCrc = buffer.getInt(start + 4);
+        if (length < FIXED_BODY_SIZE ||
+                length > buffer.remaining() - FRAME_HEADER_SIZE) {
+            return (null);
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + FRAME_HEADER_SIZE);
+        body.limit(start + FRAME_HEADER_SIZE + length);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != storedCrc) {
+            return (null);
+        }
+
+        long sequence = body.getLong();
+        long timestamp = body.getLong();
+        byte[] version = new byte[body.get() & 0xFF];
+        body.get(version);
+        byte[] cat = new byte[TBIModel.NUM_DIS_VARIABLES];
+        body.get(cat);
+        double[] cont = new double[TBIModel.NUM_CONT_VARIABLES];
+        for (int i = 0; i < cont.length; i++) {
+            cont[i] = body.getDouble();
+        }
+        double link = body.getDouble();
+        double probability = body.getDouble();
+
+        buffer.position(start + FRAME_HEADER_SIZE + length);
+
+        return (new JournalRecord(sequence, timestamp,
+                new String(version, StandardCharsets.UTF_8), cat, cont, link,
+                probability));
+    }
+
+    /**
+     * Converts the record into a single tab separated line
+     *
+     * @return the stringified version of the record
+     */
+    @Override
+    public String toString () {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append(sequence).append('\t').append(timestamp).append('\t')
+                .append(modelVersion);
+        for (int i = 0; i < catSelections.length; i++) {
+            out.append('\t').append(OPTIONS.getIthCatVarOptions(i)[catSelections[i]]);
+        }
+        for (double value : contValues) {
+            out.append('\t').append(value);
+        }
+        out.append('\t').append(link).append('\t').append(probability);
+
+        return (out.toString());
+    }
+}
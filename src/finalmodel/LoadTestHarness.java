@@ -0,0 +1,507 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a scoring entry point with synthetic patient records and reports
+ * throughput and latency percentiles. Records come from a WorkloadGenerator
+ * and are generated up front, so generation does not count against the
+ * target. Everything runs in-process; nothing is sent over the network.
+ *
+ * Two load models are offered. Closed loop keeps a fixed number of requests
+ * in flight, each client sending its next request as soon as the previous one
+ * returns. Open loop sends requests on a fixed schedule whatever the target's
+ * speed, and measures each latency from when the request was due rather than
+ * when it was sent, so a target that falls behind shows its queueing delay.
+ *
+ * Any entry point that takes one record at a time can be driven by wrapping
+ * it as a ScoringTarget; IN_PROCESS scores through TBIModel directly. The
+ * file based bulk path is measured by runFile.
+ *
+ * @author okama
+ */
+public class LoadTestHarness {
+
+    /**
+     * An entry point that scores one patient record
+     */
+    public interface ScoringTarget {
+
+        /**
+         * Scores a record. Called from many threads at once.
+         *
+         * @param record a record in the format read by PatientRecordFormat
+         * @return the probability of mortality
+         * @throws IllegalArgumentException the record is invalid; counted as
+         * a rejection rather than an error
+         * @throws Exception the target failed
+         */
+        double score (String record) throws Exception;
+    }
+
+    /**
+     * Scores records with a TBIModel per thread
+     */
+    public static final ScoringTarget IN_PROCESS = new ScoringTarget() {
+
+        private final ThreadLocal<TBIModel> models =
+                ThreadLocal.withInitial(TBIModel::new);
+
+        @Override
+        public double score (String record) {
+            TBIModel model = models.get();
+            PatientRecordFormat.parse(record, model);
+            return (model.getProbabilityOfMortality());
+        }
+    };
+
+    /**
+     * A latency histogram with buckets of about 6% width, from nanoseconds up
+     * to the range of a long
+     */
+    static final class LatencyHistogram {
+
+        // bits of precision below the leading bit
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        static int indexOf (long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return ((int) Math.max(0, nanos));
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+        }
+
+        static long lowerBoundOf (int index) {
+            if (index < SUB_BUCKETS) {
+                return (index);
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS));
+        }
+
+        void record (long nanos) {
+            counts[indexOf(nanos)]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void add (LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long getTotal () {
+            return (total);
+        }
+
+        long getMax () {
+            return (max);
+        }
+
+        /**
+         * @param quantile a fraction between 0 and 1
+         * @return the upper edge of the bucket holding the quantile, capped
+         * at the largest recorded latency
+         */
+        long getQuantile (double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (Math.min(max, i + 1 < counts.length ?
+                            lowerBoundOf(i + 1) - 1 : Long.MAX_VALUE));
+                }
+            }
+            return (max);
+        }
+    }
+
+    /**
+     * The tallies of one client thread
+     */
+    private static final class Recorder {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long rejected = 0;
+        private long errors = 0;
+
+        private void call (ScoringTarget target, String record,
+                long startNanos) {
+            try {
+                target.score(record);
+            } catch (IllegalArgumentException invalidRecord) {
+                rejected++;
+            } catch (Exception failure) {
+                errors++;
+            }
+            latencies.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * The outcome of a run
+     */
+    public static final class Report {
+
+        private final String mode;
+        private final long requests;
+        private final long rejected;
+        private final long errors;
+        private final long elapsedNanos;
+        private final LatencyHistogram latencies;
+
+        private Report (String mode, long requests, long rejected, long errors,
+                long elapsedNanos, LatencyHistogram latencies) {
+            this.mode = mode;
+            this.requests = requests;
+            this.rejected = rejected;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        public long getRequests () {
+            return (requests);
+        }
+
+        public long getRejected () {
+            return (rejected);
+        }
+
+        public long getErrors () {
+            return (errors);
+        }
+
+        /**
+         * @return completed requests per second
+         */
+        public double getThroughput () {
+            return (requests * 1e9 / Math.max(1, elapsedNanos));
+        }
+
+        /**
+         * Accessor method for a latency percentile
+         *
+         * @param quantile a fraction between 0 and 1, e.g. 0.99
+         * @return the latency in microseconds; NaN if no latencies were
+         * recorded
+         */
+        public double getLatencyMicros (double quantile) {
+            return (latencies.getTotal() == 0 ? Double.NaN :
+                    latencies.getQuantile(quantile) / 1e3);
+        }
+
+        /**
+         * Converts the report into a table
+         *
+         * @return one tab separated measurement per line
+         */
+        @Override
+        public String toString () {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT, "Mode\t%s%nRequests\t%d%n"
+                    + "Rejected\t%d%nErrors\t%d%nElapsed\t%.3f s%n"
+                    + "Throughput\t%.1f /s%n", mode, requests, rejected,
+                    errors, elapsedNanos / 1e9, getThroughput()));
+            if (latencies.getTotal() > 0) {
+                double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+                for (double quantile : quantiles) {
+                    out.append(String.format(Locale.ROOT, "p%s\t%.1f us%n",
+                            Double.toString(quantile * 100)
+                                    .replaceAll("\\.0$", ""),
+                            getLatencyMicros(quantile)));
+                }
+                out.append(String.format(Locale.ROOT, "max\t%.1f us%n",
+                        latencies.getMax() / 1e3));
+            }
+            return (out.toString());
+        }
+    }
+
+    // the records sent, reused in turn
+    private final String[] records;
+    private final WorkloadGenerator generator;
+
+    /**
+     * The constructor for the LoadTestHarness class
+     *
+     * @param generator the source of the records
+     * @param poolSize the number of distinct records generated up front
+     * @throws IllegalArgumentException the pool must hold at least one record
+     */
+    public LoadTestHarness (WorkloadGenerator generator, int poolSize)
+            throws IllegalArgumentException {
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException ("Invalid Pool Size (There"
+                    + " should be at least one record)");
+        }
+
+        this.generator = generator;
+        records = new String[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            records[i] = generator.nextRecord();
+        }
+    }
+
+    /**
+     * Runs a closed loop test
+     *
+     * @param target the entry point to drive
+     * @param clients the number of requests kept in flight
+     * @param durationMillis how long to run for
+     * @return the report
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public Report runClosedLoop (final ScoringTarget target, final int clients,
+            long durationMillis) throws InterruptedException {
+
+        final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(() -> {
+                Recorder recorder = new Recorder();
+                recorders.add(recorder);
+                int next = client % records.length;
+                long now = System.nanoTime();
+                while (now < end) {
+                    recorder.call(target, records[next], now);
+                    next = (next + clients) % records.length;
+                    now = System.nanoTime();
+                }
+            }, "load-client-" + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return (summarize("closed loop, " + clients + " clients", recorders,
+                System.nanoTime() - start));
+    }
+
+    /**
+     * Runs an open loop test
+     *
+     * @param target the entry point to drive
+     * @param ratePerSecond the number of requests sent per second
+     * @param threads the number of threads sending requests to the target
+     * @param durationMillis how long to send requests for; the run ends once
+     * every request sent has completed
+     * @return the report
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalArgumentException the rate must be positive
+     */
+    public Report runOpenLoop (final ScoringTarget target,
+            double ratePerSecond, int threads, long durationMillis)
+            throws InterruptedException, IllegalArgumentException {
+
+        if (!(ratePerSecond > 0)) {
+            throw new IllegalArgumentException ("Invalid Rate (Rate should be"
+                    + " positive)");
+        }
+
+        final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+        final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+            Recorder created = new Recorder();
+            recorders.add(created);
+            return (created);
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        double intervalNanos = 1e9 / ratePerSecond;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        try {
+            for (long i = 0; ; i++) {
+                final long due = start + (long) (i * intervalNanos);
+                if (due >= end) {
+                    break;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException ();
+                    }
+                }
+                final String record = records[(int) (i % records.length)];
+                pool.execute(() -> recorder.get().call(target, record, due));
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return (summarize(String.format(Locale.ROOT, "open loop, %.0f/s",
+                ratePerSecond), recorders, System.nanoTime() - start));
+    }
+
+    /**
+     * Measures the file based bulk path: writes a patient file and
+     * aggregates it with CohortAggregator
+     *
+     * @param rows the number of records in the file
+     * @param directory where the temporary file is written
+     * @param threads the number of aggregator threads
+     * @return the report; there are no per-request latencies
+     * @throws IOException the file cannot be written or read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException an aggregator worker failed
+     */
+    public Report runFile (long rows, Path directory, int threads)
+            throws IOException, InterruptedException {
+
+        Path file = Files.createTempFile(directory, "load-test", ".csv");
+        try {
+            generator.write(file, rows);
+            CohortAggregator aggregator = new CohortAggregator(
+                    new TBIModel().getCoefficients(),
+                    EnumSet.noneOf(CohortAggregator.Dimension.class),
+                    CohortAggregator.DEFAULT_AGE_BANDS, threads);
+
+            long start = System.nanoTime();
+            CohortAggregator.Result result = aggregator.aggregate(file);
+            long elapsed = System.nanoTime() - start;
+
+            long scored = 0;
+            for (int g = 0; g < result.getNumGroups(); g++) {
+                scored += result.getCount(g);
+            }
+
+            return (new Report("file, " + threads + " threads",
+                    scored + result.getRejected(),
+                    result.getRejected(), 0, elapsed,
+                    new LatencyHistogram()));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Report summarize (String mode, List<Recorder> recorders,
+            long elapsedNanos) {
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long rejected = 0;
+        long errors = 0;
+        for (Recorder recorder : recorders) {
+            latencies.add(recorder.latencies);
+            rejected += recorder.rejected;
+            errors += recorder.errors;
+        }
+
+        return (new Report(mode, latencies.getTotal(), rejected, errors,
+                elapsedNanos, latencies));
+    }
+
+    /**
+     * Runs a load test against the in-process scorer or the file path
+     *
+     * @param args "closed" clients seconds, "open" rate threads seconds, or
+     * "file" rows, optionally followed by the fraction of invalid records
+     */
+    public static void main (String[] args) {
+
+        int required = args.length == 0 ? 0 : (args[0].equals("closed") ? 3 :
+                (args[0].equals("open") ? 4 : (args[0].equals("file") ? 2 : 0)));
+        if (required == 0 || args.length < required ||
+                args.length > required + 1) {
+            System.err.println("Usage: LoadTestHarness closed <clients>"
+                    + " <seconds> [invalid rate]\n       LoadTestHarness open"
+                    + " <rate/s> <threads> <seconds> [invalid rate]\n"
+                    + "       LoadTestHarness file <rows> [invalid rate]");
+            System.exit(2);
+        }
+
+        try {
+            WorkloadGenerator generator = new WorkloadGenerator(1);
+            if (args.length > required) {
+                generator.setInvalidRate(Double.parseDouble(args[required]));
+            }
+            LoadTestHarness harness = new LoadTestHarness(generator, 1 << 16);
+            Report report;
+
+            switch (args[0]) {
+                case "closed":
+                    report = harness.runClosedLoop(IN_PROCESS,
+                            Integer.parseInt(args[1]),
+                            (long) (Double.parseDouble(args[2]) * 1000));
+                    break;
+                case "open":
+                    report = harness.runOpenLoop(IN_PROCESS,
+                            Double.parseDouble(args[1]),
+                            Integer.parseInt(args[2]),
+                            (long) (Double.parseDouble(args[3]) * 1000));
+                    break;
+                default:
+                    report = harness.runFile(Long.parseLong(args[1]),
+                            Paths.get(System.getProperty("java.io.tmpdir")),
+                            Runtime.getRuntime().availableProcessors());
+                    break;
+            }
+
+            System.out.print(report);
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException |
+                IllegalStateException failure) {
+            System.err.println("Load test failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits the coefficients of the TBI model (an intercept and the 18 terms of
+ * ModelCoefficients) to a labeled cohort by maximum likelihood, using
+ * iteratively reweighted least squares, i.e. Newton's method on the
+ * logistic log likelihood.
+ *
+ * The cohort is held in memory as columnar PatientBatch chunks, in file
+ * order, and every iteration is one parallel pass over them: each thread
+ * scores its chunks with BatchScorer and accumulates the gradient and the
+ * information matrix (X'WX) of each chunk one column pair at a time, and the
+ * sums of the chunks are added up in file order for the 19 by 19 Newton
+ * step, solved by Cholesky decomposition. Floating point addition is not
+ * associative, so the fixed order is what makes a fit reproducible, whatever
+ * the number of threads or the order they finish in.
+ *
+ * A step that would increase the deviance is halved. If it still does after
+ * MAX_HALVINGS halvings, the fit stops at the previous coefficients and is
+ * reported as not converged. The standard error of every coefficient comes
+ * from the inverse of the final information matrix.
+ *
+ * Run from the command line on a labeled cohort (see PatientRecordFormat)
+ * to write a coefficient set that ModelCoefficients.load can read:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.LogisticTrainer &lt;cohort&gt; &lt;coefficients&gt; [version] [threads]
+ * </pre>
+ *
+ * @author okama
+ */
+public class LogisticTrainer {
+
+    // default limit on Newton iterations
+    public static final int DEFAULT_MAX_ITERATIONS = 25;
+
+    // default convergence tolerance on the relative change in deviance
+    public static final double DEFAULT_TOLERANCE = 1e-10;
+
+    // the intercept and one coefficient per term
+    private static final int NUM_PARAMETERS = ModelCoefficients.NUM_TERMS + 1;
+
+    // rows per chunk of the cohort
+    private static final int CHUNK_SIZE = 4096;
+
+    // halvings of a Newton step before the fit gives up
+    private static final int MAX_HALVINGS = 20;
+
+    /**
+     * The outcome of a fit
+     */
+    public static final class Fit {
+
+        private final ModelCoefficients coefficients;
+        private final double[] standardErrors;
+        private final int iterations;
+        private final boolean converged;
+        private final double deviance;
+        private final double nullDeviance;
+        private final long rows;
+        private final long deaths;
+        private final long rejected;
+
+        private Fit (ModelCoefficients coefficients, double[] standardErrors,
+                int iterations, boolean converged, double deviance,
+                double nullDeviance, long rows, long deaths, long rejected) {
+            this.coefficients = coefficients;
+            this.standardErrors = standardErrors;
+            this.iterations = iterations;
+            this.converged = converged;
+            this.deviance = deviance;
+            this.nullDeviance = nullDeviance;
+            this.rows = rows;
+            this.deaths = deaths;
+            this.rejected = rejected;
+        }
+
+        public ModelCoefficients getCoefficients () {
+            return (coefficients);
+        }
+
+        /**
+         * Accessor method for the standard error of the intercept
+         *
+         * @return the standard error
+         */
+        public double getInterceptStandardError () {
+            return (standardErrors[0]);
+        }
+
+        /**
+         * Accessor method for the standard error of a coefficient
+         *
+         * @param term the index of the term
+         * @return the standard error of its coefficient
+         */
+        public double getStandardError (int term) {
+            return (standardErrors[term + 1]);
+        }
+
+        public int getIterations () {
+            return (iterations);
+        }
+
+        public boolean isConverged () {
+            return (converged);
+        }
+
+        /**
+         * @return the residual deviance, -2 times the log likelihood
+         */
+        public double getDeviance () {
+            return (deviance);
+        }
+
+        /**
+         * @return the deviance of the intercept-only model
+         */
+        public double getNullDeviance () {
+            return (nullDeviance);
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        public long getDeaths () {
+            return (deaths);
+        }
+
+        public long getRejected () {
+            return (rejected);
+        }
+
+        /**
+         * Converts the fit into a table
+         *
+         * @return one tab separated line per coefficient, then the fit
+         * statistics
+         */
+        @Override
+        public String toString () {
+            StringBuilder out = new StringBuilder();
+            out.append("Term\tCoefficient\tStd. Error\tz\n");
+            appendRow(out, "Intercept", coefficients.getIntercept(),
+                    standardErrors[0]);
+            for (int t = 0; t < ModelCoefficients.NUM_TERMS; t++) {
+                appendRow(out, ModelCoefficients.getTermName(t),
+                        coefficients.getCoefficient(t), standardErrors[t + 1]);
+            }
+            out.append(String.format(Locale.ROOT, "%nRows\t%d%nDeaths\t%d%n"
+                    + "Rejected\t%d%nIterations\t%d%nConverged\t%b%n"
+                    + "Deviance\t%.4f%nNull deviance\t%.4f%n", rows, deaths,
+                    rejected, iterations, converged, deviance, nullDeviance));
+            return (out.toString());
+        }
+
+        private static void appendRow (StringBuilder out, String name,
+                double coefficient, double standardError) {
+            out.append(String.format(Locale.ROOT, "%s\t%.7f\t%.7f\t%.2f%n",
+                    name, coefficient, standardError,
+                    coefficient / standardError));
+        }
+    }
+
+    /**
+     * The sums of one pass over part of the cohort
+     */
+    private static final class Partial {
+
+        private final double[] gradient = new double[NUM_PARAMETERS];
+        // upper triangle used, [row][column] with row <= column
+        private final double[][] information =
+                new double[NUM_PARAMETERS][NUM_PARAMETERS];
+        private double deviance = 0;
+
+        private void merge (Partial other) {
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                gradient[j] += other.gradient[j];
+                for (int k = j; k < NUM_PARAMETERS; k++) {
+                    information[j][k] += other.information[j][k];
+                }
+            }
+            deviance += other.deviance;
+        }
+    }
+
+    private final int threads;
+    private final BatchValidator validator = new BatchValidator();
+
+    // the cohort: valid rows only, with the outcome of each row
+    private final List<PatientBatch> chunks = new ArrayList<>();
+    private final List<byte[]> outcomes = new ArrayList<>();
+    private long rows = 0;
+    private long deaths = 0;
+    private long rejected = 0;
+
+    /**
+     * The constructor for the LogisticTrainer class
+     *
+     * @param threads the number of threads loading and fitting
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public LogisticTrainer (int threads) throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Adds the patients of a labeled cohort file. Records that are invalid,
+     * or have no valid outcome, are counted as rejected and left out.
+     *
+     * @param file the labeled cohort, plain or gzip compressed
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public void load (Path file) throws IOException, InterruptedException {
+
+        final ChunkPipeline lines = new ChunkPipeline(threads, CHUNK_SIZE);
+        // the chunks of this file by their place in it; the workers finish
+        // them in any order
+        final Map<Integer, PatientBatch> batches = new TreeMap<>();
+        final Map<Integer, byte[]> labels = new TreeMap<>();
+        lines.run(file, () -> loadChunks(lines, batches, labels),
+                "Training worker failed");
+
+        for (Map.Entry<Integer, PatientBatch> loaded : batches.entrySet()) {
+            chunks.add(loaded.getValue());
+            outcomes.add(labels.get(loaded.getKey()));
+        }
+    }
+
+    /**
+     * Parses and validates chunks of lines until the end of the input,
+     * keeping each chunk's valid rows and outcomes under its place in the
+     * input
+     *
+     * @return the number of chunks loaded
+     */
+    private int loadChunks (ChunkPipeline lines,
+            Map<Integer, PatientBatch> batches, Map<Integer, byte[]> labels)
+            throws InterruptedException {
+
+        int[] masks = new int[CHUNK_SIZE];
+        int[] validRows = new int[CHUNK_SIZE];
+        byte[] rowLabels = new byte[CHUNK_SIZE];
+        int loaded = 0;
+
+        ChunkPipeline.Chunk numbered;
+        while ((numbered = lines.takeNumbered()) != null) {
+
+            List<String> chunk = numbered.getRecords();
+            PatientBatch batch = new PatientBatch(chunk.size());
+            for (String line : chunk) {
+                int row = batch.size();
+                int outcome;
+                try {
+                    outcome = PatientRecordFormat.getOutcome(line);
+                } catch (IllegalArgumentException noOutcome) {
+                    // counted as a malformed record
+                    outcome = -1;
+                }
+                masks[row] = validator.load(
+                        PatientRecordFormat.withoutOutcome(line), batch);
+                if (outcome < 0) {
+                    masks[row] |= BatchValidator.MALFORMED_BIT;
+                }
+                rowLabels[row] = (byte) Math.max(outcome, 0);
+            }
+
+            int valid = validator.validate(batch, 0, batch.size(), masks,
+                    validRows);
+            byte[] kept = new byte[valid];
+            int died = 0;
+            for (int i = 0; i < valid; i++) {
+                kept[i] = rowLabels[validRows[i]];
+                died += kept[i];
+            }
+            int size = batch.size();
+            batch.retain(validRows, valid);
+
+            synchronized (this) {
+                if (valid > 0) {
+                    batches.put(numbered.getIndex(), batch);
+                    labels.put(numbered.getIndex(), kept);
+                }
+                rows += valid;
+                deaths += died;
+                rejected += size - valid;
+            }
+            loaded++;
+        }
+
+        return (loaded);
+    }
+
+    public long getRows () {
+        return (rows);
+    }
+
+    public long getDeaths () {
+        return (deaths);
+    }
+
+    /**
+     * Fits the model to the patients added so far
+     *
+     * @param version the version tag of the fitted coefficient set
+     * @param maxIterations the largest number of Newton steps
+     * @param tolerance the relative change in deviance at which the fit has
+     * converged
+     * @return the fit
+     * @throws IllegalStateException the cohort is empty, has a single
+     * outcome, or does not vary in some term
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public Fit fit (String version, int maxIterations, double tolerance)
+            throws IllegalStateException, InterruptedException {
+
+        if (deaths == 0 || deaths == rows) {
+            throw new IllegalStateException ("Cohort should have both deaths"
+                    + " and survivors");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try {
+
+            // start from the intercept-only model
+            double[] beta = new double[NUM_PARAMETERS];
+            beta[0] = Math.log((double) deaths / (rows - deaths));
+
+            Partial current = pass(pool, beta);
+            double nullDeviance = current.deviance;
+            int iterations = 0;
+            boolean converged = false;
+
+            while (iterations < maxIterations && !converged) {
+
+                double[] step = solve(cholesky(current.information),
+                        current.gradient);
+
+                double[] candidate = new double[NUM_PARAMETERS];
+                Partial next = null;
+                double scale = 1;
+                for (int halvings = 0; halvings <= MAX_HALVINGS; halvings++) {
+                    for (int j = 0; j < NUM_PARAMETERS; j++) {
+                        candidate[j] = beta[j] + scale * step[j];
+                    }
+                    next = pass(pool, candidate);
+                    if (next.deviance <= current.deviance) {
+                        break;
+                    }
+                    next = null;
+                    scale /= 2;
+                }
+
+                if (next == null) {
+                    // no step along the Newton direction lowers the
+                    // deviance; keep the last coefficients, not converged
+                    break;
+                }
+
+                iterations++;
+                converged = Math.abs(current.deviance - next.deviance) <=
+                        tolerance * (Math.abs(next.deviance) + 0.1);
+                beta = candidate;
+                current = next;
+            }
+
+            // standard errors from the diagonal of the inverse information
+            double[][] factor = cholesky(current.information);
+            double[] standardErrors = new double[NUM_PARAMETERS];
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                double[] unit = new double[NUM_PARAMETERS];
+                unit[j] = 1;
+                standardErrors[j] = Math.sqrt(solve(factor, unit)[j]);
+            }
+
+            double[] termCoefficients = new double[ModelCoefficients.NUM_TERMS];
+            System.arraycopy(beta, 1, termCoefficients, 0,
+                    termCoefficients.length);
+
+            return (new Fit(new ModelCoefficients(version, beta[0],
+                    termCoefficients), standardErrors, iterations, converged,
+                    current.deviance, nullDeviance, rows, deaths, rejected));
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the deviance, gradient and information matrix at a set of
+     * parameters, splitting the chunks between the threads and adding up
+     * their sums in chunk order
+     */
+    private Partial pass (ExecutorService pool, double[] beta)
+            throws InterruptedException {
+
+        double[] termCoefficients = new double[ModelCoefficients.NUM_TERMS];
+        System.arraycopy(beta, 1, termCoefficients, 0, termCoefficients.length);
+        final BatchScorer scorer = new BatchScorer(new ModelCoefficients(
+                "fit", beta[0], termCoefficients));
+
+        final Partial[] sums = new Partial[chunks.size()];
+        List<Callable<Object>> shares = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            shares.add(() -> {
+                double[][] scratch = new double[4][CHUNK_SIZE];
+                double[][] indicators =
+                        new double[ModelCoefficients.NUM_TERMS][CHUNK_SIZE];
+                for (int c = first; c < chunks.size(); c += threads) {
+                    sums[c] = new Partial();
+                    accumulate(scorer, chunks.get(c), outcomes.get(c),
+                            sums[c], scratch, indicators);
+                }
+                return (null);
+            });
+        }
+
+        for (Future<Object> share : pool.invokeAll(shares)) {
+            getResult(share);
+        }
+
+        Partial total = new Partial();
+        for (Partial sum : sums) {
+            total.merge(sum);
+        }
+
+        return (total);
+    }
+
+    /**
+     * Adds one chunk to a partial sum
+     *
+     * @param scratch four arrays of CHUNK_SIZE: links, weights, residuals
+     * and weighted values of a column
+     * @param indicators room for the values of the indicator terms
+     */
+    private static void accumulate (BatchScorer scorer, PatientBatch batch,
+            byte[] labels, Partial partial, double[][] scratch,
+            double[][] indicators) {
+
+        int n = batch.size();
+        double[] links = scratch[0];
+        double[] weights = scratch[1];
+        double[] residuals = scratch[2];
+        double[] weighted = scratch[3];
+
+        scorer.link(batch, 0, n, links);
+
+        double deviance = 0;
+        for (int i = 0; i < n; i++) {
+            double link = links[i];
+            double p = 1 / (1 + Math.exp(-link));
+            weights[i] = p * (1 - p);
+            residuals[i] = labels[i] - p;
+            // -2 log likelihood, log(1 + e^link) - y * link, without overflow
+            deviance += 2 * (Math.max(link, 0) +
+                    Math.log1p(Math.exp(-Math.abs(link))) - labels[i] * link);
+        }
+        partial.deviance += deviance;
+
+        // the value of every term; the intercept's is 1
+        double[][] terms = new double[NUM_PARAMETERS][];
+        for (int t = 0; t < ModelCoefficients.NUM_TERMS; t++) {
+            if (t < ModelCoefficients.NUM_CONT_TERMS) {
+                terms[t + 1] = batch.getContColumn(t);
+            } else {
+                byte[] column = batch.getCatColumn(
+                        ModelCoefficients.TERM_CAT_VARIABLE[t]);
+                int option = ModelCoefficients.TERM_CAT_OPTION[t];
+                double[] values = indicators[t];
+                for (int i = 0; i < n; i++) {
+                    values[i] = column[i] == option ? 1 : 0;
+                }
+                terms[t + 1] = values;
+            }
+        }
+
+        // intercept row
+        double sumWeights = 0;
+        double sumResiduals = 0;
+        for (int i = 0; i < n; i++) {
+            sumWeights += weights[i];
+            sumResiduals += residuals[i];
+        }
+        partial.information[0][0] += sumWeights;
+        partial.gradient[0] += sumResiduals;
+        for (int k = 1; k < NUM_PARAMETERS; k++) {
+            double[] x = terms[k];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += weights[i] * x[i];
+            }
+            partial.information[0][k] += sum;
+        }
+
+        // the other rows, one weighted column at a time
+        for (int j = 1; j < NUM_PARAMETERS; j++) {
+            double[] xj = terms[j];
+            double gradient = 0;
+            for (int i = 0; i < n; i++) {
+                weighted[i] = weights[i] * xj[i];
+                gradient += residuals[i] * xj[i];
+            }
+            partial.gradient[j] += gradient;
+            for (int k = j; k < NUM_PARAMETERS; k++) {
+                double[] xk = terms[k];
+                double sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += weighted[i] * xk[i];
+                }
+                partial.information[j][k] += sum;
+            }
+        }
+    }
+
+    /**
+     * Factors a symmetric positive definite matrix, given by its upper
+     * triangle, into L L'
+     *
+     * @return L
+     * @throws IllegalStateException the matrix is not positive definite
+     */
+    private static double[][] cholesky (double[][] upper)
+            throws IllegalStateException {
+
+        int n = upper.length;
+        double[][] lower = new double[n][n];
+
+        for (int j = 0; j < n; j++) {
+            double diagonal = upper[j][j];
+            for (int k = 0; k < j; k++) {
+                diagonal -= lower[j][k] * lower[j][k];
+            }
+            if (!(diagonal > 1e-12 * Math.max(1, upper[j][j]))) {
+                throw new IllegalStateException ("Singular information matrix"
+                        + " (" + (j == 0 ? "Intercept" :
+                        ModelCoefficients.getTermName(j - 1)) + " does not"
+                        + " vary independently in the cohort)");
+            }
+            lower[j][j] = Math.sqrt(diagonal);
+            for (int i = j + 1; i < n; i++) {
+                double sum = upper[j][i];
+                for (int k = 0; k < j; k++) {
+                    sum -= lower[i][k] * lower[j][k];
+                }
+                lower[i][j] = sum / lower[j][j];
+            }
+        }
+
+        return (lower);
+    }
+
+    /**
+     * Solves L L' x = b
+     */
+    private static double[] solve (double[][] lower, double[] b) {
+
+        int n = b.length;
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= lower[i][k] * y[k];
+            }
+            y[i] = sum / lower[i][i];
+        }
+
+        double[] x = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = y[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= lower[k][i] * x[k];
+            }
+            x[i] = sum / lower[i][i];
+        }
+
+        return (x);
+    }
+
+    private static <T> T getResult (Future<T> task)
+            throws InterruptedException {
+        try {
+            return (task.get());
+        } catch (ExecutionException failure) {
+            throw new IllegalStateException ("Training worker failed",
+                    failure.getCause());
+        }
+    }
+
+    /**
+     * @param args the labeled cohort, the coefficient file to write, and
+     * optionally the version tag and the number of threads
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: LogisticTrainer <cohort>"
+                    + " <coefficients> [version] [threads]");
+            System.exit(2);
+        }
+
+        try {
+            String version = args.length > 2 ? args[2] : "TMP3-refit";
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) :
+                    Runtime.getRuntime().availableProcessors();
+
+            LogisticTrainer trainer = new LogisticTrainer(threads);
+            long start = System.nanoTime();
+            trainer.load(Paths.get(args[0]));
+            long loaded = System.nanoTime();
+            Fit fit = trainer.fit(version, DEFAULT_MAX_ITERATIONS,
+                    DEFAULT_TOLERANCE);
+            long fitted = System.nanoTime();
+
+            System.out.print(fit);
+            System.out.println(String.format(Locale.ROOT, "Load time\t%.3f s"
+                    + "%nFit time\t%.3f s", (loaded - start) / 1e9,
+                    (fitted - loaded) / 1e9));
+            fit.getCoefficients().save(Paths.get(args[1]));
+            if (!fit.isConverged()) {
+                System.err.println("Warning: the fit did not converge");
+                System.exit(3);
+            }
+        } catch (IOException | InterruptedException |
+                IllegalArgumentException | IllegalStateException failure) {
+            System.err.println("Training failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
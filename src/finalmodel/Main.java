@@ -23,6 +23,9 @@
  */
 package finalmodel;
 
+// only used on the calculator path
+import java.awt.GraphicsEnvironment;
+
 /**
  *
  * @author okama
@@ -34,10 +37,27 @@ public class Main {
     // *************************************************************************
     
     /**
+     * Starts the calculator UI, or with "score" as the first argument scores
+     * patients on the command line (see ScoreCommand). The command line path
+     * never loads AWT or Swing, so it also works on headless machines.
+     * 
      * @param args the command line arguments
      */
     public static void main (String[] args) {
         
+        if (args.length > 0 && args[0].equals("score")) {
+            String[] scoreArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, scoreArgs, 0, scoreArgs.length);
+            ScoreCommand.main(scoreArgs);
+            return;
+        }
+        
+        if (GraphicsEnvironment.isHeadless()) {
+            System.err.println("No display available; use \"score\" to"
+                    + " score patients from the command line");
+            System.exit(2);
+        }
+        
         ModelUI calculatorUI = new ModelUI(".....");
                 
     }
@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * An immutable set of coefficients for the logistic TBI model: an intercept
+ * and one coefficient per term of the linear function. The continuous
+ * variables each give one term; the categorical variables give one indicator
+ * term per option other than their default (female, no, no, african american,
+ * blunt).
+ *
+ * The coefficients of the calculator itself are available from
+ * TBIModel.getCoefficients; refitted sets, e.g. from LogisticTrainer, can be
+ * saved to and loaded from a text file.
+ *
+ * @author okama
+ */
+public final class ModelCoefficients {
+
+    // term indices; the continuous terms use the same order as the
+    // PatientBatch continuous columns
+    public static final int AGE_TERM = 0;
+    public static final int AIS_SEV_TERM = 1;
+    public static final int GCS_TERM = 2;
+    public static final int ISS_TERM = 3;
+    public static final int SBP_TERM = 4;
+    public static final int PULSE_TERM = 5;
+    public static final int BODY_TEMP_TERM = 6;
+    public static final int OXY_SAT_TERM = 7;
+    public static final int MALE_TERM = 8;
+    public static final int DRUG_USE_TERM = 9;
+    public static final int SUPP_OXY_TERM = 10;
+    public static final int WHITE_TERM = 11;
+    public static final int AMER_IND_TERM = 12;
+    public static final int ASIAN_TERM = 13;
+    public static final int PAC_ISLNDR_TERM = 14;
+    public static final int OTHER_RACE_TERM = 15;
+    public static final int OTHER_INJ_TERM = 16;
+    public static final int PEN_INJ_TERM = 17;
+
+    // total number of terms, not counting the intercept
+    public static final int NUM_TERMS = 18;
+
+    // number of leading terms that come from continuous variables
+    public static final int NUM_CONT_TERMS = 8;
+
+    private static final String[] TERM_NAMES = {
+        "Age",
+        "AIS Severity",
+        "Glasgow Coma Score",
+        "Injury Severity Score",
+        "Systolic Blood Pressure",
+        "Pulse Rate",
+        "Body Temperature",
+        "Blood Oxygen Saturation",
+        "Male",
+        "Drug Use",
+        "Supplemental Oxygen",
+        "White",
+        "American Indian",
+        "Asian",
+        "Pacific Islander",
+        "Other Race",
+        "Other Injury Type",
+        "Penetrating Injury"
+    };
+
+    // for each indicator term, the categorical variable it belongs to
+    // (PatientBatch categorical column) and the option that sets it;
+    // -1 for continuous terms
+    static final int[] TERM_CAT_VARIABLE = {
+        -1, -1, -1, -1, -1, -1, -1, -1,
+        PatientBatch.GENDER_INDEX,
+        PatientBatch.DRUG_USE_INDEX,
+        PatientBatch.SUPP_OXY_INDEX,
+        PatientBatch.RACE_INDEX,
+        PatientBatch.RACE_INDEX,
+        PatientBatch.RACE_INDEX,
+        PatientBatch.RACE_INDEX,
+        PatientBatch.RACE_INDEX,
+        PatientBatch.INJ_TYPE_INDEX,
+        PatientBatch.INJ_TYPE_INDEX
+    };
+    static final int[] TERM_CAT_OPTION = {
+        -1, -1, -1, -1, -1, -1, -1, -1,
+        1, //male
+        1, //yes
+        1, //yes
+        1, //white
+        2, //american indian
+        3, //asian
+        4, //pacific islander
+        5, //other race
+        2, //other injury type
+        1  //penetrating
+    };
+
+    // first line of a saved coefficient set
+    private static final String FILE_HEADER = "# TMP3 model coefficients";
+
+    // the version tag of the coefficient set
+    private final String version;
+    // the intercept of the linear function
+    private final double intercept;
+    // coefficient of each term
+    private final double[] coefficients;
+
+    /**
+     * The constructor for the ModelCoefficients class
+     *
+     * @param version the version tag of the coefficient set
+     * @param intercept the intercept of the linear function
+     * @param coefficients the coefficient of each term, in term index order
+     * @throws IllegalArgumentException there must be one finite coefficient
+     * per term
+     */
+    public ModelCoefficients (String version, double intercept,
+            double[] coefficients) throws IllegalArgumentException {
+
+        if (coefficients.length != NUM_TERMS) {
+            throw new IllegalArgumentException ("Invalid Coefficients"
+                    + " (There should be " + NUM_TERMS + " coefficients but"
+                    + " there are " + coefficients.length + ")");
+        }
+        if (!isFinite(intercept)) {
+            throw new IllegalArgumentException ("Invalid Intercept");
+        }
+        for (int i = 0; i < NUM_TERMS; i++) {
+            if (!isFinite(coefficients[i])) {
+                throw new IllegalArgumentException ("Invalid Coefficient for "
+                        + TERM_NAMES[i]);
+            }
+        }
+
+        this.version = version;
+        this.intercept = intercept;
+        this.coefficients = coefficients.clone();
+    }
+
+    public String getVersion () {
+        return (version);
+    }
+
+    public double getIntercept () {
+        return (intercept);
+    }
+
+    /**
+     * Accessor method for the coefficient of a term
+     *
+     * @param term the index of the term
+     * @return the coefficient of the term
+     * @throws IndexOutOfBoundsException the index must be a valid term index
+     */
+    public double getCoefficient (int term) throws IndexOutOfBoundsException {
+        if (term >= NUM_TERMS || term < 0) {
+            throw new IndexOutOfBoundsException ("Invalid Term Index");
+        } else {
+            return (coefficients[term]);
+        }
+    }
+
+    /**
+     * Accessor method for the names of each term
+     *
+     * @param term the index of the term
+     * @return the name of the term
+     * @throws IndexOutOfBoundsException the index must be a valid term index
+     */
+    public static String getTermName (int term)
+            throws IndexOutOfBoundsException {
+        if (term >= NUM_TERMS || term < 0) {
+            throw new IndexOutOfBoundsException ("Invalid Term Index");
+        } else {
+            return (TERM_NAMES[term]);
+        }
+    }
+
+    /**
+     * Computes the linear function for a set of term values
+     *
+     * @param termValues the value of each term, as filled in by
+     * TBIModel.getTermValues
+     * @return the link value
+     */
+    public double link (double[] termValues) {
+        double link = intercept;
+        for (int i = 0; i < NUM_TERMS; i++) {
+            link += coefficients[i] * termValues[i];
+        }
+        return (link);
+    }
+
+    /**
+     * Builds, for every categorical variable, the sum of the coefficients
+     * switched on by each of its options. Scoring a categorical variable then
+     * takes one table lookup instead of one test per indicator.
+     *
+     * @return a table indexed by [categorical variable][option]
+     */
+    double[][] catOptionTable () {
+
+        TBIModel options = new TBIModel();
+        double[][] table = new double[TBIModel.NUM_DIS_VARIABLES][];
+
+        for (int var = 0; var < table.length; var++) {
+            table[var] = new double[options.getIthCatVarOptions(var).length];
+        }
+        for (int term = NUM_CONT_TERMS; term < NUM_TERMS; term++) {
+            table[TERM_CAT_VARIABLE[term]][TERM_CAT_OPTION[term]] +=
+                    coefficients[term];
+        }
+
+        return (table);
+    }
+
+    /**
+     * Writes the coefficient set to a text file, one tab separated name and
+     * value per line
+     *
+     * @param file the file to write
+     * @throws IOException the file cannot be written
+     */
+    public void save (Path file) throws IOException {
+
+        try (BufferedWriter out = Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8)) {
+            out.write(FILE_HEADER);
+            out.newLine();
+            out.write("Version\t" + version);
+            out.newLine();
+            out.write("Intercept\t" + Double.toString(intercept));
+            out.newLine();
+            for (int i = 0; i < NUM_TERMS; i++) {
+                out.write(TERM_NAMES[i] + "\t" +
+                        Double.toString(coefficients[i]));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads a coefficient set written by save
+     *
+     * @param file the file to read
+     * @return the coefficient set
+     * @throws IOException the file cannot be read or is not a coefficient
+     * set of the current terms
+     */
+    public static ModelCoefficients load (Path file) throws IOException {
+
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+
+            if (!FILE_HEADER.equals(in.readLine())) {
+                throw new IOException ("Not a coefficient set: " + file);
+            }
+
+            String version = readField(in, "Version", file);
+            double intercept = parseValue(readField(in, "Intercept", file),
+                    file);
+            double[] coefficients = new double[NUM_TERMS];
+            for (int i = 0; i < NUM_TERMS; i++) {
+                coefficients[i] = parseValue(readField(in, TERM_NAMES[i],
+                        file), file);
+            }
+
+            return (new ModelCoefficients(version, intercept, coefficients));
+
+        } catch (IllegalArgumentException invalid) {
+            throw new IOException ("Invalid coefficient set " + file + ": " +
+                    invalid.getMessage());
+        }
+    }
+
+    private static String readField (BufferedReader in, String name,
+            Path file) throws IOException {
+
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException ("Truncated coefficient set: " + file);
+        }
+        int tab = line.indexOf('\t');
+        if (tab < 0 || !line.substring(0, tab).equals(name)) {
+            throw new IOException ("Expected " + name + " in " + file +
+                    " but found: " + line);
+        }
+
+        return (line.substring(tab + 1));
+    }
+
+    private static double parseValue (String value, Path file)
+            throws IOException {
+        try {
+            return (Double.parseDouble(value));
+        } catch (NumberFormatException notANumber) {
+            throw new IOException ("Invalid value " + value + " in " + file);
+        }
+    }
+
+    private static boolean isFinite (double value) {
+        return (!Double.isNaN(value) && !Double.isInfinite(value));
+    }
+
+    @Override
+    public String toString () {
+        return (version + " " + intercept + " " + Arrays.toString(coefficients));
+    }
+}
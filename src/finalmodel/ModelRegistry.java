@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The coefficient sets a deployment can score with, by version tag. The
+ * coefficients of TBIModel are always registered and start out as the
+ * production version; candidates, such as refits written by LogisticTrainer,
+ * are registered next to them and can be promoted once they have been
+ * shadow scored against production.
+ *
+ * A registry is safe to share between threads. Scorers are built from a
+ * snapshot of it, so registering a version never changes a scorer in use.
+ *
+ * @author okama
+ */
+public class ModelRegistry {
+
+    // every registered version, in registration order
+    private final Map<String, ModelCoefficients> versions =
+            new LinkedHashMap<>();
+    private String productionVersion;
+
+    /**
+     * The constructor for the ModelRegistry class, with the coefficients of
+     * TBIModel registered as the production version
+     */
+    public ModelRegistry () {
+        ModelCoefficients builtIn = new TBIModel().getCoefficients();
+        versions.put(builtIn.getVersion(), builtIn);
+        productionVersion = builtIn.getVersion();
+    }
+
+    /**
+     * Registers a coefficient set under its version tag
+     *
+     * @param coefficients the coefficient set
+     * @throws IllegalArgumentException the version is already registered
+     */
+    public synchronized void register (ModelCoefficients coefficients)
+            throws IllegalArgumentException {
+
+        if (versions.containsKey(coefficients.getVersion())) {
+            throw new IllegalArgumentException ("Duplicate Model Version ("
+                    + coefficients.getVersion() + " is already registered)");
+        }
+
+        versions.put(coefficients.getVersion(), coefficients);
+    }
+
+    /**
+     * Registers the coefficient set in a file written by
+     * ModelCoefficients.save
+     *
+     * @param file the coefficient file
+     * @return the coefficient set registered
+     * @throws IOException the file cannot be read or is not a coefficient
+     * file
+     * @throws IllegalArgumentException its version is already registered
+     */
+    public ModelCoefficients register (Path file) throws IOException,
+            IllegalArgumentException {
+        ModelCoefficients coefficients = ModelCoefficients.load(file);
+        register(coefficients);
+        return (coefficients);
+    }
+
+    /**
+     * Removes a version
+     *
+     * @param version the version tag
+     * @throws IllegalArgumentException the version is not registered, or is
+     * the production version
+     */
+    public synchronized void unregister (String version)
+            throws IllegalArgumentException {
+
+        get(version);
+        if (version.equals(productionVersion)) {
+            throw new IllegalArgumentException ("Invalid Model Version"
+                    + " (The production version cannot be removed)");
+        }
+
+        versions.remove(version);
+    }
+
+    /**
+     * Accessor method for a version
+     *
+     * @param version the version tag
+     * @return its coefficient set
+     * @throws IllegalArgumentException the version is not registered
+     */
+    public synchronized ModelCoefficients get (String version)
+            throws IllegalArgumentException {
+
+        ModelCoefficients coefficients = versions.get(version);
+        if (coefficients == null) {
+            throw new IllegalArgumentException ("Unknown Model Version ("
+                    + version + " is not registered)");
+        }
+
+        return (coefficients);
+    }
+
+    /**
+     * @return the tags of every registered version, in registration order
+     */
+    public synchronized List<String> getVersions () {
+        return (new ArrayList<>(versions.keySet()));
+    }
+
+    public synchronized String getProductionVersion () {
+        return (productionVersion);
+    }
+
+    public synchronized ModelCoefficients getProduction () {
+        return (versions.get(productionVersion));
+    }
+
+    /**
+     * Makes a registered version the production version
+     *
+     * @param version the version tag
+     * @throws IllegalArgumentException the version is not registered
+     */
+    public synchronized void setProduction (String version)
+            throws IllegalArgumentException {
+        get(version);
+        productionVersion = version;
+    }
+
+    /**
+     * Builds a scorer for every registered version
+     *
+     * @param threads the number of worker threads for files
+     * @return a scorer of the production version, followed by the other
+     * versions in registration order
+     */
+    public synchronized ShadowScorer newShadowScorer (int threads) {
+
+        List<ModelCoefficients> models = new ArrayList<>();
+        models.add(versions.get(productionVersion));
+        for (ModelCoefficients coefficients : versions.values()) {
+            if (!coefficients.getVersion().equals(productionVersion)) {
+                models.add(coefficients);
+            }
+        }
+
+        return (new ShadowScorer(models, threads));
+    }
+}
@@ -35,6 +35,15 @@ import javax.swing.JTextField;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JScrollPane;
+import javax.swing.JMenuBar;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JFileChooser;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 // various imports for style
 import java.awt.Dimension;
@@ -49,6 +58,14 @@ import java.awt.Toolkit;
 import java.util.List;
 import java.util.ArrayList;
 
+// audit journal location and errors
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// scoring off the event dispatch thread
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
 // track button actions
 import java.awt.event.WindowListener;
 import java.awt.event.WindowEvent;
@@ -105,15 +122,51 @@ public class ModelUI extends JFrame {
     // defaults for categorical variables e.g. female for gender
     protected JButton clearEntries = new JButton("Reset");
     
+    // openPatientFile lets the user pick a patient file and shows its
+    // patients, scored, in a table window
+    protected JMenuItem openPatientFile = new JMenuItem("Open Patient File...");
+    
+    // when selected the output is recomputed as the inputs are edited, once
+    // they have been still for LIVE_DELAY_MILLIS
+    protected JCheckBoxMenuItem liveScoring =
+            new JCheckBoxMenuItem("Live Scoring", true);
+    private static final int LIVE_DELAY_MILLIS = 150;
+    protected Timer liveDelay;
+    
     // the JTextField which displays the model output
     protected JTextField modelOutput = new JTextField("");
     
+    // the map of risk over GCS and ISS for the other inputs of the current
+    // patient, shown to the right of the inputs
+    protected RiskHeatmapPanel riskHeatmap = new RiskHeatmapPanel();
+    
     // the Header displayed at the top of the caluclator
     // (right above user inputs)
     protected JLabel modelTitle = new JLabel();
         
     protected static TBIModel tbiModel;
     
+    // the audit journal every calculator prediction is appended to; null if it
+    // could not be opened. The location can be changed with -Dtmp3.journal=<dir>
+    protected PredictionJournal journal;
+    
+    // compares entered predictions with a reference population and reports
+    // drift on standard error; null unless -Dtmp3.drift=<profile> is given
+    protected DriftMonitor driftMonitor;
+    
+    // time between drift checks of the entered predictions (1 minute)
+    private static final long DRIFT_REPORT_MILLIS = 60 * 1000;
+    
+    // validation, scoring, printing and journaling run in the interactive
+    // lane so the UI never waits on them, and the risk sorts of patient files
+    // opened from here in the batch lane. One thread keeps the requests in
+    // order and leaves the rest of the machine to the UI.
+    protected final ScoringScheduler scheduler = new ScoringScheduler(1);
+    
+    // number of the latest scoring request; results of older requests are
+    // not shown, and older live requests are not even computed
+    private final AtomicLong latestRequest = new AtomicLong();
+    
     private static final long serialVersionUID = 133212L;
 
     // *************************************************************************
@@ -133,6 +186,37 @@ public class ModelUI extends JFrame {
         // *********************************************************************
         
         tbiModel = new TBIModel();
+        
+        try {
+            journal = new PredictionJournal(Paths.get(System.getProperty(
+                    "tmp3.journal", Paths.get(System.getProperty("user.home"),
+                            ".tmp3", "journal").toString())));
+        } catch (IOException | IllegalArgumentException noJournal) {
+            journal = null;
+            JOptionPane.showMessageDialog(null, "The prediction journal could"
+                    + " not be opened. Predictions will not be logged!"
+                    + "\nERROR REASON: " + noJournal.getMessage(),
+                    "Journal Error", JOptionPane.WARNING_MESSAGE);
+        }
+        
+        try {
+            driftMonitor = DriftMonitor.fromSystemProperty();
+        } catch (IOException | IllegalArgumentException noProfile) {
+            driftMonitor = null;
+            JOptionPane.showMessageDialog(null, "The drift reference profile"
+                    + " could not be read. Drift will not be checked!"
+                    + "\nERROR REASON: " + noProfile.getMessage(),
+                    "Drift Monitor Error", JOptionPane.WARNING_MESSAGE);
+        }
+        if (driftMonitor != null) {
+            driftMonitor.startPeriodicReports(DRIFT_REPORT_MILLIS, report -> {
+                if (report.getObserved().getTotal(
+                        DistributionProfile.LINK_FEATURE) > 0 &&
+                        report.hasDrift(DriftMonitor.DEFAULT_PSI_ALERT)) {
+                    System.err.print("Drift in the last minute:\n" + report);
+                }
+            });
+        }
                 
         variableLabels = new JLabel[tbiModel.getNumVariables()];
         
@@ -203,7 +287,8 @@ public class ModelUI extends JFrame {
         // Set up JFrame window properties
         // *********************************************************************
 
-        this.setPreferredSize(new Dimension(dim.width/2, dim.height * 9 / 10));
+        this.setPreferredSize(new Dimension(dim.width * 7 / 10,
+                dim.height * 9 / 10));
                 
         this.pack();
         
@@ -222,6 +307,26 @@ public class ModelUI extends JFrame {
         
         clearEntries.addActionListener(new ActionHandler());
         
+        openPatientFile.addActionListener(new ActionHandler());
+        
+        liveScoring.addActionListener(new ActionHandler());
+        
+        liveDelay = new Timer(LIVE_DELAY_MILLIS, e -> score(false));
+        liveDelay.setRepeats(false);
+        
+        // *********************************************************************
+        // Add menu bar
+        // *********************************************************************
+        
+        JMenuBar menuBar = new JMenuBar();
+        JMenu fileMenu = new JMenu("File");
+        fileMenu.add(openPatientFile);
+        menuBar.add(fileMenu);
+        JMenu optionsMenu = new JMenu("Options");
+        optionsMenu.add(liveScoring);
+        menuBar.add(optionsMenu);
+        this.setJMenuBar(menuBar);
+        
         // *********************************************************************
         // Add layout manager to main JFrame
         // *********************************************************************
@@ -320,6 +425,7 @@ public class ModelUI extends JFrame {
             disVarInputs.get(i).setPreferredSize(inputSize);
             disVarInputs.get(i).setFont(labelFont);
             disVarInputs.get(i).setMinimumSize(inputSize);
+            disVarInputs.get(i).addActionListener(e -> inputChanged());
             disVarInputCons.gridx = 0;
             disVarInputCons.gridy = i;
             userInputs.add(disVarInputs.get(i), disVarInputCons);
@@ -332,6 +438,8 @@ public class ModelUI extends JFrame {
             contVarInputs[i].setHorizontalAlignment(JTextField.CENTER);
             contVarInputs[i].setPreferredSize(inputSize);
             contVarInputs[i].setMinimumSize(inputSize);
+            contVarInputs[i].getDocument().addDocumentListener(
+                    new InputListener());
             contVarInputCons.gridx = 0;
             contVarInputCons.gridy = tbiModel.getNumDisVariables() + i;
             userInputs.add(contVarInputs[i], contVarInputCons);
@@ -342,6 +450,21 @@ public class ModelUI extends JFrame {
         mainFrame.gridy = 1;
         // attach right panel to the main panel
         mainPanel.add(userInputs, mainFrame);
+        
+        // *********************************************************************
+        // Risk heatmap panel to the right of the user inputs
+        // *********************************************************************
+        
+        riskHeatmap.setMinimumSize(sideBarSize);
+        riskHeatmap.setPreferredSize(sideBarSize);
+        riskHeatmap.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1,
+                Color.BLACK));
+        
+        // set location for heatmap panel on the main panel
+        mainFrame.gridx = 2;
+        mainFrame.gridy = 1;
+        // attach heatmap panel to the main panel
+        mainPanel.add(riskHeatmap, mainFrame);
        
         // *********************************************************************
         // top title panel 
@@ -466,25 +589,247 @@ public class ModelUI extends JFrame {
         // set window to visible
         this.setVisible(true);
         
+        // register the flight recorder events before the first request
+        runInteractive(ScoringEvents::preload);
+        
+        // with -Dtmp3.warmup=true the scoring paths are compiled before the
+        // first prediction; requests made meanwhile queue behind the warm-up
+        if (Boolean.getBoolean("tmp3.warmup")) {
+            warmUp();
+        }
+        
     }
     
-    private void getValues() throws NumberFormatException, IllegalArgumentException {
-                
-        tbiModel.setAge(Double.parseDouble(contVarInputs[AGE_INDEX].getText()));
-        tbiModel.setAISSev(Integer.parseInt(contVarInputs[AIS_SEV_INDEX].getText()));
-        tbiModel.setGCS(Integer.parseInt(contVarInputs[GCS_INDEX].getText()));
-        tbiModel.setISS(Integer.parseInt(contVarInputs[ISS_INDEX].getText()));
-        tbiModel.setSBP(Double.parseDouble(contVarInputs[SBP_INDEX].getText()));
-        tbiModel.setPulseRate(Double.parseDouble(contVarInputs[PULSE_INDEX].getText()));
-        tbiModel.setBodyTemp(Double.parseDouble(contVarInputs[BODY_TEMP_INDEX].getText()));
-        tbiModel.setOxySat(Double.parseDouble(contVarInputs[OXY_SAT_INDEX].getText()));
-        tbiModel.setGender((String) disVarInputs.get(GENDER_INDEX).getSelectedItem());
-        tbiModel.setSupplementalOxy((String) disVarInputs.get(SUPP_OXY_INDEX).getSelectedItem());
-        tbiModel.setDrugUse((String) disVarInputs.get(DRUG_USE_INDEX).getSelectedItem());
-        tbiModel.setRace((String) disVarInputs.get(RACE_INDEX).getSelectedItem());
-        tbiModel.setInjuryType((String) disVarInputs.get(INJ_TYPE_INDEX).getSelectedItem());
+    /**
+     * Runs a Warmup in the interactive lane, with "Enter" disabled until it is
+     * done, and prints its before and after latencies
+     */
+    private void warmUp () {
+        
+        calculateProb.setEnabled(false);
+        modelOutput.setText("Warming up...");
+        
+        runInteractive(() -> {
+            Warmup.Report report =
+                    new Warmup(System.nanoTime()).run(Warmup.DEFAULT_MAX_MILLIS);
+            System.out.print("Warm-up ---\n" + report);
+            SwingUtilities.invokeLater(() -> {
+                calculateProb.setEnabled(true);
+                if (modelOutput.getText().equals("Warming up...")) {
+                    modelOutput.setText("");
+                }
+                System.out.println("Calculator ready.");
+            });
+        });
+    }
+    
+    /**
+     * Reads the inputs off the UI; must be called on the event dispatch thread
+     * 
+     * @return the text of each continuous input followed by the selection of
+     * each categorical input
+     */
+    private String[] readInputs () {
+        
+        String[] inputs = new String[tbiModel.getNumVariables()];
+        
+        for (int i = 0; i < tbiModel.getNumContVariables(); i++) {
+            inputs[i] = contVarInputs[i].getText();
+        }
+        for (int i = 0; i < tbiModel.getNumDisVariables(); i++) {
+            inputs[tbiModel.getNumContVariables() + i] =
+                    (String) disVarInputs.get(i).getSelectedItem();
+        }
+        
+        return (inputs);
+    }
+    
+    private static void getValues(TBIModel model, String[] inputs)
+            throws NumberFormatException, IllegalArgumentException {
+        
+        int cat = model.getNumContVariables();
+        
+        // the input being set, named in the failure event
+        int i = 0;
+        try {
+            model.setAge(Double.parseDouble(inputs[i = AGE_INDEX]));
+            model.setAISSev(Integer.parseInt(inputs[i = AIS_SEV_INDEX]));
+            model.setGCS(Integer.parseInt(inputs[i = GCS_INDEX]));
+            model.setISS(Integer.parseInt(inputs[i = ISS_INDEX]));
+            model.setSBP(Double.parseDouble(inputs[i = SBP_INDEX]));
+            model.setPulseRate(Double.parseDouble(inputs[i = PULSE_INDEX]));
+            model.setBodyTemp(Double.parseDouble(
+                    inputs[i = BODY_TEMP_INDEX]));
+            model.setOxySat(Double.parseDouble(inputs[i = OXY_SAT_INDEX]));
+            model.setGender(inputs[i = cat + GENDER_INDEX]);
+            model.setSupplementalOxy(inputs[i = cat + SUPP_OXY_INDEX]);
+            model.setDrugUse(inputs[i = cat + DRUG_USE_INDEX]);
+            model.setRace(inputs[i = cat + RACE_INDEX]);
+            model.setInjuryType(inputs[i = cat + INJ_TYPE_INDEX]);
+        } catch (IllegalArgumentException invalid) {
+            // variable names list the categorical variables first
+            String name = model.getIthVariableName(i < cat ?
+                    model.getNumDisVariables() + i : i - cat);
+            ScoringEvents.validationFailure("calculator",
+                    name.substring(0, name.length() - 1), inputs[i],
+                    invalid.getMessage());
+            throw invalid;
+        }
             
-    }    
+    }
+    
+    /**
+     * Restarts the live scoring delay after an input changes
+     */
+    private void inputChanged () {
+        if (liveScoring.isSelected()) {
+            liveDelay.restart();
+        }
+    }
+    
+    /**
+     * Scores the current inputs in the interactive lane and shows the result,
+     * unless a newer request has been made by then. Must be called on the
+     * event dispatch thread.
+     * 
+     * @param entered true for a press of "Enter": the prediction is printed
+     * and journaled, and invalid inputs are reported. Live requests only
+     * update the output.
+     */
+    protected void score (final boolean entered) {
+        
+        final String[] inputs = readInputs();
+        final long request = latestRequest.incrementAndGet();
+        
+        // spans the request from here until its result is known; null if
+        // flight recorder events are off
+        final ScoringEvents.Request event = ScoringEvents.ENABLED ?
+                ScoringEvents.Request.start() : null;
+        
+        runInteractive(() -> {
+            
+            // owned by this request; the shared tbiModel is only touched on
+            // the event dispatch thread
+            TBIModel model = new TBIModel();
+            
+            // a live request overtaken by a newer one is not worth scoring
+            if (!entered && request != latestRequest.get()) {
+                commitRequest(event, model, entered, "stale");
+                return;
+            }
+            
+            String outcome = "scored";
+            
+            try {
+                
+                getValues(model, inputs);
+                final double prediction = model.getProbabilityOfMortality();
+                if (entered) {
+                    System.out.println(model.toString());
+                    if (journal != null) {
+                        journal.append(model, model.getLink(),
+                                prediction);
+                    }
+                    if (driftMonitor != null) {
+                        driftMonitor.observe(model);
+                    }
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (request == latestRequest.get()) {
+                        tbiModel = model;
+                        riskHeatmap.setPatient(model);
+                        modelOutput.setText(Double.toString(prediction * 100)
+                                + " %");
+                        setTitle(Double.toString(prediction * 100));
+                    }
+                });
+                
+            } catch (IOException journalFailure) {
+                
+                outcome = "failed";
+                showError("The prediction could not be written to the"
+                        + " journal!" + "\nERROR REASON: " +
+                        journalFailure.getMessage(), "Journal Error");
+                
+            } catch (NumberFormatException incorrectInput) {
+                
+                outcome = "invalid";
+                if (entered) {
+                    showError("Ensure that all fields are filled and are"
+                            + " filled properly. Aside from dropdown menus,"
+                            + " there should be no empty or string inputs!"
+                            + "\nERROR REASON: " +
+                            incorrectInput.getMessage(), "Input Error");
+                } else {
+                    clearOutput(request);
+                }
+                
+            } catch (IllegalArgumentException invalidInput) {
+                
+                outcome = "invalid";
+                if (entered) {
+                    showError("Ensure that all fields have a valid entry!"
+                            + "\nERROR REASON: " + invalidInput.getMessage(),
+                            "Input Error");
+                } else {
+                    clearOutput(request);
+                }
+                
+            }
+            commitRequest(event, model, entered, outcome);
+        });
+    }
+    
+    /**
+     * Queues a task in the interactive lane, behind the earlier ones
+     */
+    private void runInteractive (Runnable task) {
+        scheduler.submit(ScoringScheduler.Lane.INTERACTIVE,
+                Executors.callable(task));
+    }
+    
+    private static void commitRequest (ScoringEvents.Request event,
+            TBIModel model, boolean entered, String outcome) {
+        if (event != null) {
+            event.source = "calculator";
+            event.live = !entered;
+            event.outcome = outcome;
+            event.modelVersion = model.getModelVersion();
+            event.commit();
+        }
+    }
+    
+    private void showError (final String message, final String title) {
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null,
+                message, title, JOptionPane.ERROR_MESSAGE));
+    }
+    
+    private void clearOutput (final long request) {
+        SwingUtilities.invokeLater(() -> {
+            if (request == latestRequest.get()) {
+                modelOutput.setText("");
+                setTitle(".....");
+            }
+        });
+    }
+    
+    private class InputListener implements DocumentListener {
+        
+        @Override
+        public void insertUpdate (DocumentEvent de) {
+            inputChanged();
+        }
+        
+        @Override
+        public void removeUpdate (DocumentEvent de) {
+            inputChanged();
+        }
+        
+        @Override
+        public void changedUpdate (DocumentEvent de) {
+            inputChanged();
+        }
+    }
     
     private class ActionHandler implements ActionListener {
     
@@ -493,31 +838,8 @@ public class ModelUI extends JFrame {
             
             if (e.getSource() == calculateProb){
     
-                try {
-                    
-                    getValues();
-                    double prediction = tbiModel.getProbabilityOfMortality();
-                    modelOutput.setText(Double.toString(prediction * 100) + " %");
-                    setTitle(Double.toString(prediction * 100));
-                    System.out.println(tbiModel.toString());
-                
-                } catch (NumberFormatException incorrectInput) {
-                    
-                    JOptionPane.showMessageDialog(null, "Ensure that all fields"
-                            + " are filled and are filled properly. Aside"
-                            + " from dropdown menus, there should be no empty"
-                            + " or string inputs!" + "\nERROR REASON: " +
-                            incorrectInput.getMessage(), "Input Error",
-                            JOptionPane.ERROR_MESSAGE);
-   
-                } catch (IllegalArgumentException invalidInput) {
-                    
-                    JOptionPane.showMessageDialog(null, "Ensure that all fields"
-                            + " have a valid entry!" + "\nERROR REASON: " +
-                            invalidInput.getMessage(), "Input Error",
-                            JOptionPane.ERROR_MESSAGE);
-
-                }
+                liveDelay.stop();
+                score(true);
                     
             } else if (e.getSource() == clearEntries) {
                 
@@ -529,8 +851,36 @@ public class ModelUI extends JFrame {
                     contVarInputs[i].setText("");
                 }
                 
+                // drop any result still being computed
+                liveDelay.stop();
+                latestRequest.incrementAndGet();
                 setTitle(".....");
                 modelOutput.setText("");
+                riskHeatmap.clear();
+                
+            } else if (e.getSource() == liveScoring) {
+                
+                if (liveScoring.isSelected()) {
+                    score(false);
+                } else {
+                    liveDelay.stop();
+                }
+                
+            } else if (e.getSource() == openPatientFile) {
+                
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showOpenDialog(ModelUI.this) ==
+                        JFileChooser.APPROVE_OPTION) {
+                    try {
+                        new PatientTableView(chooser.getSelectedFile().toPath(),
+                                scheduler);
+                    } catch (IOException openFailure) {
+                        JOptionPane.showMessageDialog(null, "The patient file"
+                                + " could not be opened!" + "\nERROR REASON: "
+                                + openFailure.getMessage(), "File Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                }
                 
             }
         }
@@ -567,6 +917,29 @@ public class ModelUI extends JFrame {
         @Override
         public void windowClosing (WindowEvent we) {
             System.out.println("Ending Session ---");
+            liveDelay.stop();
+            // drop the queued sort chunks, and let the interactive lane,
+            // which may journal an entered prediction, run dry before the
+            // journal closes
+            scheduler.shutdown();
+            scheduler.cancelQueued(ScoringScheduler.Lane.BATCH);
+            riskHeatmap.dispose();
+            try {
+                scheduler.awaitTermination();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (driftMonitor != null) {
+                driftMonitor.close();
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException journalFailure) {
+                    System.err.println("Journal not closed cleanly: " +
+                            journalFailure.getMessage());
+                }
+            }
             dispose();
         }
         
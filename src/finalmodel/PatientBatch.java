@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * A batch of patients stored column by column: one array per variable, so
+ * that bulk code can sweep a whole column in a tight loop. Categorical
+ * variables are stored as the index of the selected option within
+ * TBIModel.getIthCatVarOptions.
+ *
+ * Batches are meant to be filled, processed and cleared over and over, so the
+ * column arrays are allocated once. The column accessors hand out the arrays
+ * themselves; only the first size() entries are meaningful.
+ *
+ * @author okama
+ */
+public class PatientBatch {
+
+    // continuous columns, in the same order as the ModelUI text fields
+    public static final int AGE_INDEX = 0;
+    public static final int AIS_SEV_INDEX = 1;
+    public static final int GCS_INDEX = 2;
+    public static final int ISS_INDEX = 3;
+    public static final int SBP_INDEX = 4;
+    public static final int PULSE_INDEX = 5;
+    public static final int BODY_TEMP_INDEX = 6;
+    public static final int OXY_SAT_INDEX = 7;
+
+    // categorical columns, in the same order as TBIModel.getIthCatVarOptions
+    public static final int GENDER_INDEX = 0;
+    public static final int SUPP_OXY_INDEX = 1;
+    public static final int DRUG_USE_INDEX = 2;
+    public static final int RACE_INDEX = 3;
+    public static final int INJ_TYPE_INDEX = 4;
+
+    // the continuous columns, indexed [variable][row]
+    private final double[][] contColumns;
+    // the categorical columns, indexed [variable][row]
+    private final byte[][] catColumns;
+    // number of rows in use
+    private int size = 0;
+
+    /**
+     * The constructor for the PatientBatch class
+     *
+     * @param capacity the largest number of patients the batch can hold
+     * @throws IllegalArgumentException the capacity must be positive
+     */
+    public PatientBatch (int capacity) throws IllegalArgumentException {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException ("Invalid Batch Capacity"
+                    + " (Capacity should be positive)");
+        }
+
+        contColumns = new double[TBIModel.NUM_CONT_VARIABLES][capacity];
+        catColumns = new byte[TBIModel.NUM_DIS_VARIABLES][capacity];
+    }
+
+    public int size () {
+        return (size);
+    }
+
+    public int capacity () {
+        return (contColumns[0].length);
+    }
+
+    public boolean isFull () {
+        return (size == capacity());
+    }
+
+    /**
+     * Empties the batch; the column arrays are kept for reuse
+     */
+    public void clear () {
+        size = 0;
+    }
+
+    /**
+     * Sets the number of rows in use, for code that fills the columns
+     * directly
+     *
+     * @param newSize the number of rows in use
+     * @throws IllegalArgumentException the size must be between 0 and the
+     * capacity
+     */
+    public void setSize (int newSize) throws IllegalArgumentException {
+        if (newSize < 0 || newSize > capacity()) {
+            throw new IllegalArgumentException ("Invalid Batch Size");
+        } else {
+            size = newSize;
+        }
+    }
+
+    /**
+     * Keeps only the given rows, moved down in order to the front of the
+     * batch, e.g. the valid rows found by BatchValidator
+     *
+     * @param rows the rows to keep, in increasing order
+     * @param count the number of rows to keep
+     * @throws IllegalArgumentException the count must be between 0 and the
+     * size
+     */
+    public void retain (int[] rows, int count) throws IllegalArgumentException {
+
+        if (count < 0 || count > size) {
+            throw new IllegalArgumentException ("Invalid Row Count");
+        }
+
+        // rows[i] >= i since the rows increase, so nothing is overwritten
+        // before it is moved
+        for (double[] column : contColumns) {
+            for (int i = 0; i < count; i++) {
+                column[i] = column[rows[i]];
+            }
+        }
+        for (byte[] column : catColumns) {
+            for (int i = 0; i < count; i++) {
+                column[i] = column[rows[i]];
+            }
+        }
+
+        size = count;
+    }
+
+    /**
+     * Copies the inputs of a model into the next free row
+     *
+     * @param model the model holding the patient's inputs
+     * @return the row the patient was stored in
+     * @throws IllegalStateException the batch is full
+     */
+    public int add (TBIModel model) throws IllegalStateException {
+
+        if (isFull()) {
+            throw new IllegalStateException ("Patient batch is full");
+        }
+
+        int row = size++;
+
+        contColumns[AGE_INDEX][row] = model.getAge();
+        contColumns[AIS_SEV_INDEX][row] = model.getAISSev();
+        contColumns[GCS_INDEX][row] = model.getGCS();
+        contColumns[ISS_INDEX][row] = model.getISS();
+        contColumns[SBP_INDEX][row] = model.getSBP();
+        contColumns[PULSE_INDEX][row] = model.getPulseRate();
+        contColumns[BODY_TEMP_INDEX][row] = model.getBodyTemp();
+        contColumns[OXY_SAT_INDEX][row] = model.getOxySat();
+
+        for (int i = 0; i < TBIModel.NUM_DIS_VARIABLES; i++) {
+            catColumns[i][row] = (byte) model.getIthCatVarSelection(i);
+        }
+
+        return (row);
+    }
+
+    /**
+     * Accessor method for a continuous column
+     *
+     * @param i the index of the continuous variable e.g. GCS_INDEX
+     * @return the column array itself, indexed by row
+     */
+    public double[] getContColumn (int i) {
+        return (contColumns[i]);
+    }
+
+    /**
+     * Accessor method for a categorical column
+     *
+     * @param i the index of the categorical variable e.g. RACE_INDEX
+     * @return the column array itself, indexed by row; each entry is the index
+     * of the selected option
+     */
+    public byte[] getCatColumn (int i) {
+        return (catColumns[i]);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a patient file line by line while keeping track of the byte offset at
+ * which each line starts, so that records can be found again later without
+ * rescanning the file. Lines end with "\n" or "\r\n".
+ *
+ * @author okama
+ */
+public class PatientFileReader implements Closeable {
+
+    // default size of the read buffer
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private byte[] buffer;
+    // bytes of the buffer holding data, and the next byte to look at
+    private int limit = 0;
+    private int next = 0;
+    // file offset of buffer[0]
+    private long bufferOffset;
+    // file offset at which the last returned line starts
+    private long lineOffset = -1;
+
+    /**
+     * The constructor for the PatientFileReader class
+     *
+     * @param in the stream to read; not buffered by the caller
+     * @param startOffset the file offset of the first byte of the stream
+     */
+    public PatientFileReader (InputStream in, long startOffset) {
+        this(in, startOffset, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * The constructor for the PatientFileReader class
+     *
+     * @param in the stream to read; not buffered by the caller
+     * @param startOffset the file offset of the first byte of the stream
+     * @param bufferSize the size of the read buffer
+     */
+    public PatientFileReader (InputStream in, long startOffset, int bufferSize) {
+        this.in = in;
+        this.bufferOffset = startOffset;
+        this.buffer = new byte[Math.max(bufferSize, 256)];
+    }
+
+    /**
+     * Reads the next line
+     *
+     * @return the line without its terminator, or null at the end of the
+     * stream
+     * @throws IOException the stream cannot be read
+     */
+    public String readLine () throws IOException {
+
+        int scanFrom = next;
+
+        while (true) {
+
+            for (int i = scanFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = (i > next && buffer[i - 1] == '\r') ? i - 1 : i;
+                    return (takeLine(end, i + 1));
+                }
+            }
+
+            scanFrom = limit - next;
+            if (!fill()) {
+                if (next == limit) {
+                    return (null);
+                }
+                // last line without a terminator
+                int end = (buffer[limit - 1] == '\r') ? limit - 1 : limit;
+                return (takeLine(end, limit));
+            }
+        }
+    }
+
+    /**
+     * Accessor method for the offset of the last line read
+     *
+     * @return the byte offset at which the last returned line starts; -1 if
+     * no line has been read
+     */
+    public long getLineOffset () {
+        return (lineOffset);
+    }
+
+    /**
+     * Accessor method for the read position
+     *
+     * @return the byte offset just past the last returned line, i.e. where the
+     * next line starts
+     */
+    public long getPosition () {
+        return (bufferOffset + next);
+    }
+
+    @Override
+    public void close () throws IOException {
+        in.close();
+    }
+
+    private String takeLine (int end, int resume) {
+        lineOffset = bufferOffset + next;
+        String line = new String(buffer, next, end - next,
+                StandardCharsets.UTF_8);
+        next = resume;
+        return (line);
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more,
+     * growing the buffer if a single line fills it
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill () throws IOException {
+
+        if (next > 0) {
+            System.arraycopy(buffer, next, buffer, 0, limit - next);
+            bufferOffset += next;
+            limit -= next;
+            next = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        ScoringEvents.FileRead event = ScoringEvents.ENABLED ?
+                ScoringEvents.FileRead.start() : null;
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (event != null) {
+            event.offset = bufferOffset + limit;
+            event.bytes = Math.max(read, 0);
+            event.commit();
+        }
+        if (read < 0) {
+            return (false);
+        }
+        limit += read;
+
+        return (true);
+    }
+}
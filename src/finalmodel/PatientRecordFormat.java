@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * The text format of patient files used by the bulk tools. Each patient is
+ * one line of comma separated values in the same order as the variables on
+ * the calculator UI:
+ * <pre>
+ *   Gender,Supplemental Oxygen,Drug Use,Race,Type of Injury,Age,AIS Severity,
+ *   Glasgow Coma Score,Injury Severity Score,Systolic Blood Pressure,
+ *   Pulse Rate,Body Temperature,Blood Oxygen Saturation
+ * </pre>
+ * e.g. {@code Male,No,Yes,White,Penetrating,14,3,7,52,120,70,36.5,100}.
+ * Blank lines and lines starting with '#' are not records.
+ *
+ * Labeled cohorts, used to fit and evaluate the model, add the patient's
+ * outcome as one more field: 1 if the patient died, 0 if they survived.
+ *
+ * @author okama
+ */
+public final class PatientRecordFormat {
+
+    // the separator between fields
+    public static final char SEPARATOR = ',';
+
+    // column positions of each variable
+    public static final int GENDER_COLUMN = 0;
+    public static final int SUPP_OXY_COLUMN = 1;
+    public static final int DRUG_USE_COLUMN = 2;
+    public static final int RACE_COLUMN = 3;
+    public static final int INJ_TYPE_COLUMN = 4;
+    public static final int AGE_COLUMN = 5;
+    public static final int AIS_SEV_COLUMN = 6;
+    public static final int GCS_COLUMN = 7;
+    public static final int ISS_COLUMN = 8;
+    public static final int SBP_COLUMN = 9;
+    public static final int PULSE_COLUMN = 10;
+    public static final int BODY_TEMP_COLUMN = 11;
+    public static final int OXY_SAT_COLUMN = 12;
+
+    // number of fields in a record
+    public static final int NUM_COLUMNS = 13;
+
+    // column position of the outcome in a labeled record
+    public static final int OUTCOME_COLUMN = NUM_COLUMNS;
+
+    // comment line naming the columns, written at the top of output files
+    public static final String HEADER = "# Gender,Supplemental Oxygen,Drug Use,"
+            + "Race,Type of Injury,Age,AIS Severity,Glasgow Coma Score,"
+            + "Injury Severity Score,Systolic Blood Pressure,Pulse Rate,"
+            + "Body Temperature,Blood Oxygen Saturation";
+
+    // name of each column, for error reports
+    private static final String[] COLUMN_NAMES =
+            HEADER.substring(2).split(String.valueOf(SEPARATOR));
+
+    private PatientRecordFormat () {
+
+    }
+
+    /**
+     * Tells records apart from blank and comment lines. A comment line is one
+     * whose first non-blank character is '#', so an indented comment is not
+     * taken for a record.
+     *
+     * @param line a line of a patient file
+     * @return true if the line holds a patient record
+     */
+    public static boolean isRecord (String line) {
+        String trimmed = line.trim();
+        return (!trimmed.isEmpty() && trimmed.charAt(0) != '#');
+    }
+
+    /**
+     * Reads the outcome of a labeled record
+     *
+     * @param line a labeled patient record
+     * @return 1 if the patient died, 0 if they survived
+     * @throws IllegalArgumentException the last field is not a valid outcome
+     */
+    public static int getOutcome (String line) throws IllegalArgumentException {
+
+        String outcome = line.substring(line.lastIndexOf(SEPARATOR) + 1).trim();
+
+        if (outcome.equals("1")) {
+            return (1);
+        } else if (outcome.equals("0")) {
+            return (0);
+        } else {
+            throw new IllegalArgumentException ("Invalid Outcome (Outcome"
+                    + " should be 1 or 0)");
+        }
+    }
+
+    /**
+     * Removes the outcome from a labeled record
+     *
+     * @param line a labeled patient record
+     * @return the patient record without its outcome field
+     */
+    public static String withoutOutcome (String line) {
+        int separator = line.lastIndexOf(SEPARATOR);
+        return (separator < 0 ? "" : line.substring(0, separator));
+    }
+
+    /**
+     * Splits a record into its fields
+     *
+     * @param line a patient record
+     * @return the trimmed fields of the record
+     * @throws IllegalArgumentException the record does not have the right
+     * number of fields
+     */
+    public static String[] split (String line) throws IllegalArgumentException {
+
+        String[] fields = new String[NUM_COLUMNS];
+        int start = 0;
+
+        for (int i = 0; i < NUM_COLUMNS; i++) {
+            int end = line.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                if (i != NUM_COLUMNS - 1) {
+                    throw new IllegalArgumentException ("Invalid Record (Record"
+                            + " should have " + NUM_COLUMNS + " fields but has "
+                            + (i + 1) + ")");
+                }
+                end = line.length();
+            } else if (i == NUM_COLUMNS - 1) {
+                throw new IllegalArgumentException ("Invalid Record (Record"
+                        + " should have " + NUM_COLUMNS + " fields but has"
+                        + " more)");
+            }
+            fields[i] = line.substring(start, end).trim();
+            start = end + 1;
+        }
+
+        return (fields);
+    }
+
+    /**
+     * Parses a record into a model through the model's set methods, so that
+     * the same validation as on the calculator UI applies
+     *
+     * @param line a patient record
+     * @param model the model to fill in
+     * @throws IllegalArgumentException a field is missing or not a valid
+     * value for its variable (NumberFormatException for non-numbers)
+     */
+    public static void parse (String line, TBIModel model)
+            throws IllegalArgumentException {
+
+        String[] fields;
+        try {
+            fields = split(line);
+        } catch (IllegalArgumentException malformed) {
+            ScoringEvents.validationFailure("record", "Record", line,
+                    malformed.getMessage());
+            throw malformed;
+        }
+
+        // the column being set, named in the failure event
+        int c = 0;
+        try {
+            model.setGender(fields[c = GENDER_COLUMN]);
+            model.setSupplementalOxy(fields[c = SUPP_OXY_COLUMN]);
+            model.setDrugUse(fields[c = DRUG_USE_COLUMN]);
+            model.setRace(fields[c = RACE_COLUMN]);
+            model.setInjuryType(fields[c = INJ_TYPE_COLUMN]);
+            model.setAge(Double.parseDouble(fields[c = AGE_COLUMN]));
+            model.setAISSev(Integer.parseInt(fields[c = AIS_SEV_COLUMN]));
+            model.setGCS(Integer.parseInt(fields[c = GCS_COLUMN]));
+            model.setISS(Integer.parseInt(fields[c = ISS_COLUMN]));
+            model.setSBP(Double.parseDouble(fields[c = SBP_COLUMN]));
+            model.setPulseRate(Double.parseDouble(fields[c = PULSE_COLUMN]));
+            model.setBodyTemp(Double.parseDouble(
+                    fields[c = BODY_TEMP_COLUMN]));
+            model.setOxySat(Double.parseDouble(fields[c = OXY_SAT_COLUMN]));
+        } catch (IllegalArgumentException invalid) {
+            ScoringEvents.validationFailure("record", COLUMN_NAMES[c],
+                    fields[c], invalid.getMessage());
+            throw invalid;
+        }
+    }
+
+    /**
+     * Writes the inputs of a model as a record
+     *
+     * @param model the model holding the patient's inputs
+     * @return the record, without a line terminator
+     */
+    public static String format (TBIModel model) {
+
+        StringBuilder out = new StringBuilder(80);
+
+        out.append(model.getGender()).append(SEPARATOR)
+                .append(model.getSupplementalOxy()).append(SEPARATOR)
+                .append(model.getDrugUse()).append(SEPARATOR)
+                .append(model.getRace()).append(SEPARATOR)
+                .append(model.getInjuryType()).append(SEPARATOR)
+                .append(model.getAge()).append(SEPARATOR)
+                .append(model.getAISSev()).append(SEPARATOR)
+                .append(model.getGCS()).append(SEPARATOR)
+                .append(model.getISS()).append(SEPARATOR)
+                .append(model.getSBP()).append(SEPARATOR)
+                .append(model.getPulseRate()).append(SEPARATOR)
+                .append(model.getBodyTemp()).append(SEPARATOR)
+                .append(model.getOxySat());
+
+        return (out.toString());
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model over a patient file that is never read whole into memory. A
+ * background thread indexes the byte offset of every record, and the table
+ * grows as the index does. Rows are read, parsed and scored only when the
+ * table asks for them: a cache miss shows a placeholder and queues the row
+ * for a loader thread, which reads it by offset and publishes it back on the
+ * event dispatch thread. Recently shown rows are kept in an LRU cache.
+ *
+ * Sorting by risk reads the whole file on the background thread, scores it
+ * in chunks in the batch lane of a ScoringScheduler, so that the calculator
+ * sharing the scheduler stays responsive, and then swaps in a new row order.
+ * Apart from the placeholders, nothing on the event dispatch thread touches
+ * the file.
+ *
+ * All methods other than close and the constructor are meant to be called on
+ * the event dispatch thread.
+ *
+ * @author okama
+ */
+public class PatientTableModel extends AbstractTableModel
+        implements Closeable {
+
+    // rows kept in the cache
+    static final int CACHE_ROWS = 8192;
+    // requested rows kept waiting; older requests are dropped first, since
+    // they have usually been scrolled past
+    static final int MAX_PENDING = 2048;
+    // chunks of a sort queued in the scheduler at a time
+    private static final int SORT_CHUNKS_IN_FLIGHT = 4;
+    // rows loaded per trip to the event dispatch thread
+    private static final int LOAD_BATCH = 256;
+    // records indexed between row count updates
+    private static final int PUBLISH_INTERVAL = 1 << 16;
+
+    // shown in place of a row that has not been loaded yet
+    private static final String PLACEHOLDER = "...";
+
+    private static final long serialVersionUID = 133213L;
+
+    private final transient FileChannel channel;
+    private final transient Path file;
+    // scores the records for a sort
+    private final transient ScoringScheduler scheduler;
+    private final String[] columnNames;
+
+    // indexes and sorts the file
+    private final transient ExecutorService background;
+    // loads requested rows
+    private final transient ExecutorService loader;
+
+    // byte offset of every record found so far; entries below indexed are
+    // final. The array is replaced, not changed, when it grows.
+    private volatile long[] offsets = new long[1024];
+    private volatile int indexed = 0;
+
+    // the rows the table currently shows, and their order; null for file
+    // order
+    private int rowCount = 0;
+    private int[] viewToRow = null;
+    private boolean indexingDone = false;
+    // set from sortByRisk until the new order is shown or the sort fails
+    private boolean sorting = false;
+
+    private final Map<Integer, Object[]> cache =
+            new LinkedHashMap<Integer, Object[]>(CACHE_ROWS, 0.75f, true) {
+                private static final long serialVersionUID = 133214L;
+
+                @Override
+                protected boolean removeEldestEntry (
+                        Map.Entry<Integer, Object[]> eldest) {
+                    return (size() > CACHE_ROWS);
+                }
+            };
+
+    // rows waiting to be loaded, oldest request first; guarded by itself
+    private final Set<Integer> pending = new LinkedHashSet<>();
+    private boolean loaderScheduled = false;
+
+    private transient Consumer<String> statusListener = status -> { };
+
+    /**
+     * The constructor for the PatientTableModel class. Returns at once;
+     * indexing continues in the background.
+     *
+     * @param file the patient file
+     * @param scheduler scores the records, in its batch lane, when sorting
+     * @throws IOException the file cannot be opened
+     */
+    public PatientTableModel (Path file, ScoringScheduler scheduler)
+            throws IOException {
+
+        this.file = file;
+        this.scheduler = scheduler;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        TBIModel model = new TBIModel();
+        columnNames = new String[PatientRecordFormat.NUM_COLUMNS + 2];
+        columnNames[0] = "#";
+        for (int c = 0; c < PatientRecordFormat.NUM_COLUMNS; c++) {
+            String name = model.getIthVariableName(c);
+            columnNames[c + 1] = name.substring(0, name.length() - 1);
+        }
+        columnNames[columnNames.length - 1] = "Probability (%)";
+
+        background = Executors.newSingleThreadExecutor(
+                task -> daemon(task, "patient-table-index"));
+        loader = Executors.newSingleThreadExecutor(
+                task -> daemon(task, "patient-table-loader"));
+        background.execute(this::index);
+    }
+
+    private static Thread daemon (Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return (thread);
+    }
+
+    /**
+     * Mutator method for the status listener
+     *
+     * @param statusListener receives progress messages on the event
+     * dispatch thread
+     */
+    public void setStatusListener (Consumer<String> statusListener) {
+        this.statusListener = statusListener;
+    }
+
+    public boolean isIndexingDone () {
+        return (indexingDone);
+    }
+
+    /**
+     * @return true from a call to sortByRisk until the sort has finished or
+     * failed; called on the event dispatch thread
+     */
+    public boolean isSorting () {
+        return (sorting);
+    }
+
+    @Override
+    public int getRowCount () {
+        return (rowCount);
+    }
+
+    @Override
+    public int getColumnCount () {
+        return (columnNames.length);
+    }
+
+    @Override
+    public String getColumnName (int column) {
+        return (columnNames[column]);
+    }
+
+    @Override
+    public Object getValueAt (int viewRow, int column) {
+
+        int row = viewToRow == null ? viewRow : viewToRow[viewRow];
+        if (column == 0) {
+            return (row + 1);
+        }
+
+        Object[] values = cache.get(row);
+        if (values == null) {
+            request(row);
+            return (PLACEHOLDER);
+        }
+        return (values[column - 1]);
+    }
+
+    /**
+     * Sorts the rows by probability of mortality, highest first, with
+     * invalid records last. Returns at once; the new order is shown when the
+     * whole file has been scored.
+     */
+    public void sortByRisk () {
+        sorting = true;
+        statusListener.accept("Sorting by risk...");
+        background.execute(this::sort);
+    }
+
+    /**
+     * Stops the background threads and closes the file
+     *
+     * @throws IOException the file cannot be closed
+     */
+    @Override
+    public void close () throws IOException {
+        background.shutdownNow();
+        loader.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * Finds the offset of every record. Runs on the background thread.
+     */
+    private void index () {
+
+        try (PatientFileReader reader = new PatientFileReader(
+                Files.newInputStream(file), 0)) {
+
+            String line;
+            int count = 0;
+            long[] found = offsets;
+            while ((line = reader.readLine()) != null) {
+                if (!PatientRecordFormat.isRecord(line)) {
+                    continue;
+                }
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                    offsets = found;
+                }
+                found[count++] = reader.getLineOffset();
+                if (count % PUBLISH_INTERVAL == 0) {
+                    publishCount(count, false);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            publishCount(count, true);
+
+        } catch (IOException readFailure) {
+            SwingUtilities.invokeLater(() -> statusListener.accept(
+                    "Could not read " + file + ": "
+                            + readFailure.getMessage()));
+        }
+    }
+
+    private void publishCount (final int count, final boolean done) {
+        indexed = count;
+        SwingUtilities.invokeLater(() -> {
+            if (viewToRow == null && count > rowCount) {
+                int first = rowCount;
+                rowCount = count;
+                fireTableRowsInserted(first, count - 1);
+            }
+            indexingDone = done;
+            statusListener.accept(String.format(Locale.ROOT, "%,d records%s",
+                    count, done ? "" : " (indexing...)"));
+        });
+    }
+
+    /**
+     * Scores every record and builds the risk order. Runs on the background
+     * thread, after indexing; the records are scored in chunks in the batch
+     * lane of the scheduler.
+     */
+    private void sort () {
+
+        int count = indexed;
+        long[] keys = new long[count];
+        Deque<Future<Object>> inFlight = new ArrayDeque<>();
+
+        try (PatientFileReader reader = new PatientFileReader(
+                Files.newInputStream(file), 0)) {
+
+            List<String> chunk = new ArrayList<>(ScoringScheduler.CHUNK_SIZE);
+            String line;
+            int row = 0;
+            while (row < count && (line = reader.readLine()) != null) {
+                if (!PatientRecordFormat.isRecord(line)) {
+                    continue;
+                }
+                chunk.add(line);
+                row++;
+                if (chunk.size() == ScoringScheduler.CHUNK_SIZE) {
+                    submitChunk(chunk, row - chunk.size(), keys, inFlight);
+                    chunk = new ArrayList<>(ScoringScheduler.CHUNK_SIZE);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                submitChunk(chunk, row - chunk.size(), keys, inFlight);
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.removeFirst().get();
+            }
+
+        } catch (InterruptedException | CancellationException closed) {
+            // closed, or the window's chunks were cancelled as it closed
+            return;
+        } catch (IOException | ExecutionException |
+                RejectedExecutionException sortFailure) {
+            SwingUtilities.invokeLater(() -> {
+                sorting = false;
+                statusListener.accept("Could not sort " + file + ": "
+                        + sortFailure.getMessage());
+            });
+            return;
+        } finally {
+            for (Future<Object> chunk : inFlight) {
+                chunk.cancel(false);
+            }
+        }
+
+        Arrays.sort(keys);
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = ~(int) keys[count - 1 - i];
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            viewToRow = order;
+            rowCount = order.length;
+            sorting = false;
+            fireTableDataChanged();
+            statusListener.accept(String.format(Locale.ROOT,
+                    "%,d records sorted by risk", order.length));
+        });
+    }
+
+    /**
+     * Queues the scoring of a chunk of a sort, first waiting for the oldest
+     * queued chunk if enough are queued already
+     *
+     * @param first the row of the chunk's first record
+     */
+    private void submitChunk (final List<String> chunk, final int first,
+            final long[] keys, Deque<Future<Object>> inFlight)
+            throws InterruptedException, ExecutionException {
+
+        if (inFlight.size() == SORT_CHUNKS_IN_FLIGHT) {
+            inFlight.removeFirst().get();
+        }
+        inFlight.addLast(scheduler.submit(ScoringScheduler.Lane.BATCH, () -> {
+            TBIModel model = new TBIModel();
+            for (int i = 0; i < chunk.size(); i++) {
+                keys[first + i] = riskKey(chunk.get(i), model, first + i);
+            }
+            return (null);
+        }));
+    }
+
+    /**
+     * Scores a record into its sort key: ascending keys give lowest risk
+     * first, invalid records before all others, and the inverted row number
+     * keeps ties in file order once reversed
+     */
+    private static long riskKey (String line, TBIModel model, int row) {
+
+        float probability;
+        try {
+            PatientRecordFormat.parse(line, model);
+            probability = (float) model.getProbabilityOfMortality();
+        } catch (IllegalArgumentException invalidRecord) {
+            probability = -1;
+        }
+
+        return (((long) Float.floatToIntBits(probability) << 32) |
+                (~row & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Queues a row for the loader
+     */
+    private void request (int row) {
+        synchronized (pending) {
+            if (pending.add(row) && pending.size() > MAX_PENDING) {
+                Iterator<Integer> oldest = pending.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            if (!loaderScheduled) {
+                loaderScheduled = true;
+                loader.execute(this::loadPending);
+            }
+        }
+    }
+
+    /**
+     * Loads queued rows until none are left. Runs on the loader thread.
+     */
+    private void loadPending () {
+
+        TBIModel model = new TBIModel();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            List<Integer> rows = new ArrayList<>(LOAD_BATCH);
+            synchronized (pending) {
+                Iterator<Integer> next = pending.iterator();
+                while (next.hasNext() && rows.size() < LOAD_BATCH) {
+                    rows.add(next.next());
+                    next.remove();
+                }
+                if (rows.isEmpty()) {
+                    loaderScheduled = false;
+                    return;
+                }
+            }
+
+            final Map<Integer, Object[]> loaded = new LinkedHashMap<>();
+            long[] known = offsets;
+            for (int row : rows) {
+                try {
+                    loaded.put(row, load(readLine(known[row], buffer), model));
+                } catch (IOException readFailure) {
+                    Object[] values = new Object[columnNames.length - 1];
+                    Arrays.fill(values, "");
+                    values[values.length - 1] = "Read error: "
+                            + readFailure.getMessage();
+                    loaded.put(row, values);
+                }
+            }
+
+            SwingUtilities.invokeLater(() -> {
+                cache.putAll(loaded);
+                if (rowCount > 0) {
+                    fireTableRowsUpdated(0, rowCount - 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Parses and scores one record
+     *
+     * @return the field values followed by the probability, as shown
+     */
+    private static Object[] load (String line, TBIModel model) {
+
+        Object[] values = new Object[PatientRecordFormat.NUM_COLUMNS + 1];
+        Arrays.fill(values, "");
+
+        try {
+            String[] fields = PatientRecordFormat.split(line);
+            System.arraycopy(fields, 0, values, 0, fields.length);
+            PatientRecordFormat.parse(line, model);
+            values[values.length - 1] = String.format(Locale.ROOT, "%.2f",
+                    model.getProbabilityOfMortality() * 100);
+        } catch (IllegalArgumentException invalidRecord) {
+            if (values[0].equals("")) {
+                values[0] = line;
+            }
+            values[values.length - 1] = "Invalid: "
+                    + invalidRecord.getMessage();
+        }
+
+        return (values);
+    }
+
+    /**
+     * Reads the line starting at an offset of the file
+     */
+    private String readLine (long offset, ByteBuffer buffer)
+            throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        long position = offset;
+
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            int end = 0;
+            while (end < read && bytes[end] != '\n') {
+                end++;
+            }
+            line.write(bytes, 0, end);
+            if (end < read) {
+                break;
+            }
+            position += read;
+        }
+
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return (text.endsWith("\r") ? text.substring(0, text.length() - 1) :
+                text);
+    }
+}
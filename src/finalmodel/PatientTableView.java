@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+// swing for ui components
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+
+// various imports for style
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Toolkit;
+
+// file access
+import java.io.IOException;
+import java.nio.file.Path;
+
+// track window actions
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * A window listing the patients of a patient file with their probability of
+ * mortality. The rows are read and scored lazily by a PatientTableModel, so
+ * the window opens at once whatever the size of the file.
+ *
+ * @author okama
+ */
+public class PatientTableView extends JFrame {
+
+    protected PatientTableModel tableModel;
+
+    protected JTable table;
+
+    // sorts the rows by probability of mortality
+    protected JButton sortByRisk = new JButton("Sort by Risk");
+
+    // shows indexing and sorting progress
+    protected JLabel status = new JLabel(" ");
+
+    private static final long serialVersionUID = 133215L;
+
+    /**
+     * The constructor for the PatientTableView class
+     *
+     * @param file the patient file to show
+     * @param scheduler scores the records when sorting, in its batch lane
+     * @throws IOException the file cannot be opened
+     */
+    public PatientTableView (Path file, ScoringScheduler scheduler)
+            throws IOException {
+
+        super(file.getFileName().toString());
+
+        tableModel = new PatientTableModel(file, scheduler);
+        tableModel.setStatusListener(message -> {
+            status.setText(message);
+            // progress messages arrive during a sort too; keep it off then
+            sortByRisk.setEnabled(tableModel.isIndexingDone() &&
+                    !tableModel.isSorting());
+        });
+
+        table = new JTable(tableModel);
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        table.getColumnModel().getColumn(0).setPreferredWidth(80);
+        table.getColumnModel().getColumn(tableModel.getColumnCount() - 1)
+                .setPreferredWidth(160);
+        table.setFillsViewportHeight(true);
+
+        sortByRisk.setEnabled(false);
+        sortByRisk.addActionListener(e -> {
+            sortByRisk.setEnabled(false);
+            tableModel.sortByRisk();
+        });
+
+        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        bottom.add(sortByRisk);
+        bottom.add(status);
+
+        this.setLayout(new BorderLayout());
+        this.add(new JScrollPane(table), BorderLayout.CENTER);
+        this.add(bottom, BorderLayout.SOUTH);
+
+        this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed (WindowEvent we) {
+                try {
+                    tableModel.close();
+                } catch (IOException closeFailure) {
+                    System.err.println("Patient file not closed cleanly: " +
+                            closeFailure.getMessage());
+                }
+            }
+        });
+
+        Dimension dim = Toolkit.getDefaultToolkit().getScreenSize();
+        this.setPreferredSize(new Dimension(dim.width * 3 / 4,
+                dim.height * 3 / 4));
+        this.pack();
+        this.setLocationRelativeTo(null);
+        this.setVisible(true);
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Append-only journal of predictions for audit purposes. Records are written
+ * into memory-mapped segment files; a background committer thread forces the
+ * mapped pages to disk so that many appends share a single flush (group
+ * commit). When a segment fills up a new one is started.
+ *
+ * Only the calculator window (ModelUI) appends to the journal; the batch and
+ * streaming scorers leave their output files as the record of a run.
+ *
+ * Appending only copies a few dozen bytes into the mapped segment, so callers
+ * are never held up by the disk. Callers that need to know a record is
+ * durable can wait for it with awaitDurable.
+ *
+ * An open journal holds an exclusive lock on a lock file in its directory, so
+ * a second process, or a second journal in the same process, cannot append
+ * to the same segments.
+ *
+ * @author okama
+ */
+public class PredictionJournal implements Closeable {
+
+    // default size of each segment file (64 MiB)
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // default time the committer lingers to let more appends join a flush
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 2;
+
+    // segment header: magic "TMP3", format version, base sequence number
+    static final int SEGMENT_MAGIC = 0x544D5033;
+    static final int SEGMENT_FORMAT_VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 16;
+    static final String SEGMENT_SUFFIX = ".journal";
+    // the file locked while a journal is open; never read or written
+    static final String LOCK_FILE_NAME = ".lock";
+
+    // the directory holding the segment files
+    private final Path directory;
+    // size of each newly created segment
+    private final int segmentSize;
+    // how long the committer waits for more appends before flushing
+    private final long commitIntervalMillis;
+    // channel of the lock file, held open while the journal is open
+    private final FileChannel lockChannel;
+    // exclusive lock on the directory, released by close
+    private final FileLock lock;
+
+    // the segment currently being appended to
+    private MappedByteBuffer segment;
+    // sequence number given to the next appended record
+    private long nextSequence;
+    // highest sequence number that has been forced to disk
+    private long durableSequence;
+    // set once close has been called
+    private boolean closed = false;
+    // first failure of the committer, reported to later callers
+    private IOException commitFailure;
+
+    private final Thread committer;
+
+    /**
+     * Opens the journal in the given directory with default settings,
+     * creating the directory if needed
+     *
+     * @param directory the directory holding the segment files
+     * @throws IOException the journal cannot be opened
+     */
+    public PredictionJournal (Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the journal in the given directory, creating the directory if
+     * needed. Appending continues after the last intact record of the newest
+     * segment; a record torn by a crash is overwritten.
+     *
+     * @param directory the directory holding the segment files
+     * @param segmentSize the size in bytes of each segment file
+     * @param commitIntervalMillis how long the committer lingers to gather
+     * appends into one flush; 0 flushes as soon as anything is pending
+     * @throws IOException the journal cannot be opened or is in use by
+     * another journal
+     * @throws IllegalArgumentException the segment size cannot hold a record
+     */
+    public PredictionJournal (Path directory, int segmentSize,
+            long commitIntervalMillis) throws IOException {
+
+        if (segmentSize < SEGMENT_HEADER_SIZE + 1024) {
+            throw new IllegalArgumentException ("Invalid Segment Size"
+                    + " (Segment size should be at least "
+                    + (SEGMENT_HEADER_SIZE + 1024) + " bytes)");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitIntervalMillis = commitIntervalMillis;
+
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockDirectory(lockChannel, directory);
+
+            List<Path> segments = JournalReader.listSegments(directory);
+            if (segments.isEmpty()) {
+                startSegment(0);
+            } else {
+                reopenSegment(segments.get(segments.size() - 1));
+            }
+        } catch (IOException | RuntimeException failure) {
+            lockChannel.close();
+            throw failure;
+        }
+        durableSequence = nextSequence - 1;
+
+        committer = new Thread(new Committer(), "prediction-journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends the inputs of a model and the prediction the caller made from
+     * them to the journal, stamped with the current time
+     *
+     * @param model the model holding the inputs
+     * @param link the link value of the prediction
+     * @param probability the predicted probability of mortality
+     * @return the sequence number of the new record
+     * @throws IOException the journal is closed or a segment could not be
+     * created
+     */
+    public long append (TBIModel model, double link, double probability)
+            throws IOException {
+        return (append(model, link, probability, System.currentTimeMillis()));
+    }
+
+    /**
+     * Appends the inputs of a model and the prediction the caller made from
+     * them to the journal
+     *
+     * @param model the model holding the inputs
+     * @param link the link value of the prediction
+     * @param probability the predicted probability of mortality
+     * @param timestamp the time of the prediction in milliseconds since epoch
+     * @return the sequence number of the new record
+     * @throws IOException the journal is closed or a segment could not be
+     * created
+     */
+    public long append (TBIModel model, double link, double probability,
+            long timestamp) throws IOException {
+
+        // build the record outside the lock; only the copy is serialized
+        JournalRecord record = JournalRecord.of(0, timestamp, model, link,
+                probability);
+        int length = record.encodedLength();
+
+        synchronized (this) {
+            checkOpen();
+
+            long sequence = nextSequence;
+            record = record.withSequence(sequence);
+
+            // keep room for the zero length that marks the end of a segment
+            if (segment.remaining() < length + 4) {
+                rollOver();
+            }
+
+            record.writeTo(segment);
+            nextSequence++;
+            notifyAll();
+
+            return (sequence);
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every record
+     * before it, has been forced to disk
+     *
+     * @param sequence the sequence number returned by append
+     * @throws IOException the committer failed to flush the journal
+     * @throws InterruptedIOException the waiting thread was interrupted
+     */
+    public synchronized void awaitDurable (long sequence) throws IOException {
+
+        while (durableSequence < sequence) {
+            if (commitFailure != null) {
+                throw commitFailure;
+            }
+            if (closed) {
+                throw new IOException ("Journal closed before record "
+                        + sequence + " was made durable");
+            }
+            try {
+                wait();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException ("Interrupted while waiting"
+                        + " for journal commit");
+            }
+        }
+    }
+
+    /**
+     * Accessor method for the journal directory
+     *
+     * @return directory the directory holding the segment files
+     */
+    public Path getDirectory () {
+        return (directory);
+    }
+
+    /**
+     * Flushes everything appended so far and stops the committer. Further
+     * appends fail.
+     *
+     * @throws IOException the final flush failed
+     */
+    @Override
+    public void close () throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                segment.force();
+                durableSequence = nextSequence - 1;
+            } finally {
+                notifyAll();
+            }
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            lock.release();
+        } finally {
+            lockChannel.close();
+        }
+
+        synchronized (this) {
+            if (commitFailure != null) {
+                throw commitFailure;
+            }
+        }
+    }
+
+    /**
+     * Takes the exclusive lock on a journal directory without waiting
+     */
+    private static FileLock lockDirectory (FileChannel channel, Path directory)
+            throws IOException {
+
+        FileLock acquired;
+        try {
+            acquired = channel.tryLock();
+        } catch (OverlappingFileLockException held) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            throw new IOException ("Journal " + directory
+                    + " is in use by another journal");
+        }
+        return (acquired);
+    }
+
+    private void checkOpen () throws IOException {
+        if (closed) {
+            throw new IOException ("Journal is closed");
+        }
+        if (commitFailure != null) {
+            throw commitFailure;
+        }
+    }
+
+    /**
+     * Forces the full segment to disk and starts a new one. Called with the
+     * lock held, so appends wait for the rollover; this happens once per
+     * segment.
+     */
+    private void rollOver () throws IOException {
+        segment.force();
+        durableSequence = nextSequence - 1;
+        notifyAll();
+        startSegment(nextSequence);
+    }
+
+    /**
+     * Creates and maps a new segment whose first record will carry the given
+     * sequence number
+     */
+    private void startSegment (long baseSequence) throws IOException {
+
+        Path file = directory.resolve(segmentName(baseSequence));
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    segmentSize);
+        }
+
+        segment.putInt(SEGMENT_MAGIC);
+        segment.putInt(SEGMENT_FORMAT_VERSION);
+        segment.putLong(baseSequence);
+        segment.force();
+
+        nextSequence = baseSequence;
+    }
+
+    /**
+     * Maps an existing segment and positions it after its last intact record
+     */
+    private void reopenSegment (Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    channel.size());
+        }
+
+        long baseSequence = JournalReader.readSegmentHeader(segment, file);
+        nextSequence = baseSequence;
+
+        JournalRecord record;
+        while ((record = JournalRecord.readFrom(segment)) != null) {
+            nextSequence = record.getSequence() + 1;
+        }
+
+        // clear whatever a torn write left behind so the end marker is intact
+        if (segment.remaining() >= 4) {
+            segment.putInt(segment.position(), 0);
+        }
+    }
+
+    static String segmentName (long baseSequence) {
+        return (String.format("%020d%s", baseSequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Flushes pending appends in the background. Every flush covers all
+     * records appended up to the moment it starts, so concurrent appenders
+     * share one flush.
+     */
+    private class Committer implements Runnable {
+
+        @Override
+        public void run () {
+
+            while (true) {
+
+                MappedByteBuffer toFlush;
+                long target;
+
+                synchronized (PredictionJournal.this) {
+                    while (!closed && durableSequence >= nextSequence - 1) {
+                        try {
+                            PredictionJournal.this.wait();
+                        } catch (InterruptedException interrupted) {
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+
+                // linger briefly so that a burst of appends shares the flush
+                if (commitIntervalMillis > 0) {
+                    try {
+                        Thread.sleep(commitIntervalMillis);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+
+                synchronized (PredictionJournal.this) {
+                    toFlush = segment;
+                    target = nextSequence - 1;
+                }
+
+                try {
+                    toFlush.force();
+                } catch (RuntimeException failure) {
+                    synchronized (PredictionJournal.this) {
+                        commitFailure = new IOException ("Journal flush"
+                                + " failed", failure);
+                        PredictionJournal.this.notifyAll();
+                    }
+                    return;
+                }
+
+                synchronized (PredictionJournal.this) {
+                    if (target > durableSequence) {
+                        durableSequence = target;
+                    }
+                    PredictionJournal.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * Splits the probability of mortality into risk bands at a set of
+ * thresholds. With thresholds t1 &lt; t2 &lt; ... band 0 holds probabilities
+ * below t1, band 1 those from t1 up to t2, and so on. The thresholds are also
+ * kept on the link scale so that bands can be assigned without computing the
+ * probability.
+ *
+ * @author okama
+ */
+public final class RiskBands {
+
+    // the bands used unless configured otherwise: under 10%, 10-25%, 25-50%
+    // and 50% or more
+    public static final RiskBands DEFAULT = new RiskBands(
+            new double[] {0.10, 0.25, 0.50},
+            new String[] {"Low", "Moderate", "High", "Very High"});
+
+    private final double[] thresholds;
+    private final double[] linkThresholds;
+    private final String[] names;
+
+    /**
+     * The constructor for the RiskBands class
+     *
+     * @param thresholds the probabilities at which each band after the first
+     * starts, in increasing order and strictly between 0 and 1
+     * @param names the name of each band; one more than the thresholds
+     * @throws IllegalArgumentException the thresholds or names are invalid
+     */
+    public RiskBands (double[] thresholds, String[] names)
+            throws IllegalArgumentException {
+
+        if (names.length != thresholds.length + 1) {
+            throw new IllegalArgumentException ("Invalid Risk Bands (There"
+                    + " should be one more name than thresholds)");
+        }
+
+        linkThresholds = new double[thresholds.length];
+        for (int i = 0; i < thresholds.length; i++) {
+            if (!(thresholds[i] > 0 && thresholds[i] < 1) ||
+                    (i > 0 && !(thresholds[i] > thresholds[i - 1]))) {
+                throw new IllegalArgumentException ("Invalid Risk Bands"
+                        + " (Thresholds should increase strictly between 0"
+                        + " and 1)");
+            }
+            linkThresholds[i] = TBIModel.getLinkForProbability(thresholds[i]);
+        }
+
+        this.thresholds = thresholds.clone();
+        this.names = names.clone();
+    }
+
+    public int getNumBands () {
+        return (names.length);
+    }
+
+    /**
+     * Accessor method for the name of a band
+     *
+     * @param band the index of the band
+     * @return the name of the band
+     */
+    public String getBandName (int band) {
+        return (names[band]);
+    }
+
+    /**
+     * Accessor method for the start of a band
+     *
+     * @param band the index of the band
+     * @return the lowest probability in the band
+     */
+    public double getLowerBound (int band) {
+        return (band == 0 ? 0 : thresholds[band - 1]);
+    }
+
+    /**
+     * Finds the band of a probability of mortality
+     *
+     * @param probability the probability
+     * @return the index of its band
+     */
+    public int bandOf (double probability) {
+        int band = 0;
+        for (double threshold : thresholds) {
+            band += probability >= threshold ? 1 : 0;
+        }
+        return (band);
+    }
+
+    /**
+     * Finds the band of a prediction from its link value
+     *
+     * @param link the link value
+     * @return the index of its band
+     */
+    public int bandOfLink (double link) {
+        int band = 0;
+        for (double threshold : linkThresholds) {
+            band += link >= threshold ? 1 : 0;
+        }
+        return (band);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+// swing for ui components
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+// drawing
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// rendering off the event dispatch thread
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * Shows the predicted probability of mortality over every combination of
+ * Glasgow Coma Score (vertically) and Injury Severity Score (horizontally),
+ * with the other inputs fixed at those of the current patient.
+ *
+ * The link of every cell is the patient's link without its GCS and ISS terms
+ * plus the precomputed terms of the cell's GCS and ISS, so a new patient only
+ * costs one link evaluation and an exp per cell. Rendering runs on a
+ * background thread, computing grid rows and then filling pixel rows in
+ * parallel into one of two reused images; the finished image is swapped in on the event dispatch thread, and
+ * only then is the next drawing started. If patients arrive faster than they
+ * can be drawn, only the latest is drawn.
+ *
+ * Apart from the drawing itself, all methods run on the event dispatch
+ * thread.
+ *
+ * @author okama
+ */
+public class RiskHeatmapPanel extends JPanel {
+
+    private static final long serialVersionUID = 133216L;
+
+    // margins left for the axis labels, in pixels
+    private static final int LEFT_MARGIN = 30;
+    private static final int BOTTOM_MARGIN = 20;
+
+    // colors from probability 0 (green) through 0.5 (yellow) to 1 (red)
+    private static final int PALETTE_SIZE = 256;
+    private static final int[] PALETTE = new int[PALETTE_SIZE];
+
+    static {
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            double p = i / (PALETTE_SIZE - 1.0);
+            int red = (int) Math.round(255 * Math.min(1, 2 * p));
+            int green = (int) Math.round(255 * Math.min(1, 2 * (1 - p)));
+            PALETTE[i] = (red << 16) | (green << 8) | 40;
+        }
+    }
+
+    private final int minGCS;
+    private final int minISS;
+    private final int numGCS;
+    private final int numISS;
+    // the GCS and ISS terms of every grid value
+    private final double[] gcsTerms;
+    private final double[] issTerms;
+    private final double gcsCoefficient;
+    private final double issCoefficient;
+    private final ModelCoefficients coefficients;
+
+    private final transient ExecutorService renderer =
+            Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "heatmap-renderer");
+                thread.setDaemon(true);
+                return (thread);
+            });
+
+    // the latest patient, the one waiting to be drawn if any, and whether a
+    // drawing is under way
+    private transient TBIModel patient;
+    private transient TBIModel pending;
+    private boolean drawing = false;
+
+    // the image shown, and the one drawn into next
+    private transient BufferedImage front;
+    private transient BufferedImage back;
+    // the patient's cell in the image shown
+    private int markedGCS = -1;
+    private int markedISS = -1;
+
+    /**
+     * The constructor for the RiskHeatmapPanel class
+     */
+    public RiskHeatmapPanel () {
+
+        TBIModel ranges = new TBIModel();
+        coefficients = ranges.getCoefficients();
+
+        minGCS = (int) ranges.getIthContVarMinimum(PatientBatch.GCS_INDEX);
+        minISS = (int) ranges.getIthContVarMinimum(PatientBatch.ISS_INDEX);
+        numGCS = (int) ranges.getIthContVarMaximum(PatientBatch.GCS_INDEX) -
+                minGCS + 1;
+        numISS = (int) ranges.getIthContVarMaximum(PatientBatch.ISS_INDEX) -
+                minISS + 1;
+
+        gcsCoefficient = coefficients.getCoefficient(ModelCoefficients.GCS_TERM);
+        issCoefficient = coefficients.getCoefficient(ModelCoefficients.ISS_TERM);
+        gcsTerms = new double[numGCS];
+        for (int g = 0; g < numGCS; g++) {
+            gcsTerms[g] = gcsCoefficient * (minGCS + g);
+        }
+        issTerms = new double[numISS];
+        for (int i = 0; i < numISS; i++) {
+            issTerms[i] = issCoefficient * (minISS + i);
+        }
+
+        setBackground(Color.WHITE);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized (ComponentEvent ce) {
+                if (patient != null) {
+                    setPatient(patient);
+                }
+            }
+        });
+    }
+
+    /**
+     * Redraws the map around a patient. Returns at once.
+     *
+     * @param newPatient the model holding the patient's inputs; it must not
+     * be changed afterwards
+     */
+    public void setPatient (TBIModel newPatient) {
+        patient = newPatient;
+        pending = newPatient;
+        if (!drawing) {
+            startDrawing();
+        }
+    }
+
+    /**
+     * Empties the map until the next patient is set. A drawing under way is
+     * not shown.
+     */
+    public void clear () {
+        patient = null;
+        pending = null;
+        front = null;
+        markedGCS = -1;
+        markedISS = -1;
+        repaint();
+    }
+
+    /**
+     * Stops the rendering thread
+     */
+    public void dispose () {
+        renderer.shutdownNow();
+    }
+
+    private void startDrawing () {
+
+        final TBIModel drawn = pending;
+        final int width = Math.max(1, getWidth() - LEFT_MARGIN);
+        final int height = Math.max(1, getHeight() - BOTTOM_MARGIN);
+        final BufferedImage target = back != null &&
+                back.getWidth() == width && back.getHeight() == height ?
+                back : new BufferedImage(width, height,
+                        BufferedImage.TYPE_INT_RGB);
+
+        pending = null;
+        drawing = true;
+        renderer.execute(() -> {
+            boolean rendered = false;
+            try {
+                render(drawn, target);
+                rendered = true;
+            } finally {
+                // a failed drawing must still let the next one start
+                final boolean show = rendered;
+                SwingUtilities.invokeLater(() -> {
+                    // a patient of null means the map was cleared meanwhile
+                    if (show && patient != null) {
+                        back = front;
+                        front = target;
+                        markedGCS = drawn.getGCS() - minGCS;
+                        markedISS = drawn.getISS() - minISS;
+                        repaint();
+                    }
+                    drawing = false;
+                    if (pending != null) {
+                        startDrawing();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Draws the map of a patient into an image. Runs on the rendering thread.
+     */
+    private void render (TBIModel drawn, BufferedImage image) {
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // only the GCS and ISS terms vary over the grid
+        double[] termValues = new double[ModelCoefficients.NUM_TERMS];
+        drawn.getTermValues(termValues);
+        final double base = coefficients.link(termValues) -
+                gcsCoefficient * drawn.getGCS() -
+                issCoefficient * drawn.getISS();
+
+        final int[] cellColors = new int[numGCS * numISS];
+        IntStream.range(0, numGCS).parallel().forEach(g -> {
+            int rowStart = g * numISS;
+            for (int i = 0; i < numISS; i++) {
+                double link = base + gcsTerms[g] + issTerms[i];
+                double probability = 1 / (1 + Math.exp(-link));
+                cellColors[rowStart + i] =
+                        PALETTE[(int) (probability * (PALETTE_SIZE - 1))];
+            }
+        });
+
+        final int[] columnCells = new int[width];
+        for (int x = 0; x < width; x++) {
+            columnCells[x] = x * numISS / width;
+        }
+
+        final int[] pixels =
+                ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        IntStream.range(0, height).parallel().forEach(y -> {
+            // highest GCS at the top
+            int rowStart = (numGCS - 1 - y * numGCS / height) * numISS;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[offset + x] = cellColors[rowStart + columnCells[x]];
+            }
+        });
+    }
+
+    @Override
+    protected void paintComponent (Graphics g) {
+
+        super.paintComponent(g);
+
+        BufferedImage image = front;
+        if (image == null) {
+            return;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        g.drawImage(image, LEFT_MARGIN, 0, null);
+
+        // outline the patient's own cell
+        if (markedGCS >= 0 && markedGCS < numGCS &&
+                markedISS >= 0 && markedISS < numISS) {
+            int x0 = LEFT_MARGIN + markedISS * width / numISS;
+            int x1 = LEFT_MARGIN + (markedISS + 1) * width / numISS;
+            int y0 = (numGCS - 1 - markedGCS) * height / numGCS;
+            int y1 = (numGCS - markedGCS) * height / numGCS;
+            g.setColor(Color.BLACK);
+            g.drawRect(x0, y0, Math.max(1, x1 - x0 - 1),
+                    Math.max(1, y1 - y0 - 1));
+        }
+
+        g.setColor(Color.BLACK);
+        g.drawString("GCS", 2, 12);
+        g.drawString(Integer.toString(minGCS + numGCS - 1), 2, 28);
+        g.drawString(Integer.toString(minGCS), 2, height - 4);
+        g.drawString("ISS " + minISS, LEFT_MARGIN, height + 15);
+        String last = Integer.toString(minISS + numISS - 1);
+        g.drawString(last, LEFT_MARGIN + width -
+                g.getFontMetrics().stringWidth(last), height + 15);
+    }
+}
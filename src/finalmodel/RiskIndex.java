@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index over a cohort of scored patients, kept ordered by link value. Since
+ * the probability of mortality is monotone in the link, the order is also the
+ * risk order, and probability ranges map to link ranges through
+ * TBIModel.getLinkForProbability.
+ *
+ * Insertion, removal and locating the start of a query take logarithmic time;
+ * a query then walks only the entries it returns. Queries never re-sort the
+ * cohort. The index can be shared between threads: queries run concurrently
+ * with each other, insertions are serialized.
+ *
+ * @author okama
+ */
+public class RiskIndex {
+
+    /**
+     * A patient as held in the index
+     */
+    public static final class Entry {
+
+        private final String patientId;
+        private final double link;
+        // insertion counter; breaks ties between equal links
+        private final long order;
+
+        private Entry (String patientId, double link, long order) {
+            this.patientId = patientId;
+            this.link = link;
+            this.order = order;
+        }
+
+        public String getPatientId () {
+            return (patientId);
+        }
+
+        public double getLink () {
+            return (link);
+        }
+
+        /**
+         * @return the probability of mortality corresponding to the link
+         */
+        public double getProbabilityOfMortality () {
+            return (1 / (1 + Math.exp(-link)));
+        }
+
+        @Override
+        public String toString () {
+            return (patientId + "\t" + getProbabilityOfMortality());
+        }
+    }
+
+    // orders entries by link, then by insertion
+    private static final Comparator<Entry> LINK_ORDER = (a, b) -> {
+        int byLink = Double.compare(a.link, b.link);
+        return (byLink != 0 ? byLink : Long.compare(a.order, b.order));
+    };
+
+    // all entries in link order
+    private final TreeSet<Entry> byLink = new TreeSet<>(LINK_ORDER);
+    // the entry of each patient, so re-scoring replaces the old entry
+    private final Map<String, Entry> byPatient = new HashMap<>();
+    // next insertion counter value
+    private long nextOrder = 0;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Scores the model and adds the patient to the index, replacing any
+     * earlier entry for the same patient
+     *
+     * @param patientId the identifier of the patient
+     * @param model the model holding the patient's inputs
+     */
+    public void put (String patientId, TBIModel model) {
+        model.getProbabilityOfMortality();
+        put(patientId, model.getLink());
+    }
+
+    /**
+     * Adds an already scored patient to the index, replacing any earlier entry
+     * for the same patient
+     *
+     * @param patientId the identifier of the patient
+     * @param link the link value of the patient's prediction
+     * @throws IllegalArgumentException the link must be a number
+     */
+    public void put (String patientId, double link)
+            throws IllegalArgumentException {
+
+        if (Double.isNaN(link)) {
+            throw new IllegalArgumentException ("Invalid Link Value for "
+                    + patientId);
+        }
+
+        lock.writeLock().lock();
+        try {
+            Entry entry = new Entry(patientId, link, nextOrder++);
+            Entry previous = byPatient.put(patientId, entry);
+            if (previous != null) {
+                byLink.remove(previous);
+            }
+            byLink.add(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a patient from the index
+     *
+     * @param patientId the identifier of the patient
+     * @return true if the patient was in the index
+     */
+    public boolean remove (String patientId) {
+
+        lock.writeLock().lock();
+        try {
+            Entry previous = byPatient.remove(patientId);
+            if (previous != null) {
+                byLink.remove(previous);
+            }
+            return (previous != null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the number of patients in the index
+     *
+     * @return the number of patients
+     */
+    public int size () {
+
+        lock.readLock().lock();
+        try {
+            return (byLink.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the highest risk patients
+     *
+     * @param k the number of patients wanted
+     * @return up to k entries, highest risk first
+     * @throws IllegalArgumentException k must not be negative
+     */
+    public List<Entry> topK (int k) throws IllegalArgumentException {
+
+        if (k < 0) {
+            throw new IllegalArgumentException ("Invalid K (K should not be"
+                    + " negative)");
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Entry> top = new ArrayList<>(Math.min(k, byLink.size()));
+            Iterator<Entry> highestFirst = byLink.descendingIterator();
+            while (top.size() < k && highestFirst.hasNext()) {
+                top.add(highestFirst.next());
+            }
+            return (top);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the patients whose probability of mortality lies in a range
+     *
+     * @param lowProbability the lower end of the range (inclusive)
+     * @param highProbability the upper end of the range (inclusive)
+     * @return the matching entries, highest risk first
+     * @throws IllegalArgumentException the bounds must be probabilities with
+     * the lower not above the upper
+     */
+    public List<Entry> inProbabilityRange (double lowProbability,
+            double highProbability) throws IllegalArgumentException {
+
+        if (lowProbability > highProbability) {
+            throw new IllegalArgumentException ("Invalid Probability Range"
+                    + " (Lower bound is above upper bound)");
+        }
+
+        double lowLink = TBIModel.getLinkForProbability(lowProbability);
+        double highLink = TBIModel.getLinkForProbability(highProbability);
+
+        // bounding entries that sort before and after every real entry with
+        // the same link
+        Entry from = new Entry(null, lowLink, Long.MIN_VALUE);
+        Entry to = new Entry(null, highLink, Long.MAX_VALUE);
+
+        lock.readLock().lock();
+        try {
+            NavigableSet<Entry> range = byLink.subSet(from, true, to, true);
+            List<Entry> matches = new ArrayList<>();
+            for (Entry entry : range.descendingSet()) {
+                matches.add(entry);
+            }
+            return (matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
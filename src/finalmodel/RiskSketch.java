@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution of predicted risk. Predictions are
+ * counted in fixed-width bins over the link scale, where the model is linear,
+ * so the sketch has the same resolution for rare and common risks. Two
+ * sketches are merged by adding their bins, which makes the sketch suitable
+ * for per-thread accumulation.
+ *
+ * A quantile is interpolated within the bin that holds it, and the links
+ * counted in that bin may lie anywhere in it, so the estimate is off by up to
+ * a whole bin: 0.025 on the link scale with the default bins. On the
+ * probability scale that is at most 0.00625 (a quarter of the link error, at
+ * a risk of 50%) in absolute terms, and at most 2.6% of the probability in
+ * relative terms. Links outside the binned range are clamped to its ends.
+ *
+ * A sketch is not thread safe; give each thread its own and merge them.
+ *
+ * @author okama
+ */
+public class RiskSketch {
+
+    // default range of links that are binned, and number of bins
+    public static final double DEFAULT_MIN_LINK = -15;
+    public static final double DEFAULT_MAX_LINK = 15;
+    public static final int DEFAULT_NUM_BINS = 1200;
+
+    private final double minLink;
+    private final double maxLink;
+    // bins per unit of link
+    private final double scale;
+    private final long[] bins;
+    private long count = 0;
+
+    /**
+     * The constructor for the RiskSketch class, with the default bins
+     */
+    public RiskSketch () {
+        this(DEFAULT_MIN_LINK, DEFAULT_MAX_LINK, DEFAULT_NUM_BINS);
+    }
+
+    /**
+     * The constructor for the RiskSketch class
+     *
+     * @param minLink the lowest link that is binned
+     * @param maxLink the highest link that is binned
+     * @param numBins the number of bins across the range
+     * @throws IllegalArgumentException the range must not be empty and there
+     * must be at least one bin
+     */
+    public RiskSketch (double minLink, double maxLink, int numBins)
+            throws IllegalArgumentException {
+
+        if (!(minLink < maxLink) || numBins < 1) {
+            throw new IllegalArgumentException ("Invalid Sketch Bins");
+        }
+
+        this.minLink = minLink;
+        this.maxLink = maxLink;
+        this.scale = numBins / (maxLink - minLink);
+        this.bins = new long[numBins];
+    }
+
+    /**
+     * Counts one prediction
+     *
+     * @param link the link value of the prediction
+     */
+    public void add (double link) {
+        bins[binOf(link)]++;
+        count++;
+    }
+
+    /**
+     * Adds the counts of another sketch with the same bins to this one
+     *
+     * @param other the sketch to merge in
+     * @throws IllegalArgumentException the sketches must have the same bins
+     */
+    public void merge (RiskSketch other) throws IllegalArgumentException {
+
+        if (other.bins.length != bins.length || other.minLink != minLink ||
+                other.maxLink != maxLink) {
+            throw new IllegalArgumentException ("Cannot merge sketches with"
+                    + " different bins");
+        }
+
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] += other.bins[i];
+        }
+        count += other.count;
+    }
+
+    /**
+     * Empties the sketch
+     */
+    public void clear () {
+        Arrays.fill(bins, 0);
+        count = 0;
+    }
+
+    public long getCount () {
+        return (count);
+    }
+
+    public int getNumBins () {
+        return (bins.length);
+    }
+
+    /**
+     * Accessor method for the count of a bin
+     *
+     * @param bin the index of the bin
+     * @return the number of predictions counted in the bin
+     */
+    public long getBinCount (int bin) {
+        return (bins[bin]);
+    }
+
+    /**
+     * Accessor method for the lower edge of a bin
+     *
+     * @param bin the index of the bin; getNumBins() gives the upper edge of
+     * the last bin
+     * @return the link value at the lower edge of the bin
+     */
+    public double getBinLowerLink (int bin) {
+        return (minLink + bin / scale);
+    }
+
+    /**
+     * Finds the bin a link value falls into
+     *
+     * @param link the link value
+     * @return the index of the bin, clamped to the binned range
+     */
+    public int binOf (double link) {
+        int bin = (int) ((link - minLink) * scale);
+        return (bin < 0 ? 0 : (bin >= bins.length ? bins.length - 1 : bin));
+    }
+
+    /**
+     * Estimates a quantile of the link, interpolating within the bin that
+     * holds it
+     *
+     * @param q the quantile wanted, between 0 and 1
+     * @return the estimated link at the quantile; NaN if the sketch is empty
+     * @throws IllegalArgumentException q must be between 0 and 1
+     */
+    public double getLinkQuantile (double q) throws IllegalArgumentException {
+
+        if (!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException ("Invalid Quantile"
+                    + " (Quantile should be between 0 and 1)");
+        }
+        if (count == 0) {
+            return (Double.NaN);
+        }
+
+        double rank = q * count;
+        long below = 0;
+
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] > 0 && below + bins[i] >= rank) {
+                double within = (rank - below) / bins[i];
+                return (minLink + (i + within) / scale);
+            }
+            below += bins[i];
+        }
+
+        return (maxLink);
+    }
+
+    /**
+     * Estimates a quantile of the probability of mortality
+     *
+     * @param q the quantile wanted, between 0 and 1
+     * @return the estimated probability at the quantile; NaN if the sketch is
+     * empty
+     * @throws IllegalArgumentException q must be between 0 and 1
+     */
+    public double getProbabilityQuantile (double q)
+            throws IllegalArgumentException {
+        return (1 / (1 + Math.exp(-getLinkQuantile(q))));
+    }
+}
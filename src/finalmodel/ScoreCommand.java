@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * Scores patients from the command line without starting the calculator UI.
+ * Either one patient is given as arguments, as a single record or as its
+ * thirteen fields, or patient records are read from standard input, one per
+ * line, and one probability of mortality is printed per record:
+ * <pre>
+ *   java -jar TMP3.jar score Male,No,Yes,White,Penetrating,14,3,7,52,120,70,36.5,100
+ *   java -jar TMP3.jar score &lt; patients.csv
+ * </pre>
+ * An invalid record prints NaN in its place, so output lines stay aligned
+ * with the input records, and its error goes to standard error. The exit
+ * status is 0 if every record was valid, 1 otherwise and 2 for bad usage.
+ * With -Dtmp3.drift=&lt;profile&gt; every valid record is also fed to a
+ * DriftMonitor, and its report is printed to standard error at the end.
+ *
+ * Meant for shell scripts and cron jobs, so startup time matters more than
+ * anything else here: only the model classes and java.io are touched, never
+ * AWT or Swing, and lambdas are avoided so that no invokedynamic bootstrap
+ * runs before the first score.
+ *
+ * @author okama
+ */
+public final class ScoreCommand {
+
+    private ScoreCommand () {
+
+    }
+
+    /**
+     * @param args one patient record, the thirteen fields of one patient, or
+     * nothing (or "-") to read records from standard input
+     */
+    public static void main (String[] args) {
+
+        // registering the flight recorder events would cost several times
+        // the rest of the startup, so they are off unless asked for
+        if (System.getProperty("tmp3.jfr") == null) {
+            System.setProperty("tmp3.jfr", "false");
+        }
+
+        // the property name is a constant, so DriftMonitor is not even
+        // loaded unless drift is checked
+        DriftMonitor monitor = null;
+        if (System.getProperty(DriftMonitor.PROFILE_PROPERTY) != null) {
+            try {
+                monitor = DriftMonitor.fromSystemProperty();
+            } catch (IOException | IllegalArgumentException noProfile) {
+                System.err.println("Drift profile not loaded: " +
+                        noProfile.getMessage());
+                System.exit(1);
+            }
+        }
+
+        TBIModel model = new TBIModel();
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(System.out, 1 << 16), false);
+        boolean allValid = true;
+
+        if (args.length == 0 || (args.length == 1 && args[0].equals("-"))) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(System.in), 1 << 16);
+            try {
+                String line;
+                long lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (PatientRecordFormat.isRecord(line)) {
+                        allValid &= score(line, model, monitor, out,
+                                lineNumber);
+                    }
+                }
+            } catch (IOException readFailure) {
+                out.flush();
+                System.err.println("Scoring failed: " +
+                        readFailure.getMessage());
+                System.exit(1);
+            }
+        } else if (args.length == 1 ||
+                args.length == PatientRecordFormat.NUM_COLUMNS) {
+            StringBuilder record = new StringBuilder(80);
+            for (int i = 0; i < args.length; i++) {
+                if (i > 0) {
+                    record.append(PatientRecordFormat.SEPARATOR);
+                }
+                record.append(args[i]);
+            }
+            allValid = score(record.toString(), model, monitor, out, 0);
+        } else {
+            System.err.println("Usage: TMP3 score <record>\n"
+                    + "       TMP3 score <gender> <supplemental oxygen>"
+                    + " <drug use> <race> <injury type> <age> <ais> <gcs>"
+                    + " <iss> <sbp> <pulse> <temp> <oxygen saturation>\n"
+                    + "       TMP3 score [-] < records");
+            System.exit(2);
+        }
+
+        out.flush();
+        if (monitor != null) {
+            System.err.print(monitor.report());
+        }
+        System.exit(allValid ? 0 : 1);
+    }
+
+    /**
+     * Scores one record and prints its probability, or NaN if it is invalid
+     *
+     * @param monitor records every valid patient; null if drift is not
+     * being checked
+     * @param lineNumber the record's line of standard input, named in its
+     * error; 0 for a record given as arguments
+     * @return true if the record was valid
+     */
+    private static boolean score (String record, TBIModel model,
+            DriftMonitor monitor, PrintStream out, long lineNumber) {
+
+        ScoringEvents.Request event = ScoringEvents.ENABLED ?
+                ScoringEvents.Request.start() : null;
+
+        boolean valid = true;
+        try {
+            PatientRecordFormat.parse(record, model);
+            out.println(model.getProbabilityOfMortality());
+            if (monitor != null) {
+                monitor.observe(model);
+            }
+        } catch (IllegalArgumentException invalid) {
+            valid = false;
+            out.println(Double.NaN);
+            // keep the error next to its place in the output
+            out.flush();
+            System.err.println((lineNumber > 0 ? "Line " + lineNumber +
+                    ": " : "") + invalid.getMessage());
+        }
+
+        if (event != null) {
+            event.source = "command line";
+            event.outcome = valid ? "scored" : "invalid";
+            event.modelVersion = model.getModelVersion();
+            event.commit();
+        }
+
+        return (valid);
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores a large patient file with several worker processes, each its own
+ * JVM with its own heap, instead of one large JVM. The file is split into
+ * byte ranges, which are handed out to ScoringWorker processes over their
+ * standard input and output as workers become free; each worker writes the
+ * probabilities of its range to a part file, and the parts are appended to
+ * the output in range order as soon as every earlier range is done. The
+ * output is the same as that of "score" run on the whole file.
+ *
+ * A worker that dies, hangs up or reports a failure is replaced by a new
+ * process and its range is handed out again, up to a few attempts per range.
+ * A worker that does not start, or does not finish a range, within the range
+ * timeout is destroyed by a watchdog and handled the same way. With the numa
+ * option each worker is started under numactl, bound to one NUMA node in
+ * turn. Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.ScoringCoordinator [--numa] [--timeout &lt;seconds&gt;] &lt;patients&gt; &lt;output&gt; &lt;workers&gt; [worker JVM option ...]
+ * </pre>
+ *
+ * Ranges are named by file and offsets and the protocol is line based text,
+ * so workers on other hosts that share the files could be driven the same
+ * way over sockets.
+ *
+ * @author okama
+ */
+public class ScoringCoordinator {
+
+    // ranges per worker, so that a slow range does not hold up the others
+    private static final int RANGES_PER_WORKER = 4;
+
+    // smallest range worth a round trip
+    private static final long MIN_RANGE_SIZE = 1 << 20;
+
+    // attempts at a range before the run fails
+    private static final int MAX_ATTEMPTS = 3;
+
+    // default time a worker gets to start, or to score one range (10 min)
+    public static final long DEFAULT_RANGE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * One byte range of the input and its progress
+     */
+    private static final class Range {
+
+        private final int id;
+        private final long start;
+        private final long end;
+        private final Path part;
+        private int attempts = 0;
+        private boolean done = false;
+        private long records = 0;
+        private long invalid = 0;
+
+        private Range (int id, long start, long end, Path part) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.part = part;
+        }
+    }
+
+    /**
+     * A running worker process and its pipes
+     */
+    private static final class Worker {
+
+        private final Process process;
+        private final PrintStream commands;
+        private final BufferedReader replies;
+        // set by the watchdog when it destroys the process
+        private volatile boolean timedOut = false;
+
+        private Worker (Process process) {
+            this.process = process;
+            this.commands = new PrintStream(process.getOutputStream(), false);
+            this.replies = new BufferedReader(new InputStreamReader(
+                    process.getInputStream(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private final String javaCommand;
+    private final String classPath;
+    private final List<String> jvmOptions;
+    private final int workers;
+    // NUMA nodes to bind workers to in turn; 0 to leave them unbound
+    private final int numaNodes;
+
+    // ranges waiting for a worker, guarded by this
+    private final Deque<Range> pending = new ArrayDeque<>();
+    // set when a range has failed for good, guarded by this
+    private String failure = null;
+    // the running workers, guarded by this
+    private final List<Worker> running = new ArrayList<>();
+
+    private long rangeTimeoutMillis = DEFAULT_RANGE_TIMEOUT_MILLIS;
+    // destroys workers that miss their deadline; exists during score
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * The constructor for the ScoringCoordinator class, launching workers
+     * with the same java and class path as the current JVM
+     *
+     * @param workers the number of worker processes
+     * @param jvmOptions options passed to every worker JVM
+     * @param numa bind each worker to a NUMA node with numactl
+     * @throws IllegalArgumentException there must be at least one worker
+     */
+    public ScoringCoordinator (int workers, List<String> jvmOptions,
+            boolean numa) throws IllegalArgumentException {
+
+        if (workers < 1) {
+            throw new IllegalArgumentException ("Invalid Worker Count"
+                    + " (There should be at least one worker)");
+        }
+
+        this.javaCommand = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "java";
+        this.classPath = System.getProperty("java.class.path");
+        this.jvmOptions = new ArrayList<>(jvmOptions);
+        this.workers = workers;
+        this.numaNodes = numa ? countNumaNodes() : 0;
+    }
+
+    /**
+     * Mutator method for the range timeout. A worker that takes longer to
+     * start, or to score one range, is destroyed and its range handed out
+     * again.
+     *
+     * @param millis the timeout in milliseconds
+     * @throws IllegalArgumentException the timeout must be positive
+     */
+    public void setRangeTimeout (long millis) throws IllegalArgumentException {
+        if (millis <= 0) {
+            throw new IllegalArgumentException ("Invalid Timeout"
+                    + " (Timeout should be positive)");
+        }
+        rangeTimeoutMillis = millis;
+    }
+
+    /**
+     * Scores a patient file
+     *
+     * @param input the patient file
+     * @param output the file to write one probability per record to,
+     * compressed to BGZF if its name ends in ".gz"
+     * @return the number of records and of invalid records
+     * @throws IOException a file cannot be read or written, the input is
+     * compressed, or a range failed on every attempt
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public long[] score (Path input, Path output) throws IOException,
+            InterruptedException {
+
+        // workers seek to their ranges of the input
+        if (CompressedFiles.isCompressed(input)) {
+            throw new IOException ("Cannot split compressed input " + input
+                    + " (decompress it first)");
+        }
+
+        Path absoluteInput = input.toAbsolutePath();
+        Path absoluteOutput = output.toAbsolutePath();
+        Path parts = Files.createTempDirectory(absoluteOutput.getParent(),
+                ".tmp3-parts");
+        watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "scoring-watchdog");
+            thread.setDaemon(true);
+            return (thread);
+        });
+
+        try {
+
+            List<Range> ranges = split(absoluteInput, parts);
+            synchronized (this) {
+                pending.addAll(ranges);
+                failure = null;
+            }
+
+            int slots = Math.min(workers, ranges.size());
+            ExecutorService pool = Executors.newFixedThreadPool(slots);
+            List<Future<Void>> slotTasks = new ArrayList<>();
+            for (int s = 0; s < slots; s++) {
+                final int slot = s;
+                slotTasks.add(pool.submit(() -> {
+                    try {
+                        runSlot(slot, absoluteInput);
+                    } catch (RuntimeException slotFailure) {
+                        synchronized (this) {
+                            failure = "Worker slot failed: " + slotFailure;
+                            notifyAll();
+                        }
+                        throw slotFailure;
+                    }
+                    return (null);
+                }));
+            }
+            pool.shutdown();
+
+            long records = 0;
+            long invalid = 0;
+            try (OutputStream out = CompressedFiles.newOutputStream(
+                    absoluteOutput, workers)) {
+                // append every range once it and all before it are done
+                for (Range range : ranges) {
+                    synchronized (this) {
+                        while (!range.done && failure == null) {
+                            wait();
+                        }
+                        if (failure != null) {
+                            throw new IOException (failure);
+                        }
+                    }
+                    Files.copy(range.part, out);
+                    Files.delete(range.part);
+                    records += range.records;
+                    invalid += range.invalid;
+                }
+            } finally {
+                // a slot may be waiting on its worker; stopping the worker
+                // ends the wait
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = "Scoring stopped";
+                    }
+                    for (Worker worker : new ArrayList<>(running)) {
+                        stop(worker);
+                    }
+                }
+                for (Future<Void> task : slotTasks) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException slotFailure) {
+                        // already reported through failure
+                    }
+                }
+            }
+
+            return (new long[] {records, invalid});
+
+        } finally {
+            watchdog.shutdownNow();
+            try (DirectoryStream<Path> leftovers =
+                    Files.newDirectoryStream(parts)) {
+                for (Path part : leftovers) {
+                    Files.delete(part);
+                }
+            }
+            Files.delete(parts);
+        }
+    }
+
+    /**
+     * Splits a file into ranges of about equal size
+     */
+    private List<Range> split (Path input, Path parts) throws IOException {
+
+        long size = Files.size(input);
+        long count = Math.max(1, Math.min((long) workers * RANGES_PER_WORKER,
+                size / MIN_RANGE_SIZE));
+        List<Range> ranges = new ArrayList<>();
+
+        for (int r = 0; r < count; r++) {
+            ranges.add(new Range(r, size * r / count, size * (r + 1) / count,
+                    parts.resolve("part-" + r)));
+        }
+
+        return (ranges);
+    }
+
+    /**
+     * Keeps one worker process busy until no ranges are left, replacing it
+     * whenever it fails
+     */
+    private void runSlot (int slot, Path input) throws InterruptedException {
+
+        Worker worker = null;
+
+        try {
+            while (true) {
+
+                Range range;
+                synchronized (this) {
+                    if (pending.isEmpty() || failure != null) {
+                        return;
+                    }
+                    range = pending.removeFirst();
+                    range.attempts++;
+                }
+
+                String reply;
+                ScheduledFuture<?> deadline = null;
+                try {
+                    if (worker == null) {
+                        worker = start(slot);
+                    }
+                    deadline = watch(worker);
+                    worker.commands.println(ScoringWorker.SCORE +
+                            ScoringWorker.SEPARATOR + range.id +
+                            ScoringWorker.SEPARATOR + range.start +
+                            ScoringWorker.SEPARATOR + range.end +
+                            ScoringWorker.SEPARATOR + input +
+                            ScoringWorker.SEPARATOR + range.part);
+                    worker.commands.flush();
+                    reply = worker.replies.readLine();
+                } catch (IOException pipeFailure) {
+                    reply = null;
+                } finally {
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
+                }
+
+                String[] fields = reply == null ? new String[0] :
+                        ScoringWorker.fields(reply);
+                boolean done = fields.length == 4 &&
+                        fields[0].equals(ScoringWorker.DONE) &&
+                        fields[1].equals(String.valueOf(range.id));
+
+                synchronized (this) {
+                    if (done) {
+                        range.records = Long.parseLong(fields[2]);
+                        range.invalid = Long.parseLong(fields[3]);
+                        range.done = true;
+                    } else if (failure == null) {
+                        String reason = reply != null ?
+                                reply.replace(ScoringWorker.SEPARATOR, ' ') :
+                                worker != null && worker.timedOut ?
+                                "timed out after " + rangeTimeoutMillis
+                                        + " ms" : "worker exited";
+                        System.err.println("Range " + range.id + " failed ("
+                                + reason + "), attempt " + range.attempts);
+                        if (range.attempts >= MAX_ATTEMPTS) {
+                            failure = "Range " + range.id + " failed "
+                                    + range.attempts + " times: " + reason;
+                        } else {
+                            pending.addLast(range);
+                        }
+                    }
+                    notifyAll();
+                }
+
+                // a worker may be in any state after a failure, and may have
+                // been destroyed just after replying; start afresh
+                if (worker != null && (!done || worker.timedOut)) {
+                    stop(worker);
+                    worker = null;
+                }
+            }
+        } finally {
+            if (worker != null) {
+                stop(worker);
+            }
+        }
+    }
+
+    /**
+     * Launches a worker process and waits for it to report ready
+     */
+    private Worker start (int slot) throws IOException {
+
+        List<String> command = new ArrayList<>();
+        if (numaNodes > 1) {
+            int node = slot % numaNodes;
+            command.addAll(Arrays.asList("numactl", "--cpunodebind=" + node,
+                    "--membind=" + node));
+        }
+        command.add(javaCommand);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(ScoringWorker.class.getName());
+
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Worker worker = new Worker(process);
+        synchronized (this) {
+            running.add(worker);
+        }
+
+        ScheduledFuture<?> deadline = watch(worker);
+        try {
+            if (!ScoringWorker.READY.equals(worker.replies.readLine())) {
+                throw new IOException (worker.timedOut ? "Worker did not"
+                        + " start in time" : "Worker did not start");
+            }
+        } catch (IOException notStarted) {
+            stop(worker);
+            throw notStarted;
+        } finally {
+            deadline.cancel(false);
+        }
+
+        return (worker);
+    }
+
+    /**
+     * Destroys a worker unless the returned deadline is cancelled within the
+     * range timeout. Its pipes then reach their end, so a hung worker ends
+     * its slot's wait just as a crashed one does.
+     */
+    private ScheduledFuture<?> watch (final Worker worker) {
+        return (watchdog.schedule(() -> {
+            worker.timedOut = true;
+            worker.process.destroyForcibly();
+        }, rangeTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private synchronized void stop (Worker worker) {
+        running.remove(worker);
+        worker.commands.close();
+        worker.process.destroy();
+    }
+
+    /**
+     * Counts the NUMA nodes of this host, as listed by the kernel
+     *
+     * @return the number of nodes; 0 if numactl binding is unavailable
+     */
+    private static int countNumaNodes () {
+
+        int nodes = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+                Paths.get("/sys/devices/system/node"), "node[0-9]*")) {
+            for (Path entry : entries) {
+                nodes++;
+            }
+        } catch (IOException noNodes) {
+            nodes = 0;
+        }
+
+        if (nodes < 2) {
+            System.err.println("Fewer than two NUMA nodes; workers are not"
+                    + " bound");
+            return (0);
+        }
+
+        return (nodes);
+    }
+
+    /**
+     * @param args optionally --numa and --timeout with the range timeout in
+     * seconds, then the patient file, the output file, the number of workers
+     * and any worker JVM options
+     */
+    public static void main (String[] args) {
+
+        boolean numa = false;
+        long timeoutMillis = DEFAULT_RANGE_TIMEOUT_MILLIS;
+        int first = 0;
+        try {
+            while (first < args.length && args[first].startsWith("--")) {
+                if (args[first].equals("--numa")) {
+                    numa = true;
+                    first++;
+                } else if (args[first].equals("--timeout") &&
+                        first + 1 < args.length) {
+                    timeoutMillis = Math.round(1000 *
+                            Double.parseDouble(args[first + 1]));
+                    first += 2;
+                } else {
+                    break;
+                }
+            }
+        } catch (NumberFormatException badTimeout) {
+            first = args.length;
+        }
+        if (args.length < first + 3) {
+            System.err.println("Usage: ScoringCoordinator [--numa]"
+                    + " [--timeout <seconds>] <patients> <output> <workers>"
+                    + " [worker JVM option ...]");
+            System.exit(2);
+        }
+
+        try {
+            ScoringCoordinator coordinator = new ScoringCoordinator(
+                    Integer.parseInt(args[first + 2]),
+                    Arrays.asList(args).subList(first + 3, args.length),
+                    numa);
+            coordinator.setRangeTimeout(timeoutMillis);
+
+            long start = System.nanoTime();
+            long[] counts = coordinator.score(Paths.get(args[first]),
+                    Paths.get(args[first + 1]));
+            System.err.println(String.format("Scored %d records (%d invalid)"
+                    + " in %.2f s", counts[0], counts[1],
+                    (System.nanoTime() - start) / 1e9));
+            System.exit(counts[1] == 0 ? 0 : 1);
+        } catch (IOException | InterruptedException |
+                IllegalArgumentException failure) {
+            System.err.println("Scoring failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events emitted by the scoring code, under the
+ * "TMP3" category. Recorded alongside the JVM's own events, they show which
+ * predictions, batches and file reads a GC pause or allocation burst fell
+ * into, e.g.:
+ * <pre>
+ *   java -XX:StartFlightRecording=filename=tmp3.jfr,settings=profile -jar TMP3.jar
+ *   jfr print --categories TMP3 tmp3.jfr
+ * </pre>
+ *
+ * Each event is started where its work begins and committed where it ends.
+ * Start gives null, without even reading the clock, when no recording takes
+ * the event, so with recording off a call site costs a flag check and the
+ * JIT removes the event object altogether.
+ *
+ * The first use of an event class registers it with the recorder, which
+ * takes a few hundred milliseconds whether or not a recording is running.
+ * Long running tools pay that once, ideally up front through preload; the
+ * command line scorer, where it would multiply the startup time, turns the
+ * events off unless started with -Dtmp3.jfr=true. Every call site checks
+ * ENABLED before touching an event class, and this class itself can be
+ * loaded without loading the recorder.
+ *
+ * @author okama
+ */
+final class ScoringEvents {
+
+    // whether events are created at all; -Dtmp3.jfr=false turns them off
+    static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty("tmp3.jfr", "true"));
+
+    private ScoringEvents () {
+
+    }
+
+    /**
+     * Registers every event class with the recorder now, rather than on the
+     * first prediction, request or read
+     */
+    static void preload () {
+        if (ENABLED) {
+            new Score();
+            new ValidationFailure();
+            new BatchChunk();
+            new FileRead();
+            new Request();
+        }
+    }
+
+    /**
+     * Tells whether validation failures are being recorded, so that callers
+     * can skip describing them otherwise
+     *
+     * @return true if a recording takes validation failure events
+     */
+    static boolean isRecordingValidation () {
+        return (ENABLED && new ValidationFailure().isEnabled());
+    }
+
+    /**
+     * One prediction by TBIModel. Only predictions slower than the threshold
+     * are recorded by default, as a bulk run makes millions of them.
+     */
+    @Name("finalmodel.Score")
+    @Label("Patient Scored")
+    @Category({"TMP3", "Scoring"})
+    @Description("A single prediction of TBIModel")
+    @Threshold("100 us")
+    @StackTrace(false)
+    static final class Score extends Event {
+
+        @Label("Model Version")
+        String modelVersion;
+
+        @Label("Probability of Mortality")
+        double probability;
+
+        /**
+         * @return a begun event, or null if no recording takes it
+         */
+        static Score start () {
+            Score event = new Score();
+            if (!event.isEnabled()) {
+                return (null);
+            }
+            event.begin();
+            return (event);
+        }
+    }
+
+    /**
+     * A patient, or a row of a batch, that failed validation
+     */
+    @Name("finalmodel.ValidationFailure")
+    @Label("Validation Failure")
+    @Category({"TMP3", "Validation"})
+    @Description("A patient rejected by validation, with its invalid fields")
+    @StackTrace(false)
+    static final class ValidationFailure extends Event {
+
+        @Label("Source")
+        @Description("record, batch or calculator")
+        String source;
+
+        @Label("Field")
+        @Description("The invalid field or fields")
+        String field;
+
+        @Label("Value")
+        String value;
+
+        @Label("Message")
+        String message;
+    }
+
+    /**
+     * One chunk of a bulk run loaded, validated and scored
+     */
+    @Name("finalmodel.BatchChunk")
+    @Label("Batch Chunk")
+    @Category({"TMP3", "Scoring"})
+    @Description("A chunk of patients validated and scored together")
+    @StackTrace(false)
+    static final class BatchChunk extends Event {
+
+        @Label("Model Version")
+        String modelVersion;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Valid Rows")
+        int validRows;
+
+        /**
+         * @return a begun event, or null if no recording takes it
+         */
+        static BatchChunk start () {
+            BatchChunk event = new BatchChunk();
+            if (!event.isEnabled()) {
+                return (null);
+            }
+            event.begin();
+            return (event);
+        }
+    }
+
+    /**
+     * One read of a patient file
+     */
+    @Name("finalmodel.FileRead")
+    @Label("Patient File Read")
+    @Category({"TMP3", "I/O"})
+    @Description("One buffer filled from a patient file")
+    @StackTrace(false)
+    static final class FileRead extends Event {
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+
+        /**
+         * @return a begun event, or null if no recording takes it
+         */
+        static FileRead start () {
+            FileRead event = new FileRead();
+            if (!event.isEnabled()) {
+                return (null);
+            }
+            event.begin();
+            return (event);
+        }
+    }
+
+    /**
+     * One scoring request from a user or a caller of the command line
+     */
+    @Name("finalmodel.Request")
+    @Label("Scoring Request")
+    @Category({"TMP3", "Requests"})
+    @Description("A scoring request, from arrival to its result")
+    static final class Request extends Event {
+
+        @Label("Source")
+        @Description("calculator or command line")
+        String source;
+
+        @Label("Live")
+        @Description("Made by live scoring rather than by the user")
+        boolean live;
+
+        @Label("Outcome")
+        @Description("scored, invalid, stale or failed")
+        String outcome;
+
+        @Label("Model Version")
+        String modelVersion;
+
+        /**
+         * @return a begun event, or null if no recording takes it
+         */
+        static Request start () {
+            Request event = new Request();
+            if (!event.isEnabled()) {
+                return (null);
+            }
+            event.begin();
+            return (event);
+        }
+    }
+
+    /**
+     * Records a validation failure of a single patient
+     *
+     * @param source where the patient came from
+     * @param field the name of the invalid field
+     * @param value the invalid value
+     * @param message the validation error
+     */
+    static void validationFailure (String source, String field, String value,
+            String message) {
+
+        if (!ENABLED) {
+            return;
+        }
+
+        ValidationFailure event = new ValidationFailure();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.field = field;
+            event.value = value;
+            event.message = message;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,819 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all scoring work of a host on one set of threads, in two lanes:
+ * interactive requests, such as a single patient scored for the emergency
+ * department, and batch work, such as the chunks of a retrospective
+ * re-scoring job. Whenever a thread is free it takes the next task from the
+ * lane that has had the least CPU time for its share, so a lane gets at least
+ * its share of the threads while it has work, and an idle lane's share goes
+ * to the other. A lane does not bank time while it is idle.
+ *
+ * Tasks are never interrupted. A scoring thread that is itself interrupted
+ * while waiting for work leaves its queued tasks to the other threads; when
+ * the last one goes, the scheduler shuts down and cancels the queued tasks,
+ * so no caller waits for a task that will never run. Batch work is submitted one chunk at a time,
+ * so it yields at every chunk boundary: an interactive request waits for at
+ * most the rest of one chunk, and, being far cheaper than a chunk, goes ahead
+ * of all waiting batch chunks unless the interactive lane has used up its
+ * share. The time from submission to completion of every task is recorded
+ * per lane and checked against the lane's latency objective.
+ *
+ * A lane is charged the CPU time its tasks use, as measured by the JVM for
+ * the running thread, so a task blocked on I/O or descheduled by the
+ * operating system is not charged for the wait. Where the JVM cannot measure
+ * thread CPU time, the elapsed time of each task is charged instead.
+ *
+ * The calculator UI runs its requests in the interactive lane, and the risk
+ * sort of an open patient file in the batch lane, of one shared scheduler.
+ *
+ * Files can be scored in single precision instead, for screening-scale
+ * runs: each chunk is loaded into a FloatPatientBatch and scored by a
+ * FloatBatchScorer, and the probabilities are written as floats, which
+ * differ from the exact ones in about the seventh significant digit (see
+ * DifferentialHarness). This is off unless asked for.
+ *
+ * To watch both lanes on a file, with interactive requests at a fixed rate:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.ScoringScheduler [--float] &lt;patients&gt; &lt;output&gt; &lt;rate/s&gt; [threads]
+ * </pre>
+ *
+ * @author okama
+ */
+public class ScoringScheduler {
+
+    /**
+     * The kinds of scoring work
+     */
+    public enum Lane {
+
+        // single patients, waited on by a person
+        INTERACTIVE(90, 10_000),
+
+        // chunks of bulk jobs
+        BATCH(10, 10_000_000);
+
+        private final int defaultShare;
+        private final long defaultObjectiveMicros;
+
+        private Lane (int defaultShare, long defaultObjectiveMicros) {
+            this.defaultShare = defaultShare;
+            this.defaultObjectiveMicros = defaultObjectiveMicros;
+        }
+    }
+
+    /**
+     * A snapshot of the work done by one lane
+     */
+    public static final class LaneStats {
+
+        private final Lane lane;
+        private final int share;
+        private final long objectiveMicros;
+        private final long completed;
+        private final long failed;
+        private final long missed;
+        private final long cpuNanos;
+        private final double cpuFraction;
+        private final LoadTestHarness.LatencyHistogram latencies;
+
+        private LaneStats (LaneState state, double cpuFraction) {
+            this.lane = state.lane;
+            this.share = state.share;
+            this.objectiveMicros = state.objectiveNanos / 1000;
+            this.completed = state.completed;
+            this.failed = state.failed;
+            this.missed = state.missed;
+            this.cpuNanos = state.cpuNanos;
+            this.cpuFraction = cpuFraction;
+            this.latencies = new LoadTestHarness.LatencyHistogram();
+            this.latencies.add(state.latencies);
+        }
+
+        public Lane getLane () {
+            return (lane);
+        }
+
+        public int getShare () {
+            return (share);
+        }
+
+        public long getObjectiveMicros () {
+            return (objectiveMicros);
+        }
+
+        /**
+         * @return the number of tasks finished, including failed ones
+         */
+        public long getCompleted () {
+            return (completed);
+        }
+
+        /**
+         * @return the number of tasks that threw an exception
+         */
+        public long getFailed () {
+            return (failed);
+        }
+
+        /**
+         * @return the number of tasks that took longer than the objective
+         * from submission to completion
+         */
+        public long getMissed () {
+            return (missed);
+        }
+
+        /**
+         * @return the CPU time spent running the lane's tasks; their elapsed
+         * time where thread CPU time cannot be measured
+         */
+        public long getCpuNanos () {
+            return (cpuNanos);
+        }
+
+        /**
+         * @return the lane's part of the CPU time spent on all lanes
+         */
+        public double getCpuFraction () {
+            return (cpuFraction);
+        }
+
+        /**
+         * Accessor method for a latency percentile
+         *
+         * @param quantile a fraction between 0 and 1, e.g. 0.99
+         * @return the latency from submission to completion in microseconds;
+         * NaN if no task has completed
+         */
+        public double getLatencyMicros (double quantile) {
+            return (latencies.getTotal() == 0 ? Double.NaN :
+                    latencies.getQuantile(quantile) / 1e3);
+        }
+
+        @Override
+        public String toString () {
+            return (String.format(Locale.ROOT, "%s\t%d\t%.1f%%\t%d\t%d\t%d"
+                    + "\t%.1f\t%.1f\t%.1f\t%d", lane, share,
+                    cpuFraction * 100, completed, failed, missed,
+                    getLatencyMicros(0.5), getLatencyMicros(0.99),
+                    latencies.getTotal() == 0 ? Double.NaN :
+                            latencies.getMax() / 1e3, objectiveMicros));
+        }
+    }
+
+    /**
+     * The queue and the tallies of one lane, guarded by the scheduler
+     */
+    private static final class LaneState {
+
+        private final Lane lane;
+        private final Deque<Task> queue = new ArrayDeque<>();
+        private final LoadTestHarness.LatencyHistogram latencies =
+                new LoadTestHarness.LatencyHistogram();
+        private int share;
+        private long objectiveNanos;
+        // CPU time used, divided by the share
+        private double virtualTime = 0;
+        private int running = 0;
+        private long completed = 0;
+        private long failed = 0;
+        private long missed = 0;
+        private long cpuNanos = 0;
+
+        private LaneState (Lane lane) {
+            this.lane = lane;
+            this.share = lane.defaultShare;
+            this.objectiveNanos = lane.defaultObjectiveMicros * 1000;
+        }
+
+        private boolean isBusy () {
+            return (running > 0 || !queue.isEmpty());
+        }
+    }
+
+    /**
+     * A submitted task and when it was submitted
+     */
+    private static final class Task {
+
+        private final LaneState lane;
+        private final FutureTask<?> future;
+        private final long submitNanos;
+
+        private Task (LaneState lane, FutureTask<?> future) {
+            this.lane = lane;
+            this.future = future;
+            this.submitNanos = System.nanoTime();
+        }
+    }
+
+    // records per batch chunk; a chunk takes about a millisecond, which
+    // bounds how long an interactive request waits for a free thread
+    public static final int CHUNK_SIZE = 1024;
+
+    // batch chunks in flight per thread when scoring a file
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final List<Thread> threads = new ArrayList<>();
+    private boolean shutdown = false;
+    // scoring threads still taking tasks
+    private int liveThreads;
+
+    private final ThreadLocal<TBIModel> models =
+            ThreadLocal.withInitial(TBIModel::new);
+
+    // whether files are scored in single precision
+    private volatile boolean singlePrecision = false;
+    private final BatchValidator validator = new BatchValidator();
+    private final FloatBatchScorer floatScorer =
+            new FloatBatchScorer(new TBIModel().getCoefficients());
+    private final ThreadLocal<FloatPatientBatch> floatBatches =
+            ThreadLocal.withInitial(() -> new FloatPatientBatch(CHUNK_SIZE));
+    private final ThreadLocal<float[]> floatProbabilities =
+            ThreadLocal.withInitial(() -> new float[CHUNK_SIZE]);
+
+    // measures the CPU time of the scoring threads; null if the JVM cannot
+    private static final ThreadMXBean THREAD_TIMES = threadTimes();
+
+    /**
+     * The constructor for the ScoringScheduler class, starting its threads
+     *
+     * @param threadCount the number of scoring threads, normally the number
+     * of cores set aside for scoring
+     * @throws IllegalArgumentException there must be at least one thread
+     */
+    public ScoringScheduler (int threadCount) throws IllegalArgumentException {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneState(lane));
+        }
+        liveThreads = threadCount;
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::runTasks, "Scoring " + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Mutator method for a lane's share of the threads. When both lanes
+     * have work, each gets thread time in proportion to its share.
+     *
+     * @param lane the lane
+     * @param share the lane's weight, at least 1
+     * @throws IllegalArgumentException the share must be positive
+     */
+    public synchronized void setShare (Lane lane, int share)
+            throws IllegalArgumentException {
+        if (share < 1) {
+            throw new IllegalArgumentException ("Invalid Share (Share should"
+                    + " be at least 1)");
+        }
+        lanes.get(lane).share = share;
+    }
+
+    /**
+     * Mutator method for a lane's latency objective
+     *
+     * @param lane the lane
+     * @param micros the time from submission to completion within which the
+     * lane's tasks should finish
+     * @throws IllegalArgumentException the objective must be positive
+     */
+    public synchronized void setLatencyObjective (Lane lane, long micros)
+            throws IllegalArgumentException {
+        if (micros < 1) {
+            throw new IllegalArgumentException ("Invalid Latency Objective"
+                    + " (Objective should be at least 1 us)");
+        }
+        lanes.get(lane).objectiveNanos = micros * 1000;
+    }
+
+    /**
+     * Mutator method for the precision files are scored in. Takes effect
+     * from the next call of scoreFile.
+     *
+     * @param singlePrecision true to score in single precision with a
+     * FloatBatchScorer, false (the default) to score exactly
+     */
+    public void setSinglePrecision (boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Accessor method for a lane's tallies
+     *
+     * @param lane the lane
+     * @return a snapshot of the lane's tallies
+     */
+    public synchronized LaneStats getStats (Lane lane) {
+        long total = 0;
+        for (LaneState state : lanes.values()) {
+            total += state.cpuNanos;
+        }
+        LaneState state = lanes.get(lane);
+        return (new LaneStats(state, total == 0 ? 0 :
+                (double) state.cpuNanos / total));
+    }
+
+    /**
+     * Queues a task
+     *
+     * @param <T> the task's result type
+     * @param lane the lane to run the task in
+     * @param task the task
+     * @return the task's result, once it has run
+     * @throws RejectedExecutionException the scheduler has been shut down
+     */
+    public <T> Future<T> submit (Lane lane, Callable<T> task)
+            throws RejectedExecutionException {
+
+        FutureTask<T> future = new FutureTask<>(task);
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException ("Scheduler is shut"
+                        + " down");
+            }
+            LaneState state = lanes.get(lane);
+            if (!state.isBusy()) {
+                // a lane coming back from idle starts level with the busy
+                // lanes rather than spending the time it did not use
+                for (LaneState other : lanes.values()) {
+                    if (other != state && other.isBusy()) {
+                        state.virtualTime = Math.max(state.virtualTime,
+                                other.virtualTime);
+                    }
+                }
+            }
+            state.queue.addLast(new Task(state, future));
+            notify();
+        }
+
+        return (future);
+    }
+
+    /**
+     * Scores one patient in the interactive lane
+     *
+     * @param record a record in the format read by PatientRecordFormat
+     * @return the probability of mortality; getting it throws an
+     * ExecutionException caused by an IllegalArgumentException if the record
+     * is invalid
+     * @throws RejectedExecutionException the scheduler has been shut down
+     */
+    public Future<Double> score (String record)
+            throws RejectedExecutionException {
+        return (submit(Lane.INTERACTIVE, () -> {
+            TBIModel model = models.get();
+            PatientRecordFormat.parse(record, model);
+            return (model.getProbabilityOfMortality());
+        }));
+    }
+
+    /**
+     * Scores a patient file in the batch lane, one chunk at a time, writing
+     * one probability of mortality per record to the output exactly as
+     * "score" does, NaN for an invalid record; in single precision if set,
+     * with each probability written as a float
+     *
+     * @param input the patient file, plain or gzip compressed
+     * @param output the file to write, compressed to BGZF if its name ends
+     * in ".gz"
+     * @return the number of records and of invalid records
+     * @throws IOException a file cannot be read or written, or a chunk failed
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public long[] scoreFile (Path input, Path output) throws IOException,
+            InterruptedException {
+
+        int maxInFlight = CHUNKS_PER_THREAD * threads.size();
+        boolean inFloat = singlePrecision;
+        Deque<Future<long[]>> counts = new ArrayDeque<>();
+        Deque<StringBuilder> results = new ArrayDeque<>();
+        long records = 0;
+        long invalid = 0;
+
+        try (PatientFileReader reader = new PatientFileReader(
+                CompressedFiles.newInputStream(input, threads.size()), 0);
+                OutputStream file = CompressedFiles.newOutputStream(output,
+                        threads.size());
+                PrintStream out = new PrintStream(
+                        new BufferedOutputStream(file, 1 << 16), false,
+                        StandardCharsets.UTF_8.name())) {
+
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            boolean more = true;
+            while (more) {
+                line = reader.readLine();
+                more = line != null;
+                if (more && PatientRecordFormat.isRecord(line)) {
+                    chunk.add(line);
+                }
+                if (chunk.size() == CHUNK_SIZE || (!more && !chunk.isEmpty())) {
+                    StringBuilder result = new StringBuilder();
+                    counts.addLast(submit(Lane.BATCH, inFloat ?
+                            scoreChunkInFloat(chunk, result) :
+                            scoreChunk(chunk, result)));
+                    results.addLast(result);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+                // write chunks out in order as they finish
+                while (!counts.isEmpty() && (counts.size() >= maxInFlight ||
+                        !more || counts.peekFirst().isDone())) {
+                    long[] done = getResult(counts.removeFirst());
+                    out.append(results.removeFirst());
+                    records += done[0];
+                    invalid += done[1];
+                }
+            }
+
+            if (out.checkError()) {
+                throw new IOException ("Cannot write " + output);
+            }
+        } finally {
+            for (Future<long[]> pending : counts) {
+                pending.cancel(false);
+            }
+        }
+
+        return (new long[] {records, invalid});
+    }
+
+    /**
+     * Makes the task that scores one chunk into a buffer
+     */
+    private Callable<long[]> scoreChunk (List<String> chunk,
+            StringBuilder result) {
+        return (() -> {
+            TBIModel model = models.get();
+            long invalid = 0;
+            for (String line : chunk) {
+                try {
+                    PatientRecordFormat.parse(line, model);
+                    result.append(model.getProbabilityOfMortality());
+                } catch (IllegalArgumentException notValid) {
+                    invalid++;
+                    result.append(Double.NaN);
+                }
+                result.append(System.lineSeparator());
+            }
+            return (new long[] {chunk.size(), invalid});
+        });
+    }
+
+    /**
+     * Makes the task that scores one chunk in single precision into a buffer
+     */
+    private Callable<long[]> scoreChunkInFloat (List<String> chunk,
+            StringBuilder result) {
+        return (() -> {
+            FloatPatientBatch batch = floatBatches.get();
+            float[] probabilities = floatProbabilities.get();
+            boolean[] valid = new boolean[chunk.size()];
+            batch.clear();
+            for (int i = 0; i < chunk.size(); i++) {
+                valid[i] = validator.load(chunk.get(i), batch) == 0;
+            }
+            floatScorer.score(batch, 0, batch.size(), probabilities,
+                    probabilities);
+            for (int i = 0, k = 0; i < chunk.size(); i++) {
+                result.append(valid[i] ? probabilities[k++] : Float.NaN);
+                result.append(System.lineSeparator());
+            }
+            return (new long[] {chunk.size(), chunk.size() - batch.size()});
+        });
+    }
+
+    /**
+     * Stops taking tasks. Tasks already queued are still run.
+     */
+    public synchronized void shutdown () {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Cancels the tasks queued in a lane that have not started. Tasks that
+     * are running are left to finish.
+     *
+     * @param lane the lane
+     * @return the number of tasks cancelled
+     */
+    public synchronized int cancelQueued (Lane lane) {
+        LaneState state = lanes.get(lane);
+        int cancelled = state.queue.size();
+        for (Task task : state.queue) {
+            task.future.cancel(false);
+        }
+        state.queue.clear();
+        return (cancelled);
+    }
+
+    /**
+     * Waits, however long it takes, for the threads to finish the queued
+     * tasks after shutdown
+     *
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public void awaitTermination () throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Waits for the threads to finish the queued tasks after shutdown
+     *
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if every thread has finished
+     * @throws InterruptedException the calling thread was interrupted
+     */
+    public boolean awaitTermination (long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, left);
+            }
+            if (thread.isAlive()) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    /**
+     * The loop of every scoring thread
+     */
+    private void runTasks () {
+
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while ((task = nextTask()) == null) {
+                    if (shutdown) {
+                        liveThreads--;
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        retire();
+                        return;
+                    }
+                }
+                task.lane.running++;
+            }
+
+            long startCpu = threadTime();
+            task.future.run();
+            long end = System.nanoTime();
+            long cpu = threadTime() - startCpu;
+
+            boolean failed = false;
+            if (!task.future.isCancelled()) {
+                try {
+                    task.future.get();
+                } catch (ExecutionException failure) {
+                    failed = true;
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (this) {
+                LaneState lane = task.lane;
+                lane.running--;
+                lane.cpuNanos += cpu;
+                lane.virtualTime += (double) cpu / lane.share;
+                lane.completed++;
+                if (failed) {
+                    lane.failed++;
+                }
+                long latency = end - task.submitNanos;
+                lane.latencies.record(latency);
+                if (latency > lane.objectiveNanos) {
+                    lane.missed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes an interrupted thread out of service. Its queued tasks stay for
+     * the other threads; if it was the last, nothing would ever run them, so
+     * the scheduler shuts down and they are cancelled. Called with the lock
+     * held.
+     */
+    private void retire () {
+        liveThreads--;
+        if (liveThreads == 0) {
+            shutdown = true;
+            for (Lane lane : lanes.keySet()) {
+                cancelQueued(lane);
+            }
+        } else {
+            // the notify for a queued task may have woken this thread
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the thread CPU time measurer, enabled; null if the JVM does not
+     * measure thread CPU time
+     */
+    private static ThreadMXBean threadTimes () {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            if (bean.isCurrentThreadCpuTimeSupported()) {
+                if (!bean.isThreadCpuTimeEnabled()) {
+                    bean.setThreadCpuTimeEnabled(true);
+                }
+                return (bean);
+            }
+        } catch (UnsupportedOperationException | SecurityException off) {
+            // charge elapsed time instead
+        }
+        return (null);
+    }
+
+    /**
+     * @return the CPU time of the calling thread in nanoseconds; the
+     * elapsed time if it cannot be measured
+     */
+    private static long threadTime () {
+        return (THREAD_TIMES == null ? System.nanoTime() :
+                THREAD_TIMES.getCurrentThreadCpuTime());
+    }
+
+    /**
+     * Takes the next task from the lane furthest behind its share
+     *
+     * @return the task, or null if every lane is empty
+     */
+    private Task nextTask () {
+        LaneState best = null;
+        for (LaneState lane : lanes.values()) {
+            if (!lane.queue.isEmpty() && (best == null ||
+                    lane.virtualTime < best.virtualTime)) {
+                best = lane;
+            }
+        }
+        return (best == null ? null : best.queue.removeFirst());
+    }
+
+    private static <T> T getResult (Future<T> future) throws IOException,
+            InterruptedException {
+        try {
+            return (future.get());
+        } catch (ExecutionException failure) {
+            throw new IOException ("Scoring failed: " + failure.getCause(),
+                    failure.getCause());
+        } catch (CancellationException cancelled) {
+            throw new IOException ("Scoring cancelled", cancelled);
+        }
+    }
+
+    /**
+     * Scores a file in the batch lane while sending interactive requests at
+     * a fixed rate, and prints the tallies of both lanes
+     *
+     * @param args optionally --float to score in single precision, then the
+     * patient file, the output file, the interactive requests per second and
+     * optionally the number of threads
+     */
+    public static void main (String[] args) {
+
+        boolean inFloat = args.length > 0 && args[0].equals("--float");
+        int first = inFloat ? 1 : 0;
+        if (args.length < first + 3 || args.length > first + 4) {
+            System.err.println("Usage: ScoringScheduler [--float] <patients>"
+                    + " <output> <rate/s> [threads]");
+            System.exit(2);
+        }
+
+        try {
+            double rate = Double.parseDouble(args[first + 2]);
+            if (!(rate > 0)) {
+                throw new IllegalArgumentException ("Invalid Rate (Rate"
+                        + " should be positive)");
+            }
+            int threadCount = args.length > first + 3 ?
+                    Integer.parseInt(args[first + 3]) :
+                    Runtime.getRuntime().availableProcessors();
+            new Warmup(1).run(Warmup.DEFAULT_MAX_MILLIS);
+            ScoringScheduler scheduler = new ScoringScheduler(threadCount);
+            scheduler.setSinglePrecision(inFloat);
+
+            // interactive requests at the given rate until the batch is done
+            WorkloadGenerator generator = new WorkloadGenerator(1);
+            String[] records = new String[1024];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = generator.nextRecord();
+            }
+            Thread clinic = new Thread(() -> {
+                long interval = (long) (1e9 / rate);
+                long due = System.nanoTime();
+                for (int i = 0; !Thread.currentThread().isInterrupted();
+                        i++) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException stop) {
+                            return;
+                        }
+                    }
+                    scheduler.score(records[i % records.length]);
+                    due += interval;
+                }
+            }, "Interactive requests");
+            clinic.setDaemon(true);
+            clinic.start();
+
+            long start = System.nanoTime();
+            long[] counts = scheduler.scoreFile(Paths.get(args[first]),
+                    Paths.get(args[first + 1]));
+            long elapsed = System.nanoTime() - start;
+            clinic.interrupt();
+            clinic.join();
+            scheduler.shutdown();
+
+            System.out.println(String.format(Locale.ROOT, "Scored %d records"
+                    + " (%d invalid) in %.2f s", counts[0], counts[1],
+                    elapsed / 1e9));
+            System.out.println("Lane\tShare\tCPU\tTasks\tFailed\tMissed"
+                    + "\tp50 us\tp99 us\tMax us\tObjective us");
+            for (Lane lane : Lane.values()) {
+                System.out.println(scheduler.getStats(lane));
+            }
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException failure) {
+            System.err.println("Scoring failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A scoring process driven by a ScoringCoordinator. It reads commands from
+ * standard input and answers each on standard output, one tab separated line
+ * per message:
+ * <pre>
+ *   worker:      READY
+ *   coordinator: SCORE  id  start  end  input  output
+ *   worker:      DONE   id  records  invalid
+ *            or  FAILED id  message
+ * </pre>
+ * A SCORE command scores every record of the input file whose line starts at
+ * a byte offset from start up to (not including) end, and writes one
+ * probability of mortality per record to the output file, NaN for an invalid
+ * record, exactly as "score" does for the whole file. The worker exits when
+ * its standard input closes.
+ *
+ * The protocol is plain text over any byte stream, so the pipes of a local
+ * process could be replaced by a socket to another host that sees the same
+ * files.
+ *
+ * @author okama
+ */
+public final class ScoringWorker {
+
+    // the messages of the protocol
+    static final String READY = "READY";
+    static final String SCORE = "SCORE";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+    static final char SEPARATOR = '\t';
+
+    private final TBIModel model = new TBIModel();
+
+    private ScoringWorker () {
+
+    }
+
+    /**
+     * Scores one byte range of a patient file
+     *
+     * @param input the patient file
+     * @param start the offset at or after which the first line starts
+     * @param end the offset before which the last line starts
+     * @param output the file to write the probabilities to
+     * @return the number of records and of invalid records
+     * @throws IOException a file cannot be read or written
+     */
+    private long[] score (Path input, long start, long end, Path output)
+            throws IOException {
+
+        long records = 0;
+        long invalid = 0;
+
+        try (FileChannel channel = FileChannel.open(input,
+                StandardOpenOption.READ);
+                OutputStream file = Files.newOutputStream(output);
+                PrintStream out = new PrintStream(
+                        new BufferedOutputStream(file, 1 << 16), false,
+                        StandardCharsets.UTF_8.name())) {
+
+            // back up one byte so that a line starting exactly at start is
+            // kept, then drop the partial line before it
+            long from = Math.max(start - 1, 0);
+            channel.position(from);
+            PatientFileReader reader = new PatientFileReader(
+                    Channels.newInputStream(channel), from);
+            if (start > 0) {
+                reader.readLine();
+            }
+
+            String line;
+            while (reader.getPosition() < end &&
+                    (line = reader.readLine()) != null) {
+                if (!PatientRecordFormat.isRecord(line)) {
+                    continue;
+                }
+                records++;
+                try {
+                    PatientRecordFormat.parse(line, model);
+                    out.println(model.getProbabilityOfMortality());
+                } catch (IllegalArgumentException notValid) {
+                    invalid++;
+                    out.println(Double.NaN);
+                }
+            }
+
+            if (out.checkError()) {
+                throw new IOException ("Cannot write " + output);
+            }
+        }
+
+        return (new long[] {records, invalid});
+    }
+
+    /**
+     * Splits a message into its fields
+     */
+    static String[] fields (String message) {
+        return (message.split(String.valueOf(SEPARATOR), -1));
+    }
+
+    /**
+     * @param args none
+     */
+    public static void main (String[] args) {
+
+        ScoringWorker worker = new ScoringWorker();
+        BufferedReader commands = new BufferedReader(new InputStreamReader(
+                System.in, StandardCharsets.UTF_8));
+        PrintStream replies = System.out;
+
+        replies.println(READY);
+        replies.flush();
+
+        try {
+            String command;
+            while ((command = commands.readLine()) != null) {
+                String[] fields = fields(command);
+                String id = fields.length > 1 ? fields[1] : "";
+                String reply;
+                try {
+                    if (fields.length != 6 || !fields[0].equals(SCORE)) {
+                        throw new IllegalArgumentException ("Unknown command: "
+                                + command);
+                    }
+                    long[] counts = worker.score(Paths.get(fields[4]),
+                            Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), Paths.get(fields[5]));
+                    reply = DONE + SEPARATOR + id + SEPARATOR + counts[0] +
+                            SEPARATOR + counts[1];
+                } catch (IOException | IllegalArgumentException failure) {
+                    reply = FAILED + SEPARATOR + id + SEPARATOR +
+                            String.valueOf(failure.getMessage())
+                                    .replace(SEPARATOR, ' ')
+                                    .replace('\n', ' ');
+                }
+                replies.println(reply);
+                replies.flush();
+            }
+        } catch (IOException readFailure) {
+            System.err.println("Worker failed: " + readFailure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scores patients with several coefficient sets at once, the first being
+ * production and the rest candidates, and compares every candidate with
+ * production as it goes.
+ *
+ * Each patient is parsed and validated once, and the links of all models are
+ * computed in the same sweep over the batch: every column is read once and
+ * added, times each model's coefficient, into each model's links while it is
+ * still in cache. Scoring with a few candidates therefore costs little more
+ * than scoring with production alone, since parsing dominates.
+ *
+ * The comparison is kept online: for every candidate the sums of the
+ * differences in probability from production, the largest difference and the
+ * counts of production band against candidate band. Comparisons merge by
+ * adding them up, so each worker keeps its own.
+ *
+ * Run from the command line as:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.ShadowScorer &lt;patients&gt; &lt;candidate coefficients&gt; ...
+ * </pre>
+ *
+ * @author okama
+ */
+public class ShadowScorer {
+
+    // rows scored at a time by a worker
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * The running comparison of the candidates with production
+     */
+    public static final class Comparison {
+
+        private final String[] versions;
+        private final RiskBands bands;
+        private long rows = 0;
+        private long rejected = 0;
+        // per candidate, index 0 unused
+        private final double[] differenceSums;
+        private final double[] absoluteDifferenceSums;
+        private final double[] squaredDifferenceSums;
+        private final double[] maxAbsoluteDifferences;
+        // [candidate][production band][candidate band]
+        private final long[][][] bandCounts;
+
+        private Comparison (String[] versions, RiskBands bands) {
+            int models = versions.length;
+            this.versions = versions;
+            this.bands = bands;
+            differenceSums = new double[models];
+            absoluteDifferenceSums = new double[models];
+            squaredDifferenceSums = new double[models];
+            maxAbsoluteDifferences = new double[models];
+            bandCounts = new long[models][bands.getNumBands()]
+                    [bands.getNumBands()];
+        }
+
+        /**
+         * Adds the links of a range of patients
+         *
+         * @param links the links of model m at [m][i]
+         * @param n the number of patients
+         */
+        private void add (double[][] links, int n) {
+
+            double[] production = links[0];
+            for (int m = 1; m < versions.length; m++) {
+                double[] candidate = links[m];
+                long[][] counts = bandCounts[m];
+                double sum = 0, absoluteSum = 0, squaredSum = 0;
+                double max = maxAbsoluteDifferences[m];
+                for (int i = 0; i < n; i++) {
+                    double difference = 1 / (1 + Math.exp(-candidate[i])) -
+                            1 / (1 + Math.exp(-production[i]));
+                    double absolute = Math.abs(difference);
+                    sum += difference;
+                    absoluteSum += absolute;
+                    squaredSum += difference * difference;
+                    max = Math.max(max, absolute);
+                    counts[bands.bandOfLink(production[i])]
+                            [bands.bandOfLink(candidate[i])]++;
+                }
+                differenceSums[m] += sum;
+                absoluteDifferenceSums[m] += absoluteSum;
+                squaredDifferenceSums[m] += squaredSum;
+                maxAbsoluteDifferences[m] = max;
+            }
+            rows += n;
+        }
+
+        /**
+         * Adds another comparison of the same models into this one
+         *
+         * @param other the comparison to add
+         * @throws IllegalArgumentException the comparisons are of different
+         * models or bands
+         */
+        public void merge (Comparison other) throws IllegalArgumentException {
+
+            if (other.versions.length != versions.length ||
+                    other.bands != bands) {
+                throw new IllegalArgumentException ("Comparisons should be"
+                        + " of the same models");
+            }
+
+            for (int m = 1; m < versions.length; m++) {
+                differenceSums[m] += other.differenceSums[m];
+                absoluteDifferenceSums[m] += other.absoluteDifferenceSums[m];
+                squaredDifferenceSums[m] += other.squaredDifferenceSums[m];
+                maxAbsoluteDifferences[m] = Math.max(
+                        maxAbsoluteDifferences[m],
+                        other.maxAbsoluteDifferences[m]);
+                for (int p = 0; p < bands.getNumBands(); p++) {
+                    for (int c = 0; c < bands.getNumBands(); c++) {
+                        bandCounts[m][p][c] += other.bandCounts[m][p][c];
+                    }
+                }
+            }
+            rows += other.rows;
+            rejected += other.rejected;
+        }
+
+        public long getRows () {
+            return (rows);
+        }
+
+        /**
+         * @return the number of records left out as invalid
+         */
+        public long getRejected () {
+            return (rejected);
+        }
+
+        /**
+         * @return the number of models, production included
+         */
+        public int getNumModels () {
+            return (versions.length);
+        }
+
+        public String getVersion (int model) {
+            return (versions[model]);
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @return the mean of candidate minus production probability
+         */
+        public double getMeanDifference (int candidate) {
+            return (differenceSums[candidate] / rows);
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @return the mean absolute difference in probability
+         */
+        public double getMeanAbsoluteDifference (int candidate) {
+            return (absoluteDifferenceSums[candidate] / rows);
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @return the root mean square difference in probability
+         */
+        public double getRmsDifference (int candidate) {
+            return (Math.sqrt(squaredDifferenceSums[candidate] / rows));
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @return the largest absolute difference in probability
+         */
+        public double getMaxAbsoluteDifference (int candidate) {
+            return (maxAbsoluteDifferences[candidate]);
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @param productionBand the band given by production
+         * @param candidateBand the band given by the candidate
+         * @return the number of patients given that pair of bands
+         */
+        public long getBandCount (int candidate, int productionBand,
+                int candidateBand) {
+            return (bandCounts[candidate][productionBand][candidateBand]);
+        }
+
+        /**
+         * @param candidate the index of a candidate, from 1
+         * @return the fraction of patients put in the same risk band by the
+         * candidate as by production
+         */
+        public double getBandAgreement (int candidate) {
+            long same = 0;
+            for (int b = 0; b < bands.getNumBands(); b++) {
+                same += bandCounts[candidate][b][b];
+            }
+            return ((double) same / rows);
+        }
+
+        /**
+         * Converts the comparison into a report
+         *
+         * @return a tab separated line per candidate, then each candidate's
+         * table of production bands (rows) against its bands (columns)
+         */
+        @Override
+        public String toString () {
+
+            StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                    "Rows\t%d%nRejected\t%d%nProduction\t%s%n%n"
+                    + "Candidate\tMean diff\tMean abs diff\tRMS diff"
+                    + "\tMax abs diff\tBand agreement%n", rows, rejected,
+                    versions[0]));
+            for (int m = 1; m < versions.length; m++) {
+                out.append(String.format(Locale.ROOT,
+                        "%s\t%+.6f\t%.6f\t%.6f\t%.6f\t%.4f%n", versions[m],
+                        getMeanDifference(m), getMeanAbsoluteDifference(m),
+                        getRmsDifference(m), getMaxAbsoluteDifference(m),
+                        getBandAgreement(m)));
+            }
+
+            for (int m = 1; m < versions.length; m++) {
+                out.append('\n').append(versions[0]).append(" \\ ")
+                        .append(versions[m]);
+                for (int c = 0; c < bands.getNumBands(); c++) {
+                    out.append('\t').append(bands.getBandName(c));
+                }
+                out.append('\n');
+                for (int p = 0; p < bands.getNumBands(); p++) {
+                    out.append(bands.getBandName(p));
+                    for (int c = 0; c < bands.getNumBands(); c++) {
+                        out.append('\t').append(bandCounts[m][p][c]);
+                    }
+                    out.append('\n');
+                }
+            }
+
+            return (out.toString());
+        }
+    }
+
+    private final ModelCoefficients[] models;
+    private final String[] versions;
+    private final RiskBands bands;
+    private final int threads;
+    private final BatchValidator validator = new BatchValidator();
+    // the intercept of each model
+    private final double[] intercepts;
+    // coefficient sum of each categorical option, [variable][option][model]
+    private final double[][][] catOptionTables;
+    // coefficient of each continuous variable, [variable][model]
+    private final double[][] contCoefficients;
+
+    /**
+     * The constructor for the ShadowScorer class
+     *
+     * @param models the production coefficients, then the candidates
+     * @param bands the risk bands compared
+     * @param threads the number of worker threads for files
+     * @throws IllegalArgumentException there must be at least one model and
+     * one thread
+     */
+    public ShadowScorer (List<ModelCoefficients> models, RiskBands bands,
+            int threads) throws IllegalArgumentException {
+
+        if (models.isEmpty()) {
+            throw new IllegalArgumentException ("Invalid Models"
+                    + " (There should be at least one model)");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException ("Invalid Thread Count"
+                    + " (There should be at least one thread)");
+        }
+
+        int count = models.size();
+        this.models = models.toArray(new ModelCoefficients[count]);
+        this.bands = bands;
+        this.threads = threads;
+        versions = new String[count];
+        intercepts = new double[count];
+        catOptionTables = new double[TBIModel.NUM_DIS_VARIABLES][][];
+        contCoefficients = new double[ModelCoefficients.NUM_CONT_TERMS][count];
+
+        for (int m = 0; m < count; m++) {
+            ModelCoefficients coefficients = this.models[m];
+            versions[m] = coefficients.getVersion();
+            intercepts[m] = coefficients.getIntercept();
+            double[][] table = coefficients.catOptionTable();
+            for (int var = 0; var < table.length; var++) {
+                if (catOptionTables[var] == null) {
+                    catOptionTables[var] = new double[table[var].length][count];
+                }
+                for (int option = 0; option < table[var].length; option++) {
+                    catOptionTables[var][option][m] = table[var][option];
+                }
+            }
+            for (int var = 0; var < ModelCoefficients.NUM_CONT_TERMS; var++) {
+                contCoefficients[var][m] = coefficients.getCoefficient(var);
+            }
+        }
+    }
+
+    /**
+     * The constructor for the ShadowScorer class, comparing the default risk
+     * bands
+     *
+     * @param models the production coefficients, then the candidates
+     * @param threads the number of worker threads for files
+     * @throws IllegalArgumentException there must be at least one model and
+     * one thread
+     */
+    public ShadowScorer (List<ModelCoefficients> models, int threads)
+            throws IllegalArgumentException {
+        this(models, RiskBands.DEFAULT, threads);
+    }
+
+    public int getNumModels () {
+        return (models.length);
+    }
+
+    /**
+     * @param model the index of the model; 0 for production
+     * @return its coefficients
+     */
+    public ModelCoefficients getModel (int model) {
+        return (models[model]);
+    }
+
+    /**
+     * Starts an empty comparison of this scorer's models
+     *
+     * @return the comparison
+     */
+    public Comparison newComparison () {
+        return (new Comparison(versions, bands));
+    }
+
+    /**
+     * Computes the link of every model for a range of rows
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the link of model m for row r at
+     * [m][r - from]; must have a row per model
+     */
+    public void link (PatientBatch batch, int from, int to, double[][] links) {
+
+        int n = to - from;
+        int count = models.length;
+
+        for (int m = 0; m < count; m++) {
+            double intercept = intercepts[m];
+            double[] out = links[m];
+            for (int i = 0; i < n; i++) {
+                out[i] = intercept;
+            }
+        }
+
+        for (int var = 0; var < catOptionTables.length; var++) {
+            byte[] column = batch.getCatColumn(var);
+            double[][] table = catOptionTables[var];
+            for (int i = 0; i < n; i++) {
+                double[] byModel = table[column[from + i]];
+                for (int m = 0; m < count; m++) {
+                    links[m][i] += byModel[m];
+                }
+            }
+        }
+
+        for (int var = 0; var < contCoefficients.length; var++) {
+            double[] column = batch.getContColumn(var);
+            double[] byModel = contCoefficients[var];
+            for (int m = 0; m < count; m++) {
+                double coefficient = byModel[m];
+                double[] out = links[m];
+                for (int i = 0; i < n; i++) {
+                    out[i] += coefficient * column[from + i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Scores a range of rows with every model and adds them to a comparison
+     *
+     * @param batch the patients to score
+     * @param from the first row to score
+     * @param to one past the last row to score
+     * @param links receives the links as for link
+     * @param comparison the comparison to add to
+     */
+    public void compare (PatientBatch batch, int from, int to,
+            double[][] links, Comparison comparison) {
+        link(batch, from, to, links);
+        comparison.add(links, to - from);
+    }
+
+    /**
+     * Compares the models on a patient file. The calling thread reads lines;
+     * the workers parse, validate, score and compare them.
+     *
+     * @param file the patient file, plain or gzip compressed
+     * @return the comparison
+     * @throws IOException the file cannot be read
+     * @throws InterruptedException the calling thread was interrupted
+     * @throws IllegalStateException a worker failed
+     */
+    public Comparison compare (Path file) throws IOException,
+            InterruptedException {
+
+        final ChunkPipeline chunks = new ChunkPipeline(threads, CHUNK_SIZE);
+
+        Comparison merged = newComparison();
+        for (Comparison comparison : chunks.run(file,
+                () -> compareChunks(chunks), "Shadow scoring worker failed")) {
+            merged.merge(comparison);
+        }
+        return (merged);
+    }
+
+    /**
+     * Compares chunks of lines until the end of the input
+     *
+     * @return the comparison of every chunk taken
+     */
+    private Comparison compareChunks (ChunkPipeline chunks)
+            throws InterruptedException {
+
+        Comparison comparison = newComparison();
+        PatientBatch batch = new PatientBatch(CHUNK_SIZE);
+        int[] masks = new int[CHUNK_SIZE];
+        int[] validRows = new int[CHUNK_SIZE];
+        double[][] links = new double[models.length][CHUNK_SIZE];
+
+        List<String> chunk;
+        while ((chunk = chunks.take()) != null) {
+
+            ScoringEvents.BatchChunk event = ScoringEvents.ENABLED ?
+                    ScoringEvents.BatchChunk.start() : null;
+
+            batch.clear();
+            for (String line : chunk) {
+                masks[batch.size()] = validator.load(line, batch);
+            }
+            int valid = validator.validate(batch, 0, batch.size(), masks,
+                    validRows);
+            comparison.rejected += batch.size() - valid;
+            batch.retain(validRows, valid);
+            compare(batch, 0, valid, links, comparison);
+
+            if (event != null) {
+                event.modelVersion = versions[0];
+                event.rows = chunk.size();
+                event.validRows = valid;
+                event.commit();
+            }
+        }
+
+        return (comparison);
+    }
+
+
+    /**
+     * @param args the patient file followed by the coefficient files of the
+     * candidates, compared with the built-in coefficients
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 2) {
+            System.err.println("Usage: ShadowScorer <patients>"
+                    + " <candidate coefficients> ...");
+            System.exit(2);
+        }
+
+        try {
+            ModelRegistry registry = new ModelRegistry();
+            for (int i = 1; i < args.length; i++) {
+                registry.register(Paths.get(args[i]));
+            }
+            ShadowScorer scorer = registry.newShadowScorer(
+                    Runtime.getRuntime().availableProcessors());
+            System.out.print(scorer.compare(Paths.get(args[0])));
+        } catch (IOException | InterruptedException |
+                IllegalArgumentException | IllegalStateException failure) {
+            System.err.println("Shadow scoring failed: " +
+                    failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
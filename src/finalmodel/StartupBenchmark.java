@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the cold start time of the command line scorer: the wall time
+ * from launching a new JVM running "Main score" on one patient until the
+ * process exits. Each run is a fresh process, so the figures include JVM
+ * boot, class loading and the first, interpreted, prediction, i.e. what a
+ * shell script or cron job pays per call.
+ *
+ * Extra JVM options, such as an AppCDS archive, are benchmarked against a
+ * launch without them:
+ * <pre>
+ *   java -cp TMP3.jar finalmodel.StartupBenchmark 20 -XX:SharedArchiveFile=score.jsa
+ * </pre>
+ *
+ * @author okama
+ */
+public class StartupBenchmark {
+
+    // the patient scored by every run
+    public static final String SAMPLE_RECORD =
+            "Male,No,Yes,White,Penetrating,14,3,7,52,120,70,36.5,100";
+
+    private final String javaCommand;
+    private final String classPath;
+
+    /**
+     * The constructor for the StartupBenchmark class, launching the same
+     * java and class path as the current JVM
+     */
+    public StartupBenchmark () {
+        javaCommand = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "java";
+        classPath = System.getProperty("java.class.path");
+    }
+
+    /**
+     * Launches the scorer a number of times
+     *
+     * @param runs the number of timed launches
+     * @param jvmOptions options passed to every launched JVM
+     * @return the wall time of each launch in milliseconds, sorted
+     * @throws IOException a JVM cannot be launched, or a launch fails
+     * @throws InterruptedException interrupted while waiting for a launch
+     */
+    public double[] measure (int runs, List<String> jvmOptions)
+            throws IOException, InterruptedException {
+
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(Main.class.getName());
+        command.add("score");
+        command.add(SAMPLE_RECORD);
+
+        // the one line of output fits in the pipe, so it is never read
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        // one untimed launch so that the jar and JDK are in the page cache
+        launch(builder);
+
+        double[] millis = new double[runs];
+        for (int r = 0; r < runs; r++) {
+            millis[r] = launch(builder);
+        }
+        Arrays.sort(millis);
+
+        return (millis);
+    }
+
+    private static double launch (ProcessBuilder builder)
+            throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        int status = builder.start().waitFor();
+        long elapsed = System.nanoTime() - start;
+
+        if (status != 0) {
+            throw new IOException ("Scorer exited with status " + status);
+        }
+
+        return (elapsed / 1e6);
+    }
+
+    /**
+     * Summarizes the sorted launch times of measure
+     *
+     * @param label names the configuration measured
+     * @param millis the sorted launch times
+     * @return a line with the minimum, median, mean and maximum
+     */
+    public static String summarize (String label, double[] millis) {
+
+        double total = 0;
+        for (double m : millis) {
+            total += m;
+        }
+
+        return (String.format("%-40s min %7.1f ms  median %7.1f ms"
+                + "  mean %7.1f ms  max %7.1f ms", label, millis[0],
+                millis[millis.length / 2], total / millis.length,
+                millis[millis.length - 1]));
+    }
+
+    /**
+     * @param args the number of launches, then any JVM options to compare
+     * against a plain launch
+     */
+    public static void main (String[] args) {
+
+        if (args.length < 1) {
+            System.err.println("Usage: StartupBenchmark <runs>"
+                    + " [JVM option ...]");
+            System.exit(2);
+        }
+
+        try {
+            int runs = Integer.parseInt(args[0]);
+            if (runs < 1) {
+                throw new IllegalArgumentException ("Invalid Number of Runs");
+            }
+            List<String> options =
+                    Arrays.asList(args).subList(1, args.length);
+
+            StartupBenchmark benchmark = new StartupBenchmark();
+            System.out.println(summarize("default",
+                    benchmark.measure(runs, new ArrayList<String>())));
+            if (!options.isEmpty()) {
+                System.out.println(summarize(String.join(" ", options),
+                        benchmark.measure(runs, options)));
+            }
+        } catch (IOException | InterruptedException |
+                IllegalArgumentException failure) {
+            System.err.println("Benchmark failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
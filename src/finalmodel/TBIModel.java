@@ -32,12 +32,18 @@ import java.util.Arrays;
  */
 public class TBIModel {
     
+    // version tag of the coefficient set below; recorded alongside every
+    // prediction so that logged results can be traced to the model used.
+    // 1.1 multiplies the Pacific Islander coefficient by its indicator; 1.0
+    // added it to every link, so its predictions do not rescore under 1.1
+    private static final String MODEL_VERSION = "TMP3-1.1";
+    
     // total number of variables
-    private static final int NUM_VARIABLES = 13;
+    static final int NUM_VARIABLES = 13;
     // number of continuous variables
-    private static final int NUM_CONT_VARIABLES = 8;
+    static final int NUM_CONT_VARIABLES = 8;
     // number of discrete variables
-    private static final int NUM_DIS_VARIABLES = 5;
+    static final int NUM_DIS_VARIABLES = 5;
     
     // model specifications i.e. coefficient values
     private static final double INTERCEPT = 12.7459826; //intercept value
@@ -60,6 +66,17 @@ public class TBIModel {
     private static final double OTHER_INJ_COEF = 1.0684514; //other injury type
     private static final double PEN_INJ_COEF = 2.3975298; //penetrating
     
+    // the coefficients above as a table, in ModelCoefficients term order,
+    // for the bulk scoring code
+    private static final ModelCoefficients COEFFICIENTS =
+            new ModelCoefficients(MODEL_VERSION, INTERCEPT, new double[] {
+                AGE_COEF, AIS_SEVERITY_COEF, GCS_COEF, ISS_COEF, SBP_COEF,
+                PULSE_COEF, BODY_TEMP_COEF, OXY_SAT_COEF, GENDER_COEF,
+                DRUG_USE_COEF, SUPP_OXY_COEF, WHITE_COEF, AMER_IND_COEF,
+                ASIAN_COEF, PAC_ISLNDR_COEF, OTHER_RACE_COEF, OTHER_INJ_COEF,
+                PEN_INJ_COEF
+            });
+    
     // model variable values -- default values
     // value of age entered into model
     private double ageVal = 0;
@@ -116,6 +133,30 @@ public class TBIModel {
         {"Blunt", "Penetrating", "Other"} //injury type
     };
     
+    // the ranges enforced by the set methods of the continuous variables,
+    // in the order age, AIS severity, GCS, ISS, SBP, pulse rate, body
+    // temperature and oxygen saturation
+    private static final double[] CONT_VAR_MINIMUMS = {
+        0, 1, 3, 3, 0, 0, 0, 0
+    };
+    private static final double[] CONT_VAR_MAXIMUMS = {
+        14, 6, 15, 75, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+        Double.POSITIVE_INFINITY, 100
+    };
+    // whether each continuous variable only takes whole numbers
+    private static final boolean[] CONT_VAR_INTEGRAL = {
+        false, true, true, true, false, false, false, false
+    };
+    
+    private static final int AGE_INDEX = 0;
+    private static final int AIS_SEV_INDEX = 1;
+    private static final int GCS_INDEX = 2;
+    private static final int ISS_INDEX = 3;
+    private static final int SBP_INDEX = 4;
+    private static final int PULSE_INDEX = 5;
+    private static final int BODY_TEMP_INDEX = 6;
+    private static final int OXY_SAT_INDEX = 7;
+    
     private static final int RACE_INDEX = 3;
     private static final int GENDER_INDEX = 0;
     private static final int SUPP_OXY_INDEX = 1;
@@ -181,6 +222,24 @@ public class TBIModel {
         return (NUM_DIS_VARIABLES);
     }
     
+    /**
+     * Accessor method for the version of the model coefficients
+     * 
+     * @return MODEL_VERSION the version tag of the coefficient set
+     */
+    public String getModelVersion () {
+        return (MODEL_VERSION);
+    }
+    
+    /**
+     * Accessor method for the model coefficients
+     * 
+     * @return COEFFICIENTS the coefficients used by this model
+     */
+    public ModelCoefficients getCoefficients () {
+        return (COEFFICIENTS);
+    }
+    
     /**
      * Computes the probability of mortality for a TBI patient
      * 
@@ -188,21 +247,88 @@ public class TBIModel {
      */
     public double getProbabilityOfMortality () {
         
+        ScoringEvents.Score event = ScoringEvents.ENABLED ?
+                ScoringEvents.Score.start() : null;
+        
         link = INTERCEPT + AGE_COEF * ageVal + AIS_SEVERITY_COEF * aisSevVal +
                GCS_COEF * gcsVal + ISS_COEF * issVal + SBP_COEF * sbpVal +
                PULSE_COEF * pulVal + BODY_TEMP_COEF * tempVal + 
                OXY_SAT_COEF * oxySatVal + GENDER_COEF * maGenInd + 
                DRUG_USE_COEF * drugInd + asRaceInd * ASIAN_COEF +
                AMER_IND_COEF * aiRaceInd + whRaceInd * WHITE_COEF +
-               othRaceInd * OTHER_RACE_COEF + haRaceInd + PAC_ISLNDR_COEF +
+               othRaceInd * OTHER_RACE_COEF + haRaceInd * PAC_ISLNDR_COEF +
                suppOxyValInd * SUPP_OXY_COEF + othInjInd * OTHER_INJ_COEF +
                PEN_INJ_COEF * peInjInd;
         
         probOfMort = (1) / (1 + Math.exp(-link)); 
         
+        if (event != null) {
+            event.modelVersion = MODEL_VERSION;
+            event.probability = probOfMort;
+            event.commit();
+        }
+        
         return probOfMort;
     }
     
+    /**
+     * Accessor method for the values of the terms of the linear function
+     * 
+     * @param termValues receives the value of each term (continuous values
+     * and 0/1 indicators) in ModelCoefficients term order; must have room for
+     * ModelCoefficients.NUM_TERMS values
+     */
+    public void getTermValues (double[] termValues) {
+        termValues[ModelCoefficients.AGE_TERM] = ageVal;
+        termValues[ModelCoefficients.AIS_SEV_TERM] = aisSevVal;
+        termValues[ModelCoefficients.GCS_TERM] = gcsVal;
+        termValues[ModelCoefficients.ISS_TERM] = issVal;
+        termValues[ModelCoefficients.SBP_TERM] = sbpVal;
+        termValues[ModelCoefficients.PULSE_TERM] = pulVal;
+        termValues[ModelCoefficients.BODY_TEMP_TERM] = tempVal;
+        termValues[ModelCoefficients.OXY_SAT_TERM] = oxySatVal;
+        termValues[ModelCoefficients.MALE_TERM] = maGenInd;
+        termValues[ModelCoefficients.DRUG_USE_TERM] = drugInd;
+        termValues[ModelCoefficients.SUPP_OXY_TERM] = suppOxyValInd;
+        termValues[ModelCoefficients.WHITE_TERM] = whRaceInd;
+        termValues[ModelCoefficients.AMER_IND_TERM] = aiRaceInd;
+        termValues[ModelCoefficients.ASIAN_TERM] = asRaceInd;
+        termValues[ModelCoefficients.PAC_ISLNDR_TERM] = haRaceInd;
+        termValues[ModelCoefficients.OTHER_RACE_TERM] = othRaceInd;
+        termValues[ModelCoefficients.OTHER_INJ_TERM] = othInjInd;
+        termValues[ModelCoefficients.PEN_INJ_TERM] = peInjInd;
+    }
+    
+    /**
+     * Accessor method for the linear function value of the last prediction
+     * 
+     * @return link the value entered into the link function by the last call
+     * to getProbabilityOfMortality; 0 if no prediction has been made
+     */
+    public double getLink () {
+        return (link);
+    }
+    
+    /**
+     * Inverse of the model link function. Since the probability of mortality
+     * increases with the link, patients can be ranked by link alone and a
+     * probability threshold converted to a link threshold once.
+     * 
+     * @param probability a probability of mortality between 0 and 1
+     * @return the link value giving that probability; negative infinity for 0
+     * and positive infinity for 1
+     * @throws IllegalArgumentException the probability must be between 0 and 1
+     */
+    public static double getLinkForProbability (double probability)
+            throws IllegalArgumentException {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException ("Invalid Probability"
+                    + " (Probability should be between 0 and 1)");
+        } else {
+            return (Math.log(probability / (1 - probability)));
+        }
+    }
+    
     /**
      * Accessor method for glasgow coma score
      * 
@@ -222,7 +348,8 @@ public class TBIModel {
      * 3 and 15
      */
     public void setGCS (int newGCSVal) throws IllegalArgumentException {
-        if (newGCSVal > 15 || newGCSVal < 3) {
+        if (newGCSVal > CONT_VAR_MAXIMUMS[GCS_INDEX] ||
+                newGCSVal < CONT_VAR_MINIMUMS[GCS_INDEX]) {
             throw new IllegalArgumentException ("Invalid GCS Value"
                     + " (GCS should be between 3 and 15)");
         } else {
@@ -249,7 +376,8 @@ public class TBIModel {
      * and 75
      */
     public void setISS (int newISSVal) throws IllegalArgumentException {
-        if (newISSVal > 75 || newISSVal < 3) {
+        if (newISSVal > CONT_VAR_MAXIMUMS[ISS_INDEX] ||
+                newISSVal < CONT_VAR_MINIMUMS[ISS_INDEX]) {
             throw new IllegalArgumentException ("Invalid ISS Value "
                     + " (ISS should be between 3 and 75)");
         } else {
@@ -276,7 +404,8 @@ public class TBIModel {
      * takes a value between 1 and 6
      */
     public void setAISSev (int newAISSevVal) throws IllegalArgumentException {
-        if (newAISSevVal > 6 || newAISSevVal < 1) {
+        if (newAISSevVal > CONT_VAR_MAXIMUMS[AIS_SEV_INDEX] ||
+                newAISSevVal < CONT_VAR_MINIMUMS[AIS_SEV_INDEX]) {
             throw new IllegalArgumentException ("Invalid AIS Severity Value"
                     + " (AIS Severity should be between 1 and 6)");
         } else {
@@ -289,7 +418,9 @@ public class TBIModel {
     }
     
     public void setAge (double newAgeVal) throws IllegalArgumentException {
-        if (newAgeVal > 14 || newAgeVal < 0) {
+        // written so that NaN fails too
+        if (!(newAgeVal <= CONT_VAR_MAXIMUMS[AGE_INDEX] &&
+                newAgeVal >= CONT_VAR_MINIMUMS[AGE_INDEX])) {
             throw new IllegalArgumentException ("Invalid Age. Intended is for"
                     + " pediatric patients. (Age should be between 0 and 14)");
         } else {
@@ -302,7 +433,10 @@ public class TBIModel {
     }
     
     public void setSBP (double newSBPVal) throws IllegalArgumentException {
-        if (newSBPVal < 0) {
+        if (Double.isNaN(newSBPVal)) {
+            throw new IllegalArgumentException ("Invalid SBP Value"
+                    + " (SBP should be a number)");
+        } else if (newSBPVal < CONT_VAR_MINIMUMS[SBP_INDEX]) {
             throw new IllegalArgumentException ("Negative SBP");
         } else {
             sbpVal = newSBPVal;
@@ -315,7 +449,9 @@ public class TBIModel {
     
     public void setOxySat (double newOxySatVal)
             throws IllegalArgumentException {
-        if (newOxySatVal > 100 || newOxySatVal < 0) {
+        // written so that NaN fails too
+        if (!(newOxySatVal <= CONT_VAR_MAXIMUMS[OXY_SAT_INDEX] &&
+                newOxySatVal >= CONT_VAR_MINIMUMS[OXY_SAT_INDEX])) {
             throw new IllegalArgumentException ("Invalid Oxygen Saturation Value"
                     + " (Oxygen Saturation should be between 0 and 100)");
         } else {
@@ -329,7 +465,10 @@ public class TBIModel {
     
     public void setBodyTemp(double newBodyTemp)
             throws IllegalArgumentException {
-        if (newBodyTemp < 0) {
+        if (Double.isNaN(newBodyTemp)) {
+            throw new IllegalArgumentException ("Invalid Body Temperature"
+                    + " Value (Body Temperature should be a number)");
+        } else if (newBodyTemp < CONT_VAR_MINIMUMS[BODY_TEMP_INDEX]) {
             throw new IllegalArgumentException ("Negative Body Temperature.");
         } else {
             tempVal = newBodyTemp;
@@ -342,7 +481,10 @@ public class TBIModel {
     
     public void setPulseRate (double newPulseRate)
             throws IllegalArgumentException {
-        if (newPulseRate < 0) {
+        if (Double.isNaN(newPulseRate)) {
+            throw new IllegalArgumentException ("Invalid Pulse Rate Value"
+                    + " (Pulse Rate should be a number)");
+        } else if (newPulseRate < CONT_VAR_MINIMUMS[PULSE_INDEX]) {
             throw new IllegalArgumentException ("Negative Pulse Rate");
         } else {
             pulVal = newPulseRate;
@@ -459,6 +601,105 @@ public class TBIModel {
         }
     }
     
+    /**
+     * Accessor method for the lowest valid value of a continuous variable
+     * 
+     * @param i the index of the continuous variable, in the order age, AIS
+     * severity, GCS, ISS, SBP, pulse rate, body temperature and oxygen
+     * saturation
+     * @return the lowest value accepted by the variable's set method
+     * @throws IndexOutOfBoundsException user entered index must be a within
+     * the allottable range of indeces
+     */
+    public double getIthContVarMinimum (int i)
+            throws IndexOutOfBoundsException {
+        if (i >= CONT_VAR_MINIMUMS.length || i < 0) {
+            throw new IndexOutOfBoundsException ("Invalid Variable Index");
+        } else {
+            return (CONT_VAR_MINIMUMS[i]);
+        }
+    }
+    
+    /**
+     * Accessor method for the highest valid value of a continuous variable
+     * 
+     * @param i the index of the continuous variable (same indexing as
+     * getIthContVarMinimum)
+     * @return the highest value accepted by the variable's set method;
+     * positive infinity if there is no upper limit
+     * @throws IndexOutOfBoundsException user entered index must be a within
+     * the allottable range of indeces
+     */
+    public double getIthContVarMaximum (int i)
+            throws IndexOutOfBoundsException {
+        if (i >= CONT_VAR_MAXIMUMS.length || i < 0) {
+            throw new IndexOutOfBoundsException ("Invalid Variable Index");
+        } else {
+            return (CONT_VAR_MAXIMUMS[i]);
+        }
+    }
+    
+    /**
+     * Accessor method for whether a continuous variable takes whole numbers
+     * 
+     * @param i the index of the continuous variable (same indexing as
+     * getIthContVarMinimum)
+     * @return true if the variable's set method takes an int
+     * @throws IndexOutOfBoundsException user entered index must be a within
+     * the allottable range of indeces
+     */
+    public boolean isIthContVarIntegral (int i)
+            throws IndexOutOfBoundsException {
+        if (i >= CONT_VAR_INTEGRAL.length || i < 0) {
+            throw new IndexOutOfBoundsException ("Invalid Variable Index");
+        } else {
+            return (CONT_VAR_INTEGRAL[i]);
+        }
+    }
+    
+    /**
+     * Accessor method for the option currently selected for a categorical
+     * variable
+     * 
+     * @param i the index of the categorical variable (same indexing as
+     * getIthCatVarOptions)
+     * @return the index of the current value within getIthCatVarOptions(i)
+     * @throws IndexOutOfBoundsException user entered index must be a within
+     * the allottable range of indeces
+     */
+    public int getIthCatVarSelection (int i) throws IndexOutOfBoundsException {
+        
+        String selected;
+        
+        switch (i) {
+            
+            case GENDER_INDEX:
+                selected = genderVal;
+                break;
+                
+            case SUPP_OXY_INDEX:
+                selected = suppOxyVal;
+                break;
+                
+            case DRUG_USE_INDEX:
+                selected = drugVal;
+                break;
+                
+            case RACE_INDEX:
+                selected = raceVal;
+                break;
+                
+            case INJ_TYPE_INDEX:
+                selected = injTypeVal;
+                break;
+                
+            default:
+                throw new IndexOutOfBoundsException ("Invalid Option Index");
+        }
+        
+        return (Arrays.asList(CAT_OPTION_LISTS[i]).indexOf(selected));
+    }
+    
     /**
      * Set method for the race indicator. Takes the user entered string e.g. 
      * 'Asian' and converts into a valid model input
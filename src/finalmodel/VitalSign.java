@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+/**
+ * The model variables reported by bedside monitors. Each knows its term in
+ * the linear function and how to change its value in a TBIModel.
+ *
+ * @author okama
+ */
+public enum VitalSign {
+
+    SYSTOLIC_BLOOD_PRESSURE (ModelCoefficients.SBP_TERM),
+    PULSE_RATE (ModelCoefficients.PULSE_TERM),
+    BODY_TEMPERATURE (ModelCoefficients.BODY_TEMP_TERM),
+    OXYGEN_SATURATION (ModelCoefficients.OXY_SAT_TERM);
+
+    // the term of the linear function this vital sign feeds
+    private final int term;
+
+    private VitalSign (int term) {
+        this.term = term;
+    }
+
+    public int getTerm () {
+        return (term);
+    }
+
+    /**
+     * Changes the value of this vital sign in a model through its set method,
+     * so the usual validation applies
+     *
+     * @param model the model to change
+     * @param value the new value
+     * @return the previous value
+     * @throws IllegalArgumentException the value is not valid for this vital
+     * sign; the model is left unchanged
+     */
+    public double set (TBIModel model, double value)
+            throws IllegalArgumentException {
+
+        double previous;
+
+        switch (this) {
+
+            case SYSTOLIC_BLOOD_PRESSURE:
+                previous = model.getSBP();
+                model.setSBP(value);
+                break;
+
+            case PULSE_RATE:
+                previous = model.getPulseRate();
+                model.setPulseRate(value);
+                break;
+
+            case BODY_TEMPERATURE:
+                previous = model.getBodyTemp();
+                model.setBodyTemp(value);
+                break;
+
+            default:
+                previous = model.getOxySat();
+                model.setOxySat(value);
+                break;
+        }
+
+        return (previous);
+    }
+}
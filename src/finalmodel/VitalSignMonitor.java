@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the predicted risk of monitored patients up to date as vital sign
+ * updates arrive. Each admitted patient has a state holding their model and
+ * current link, kept in a ConcurrentHashMap keyed by patient id; the map's
+ * per-bin locking spreads concurrent updates over many independent stripes,
+ * and each update then locks only that patient's state.
+ *
+ * An update changes a single term, so the link is moved by coefficient times
+ * the change in value rather than recomputed. The full link is recomputed
+ * every RESYNC_INTERVAL updates so rounding errors cannot build up. When a
+ * patient's risk moves into another band the alert listener is called, in
+ * update order for that patient.
+ *
+ * Patients with no updates for the idle timeout are dropped by a background
+ * sweep.
+ *
+ * @author okama
+ */
+public class VitalSignMonitor implements Closeable {
+
+    // number of incremental updates after which the link is recomputed
+    static final int RESYNC_INTERVAL = 1024;
+
+    /**
+     * Receives risk band changes
+     */
+    public interface AlertListener {
+
+        /**
+         * Called when a patient's predicted risk moves into another band. The
+         * call is made on the updating thread while the patient's state is
+         * locked, so it should return quickly.
+         *
+         * @param patientId the identifier of the patient
+         * @param oldBand the previous band
+         * @param newBand the new band
+         * @param probability the new probability of mortality
+         */
+        void riskBandChanged (String patientId, int oldBand, int newBand,
+                double probability);
+    }
+
+    /**
+     * The live state of one patient
+     */
+    private static final class PatientState {
+
+        private final TBIModel model;
+        private double link;
+        private int band;
+        private int updatesSinceResync = 0;
+        private long lastUpdateNanos;
+        // set when the patient is discharged or expired
+        private boolean removed = false;
+
+        private PatientState (TBIModel model) {
+            this.model = model;
+        }
+    }
+
+    private final Map<String, PatientState> patients =
+            new ConcurrentHashMap<>();
+    private final RiskBands bands;
+    private final AlertListener listener;
+    private final long idleTimeoutNanos;
+    private final ScheduledExecutorService sweeper;
+
+    // coefficient of each term
+    private final double[] coefficients = new double[ModelCoefficients.NUM_TERMS];
+
+    /**
+     * The constructor for the VitalSignMonitor class
+     *
+     * @param bands the risk bands whose crossings raise alerts
+     * @param listener receives the alerts
+     * @param idleTimeoutMillis how long a patient may go without updates
+     * before being dropped; 0 to keep patients until discharged
+     */
+    public VitalSignMonitor (RiskBands bands, AlertListener listener,
+            long idleTimeoutMillis) {
+
+        this.bands = bands;
+        this.listener = listener;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        ModelCoefficients modelCoefficients = new TBIModel().getCoefficients();
+        for (int i = 0; i < coefficients.length; i++) {
+            coefficients[i] = modelCoefficients.getCoefficient(i);
+        }
+
+        if (idleTimeoutMillis > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "vital-sign-idle-sweeper");
+                thread.setDaemon(true);
+                return (thread);
+            });
+            long period = Math.max(1, idleTimeoutMillis / 4);
+            sweeper.scheduleWithFixedDelay(this::expireIdle, period, period,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Starts monitoring a patient, replacing any earlier state for the same
+     * patient. The monitor takes over the model; the caller must not change
+     * it afterwards.
+     *
+     * @param patientId the identifier of the patient
+     * @param baseline the model holding the patient's full set of inputs
+     * @return the patient's current probability of mortality
+     */
+    public double admit (String patientId, TBIModel baseline) {
+
+        PatientState state = new PatientState(baseline);
+        double probability = baseline.getProbabilityOfMortality();
+        state.link = baseline.getLink();
+        state.band = bands.bandOfLink(state.link);
+        state.lastUpdateNanos = System.nanoTime();
+
+        PatientState previous = patients.put(patientId, state);
+        if (previous != null) {
+            synchronized (previous) {
+                previous.removed = true;
+            }
+        }
+
+        return (probability);
+    }
+
+    /**
+     * Applies a vital sign update to a patient and re-scores them
+     *
+     * @param patientId the identifier of the patient
+     * @param sign the vital sign that changed
+     * @param value the new value of the vital sign
+     * @return the patient's new probability of mortality
+     * @throws IllegalArgumentException the patient is not being monitored or
+     * the value is not valid for the vital sign
+     */
+    public double update (String patientId, VitalSign sign, double value)
+            throws IllegalArgumentException {
+
+        // an infinite value would turn the running link into infinity or NaN
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException ("Invalid " + sign
+                    + " Value (Value should be a finite number)");
+        }
+
+        PatientState state = patients.get(patientId);
+        if (state == null) {
+            throw new IllegalArgumentException ("Unknown Patient "
+                    + patientId);
+        }
+
+        synchronized (state) {
+
+            if (state.removed) {
+                throw new IllegalArgumentException ("Unknown Patient "
+                        + patientId);
+            }
+
+            double previous = sign.set(state.model, value);
+
+            if (++state.updatesSinceResync >= RESYNC_INTERVAL) {
+                state.model.getProbabilityOfMortality();
+                state.link = state.model.getLink();
+                state.updatesSinceResync = 0;
+            } else {
+                state.link += coefficients[sign.getTerm()] * (value - previous);
+            }
+            state.lastUpdateNanos = System.nanoTime();
+
+            double probability = 1 / (1 + Math.exp(-state.link));
+            int band = bands.bandOfLink(state.link);
+            if (band != state.band) {
+                int oldBand = state.band;
+                state.band = band;
+                if (listener != null) {
+                    listener.riskBandChanged(patientId, oldBand, band,
+                            probability);
+                }
+            }
+
+            return (probability);
+        }
+    }
+
+    /**
+     * Accessor method for a patient's current risk
+     *
+     * @param patientId the identifier of the patient
+     * @return the current probability of mortality; NaN if the patient is not
+     * being monitored
+     */
+    public double getProbability (String patientId) {
+
+        PatientState state = patients.get(patientId);
+        if (state == null) {
+            return (Double.NaN);
+        }
+        synchronized (state) {
+            return (state.removed ? Double.NaN :
+                    1 / (1 + Math.exp(-state.link)));
+        }
+    }
+
+    /**
+     * Accessor method for the number of monitored patients
+     *
+     * @return the number of patients currently held
+     */
+    public int getNumPatients () {
+        return (patients.size());
+    }
+
+    /**
+     * Stops monitoring a patient
+     *
+     * @param patientId the identifier of the patient
+     * @return true if the patient was being monitored
+     */
+    public boolean discharge (String patientId) {
+
+        PatientState state = patients.remove(patientId);
+        if (state == null) {
+            return (false);
+        }
+        synchronized (state) {
+            state.removed = true;
+        }
+        return (true);
+    }
+
+    /**
+     * Drops every patient who has had no update for the idle timeout. Called
+     * periodically by the sweeper; may also be called directly.
+     *
+     * @return the number of patients dropped
+     */
+    public int expireIdle () {
+
+        if (idleTimeoutNanos <= 0) {
+            return (0);
+        }
+
+        long now = System.nanoTime();
+        int expired = 0;
+
+        Iterator<Map.Entry<String, PatientState>> entries =
+                patients.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, PatientState> entry = entries.next();
+            PatientState state = entry.getValue();
+            synchronized (state) {
+                if (!state.removed &&
+                        now - state.lastUpdateNanos > idleTimeoutNanos &&
+                        patients.remove(entry.getKey(), state)) {
+                    state.removed = true;
+                    expired++;
+                }
+            }
+        }
+
+        return (expired);
+    }
+
+    /**
+     * Stops the idle sweeper
+     */
+    @Override
+    public void close () {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+}
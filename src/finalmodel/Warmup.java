@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs every scoring path on synthetic valid patients until the JIT compiler
+ * has compiled them, so that the first real prediction after startup does
+ * not pay for interpretation. The paths are those behind a prediction:
+ * record parsing and the set methods, scalar scoring, formatting of the
+ * output, printing and records, and the batch path of loading, validation
+ * and BatchScorer.
+ *
+ * Work is done in rounds; warm-up ends once a few rounds in a row have
+ * triggered no further compilation (as reported by the JVM's compilation
+ * bean), or when the time limit runs out. A sample of single predictions and
+ * a batch are timed before the first round and again after the last, so the
+ * report shows what warming up bought.
+ *
+ * A Warmup is not thread safe; run it on one thread, before the scorer is
+ * reported ready.
+ *
+ * @author okama
+ */
+public class Warmup {
+
+    // default time limit
+    public static final long DEFAULT_MAX_MILLIS = 10000;
+
+    // number of single predictions timed before and after
+    public static final int SAMPLE_SIZE = 200;
+
+    // rows in the timed and warm-up batches
+    public static final int BATCH_SIZE = 1024;
+
+    // distinct synthetic records, reused in turn
+    private static final int POOL_SIZE = 4096;
+    // single predictions per round; the batch path gets as many rows
+    private static final int ROUND_SIZE = 20000;
+    // fewest rounds, and rounds in a row without compilation, to end on
+    private static final int MIN_ROUNDS = 3;
+    private static final int QUIET_ROUNDS = 2;
+    // rounds run when the JVM cannot report compilation time
+    private static final int FALLBACK_ROUNDS = 10;
+
+    /**
+     * The outcome of a warm-up
+     */
+    public static final class Report {
+
+        private final int rounds;
+        private final boolean settled;
+        private final long elapsedNanos;
+        private final long compileMillis;
+        private final long firstNanos;
+        private final long[] beforeNanos;
+        private final long[] afterNanos;
+        private final double beforeBatchNanos;
+        private final double afterBatchNanos;
+
+        private Report (int rounds, boolean settled, long elapsedNanos,
+                long compileMillis, long firstNanos, long[] beforeNanos,
+                long[] afterNanos, double beforeBatchNanos,
+                double afterBatchNanos) {
+            this.rounds = rounds;
+            this.settled = settled;
+            this.elapsedNanos = elapsedNanos;
+            this.compileMillis = compileMillis;
+            this.firstNanos = firstNanos;
+            this.beforeNanos = beforeNanos;
+            this.afterNanos = afterNanos;
+            this.beforeBatchNanos = beforeBatchNanos;
+            this.afterBatchNanos = afterBatchNanos;
+        }
+
+        public int getRounds () {
+            return (rounds);
+        }
+
+        /**
+         * @return true if warm-up ended because compilation settled, false
+         * if it ran out of time or could not observe compilation
+         */
+        public boolean isSettled () {
+            return (settled);
+        }
+
+        /**
+         * @return the median time of a single prediction before warming up,
+         * in microseconds
+         */
+        public double getBeforeMicros () {
+            return (beforeNanos[beforeNanos.length / 2] / 1e3);
+        }
+
+        /**
+         * @return the median time of a single prediction after warming up,
+         * in microseconds
+         */
+        public double getAfterMicros () {
+            return (afterNanos[afterNanos.length / 2] / 1e3);
+        }
+
+        /**
+         * Converts the report into a table
+         *
+         * @return one tab separated measurement per line
+         */
+        @Override
+        public String toString () {
+            return (String.format(Locale.ROOT, "Rounds\t%d%nSettled\t%b%n"
+                    + "Elapsed\t%.3f s%nCompile time\t%s%n"
+                    + "First prediction\t%.1f us%n"
+                    + "Prediction p50\t%.1f us -> %.1f us%n"
+                    + "Prediction p99\t%.1f us -> %.1f us%n"
+                    + "Batch per row\t%.1f ns -> %.1f ns%n", rounds, settled,
+                    elapsedNanos / 1e9, compileMillis < 0 ? "n/a" :
+                            compileMillis + " ms", firstNanos / 1e3,
+                    getBeforeMicros(), getAfterMicros(),
+                    beforeNanos[beforeNanos.length * 99 / 100] / 1e3,
+                    afterNanos[afterNanos.length * 99 / 100] / 1e3,
+                    beforeBatchNanos, afterBatchNanos));
+        }
+    }
+
+    private final String[] records = new String[POOL_SIZE];
+    private final TBIModel model = new TBIModel();
+    private final BatchValidator validator = new BatchValidator();
+    private final BatchScorer batchScorer;
+    private final PatientBatch batch = new PatientBatch(BATCH_SIZE);
+    private final int[] masks = new int[BATCH_SIZE];
+    private final int[] validRows = new int[BATCH_SIZE];
+    private final double[] links = new double[BATCH_SIZE];
+    private final double[] probabilities = new double[BATCH_SIZE];
+    // next record to use
+    private int next = 0;
+    // collects every result, so that no work can be optimized away
+    private double sink = 0;
+
+    /**
+     * The constructor for the Warmup class
+     *
+     * @param seed the seed of the synthetic patients
+     */
+    public Warmup (long seed) {
+
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            records[i] = generator.nextRecord();
+        }
+        batchScorer = new BatchScorer(model.getCoefficients());
+    }
+
+    /**
+     * Warms up the scoring paths
+     *
+     * @param maxMillis the time limit; the timed samples come on top
+     * @return the report
+     */
+    public Report run (long maxMillis) {
+
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean observable = compiler != null &&
+                compiler.isCompilationTimeMonitoringSupported();
+
+        long firstStart = System.nanoTime();
+        predict();
+        long firstNanos = System.nanoTime() - firstStart;
+        long[] beforeNanos = timePredictions();
+        double beforeBatchNanos = timeBatch();
+
+        long start = System.nanoTime();
+        long deadline = start + maxMillis * 1000000L;
+        long compileStart = observable ? compiler.getTotalCompilationTime() : -1;
+        long compiled = compileStart;
+        int rounds = 0;
+        int quietRounds = 0;
+        boolean settled = false;
+
+        while (System.nanoTime() < deadline) {
+
+            for (int i = 0; i < ROUND_SIZE; i++) {
+                predict();
+            }
+            for (int rows = 0; rows < ROUND_SIZE; rows += BATCH_SIZE) {
+                scoreBatch();
+            }
+            rounds++;
+
+            if (!observable) {
+                if (rounds >= FALLBACK_ROUNDS) {
+                    break;
+                }
+                continue;
+            }
+
+            long nowCompiled = compiler.getTotalCompilationTime();
+            quietRounds = nowCompiled == compiled ? quietRounds + 1 : 0;
+            compiled = nowCompiled;
+            if (rounds >= MIN_ROUNDS && quietRounds >= QUIET_ROUNDS) {
+                settled = true;
+                break;
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        long[] afterNanos = timePredictions();
+        double afterBatchNanos = timeBatch();
+
+        return (new Report(rounds, settled, elapsedNanos,
+                observable ? compiled - compileStart : -1, firstNanos,
+                beforeNanos, afterNanos, beforeBatchNanos, afterBatchNanos));
+    }
+
+    /**
+     * One prediction as the calculator and the command line make it
+     */
+    private void predict () {
+
+        String record = records[next];
+        next = (next + 1) % POOL_SIZE;
+
+        PatientRecordFormat.parse(record, model);
+        double prediction = model.getProbabilityOfMortality();
+        String shown = Double.toString(prediction * 100) + " %";
+        String printed = model.toString();
+        String written = PatientRecordFormat.format(model);
+
+        sink += prediction + shown.length() + printed.length() +
+                written.length();
+    }
+
+    /**
+     * One batch as the bulk tools load, validate and score it
+     */
+    private void scoreBatch () {
+
+        batch.clear();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            masks[i] = validator.load(records[next], batch);
+            next = (next + 1) % POOL_SIZE;
+        }
+        int valid = validator.validate(batch, 0, BATCH_SIZE, masks, validRows);
+        batch.retain(validRows, valid);
+        batchScorer.score(batch, 0, valid, links, probabilities);
+
+        sink += valid > 0 ? probabilities[valid - 1] : 0;
+    }
+
+    private long[] timePredictions () {
+
+        long[] nanos = new long[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            long start = System.nanoTime();
+            predict();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+
+        return (nanos);
+    }
+
+    private double timeBatch () {
+
+        long start = System.nanoTime();
+        scoreBatch();
+
+        return ((System.nanoTime() - start) / (double) BATCH_SIZE);
+    }
+
+    /**
+     * @param args optionally the time limit in seconds
+     */
+    public static void main (String[] args) {
+
+        long maxMillis = DEFAULT_MAX_MILLIS;
+        try {
+            if (args.length > 0) {
+                maxMillis = (long) (Double.parseDouble(args[0]) * 1000);
+            }
+        } catch (NumberFormatException notANumber) {
+            System.err.println("Usage: Warmup [max seconds]");
+            System.exit(2);
+        }
+
+        Warmup warmup = new Warmup(1);
+        Report report = warmup.run(maxMillis);
+        System.out.print(report);
+        System.out.println("Ready");
+    }
+}
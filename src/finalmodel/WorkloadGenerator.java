@@ -0,0 +1,485 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic patients for load and volume testing. Valid patients
+ * always fall within the ranges enforced by the TBIModel set methods; each
+ * continuous variable follows a uniform or a truncated normal distribution
+ * and each categorical variable a set of option weights, all of which can be
+ * changed. A chosen fraction of generated records is made invalid in one
+ * field, the way a badly keyed or truncated row would be. Optionally every
+ * record is labeled with an outcome drawn from the probability of mortality
+ * of a given model, giving a cohort of known coefficients to fit and
+ * evaluate against.
+ *
+ * Generation is deterministic for a given seed. A generator is not safe for
+ * use by several threads at once.
+ *
+ * @author okama
+ */
+public class WorkloadGenerator {
+
+    /**
+     * The shape of the distribution of a continuous variable
+     */
+    public enum Shape {
+        UNIFORM, NORMAL
+    }
+
+    // the ways in which an invalid record is broken
+    private static final int OUT_OF_RANGE = 0;
+    private static final int NOT_A_NUMBER = 1;
+    private static final int UNKNOWN_OPTION = 2;
+    private static final int MISSING_FIELD = 3;
+    private static final int NUM_DEFECTS = 4;
+
+    // attempts at drawing a normal value inside the valid range before the
+    // value is clamped
+    private static final int MAX_REDRAWS = 16;
+
+    private final Random random;
+    private final TBIModel ranges = new TBIModel();
+
+    // distribution of each continuous variable (PatientBatch column order);
+    // low and high for uniform, mean and standard deviation for normal
+    private final Shape[] shapes = new Shape[TBIModel.NUM_CONT_VARIABLES];
+    private final double[] firstParameters =
+            new double[TBIModel.NUM_CONT_VARIABLES];
+    private final double[] secondParameters =
+            new double[TBIModel.NUM_CONT_VARIABLES];
+
+    // cumulative option weights of each categorical variable, ending in 1
+    private final double[][] optionThresholds =
+            new double[TBIModel.NUM_DIS_VARIABLES][];
+
+    private double invalidRate = 0;
+
+    // the model outcomes are drawn from, as its intercept, continuous
+    // coefficients and categorical option table; null for unlabeled records
+    private ModelCoefficients outcomeModel = null;
+    private double[][] outcomeOptionTable;
+
+    // scratch values of the patient being generated
+    private final double[] contValues = new double[TBIModel.NUM_CONT_VARIABLES];
+    private final int[] catValues = new int[TBIModel.NUM_DIS_VARIABLES];
+
+    /**
+     * The constructor for the WorkloadGenerator class. The distributions
+     * start out as a rough picture of a pediatric trauma population.
+     *
+     * @param seed the seed of the random number generator
+     */
+    public WorkloadGenerator (long seed) {
+
+        random = new Random(seed);
+
+        setUniform(PatientBatch.AGE_INDEX, 0, 14);
+        setNormal(PatientBatch.AIS_SEV_INDEX, 3, 1.3);
+        setNormal(PatientBatch.GCS_INDEX, 13, 3.5);
+        setNormal(PatientBatch.ISS_INDEX, 22, 14);
+        setNormal(PatientBatch.SBP_INDEX, 112, 18);
+        setNormal(PatientBatch.PULSE_INDEX, 110, 25);
+        setNormal(PatientBatch.BODY_TEMP_INDEX, 36.8, 0.7);
+        setNormal(PatientBatch.OXY_SAT_INDEX, 97, 3);
+
+        setOptionWeights(PatientBatch.GENDER_INDEX, new double[] {0.4, 0.6});
+        setOptionWeights(PatientBatch.SUPP_OXY_INDEX, new double[] {0.7, 0.3});
+        setOptionWeights(PatientBatch.DRUG_USE_INDEX, new double[] {0.9, 0.1});
+        setOptionWeights(PatientBatch.RACE_INDEX,
+                new double[] {0.2, 0.55, 0.02, 0.05, 0.01, 0.17});
+        setOptionWeights(PatientBatch.INJ_TYPE_INDEX,
+                new double[] {0.85, 0.1, 0.05});
+    }
+
+    /**
+     * Gives a continuous variable a uniform distribution. The interval is cut
+     * down to the variable's valid range.
+     *
+     * @param contVar the index of the continuous variable
+     * @param low the lowest value
+     * @param high the highest value
+     * @throws IllegalArgumentException the interval is empty, unbounded or
+     * outside the valid range
+     */
+    public void setUniform (int contVar, double low, double high)
+            throws IllegalArgumentException {
+
+        double min = Math.max(low, ranges.getIthContVarMinimum(contVar));
+        double max = Math.min(high, ranges.getIthContVarMaximum(contVar));
+        if (!(min <= max) || Double.isInfinite(max - min)) {
+            throw new IllegalArgumentException ("Invalid Uniform Distribution"
+                    + " (Interval should be finite and overlap the range of "
+                    + ranges.getIthVariableName(TBIModel.NUM_DIS_VARIABLES
+                            + contVar) + ")");
+        }
+
+        shapes[contVar] = Shape.UNIFORM;
+        firstParameters[contVar] = min;
+        secondParameters[contVar] = max;
+    }
+
+    /**
+     * Gives a continuous variable a normal distribution, truncated to the
+     * variable's valid range
+     *
+     * @param contVar the index of the continuous variable
+     * @param mean the mean
+     * @param standardDeviation the standard deviation
+     * @throws IllegalArgumentException the mean is outside the valid range or
+     * the standard deviation is negative
+     */
+    public void setNormal (int contVar, double mean, double standardDeviation)
+            throws IllegalArgumentException {
+
+        if (!(mean >= ranges.getIthContVarMinimum(contVar) &&
+                mean <= ranges.getIthContVarMaximum(contVar)) ||
+                !(standardDeviation >= 0)) {
+            throw new IllegalArgumentException ("Invalid Normal Distribution"
+                    + " (Mean should be in the range of "
+                    + ranges.getIthVariableName(TBIModel.NUM_DIS_VARIABLES
+                            + contVar) + " and deviation non-negative)");
+        }
+
+        shapes[contVar] = Shape.NORMAL;
+        firstParameters[contVar] = mean;
+        secondParameters[contVar] = standardDeviation;
+    }
+
+    /**
+     * Sets how often each option of a categorical variable is chosen
+     *
+     * @param catVar the index of the categorical variable (same indexing as
+     * TBIModel.getIthCatVarOptions)
+     * @param weights the relative weight of each option
+     * @throws IllegalArgumentException there must be one non-negative weight
+     * per option, and they cannot all be zero
+     */
+    public void setOptionWeights (int catVar, double[] weights)
+            throws IllegalArgumentException {
+
+        int numOptions = ranges.getIthCatVarOptions(catVar).length;
+        double total = 0;
+        for (double weight : weights) {
+            if (!(weight >= 0)) {
+                total = Double.NaN;
+            }
+            total += weight;
+        }
+        if (weights.length != numOptions || !(total > 0)) {
+            throw new IllegalArgumentException ("Invalid Option Weights"
+                    + " (There should be " + numOptions + " non-negative"
+                    + " weights, not all zero)");
+        }
+
+        double[] thresholds = new double[numOptions];
+        double cumulative = 0;
+        for (int i = 0; i < numOptions; i++) {
+            cumulative += weights[i];
+            thresholds[i] = cumulative / total;
+        }
+        thresholds[numOptions - 1] = 1;
+        optionThresholds[catVar] = thresholds;
+    }
+
+    /**
+     * Sets the fraction of generated records that are invalid
+     *
+     * @param invalidRate a fraction between 0 and 1
+     * @throws IllegalArgumentException the rate must be between 0 and 1
+     */
+    public void setInvalidRate (double invalidRate)
+            throws IllegalArgumentException {
+        if (!(invalidRate >= 0 && invalidRate <= 1)) {
+            throw new IllegalArgumentException ("Invalid Rate (Rate should be"
+                    + " between 0 and 1)");
+        }
+        this.invalidRate = invalidRate;
+    }
+
+    public double getInvalidRate () {
+        return (invalidRate);
+    }
+
+    /**
+     * Labels every record with an outcome, 1 (died) with the probability of
+     * mortality given by a model and 0 (survived) otherwise
+     *
+     * @param coefficients the model to draw outcomes from; null for
+     * unlabeled records
+     */
+    public void setOutcomeModel (ModelCoefficients coefficients) {
+        outcomeModel = coefficients;
+        outcomeOptionTable = coefficients == null ? null :
+                coefficients.catOptionTable();
+    }
+
+    /**
+     * Generates a valid patient into a model
+     *
+     * @param model receives the patient's inputs through its set methods
+     */
+    public void next (TBIModel model) {
+
+        draw();
+
+        model.setGender(ranges.getIthCatVarOptions(
+                PatientBatch.GENDER_INDEX)[catValues[PatientBatch.GENDER_INDEX]]);
+        model.setSupplementalOxy(ranges.getIthCatVarOptions(
+                PatientBatch.SUPP_OXY_INDEX)[catValues[PatientBatch.SUPP_OXY_INDEX]]);
+        model.setDrugUse(ranges.getIthCatVarOptions(
+                PatientBatch.DRUG_USE_INDEX)[catValues[PatientBatch.DRUG_USE_INDEX]]);
+        model.setRace(ranges.getIthCatVarOptions(
+                PatientBatch.RACE_INDEX)[catValues[PatientBatch.RACE_INDEX]]);
+        model.setInjuryType(ranges.getIthCatVarOptions(
+                PatientBatch.INJ_TYPE_INDEX)[catValues[PatientBatch.INJ_TYPE_INDEX]]);
+        model.setAge(contValues[PatientBatch.AGE_INDEX]);
+        model.setAISSev((int) contValues[PatientBatch.AIS_SEV_INDEX]);
+        model.setGCS((int) contValues[PatientBatch.GCS_INDEX]);
+        model.setISS((int) contValues[PatientBatch.ISS_INDEX]);
+        model.setSBP(contValues[PatientBatch.SBP_INDEX]);
+        model.setPulseRate(contValues[PatientBatch.PULSE_INDEX]);
+        model.setBodyTemp(contValues[PatientBatch.BODY_TEMP_INDEX]);
+        model.setOxySat(contValues[PatientBatch.OXY_SAT_INDEX]);
+    }
+
+    /**
+     * Generates a patient record in the format read by PatientRecordFormat,
+     * invalid with the configured probability
+     *
+     * @return the record, without a line terminator
+     */
+    public String nextRecord () {
+
+        draw();
+
+        String[] fields = new String[PatientRecordFormat.NUM_COLUMNS];
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            fields[v] = ranges.getIthCatVarOptions(v)[catValues[v]];
+        }
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            fields[TBIModel.NUM_DIS_VARIABLES + v] = formatValue(v,
+                    contValues[v]);
+        }
+
+        // drawn before any corruption, and on every record, so that the
+        // outcomes do not depend on the invalid rate
+        int outcome = outcomeModel == null ? -1 : drawOutcome();
+
+        int numFields = fields.length;
+        if (invalidRate > 0 && random.nextDouble() < invalidRate) {
+            numFields = corrupt(fields);
+        }
+
+        StringBuilder out = new StringBuilder(80);
+        for (int i = 0; i < numFields; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(fields[i]);
+        }
+        if (outcome >= 0) {
+            out.append(',').append(outcome);
+        }
+        return (out.toString());
+    }
+
+    /**
+     * Writes a patient file
+     *
+     * @param file the file to write, compressed to BGZF if its name ends in
+     * ".gz"
+     * @param rows the number of records to write
+     * @throws IOException the file cannot be written
+     */
+    public void write (Path file, long rows) throws IOException {
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                CompressedFiles.newOutputStream(file,
+                        Runtime.getRuntime().availableProcessors()),
+                StandardCharsets.UTF_8))) {
+            out.write(PatientRecordFormat.HEADER);
+            if (outcomeModel != null) {
+                out.write(",Outcome");
+            }
+            out.newLine();
+            for (long r = 0; r < rows; r++) {
+                out.write(nextRecord());
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Draws the values of one valid patient into the scratch arrays
+     */
+    private void draw () {
+
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+
+            double min = ranges.getIthContVarMinimum(v);
+            double max = ranges.getIthContVarMaximum(v);
+            double value;
+
+            if (shapes[v] == Shape.UNIFORM && ranges.isIthContVarIntegral(v)) {
+                // every whole number in the interval equally likely
+                value = Math.floor(firstParameters[v] + random.nextDouble() *
+                        (secondParameters[v] - firstParameters[v] + 1));
+            } else if (shapes[v] == Shape.UNIFORM) {
+                value = firstParameters[v] + random.nextDouble() *
+                        (secondParameters[v] - firstParameters[v]);
+            } else {
+                int draws = 0;
+                do {
+                    value = firstParameters[v] + random.nextGaussian() *
+                            secondParameters[v];
+                } while ((value < min || value > max) &&
+                        ++draws < MAX_REDRAWS);
+            }
+
+            value = ranges.isIthContVarIntegral(v) ? Math.rint(value) :
+                    Math.rint(value * 10) / 10;
+            contValues[v] = Math.max(min, Math.min(max, value));
+        }
+
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            double u = random.nextDouble();
+            double[] thresholds = optionThresholds[v];
+            int option = 0;
+            while (u >= thresholds[option] && option < thresholds.length - 1) {
+                option++;
+            }
+            catValues[v] = option;
+        }
+    }
+
+    /**
+     * Draws the outcome of the patient in the scratch arrays
+     *
+     * @return 1 for death, 0 for survival
+     */
+    private int drawOutcome () {
+
+        double link = outcomeModel.getIntercept();
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            link += outcomeModel.getCoefficient(v) * contValues[v];
+        }
+        for (int v = 0; v < TBIModel.NUM_DIS_VARIABLES; v++) {
+            link += outcomeOptionTable[v][catValues[v]];
+        }
+
+        return (random.nextDouble() < 1 / (1 + Math.exp(-link)) ? 1 : 0);
+    }
+
+    /**
+     * Breaks one field of a record
+     *
+     * @param fields the fields of a valid record, changed in place
+     * @return the number of fields to write
+     */
+    private int corrupt (String[] fields) {
+
+        switch (random.nextInt(NUM_DEFECTS)) {
+
+            case OUT_OF_RANGE: {
+                int v = random.nextInt(TBIModel.NUM_CONT_VARIABLES);
+                double max = ranges.getIthContVarMaximum(v);
+                double value = Double.isInfinite(max) || random.nextBoolean() ?
+                        ranges.getIthContVarMinimum(v) - 1 - random.nextInt(10) :
+                        max + 1 + random.nextInt(10);
+                fields[TBIModel.NUM_DIS_VARIABLES + v] = formatValue(v, value);
+                return (fields.length);
+            }
+
+            case NOT_A_NUMBER:
+                fields[TBIModel.NUM_DIS_VARIABLES +
+                        random.nextInt(TBIModel.NUM_CONT_VARIABLES)] = "n/a";
+                return (fields.length);
+
+            case UNKNOWN_OPTION:
+                fields[random.nextInt(TBIModel.NUM_DIS_VARIABLES)] = "Unknown";
+                return (fields.length);
+
+            case MISSING_FIELD:
+            default:
+                return (fields.length - 1 - random.nextInt(3));
+        }
+    }
+
+    private String formatValue (int contVar, double value) {
+        return (ranges.isIthContVarIntegral(contVar) ?
+                Long.toString((long) value) : Double.toString(value));
+    }
+
+    /**
+     * Writes a synthetic patient file
+     *
+     * @param args optionally --labeled, to add outcomes drawn from the
+     * calculator's model, then the file to write, the number of records, and
+     * optionally the fraction of invalid records and the seed
+     */
+    public static void main (String[] args) {
+
+        boolean labeled = args.length > 0 && args[0].equals("--labeled");
+        if (labeled) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: WorkloadGenerator [--labeled] <file>"
+                    + " <rows> [invalid rate] [seed]");
+            System.exit(2);
+        }
+
+        try {
+            WorkloadGenerator generator = new WorkloadGenerator(
+                    args.length > 3 ? Long.parseLong(args[3]) : 1);
+            if (args.length > 2) {
+                generator.setInvalidRate(Double.parseDouble(args[2]));
+            }
+            if (labeled) {
+                generator.setOutcomeModel(new TBIModel().getCoefficients());
+            }
+            generator.write(Paths.get(args[0]), Long.parseLong(args[1]));
+        } catch (IllegalArgumentException badArgument) {
+            System.err.println("Invalid argument: "
+                    + badArgument.getMessage());
+            System.exit(2);
+        } catch (IOException failure) {
+            System.err.println("Generation failed: " + failure.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks that BatchValidator accepts exactly the records the TBIModel set
+ * methods accept, on both the double and the float path, for values at and
+ * around the edge of every continuous variable's range, and for NaN and the
+ * infinities.
+ *
+ * @author okama
+ */
+public class BatchValidatorTest {
+
+    // a valid record whose fields are replaced one at a time
+    private static final String[] BASELINE = {"Female", "No", "No",
+            "Pacific Islander", "Blunt", "10", "2", "15", "9", "115", "90",
+            "37", "98"};
+
+    // tried in every continuous column, besides the column's own edges
+    private static final String[] VALUES = {"NaN", "-NaN", "Infinity",
+            "-Infinity", "-1", "0", "0.5", "1", "7", "100", "1e3", "",
+            " 12 ", "twelve"};
+
+    private final BatchValidator validator = new BatchValidator();
+
+    @Test
+    public void validatorAgreesWithSetMethods () {
+        TBIModel model = new TBIModel();
+        for (int v = 0; v < TBIModel.NUM_CONT_VARIABLES; v++) {
+            int column = TBIModel.NUM_DIS_VARIABLES + v;
+            double min = model.getIthContVarMinimum(v);
+            double max = model.getIthContVarMaximum(v);
+
+            for (String value : VALUES) {
+                assertAgree(column, value);
+            }
+            for (double edge : new double[] {min, max, Math.nextDown(min),
+                    Math.nextUp(max), min - 1, max + 1}) {
+                if (!Double.isInfinite(edge)) {
+                    assertAgree(column, Double.toString(edge));
+                    assertAgree(column, Long.toString((long) edge));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void setMethodsRejectNaN () {
+        TBIModel model = new TBIModel();
+        Runnable[] setters = {
+            () -> model.setAge(Double.NaN),
+            () -> model.setSBP(Double.NaN),
+            () -> model.setPulseRate(Double.NaN),
+            () -> model.setBodyTemp(Double.NaN),
+            () -> model.setOxySat(Double.NaN)
+        };
+        for (int i = 0; i < setters.length; i++) {
+            try {
+                setters[i].run();
+                fail("Set method " + i + " accepted NaN");
+            } catch (IllegalArgumentException expected) {
+                // NaN is not a value of any variable
+            }
+        }
+    }
+
+    /**
+     * Checks that a record with one field replaced is accepted by the set
+     * methods exactly when it is accepted by both validator paths
+     */
+    private void assertAgree (int column, String value) {
+
+        String[] fields = BASELINE.clone();
+        fields[column] = value;
+        String record = String.join(",", fields);
+
+        boolean scalar;
+        try {
+            PatientRecordFormat.parse(record, new TBIModel());
+            scalar = true;
+        } catch (IllegalArgumentException invalid) {
+            scalar = false;
+        }
+
+        PatientBatch batch = new PatientBatch(1);
+        int[] masks = {validator.load(record, batch)};
+        boolean batched = validator.validate(batch, 0, 1, masks,
+                new int[1]) == 1;
+
+        FloatPatientBatch floats = new FloatPatientBatch(1);
+        boolean single = validator.load(record, floats) == 0;
+
+        String field = "column " + column + " \""
+                + value + "\"";
+        assertEquals("Batch path on " + field, scalar, batched);
+        assertEquals("Float path on " + field, scalar, single);
+        assertEquals("Float batch size on " + field, single ? 1 : 0,
+                floats.size());
+    }
+}
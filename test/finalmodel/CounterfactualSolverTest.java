@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks CounterfactualSolver against brute-force enumeration of every point
+ * of the step grid, on generated patients and targets.
+ *
+ * @author okama
+ */
+public class CounterfactualSolverTest {
+
+    // patients checked per test
+    private static final int PATIENTS = 3000;
+
+    // ranges, steps and costs per unit of the continuous inputs, in input
+    // order: systolic blood pressure, oxygen saturation, body temperature
+    private static final double[] LOWS = {50, 85, 35.5};
+    private static final double[] HIGHS = {140, 100, 38};
+    private static final double[] STEPS = {1, 1, 0.1};
+    private static final double[] COSTS = {0.1, 1 / 3.0, 2};
+
+    // the model term of each input
+    private static final int[] TERMS = {
+        ModelCoefficients.SBP_TERM, ModelCoefficients.OXY_SAT_TERM,
+        ModelCoefficients.BODY_TEMP_TERM
+    };
+
+    private static final double EPSILON = 1e-9;
+
+    private final ModelCoefficients coefficients =
+            new TBIModel().getCoefficients();
+
+    @Test
+    public void matchesBruteForceWithoutSwitchingOxygen ()
+            throws InterruptedException {
+        check(Double.POSITIVE_INFINITY, 1);
+    }
+
+    @Test
+    public void matchesBruteForceWhenOxygenMaySwitch ()
+            throws InterruptedException {
+        check(1, 2);
+    }
+
+    @Test
+    public void neverWithdrawsOxygenByDefault () throws InterruptedException {
+
+        CounterfactualSolver solver = new CounterfactualSolver(coefficients,
+                1);
+        WorkloadGenerator generator = new WorkloadGenerator(3);
+        generator.setInvalidRate(0);
+        TBIModel patient = new TBIModel();
+
+        for (int n = 0; n < PATIENTS; n++) {
+            generator.next(patient);
+            CounterfactualSolver.Counterfactual answer = solver.solve(patient,
+                    0.01);
+            assertFalse(answer.isChanged(
+                    CounterfactualSolver.SUPP_OXY_INPUT));
+        }
+    }
+
+    /**
+     * Solves generated patients for targets below their risk and compares
+     * every answer with the cheapest point of the full grid
+     */
+    private void check (double suppOxyCost, long seed)
+            throws InterruptedException {
+
+        CounterfactualSolver solver = new CounterfactualSolver(coefficients,
+                2);
+        for (int input = 0; input < TERMS.length; input++) {
+            solver.setRange(input, LOWS[input], HIGHS[input], STEPS[input],
+                    COSTS[input]);
+        }
+        solver.setSuppOxyCost(suppOxyCost);
+
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        generator.setInvalidRate(0);
+        Random targets = new Random(seed);
+        TBIModel patient = new TBIModel();
+
+        for (int n = 0; n < PATIENTS; n++) {
+
+            generator.next(patient);
+            double probability = patient.getProbabilityOfMortality();
+            double target = Math.max(1e-4,
+                    probability * (0.2 + 0.8 * targets.nextDouble()));
+
+            CounterfactualSolver.Counterfactual answer = solver.solve(patient,
+                    target);
+            double expected = bruteForce(patient, target, suppOxyCost);
+
+            String record = PatientRecordFormat.format(patient);
+            assertEquals(record, !Double.isInfinite(expected),
+                    answer.isReachable());
+            if (answer.isReachable()) {
+                assertEquals(record, expected, answer.getCost(), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * @return the least cost of any grid point under the target; infinite
+     * if there is none
+     */
+    private double bruteForce (TBIModel patient, double target,
+            double suppOxyCost) {
+
+        double[] terms = new double[ModelCoefficients.NUM_TERMS];
+        patient.getTermValues(terms);
+        double targetLink = TBIModel.getLinkForProbability(target);
+
+        // the values each input can take, moving only to lower the risk
+        double[][] values = new double[TERMS.length][];
+        for (int input = 0; input < TERMS.length; input++) {
+            double original = terms[TERMS[input]];
+            boolean raise = coefficients.getCoefficient(TERMS[input]) < 0;
+            double room = raise ? HIGHS[input] - original :
+                    original - LOWS[input];
+            int count = coefficients.getCoefficient(TERMS[input]) == 0 ||
+                    !(room > 0) ? 0 :
+                    (int) Math.floor(room / STEPS[input] + EPSILON);
+            values[input] = new double[count + 1];
+            for (int k = 0; k <= count; k++) {
+                values[input][k] = original +
+                        (raise ? k : -k) * STEPS[input];
+            }
+        }
+
+        double originalOxygen = terms[ModelCoefficients.SUPP_OXY_TERM];
+        double best = Double.POSITIVE_INFINITY;
+
+        for (int s = 0; s < (Double.isInfinite(suppOxyCost) ? 1 : 2); s++) {
+            terms[ModelCoefficients.SUPP_OXY_TERM] = s == 0 ? originalOxygen :
+                    1 - originalOxygen;
+            for (int i = 0; i < values[0].length; i++) {
+                terms[TERMS[0]] = values[0][i];
+                for (int j = 0; j < values[1].length; j++) {
+                    terms[TERMS[1]] = values[1][j];
+                    for (int k = 0; k < values[2].length; k++) {
+                        terms[TERMS[2]] = values[2][k];
+                        if (coefficients.link(terms) <= targetLink + EPSILON) {
+                            double cost = (s == 0 ? 0 : suppOxyCost) +
+                                    i * STEPS[0] * COSTS[0] +
+                                    j * STEPS[1] * COSTS[1] +
+                                    k * STEPS[2] * COSTS[2];
+                            best = Math.min(best, cost);
+                        }
+                    }
+                }
+            }
+        }
+
+        return (best);
+    }
+}
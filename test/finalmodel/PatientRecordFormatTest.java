@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks which lines of a patient file are taken for records.
+ *
+ * @author okama
+ */
+public class PatientRecordFormatTest {
+
+    // a valid record
+    private static final String RECORD =
+            "Female,No,No,Pacific Islander,Blunt,10,2,15,9,115,90,37,98";
+
+    @Test
+    public void recordsAreRecords () {
+        assertTrue(PatientRecordFormat.isRecord(RECORD));
+        assertTrue(PatientRecordFormat.isRecord("  " + RECORD));
+    }
+
+    @Test
+    public void blankLinesAreNotRecords () {
+        assertFalse(PatientRecordFormat.isRecord(""));
+        assertFalse(PatientRecordFormat.isRecord(" \t "));
+    }
+
+    @Test
+    public void commentsAreNotRecords () {
+        assertFalse(PatientRecordFormat.isRecord("# Gender,Supplemental"));
+        assertFalse(PatientRecordFormat.isRecord("   # indented comment"));
+        assertFalse(PatientRecordFormat.isRecord("\t#" + RECORD));
+    }
+}
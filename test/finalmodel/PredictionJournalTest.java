@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that predictions appended to the journal read back unchanged, that
+ * a reopened journal carries on with the next sequence number, and that a
+ * record torn or corrupted by a crash is dropped and overwritten rather than
+ * replayed.
+ *
+ * @author okama
+ */
+public class PredictionJournalTest {
+
+    // two patients with different predictions
+    private static final String FIRST =
+            "Female,No,No,Pacific Islander,Blunt,10,2,15,9,115,90,37,98";
+    private static final String SECOND =
+            "Male,Yes,Yes,White,Penetrating,12,5,6,41,85,130,35.5,88";
+
+    // the smallest segment the journal accepts
+    private static final int SMALL_SEGMENT_SIZE =
+            PredictionJournal.SEGMENT_HEADER_SIZE + 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysAppendedRecords () throws IOException {
+        Path directory = folder.newFolder().toPath();
+        TBIModel first = score(FIRST);
+        TBIModel second = score(SECOND);
+
+        try (PredictionJournal journal = new PredictionJournal(directory)) {
+            assertEquals(0, append(journal, first, 1000));
+            long last = append(journal, second, 2000);
+            assertEquals(1, last);
+            journal.awaitDurable(last);
+        }
+
+        List<JournalRecord> records = replay(directory);
+        assertEquals(2, records.size());
+        assertRecord(records.get(0), 0, 1000, first);
+        assertRecord(records.get(1), 1, 2000, second);
+    }
+
+    @Test
+    public void reopenedJournalContinuesSequence () throws IOException {
+        Path directory = folder.newFolder().toPath();
+
+        try (PredictionJournal journal = new PredictionJournal(directory)) {
+            append(journal, score(FIRST), 1000);
+            append(journal, score(SECOND), 2000);
+        }
+        try (PredictionJournal journal = new PredictionJournal(directory)) {
+            assertEquals(2, append(journal, score(FIRST), 3000));
+        }
+
+        List<JournalRecord> records = replay(directory);
+        assertEquals(3, records.size());
+        assertRecord(records.get(2), 2, 3000, score(FIRST));
+    }
+
+    @Test
+    public void recordsSpanSegments () throws IOException {
+        Path directory = folder.newFolder().toPath();
+        int count = 3 * SMALL_SEGMENT_SIZE / recordLength(score(FIRST));
+
+        try (PredictionJournal journal = new PredictionJournal(directory,
+                SMALL_SEGMENT_SIZE, 0)) {
+            for (int i = 0; i < count; i++) {
+                append(journal, score(i % 2 == 0 ? FIRST : SECOND), i);
+            }
+        }
+
+        List<JournalRecord> records = replay(directory);
+        assertEquals(count, records.size());
+        for (int i = 0; i < count; i++) {
+            assertRecord(records.get(i), i, i,
+                    score(i % 2 == 0 ? FIRST : SECOND));
+        }
+        assertEquals(4, JournalReader.listSegments(directory).size());
+    }
+
+    @Test
+    public void corruptRecordIsDroppedAndOverwritten () throws IOException {
+        Path directory = folder.newFolder().toPath();
+        Path segment = writeTwoRecords(directory);
+
+        // flip a byte of the second record's timestamp so its crc fails
+        int offset = PredictionJournal.SEGMENT_HEADER_SIZE
+                + recordLength(score(FIRST))
+                + JournalRecord.FRAME_HEADER_SIZE + 8;
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, offset);
+            value.put(0, (byte) ~value.get(0));
+            value.rewind();
+            channel.write(value, offset);
+        }
+
+        assertEquals(1, replay(directory).size());
+        assertRecoveredAfterFirst(directory);
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndOverwritten () throws IOException {
+        Path directory = folder.newFolder().toPath();
+        Path segment = writeTwoRecords(directory);
+
+        // cut the segment in the middle of the second record
+        int offset = PredictionJournal.SEGMENT_HEADER_SIZE
+                + recordLength(score(FIRST)) + recordLength(score(SECOND)) / 2;
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+        }
+
+        assertEquals(1, replay(directory).size());
+        assertRecoveredAfterFirst(directory);
+    }
+
+    @Test
+    public void secondJournalOnSameDirectoryIsRefused () throws IOException {
+        Path directory = folder.newFolder().toPath();
+
+        try (PredictionJournal journal = new PredictionJournal(directory)) {
+            try {
+                new PredictionJournal(directory).close();
+                fail("Opened a journal that is already open");
+            } catch (IOException expected) {
+                // the first journal holds the lock
+            }
+            append(journal, score(FIRST), 1000);
+        }
+
+        try (PredictionJournal journal = new PredictionJournal(directory)) {
+            assertEquals(1, append(journal, score(SECOND), 2000));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void closedJournalRefusesAppends () throws IOException {
+        PredictionJournal journal = new PredictionJournal(
+                folder.newFolder().toPath());
+        journal.close();
+        append(journal, score(FIRST), 1000);
+    }
+
+    /**
+     * Writes two records into a fresh journal and returns its only segment
+     */
+    private static Path writeTwoRecords (Path directory) throws IOException {
+        try (PredictionJournal journal = new PredictionJournal(directory,
+                SMALL_SEGMENT_SIZE, 0)) {
+            append(journal, score(FIRST), 1000);
+            append(journal, score(SECOND), 2000);
+        }
+        List<Path> segments = JournalReader.listSegments(directory);
+        assertEquals(1, segments.size());
+        return (segments.get(0));
+    }
+
+    /**
+     * Reopens a journal whose second record was lost and checks that the next
+     * append takes its place
+     */
+    private static void assertRecoveredAfterFirst (Path directory)
+            throws IOException {
+
+        try (PredictionJournal journal = new PredictionJournal(directory,
+                SMALL_SEGMENT_SIZE, 0)) {
+            assertEquals(1, append(journal, score(SECOND), 3000));
+            assertEquals(2, append(journal, score(FIRST), 4000));
+        }
+
+        List<JournalRecord> records = replay(directory);
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), 0, 1000, score(FIRST));
+        assertRecord(records.get(1), 1, 3000, score(SECOND));
+        assertRecord(records.get(2), 2, 4000, score(FIRST));
+    }
+
+    private static void assertRecord (JournalRecord record, long sequence,
+            long timestamp, TBIModel expected) {
+
+        assertEquals(sequence, record.getSequence());
+        assertEquals(timestamp, record.getTimestamp());
+        assertEquals(expected.getModelVersion(), record.getModelVersion());
+        assertEquals(expected.getLink(), record.getLink(), 0.0);
+        assertEquals(expected.getProbabilityOfMortality(),
+                record.getProbabilityOfMortality(), 0.0);
+
+        TBIModel restored = record.toModel();
+        for (int i = 0; i < TBIModel.NUM_DIS_VARIABLES; i++) {
+            assertEquals(expected.getIthCatVarSelection(i),
+                    restored.getIthCatVarSelection(i));
+        }
+        assertEquals(expected.getProbabilityOfMortality(),
+                restored.getProbabilityOfMortality(), 0.0);
+    }
+
+    private static long append (PredictionJournal journal, TBIModel model,
+            long timestamp) throws IOException {
+        return (journal.append(model, model.getLink(),
+                model.getProbabilityOfMortality(), timestamp));
+    }
+
+    private static int recordLength (TBIModel model) {
+        return (JournalRecord.of(0, 0, model, model.getLink(),
+                model.getProbabilityOfMortality()).encodedLength());
+    }
+
+    private static List<JournalRecord> replay (Path directory)
+            throws IOException {
+        List<JournalRecord> records = new ArrayList<>();
+        new JournalReader(directory).replay(records::add);
+        return (records);
+    }
+
+    private static TBIModel score (String record) {
+        TBIModel model = new TBIModel();
+        PatientRecordFormat.parse(record, model);
+        model.getProbabilityOfMortality();
+        return (model);
+    }
+}
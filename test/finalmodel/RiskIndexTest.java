@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the queries of RiskIndex against a brute-force scan of the same
+ * patients, while patients are added, re-scored and removed.
+ *
+ * @author okama
+ */
+public class RiskIndexTest {
+
+    // fixed so that a failure can be reproduced
+    private static final long SEED = 20181031L;
+
+    // patient identifiers drawn from; small enough that many are re-scored
+    private static final int PATIENTS = 400;
+
+    /**
+     * A patient as the brute-force scan holds it
+     */
+    private static final class Scored {
+
+        private final String patientId;
+        private final double link;
+        private final long order;
+
+        private Scored (String patientId, double link, long order) {
+            this.patientId = patientId;
+            this.link = link;
+            this.order = order;
+        }
+
+        private double probability () {
+            return (1 / (1 + Math.exp(-link)));
+        }
+    }
+
+    // highest risk first; of equal links, the later insertion first
+    private static final Comparator<Scored> RISK_ORDER = (a, b) -> {
+        int byLink = Double.compare(b.link, a.link);
+        return (byLink != 0 ? byLink : Long.compare(b.order, a.order));
+    };
+
+    @Test
+    public void topKReturnsHighestRiskFirst () {
+        RiskIndex index = new RiskIndex();
+        index.put("low", -3.0);
+        index.put("high", 2.0);
+        index.put("middle", 0.5);
+
+        assertIds(index.topK(2), "high", "middle");
+        assertIds(index.topK(10), "high", "middle", "low");
+        assertIds(index.topK(0));
+    }
+
+    @Test
+    public void rangeBoundsAreInclusive () {
+        RiskIndex index = new RiskIndex();
+        index.put("quarter", TBIModel.getLinkForProbability(0.25));
+        index.put("half", 0.0);
+        index.put("below", TBIModel.getLinkForProbability(0.2));
+
+        assertIds(index.inProbabilityRange(0.25, 0.5), "half", "quarter");
+        assertIds(index.inProbabilityRange(0.3, 0.4));
+        assertIds(index.inProbabilityRange(0, 1), "half", "quarter", "below");
+    }
+
+    @Test
+    public void rescoringReplacesEarlierEntry () {
+        RiskIndex index = new RiskIndex();
+        index.put("patient", -4.0);
+        index.put("patient", 1.0);
+
+        assertEquals(1, index.size());
+        assertIds(index.inProbabilityRange(0, 0.5));
+        assertIds(index.inProbabilityRange(0.5, 1), "patient");
+        assertTrue(index.remove("patient"));
+        assertFalse(index.remove("patient"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void scoresModelOnPut () {
+        TBIModel model = new TBIModel();
+        PatientRecordFormat.parse(
+                "Female,No,No,Pacific Islander,Blunt,10,2,15,9,115,90,37,98",
+                model);
+        RiskIndex index = new RiskIndex();
+        index.put("patient", model);
+
+        assertEquals(model.getProbabilityOfMortality(),
+                index.topK(1).get(0).getProbabilityOfMortality(), 1e-15);
+    }
+
+    @Test
+    public void queriesMatchScanWhilePatientsChange () {
+        Random random = new Random(SEED);
+        RiskIndex index = new RiskIndex();
+        Map<String, Scored> patients = new HashMap<>();
+        long order = 0;
+
+        for (int step = 0; step < 5000; step++) {
+            String patientId = "p" + random.nextInt(PATIENTS);
+            if (random.nextInt(4) == 0) {
+                assertEquals(patients.remove(patientId) != null,
+                        index.remove(patientId));
+            } else {
+                // a coarse grid of links, so that ties are common
+                double link = Math.round(random.nextGaussian() * 20) / 10.0;
+                index.put(patientId, link);
+                patients.put(patientId, new Scored(patientId, link, order++));
+            }
+
+            if (step % 50 == 0) {
+                assertMatchesScan(index, patients, random);
+            }
+        }
+        assertMatchesScan(index, patients, random);
+    }
+
+    @Test
+    public void bandQueriesMatchRiskBands () {
+        Random random = new Random(SEED);
+        RiskBands bands = RiskBands.DEFAULT;
+        RiskIndex index = new RiskIndex();
+        Map<String, Scored> patients = new HashMap<>();
+
+        for (int i = 0; i < 2000; i++) {
+            double link = random.nextGaussian() * 2 - 1;
+            index.put("p" + i, link);
+            patients.put("p" + i, new Scored("p" + i, link, i));
+        }
+
+        int total = 0;
+        for (int band = 0; band < bands.getNumBands(); band++) {
+            double upper = band + 1 < bands.getNumBands() ?
+                    Math.nextDown(bands.getLowerBound(band + 1)) : 1;
+            List<RiskIndex.Entry> inBand = index.inProbabilityRange(
+                    bands.getLowerBound(band), upper);
+            List<Scored> expected = new ArrayList<>();
+            for (Scored patient : patients.values()) {
+                if (bands.bandOfLink(patient.link) == band) {
+                    expected.add(patient);
+                }
+            }
+            expected.sort(RISK_ORDER);
+            assertEntries(expected, inBand);
+            total += inBand.size();
+        }
+        assertEquals(patients.size(), total);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaNLink () {
+        new RiskIndex().put("patient", Double.NaN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedRange () {
+        new RiskIndex().inProbabilityRange(0.5, 0.25);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeK () {
+        new RiskIndex().topK(-1);
+    }
+
+    /**
+     * Compares the size, the top-K and a random range query of the index
+     * with a scan of the patients
+     */
+    private static void assertMatchesScan (RiskIndex index,
+            Map<String, Scored> patients, Random random) {
+
+        List<Scored> all = new ArrayList<>(patients.values());
+        all.sort(RISK_ORDER);
+
+        assertEquals(all.size(), index.size());
+        assertEntries(all, index.topK(all.size() + 1));
+        int k = random.nextInt(all.size() + 1);
+        assertEntries(all.subList(0, k), index.topK(k));
+
+        double a = random.nextDouble();
+        double b = random.nextDouble();
+        double low = Math.min(a, b);
+        double high = Math.max(a, b);
+        List<Scored> inRange = new ArrayList<>();
+        for (Scored patient : all) {
+            double probability = patient.probability();
+            if (probability >= low && probability <= high) {
+                inRange.add(patient);
+            }
+        }
+        assertEntries(inRange, index.inProbabilityRange(low, high));
+    }
+
+    private static void assertEntries (List<Scored> expected,
+            List<RiskIndex.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).patientId,
+                    actual.get(i).getPatientId());
+            assertEquals(expected.get(i).link, actual.get(i).getLink(), 0.0);
+        }
+    }
+
+    private static void assertIds (List<RiskIndex.Entry> actual,
+            String... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual.get(i).getPatientId());
+        }
+    }
+}
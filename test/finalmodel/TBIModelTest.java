@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Pins the predictions of the scalar model for a Pacific Islander patient
+ * and for an otherwise identical patient of the reference race, so that a
+ * change to the formula cannot go unnoticed or ship under the same model
+ * version.
+ *
+ * @author okama
+ */
+public class TBIModelTest {
+
+    // the same patient, Pacific Islander and African American (the
+    // reference race, with no race term)
+    private static final String PACIFIC_ISLANDER =
+            "Female,No,No,Pacific Islander,Blunt,10,2,15,9,115,90,37,98";
+    private static final String REFERENCE_RACE =
+            "Female,No,No,African American,Blunt,10,2,15,9,115,90,37,98";
+
+    // the Pacific Islander coefficient of TMP3-1.1
+    private static final double PAC_ISLNDR_COEF = 0.2007908;
+
+    private static final double EPSILON = 1e-12;
+
+    @Test
+    public void pinsPacificIslanderPrediction () {
+        TBIModel model = score(PACIFIC_ISLANDER);
+        assertEquals(-5.0516511, model.getLink(), EPSILON);
+        assertEquals(0.006358075927152996, model.getProbabilityOfMortality(),
+                EPSILON);
+    }
+
+    @Test
+    public void pinsReferenceRacePrediction () {
+        TBIModel model = score(REFERENCE_RACE);
+        assertEquals(-5.2524419, model.getLink(), EPSILON);
+        assertEquals(0.00520746051809573, model.getProbabilityOfMortality(),
+                EPSILON);
+    }
+
+    @Test
+    public void addsPacificIslanderCoefficientOnlyToPacificIslanders () {
+        assertEquals(PAC_ISLNDR_COEF, score(PACIFIC_ISLANDER).getLink() -
+                score(REFERENCE_RACE).getLink(), EPSILON);
+    }
+
+    @Test
+    public void batchScorerAgreesWithScalarModel () {
+        BatchScorer scorer = new BatchScorer(new TBIModel().getCoefficients());
+        PatientBatch batch = new PatientBatch(2);
+        batch.add(score(PACIFIC_ISLANDER));
+        batch.add(score(REFERENCE_RACE));
+        double[] links = new double[2];
+        double[] probabilities = new double[2];
+        scorer.score(batch, 0, 2, links, probabilities);
+
+        assertEquals(score(PACIFIC_ISLANDER).getProbabilityOfMortality(),
+                probabilities[0], EPSILON);
+        assertEquals(score(REFERENCE_RACE).getProbabilityOfMortality(),
+                probabilities[1], EPSILON);
+    }
+
+    @Test
+    public void versionNamesCorrectedFormula () {
+        assertEquals("TMP3-1.1", new TBIModel().getModelVersion());
+    }
+
+    private static TBIModel score (String record) {
+        TBIModel model = new TBIModel();
+        PatientRecordFormat.parse(record, model);
+        model.getProbabilityOfMortality();
+        return (model);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package finalmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks VitalSignMonitor against full recomputation of the model: the
+ * incrementally updated link, including across resyncs, the band change
+ * alerts, readmission and discharge while updates are in flight, and the
+ * expiry of idle patients.
+ *
+ * @author okama
+ */
+public class VitalSignMonitorTest {
+
+    // fixed so that a failure can be reproduced
+    private static final long SEED = 20181031L;
+
+    // the baseline patient
+    private static final String BASELINE =
+            "Female,No,No,Pacific Islander,Blunt,10,2,15,9,115,90,37,98";
+
+    // how far the incremental link may drift from a full recompute
+    private static final double LINK_TOLERANCE = 1e-9;
+
+    /**
+     * An alert as received by the listener
+     */
+    private static final class Alert {
+
+        private final int oldBand;
+        private final int newBand;
+
+        private Alert (int oldBand, int newBand) {
+            this.oldBand = oldBand;
+            this.newBand = newBand;
+        }
+    }
+
+    @Test
+    public void incrementalLinkTracksFullRecompute () {
+        Random random = new Random(SEED);
+        TBIModel exact = baseline();
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            monitor.admit("patient", baseline());
+
+            int updates = 3 * VitalSignMonitor.RESYNC_INTERVAL + 7;
+            for (int i = 1; i <= updates; i++) {
+                VitalSign sign = randomSign(random);
+                double value = randomValue(sign, random);
+                double probability = monitor.update("patient", sign, value);
+                sign.set(exact, value);
+
+                if (i % VitalSignMonitor.RESYNC_INTERVAL == 0) {
+                    // just resynced, so the link is the recomputed one
+                    assertEquals(exact.getProbabilityOfMortality(),
+                            probability, 0.0);
+                } else {
+                    exact.getProbabilityOfMortality();
+                    assertEquals(exact.getLink(), linkOf(probability),
+                            LINK_TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void invalidUpdateLeavesRiskUnchanged () {
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            double before = monitor.admit("patient", baseline());
+            for (double value : new double[] {-1, Double.NaN,
+                    Double.POSITIVE_INFINITY}) {
+                try {
+                    monitor.update("patient", VitalSign.PULSE_RATE, value);
+                    fail("Accepted pulse rate " + value);
+                } catch (IllegalArgumentException expected) {
+                    // rejected before the state is touched
+                }
+            }
+            assertEquals(before, monitor.getProbability("patient"), 0.0);
+        }
+    }
+
+    @Test
+    public void alertsOnEveryBandChange () {
+        Random random = new Random(SEED);
+        TBIModel exact = baseline();
+        double start = exact.getProbabilityOfMortality();
+        // thresholds close to the baseline so that updates cross them often
+        RiskBands bands = new RiskBands(
+                new double[] {start / 2, start, start * 2},
+                new String[] {"A", "B", "C", "D"});
+
+        List<Alert> alerts = new ArrayList<>();
+        List<Alert> expected = new ArrayList<>();
+        try (VitalSignMonitor monitor = new VitalSignMonitor(bands,
+                (patientId, oldBand, newBand, probability) -> {
+                    assertEquals("patient", patientId);
+                    assertEquals(newBand, bands.bandOf(probability));
+                    alerts.add(new Alert(oldBand, newBand));
+                }, 0)) {
+            monitor.admit("patient", baseline());
+
+            exact.getProbabilityOfMortality();
+            int band = bands.bandOfLink(exact.getLink());
+            for (int i = 0; i < 2000; i++) {
+                VitalSign sign = randomSign(random);
+                double value = randomValue(sign, random);
+                monitor.update("patient", sign, value);
+                sign.set(exact, value);
+                exact.getProbabilityOfMortality();
+                int newBand = bands.bandOfLink(exact.getLink());
+                if (newBand != band) {
+                    expected.add(new Alert(band, newBand));
+                    band = newBand;
+                }
+            }
+        }
+
+        assertTrue(expected.size() > 10);
+        assertEquals(expected.size(), alerts.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).oldBand, alerts.get(i).oldBand);
+            assertEquals(expected.get(i).newBand, alerts.get(i).newBand);
+        }
+    }
+
+    @Test
+    public void readmissionReplacesState () {
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            TBIModel first = baseline();
+            monitor.admit("patient", first);
+            monitor.update("patient", VitalSign.SYSTOLIC_BLOOD_PRESSURE, 60);
+
+            TBIModel second = baseline();
+            double readmitted = monitor.admit("patient", second);
+            assertEquals(baseline().getProbabilityOfMortality(), readmitted,
+                    0.0);
+            assertEquals(readmitted, monitor.getProbability("patient"), 0.0);
+            assertEquals(1, monitor.getNumPatients());
+
+            monitor.update("patient", VitalSign.PULSE_RATE, 150);
+            assertEquals(60, first.getSBP(), 0.0);
+            assertEquals(90, first.getPulseRate(), 0.0);
+            assertEquals(115, second.getSBP(), 0.0);
+            assertEquals(150, second.getPulseRate(), 0.0);
+        }
+    }
+
+    @Test
+    public void dischargedPatientTakesNoUpdates () {
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            monitor.admit("patient", baseline());
+            assertTrue(monitor.discharge("patient"));
+            assertFalse(monitor.discharge("patient"));
+            assertTrue(Double.isNaN(monitor.getProbability("patient")));
+            try {
+                monitor.update("patient", VitalSign.PULSE_RATE, 100);
+                fail("Updated a discharged patient");
+            } catch (IllegalArgumentException expected) {
+                // no longer monitored
+            }
+        }
+    }
+
+    @Test
+    public void updatesRacingReadmissionNeverReachReplacedModel ()
+            throws InterruptedException {
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            monitor.admit("patient", baseline());
+
+            List<Thread> updaters = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                final Random random = new Random(SEED + t);
+                Thread updater = new Thread(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        VitalSign sign = randomSign(random);
+                        try {
+                            double probability = monitor.update("patient",
+                                    sign, randomValue(sign, random));
+                            if (!(probability >= 0 && probability <= 1)) {
+                                failure.compareAndSet(null,
+                                        new AssertionError("Probability "
+                                                + probability));
+                            }
+                        } catch (IllegalArgumentException discharged) {
+                            // between a discharge and the next admission
+                        } catch (Throwable unexpected) {
+                            failure.compareAndSet(null, unexpected);
+                        }
+                    }
+                });
+                updaters.add(updater);
+                updater.start();
+            }
+
+            // once replaced, a model must never be changed again
+            List<TBIModel> replaced = new ArrayList<>();
+            List<String> snapshots = new ArrayList<>();
+            TBIModel current = baseline();
+            monitor.admit("patient", current);
+            for (int i = 0; i < 500; i++) {
+                TBIModel next = baseline();
+                if (i % 3 == 0) {
+                    monitor.discharge("patient");
+                }
+                monitor.admit("patient", next);
+                replaced.add(current);
+                snapshots.add(current.toString());
+                current = next;
+                Thread.yield();
+            }
+
+            for (Thread updater : updaters) {
+                updater.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            for (int i = 0; i < replaced.size(); i++) {
+                assertEquals(snapshots.get(i), replaced.get(i).toString());
+            }
+
+            // the live state still agrees with its own model
+            double probability = monitor.update("patient",
+                    VitalSign.OXYGEN_SATURATION, 95);
+            assertEquals(current.getProbabilityOfMortality(), probability,
+                    1e-9);
+        }
+    }
+
+    @Test
+    public void idlePatientsExpire () throws InterruptedException {
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 1000)) {
+            monitor.admit("idle", baseline());
+            monitor.admit("active", baseline());
+
+            Thread.sleep(700);
+            monitor.update("active", VitalSign.PULSE_RATE, 100);
+            Thread.sleep(700);
+            monitor.expireIdle();
+
+            assertEquals(1, monitor.getNumPatients());
+            assertTrue(Double.isNaN(monitor.getProbability("idle")));
+            assertFalse(Double.isNaN(monitor.getProbability("active")));
+            try {
+                monitor.update("idle", VitalSign.PULSE_RATE, 100);
+                fail("Updated an expired patient");
+            } catch (IllegalArgumentException expected) {
+                // dropped by the sweep
+            }
+        }
+    }
+
+    @Test
+    public void noTimeoutKeepsIdlePatients () throws InterruptedException {
+        try (VitalSignMonitor monitor = new VitalSignMonitor(
+                RiskBands.DEFAULT, null, 0)) {
+            monitor.admit("patient", baseline());
+            Thread.sleep(20);
+            assertEquals(0, monitor.expireIdle());
+            assertEquals(1, monitor.getNumPatients());
+        }
+    }
+
+    private static TBIModel baseline () {
+        TBIModel model = new TBIModel();
+        PatientRecordFormat.parse(BASELINE, model);
+        return (model);
+    }
+
+    private static double linkOf (double probability) {
+        return (Math.log(probability / (1 - probability)));
+    }
+
+    private static VitalSign randomSign (Random random) {
+        VitalSign[] signs = VitalSign.values();
+        return (signs[random.nextInt(signs.length)]);
+    }
+
+    /**
+     * Draws a plausible bedside value for a vital sign
+     */
+    private static double randomValue (VitalSign sign, Random random) {
+        switch (sign) {
+            case SYSTOLIC_BLOOD_PRESSURE:
+                return (40 + random.nextDouble() * 160);
+            case PULSE_RATE:
+                return (40 + random.nextDouble() * 160);
+            case BODY_TEMPERATURE:
+                return (34 + random.nextDouble() * 7);
+            default:
+                return (50 + random.nextDouble() * 50);
+        }
+    }
+}